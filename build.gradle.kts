@@ -11,14 +11,37 @@ repositories {
     mavenCentral()
 }
 
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+    create("loadtest") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+configurations["jmhImplementation"].extendsFrom(configurations.implementation.get())
+configurations["jmhRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+configurations["loadtestImplementation"].extendsFrom(configurations.implementation.get())
+configurations["loadtestRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
 dependencies {
     implementation("org.slf4j:slf4j-api:2.0.13")
     implementation("io.netty:netty-all:4.1.111.Final")
+    implementation("io.netty.incubator:netty-incubator-transport-native-io_uring:0.0.25.Final")
+    runtimeOnly("io.netty.incubator:netty-incubator-transport-native-io_uring:0.0.25.Final:linux-x86_64")
+    runtimeOnly("io.netty.incubator:netty-incubator-transport-native-io_uring:0.0.25.Final:linux-aarch_64")
     testImplementation("ch.qos.logback:logback-classic:1.5.6")
-    testImplementation("org.eclipse.paho:org.eclipse.paho.client.mqttv3:1.2.5")
-    testImplementation("org.eclipse.paho:org.eclipse.paho.mqttv5.client:1.2.5")
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+    "jmhImplementation"("ch.qos.logback:logback-classic:1.5.6")
+    "loadtestImplementation"("org.hdrhistogram:HdrHistogram:2.2.2")
+    "loadtestImplementation"("ch.qos.logback:logback-classic:1.5.6")
 }
 
 java {
@@ -38,6 +61,26 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// Run benchmarks with `gradle jmh`, JMH options can be passed as -PjmhArgs="TopicMatch -f 1".
+// Compare results with src/jmh/BASELINE.md
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs JMH benchmarks of broker hot paths."
+    mainClass.set("org.openjdk.jmh.Main")
+    classpath = sourceSets["jmh"].runtimeClasspath
+    args((project.findProperty("jmhArgs") as String?)?.split(" ") ?: emptyList<String>())
+}
+
+// Run an end-to-end load test with `gradle loadtest`, options can be passed as
+// -PloadtestArgs="publishers=4 subscribers=16 qos=1", see LoadOptions
+tasks.register<JavaExec>("loadtest") {
+    group = "benchmark"
+    description = "Runs clients against an in-process broker over loopback."
+    mainClass.set("org.flmelody.netcell.load.LoadGenerator")
+    classpath = sourceSets["loadtest"].runtimeClasspath
+    args((project.findProperty("loadtestArgs") as String?)?.split(" ") ?: emptyList<String>())
+}
+
 publishing {
     publications {
         create<MavenPublication>("mavenJava") {
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttConstant;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.flmelody.netcell.core.handler.MqttMessageHandler;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Connection setup latency under a connect storm: initialize the pipeline, handle CONNECT, answer
+ * CONNACK and close, from several threads at once. {@code perChannel} builds dispatcher and handler
+ * for every connection as the broker used to.
+ *
+ * @author esotericman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ConnectStormBenchmark {
+  // Distinct client ids, connections of one id would take each other over
+  private static final int CLIENTS = 4096;
+
+  @Param({"shared", "perChannel"})
+  private String handler;
+
+  private ChannelHandler initializer;
+  private final AtomicInteger cursor = new AtomicInteger();
+  private ByteBuf[] connectFrames;
+
+  @Setup
+  public void setup() {
+    ProviderManager providerManager = new ProviderManager();
+    initializer =
+        "shared".equals(handler)
+            ? new MqttBroker.BrokerChannelInitializer(
+                providerManager,
+                new BrokerMetrics(),
+                null,
+                MqttBroker.DEFAULT_MAX_PENDING_FLUSHES,
+                MqttConstant.DEFAULT_MAX_BYTES_IN_MESSAGE)
+            : new PerChannelInitializer(providerManager);
+    connectFrames = new ByteBuf[CLIENTS];
+    EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+    for (int i = 0; i < CLIENTS; i++) {
+      MqttConnectMessage connectMessage =
+          MqttMessageBuilders.connect()
+              .clientId("storm-" + i)
+              .protocolVersion(MqttVersion.MQTT_3_1_1)
+              .cleanSession(true)
+              .keepAlive(60)
+              .build();
+      encoder.writeOutbound(connectMessage);
+      connectFrames[i] = Unpooled.unreleasableBuffer(encoder.<ByteBuf>readOutbound());
+    }
+    encoder.finishAndReleaseAll();
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (ByteBuf connectFrame : connectFrames) {
+      connectFrame.unwrap().release();
+    }
+  }
+
+  @Benchmark
+  public Object connect() {
+    EmbeddedChannel channel = new EmbeddedChannel(initializer);
+    channel.writeInbound(connectFrames[cursor.getAndIncrement() & (CLIENTS - 1)].duplicate());
+    Object connAck = channel.readOutbound();
+    ReferenceCountUtil.release(connAck);
+    channel.finishAndReleaseAll();
+    return connAck;
+  }
+
+  /** Pipeline as it was before handler was shared */
+  private static final class PerChannelInitializer extends ChannelInitializer<Channel> {
+    private final ProviderManager providerManager;
+
+    private PerChannelInitializer(ProviderManager providerManager) {
+      this.providerManager = providerManager;
+    }
+
+    @Override
+    protected void initChannel(Channel ch) {
+      ch.pipeline()
+          .addLast(new MqttDecoder())
+          .addLast(MqttEncoder.INSTANCE)
+          .addLast(new IdleStateHandler(0, 0, 10))
+          .addLast(new MqttMessageHandler(new MqttDispatcher().assembleListeners(providerManager)));
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.core.listener.MqttMessageListener;
+import org.flmelody.netcell.core.listener.MqttPingMessageListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Dispatch cost per message type with the listeners of a default broker, which are replaced by
+ * no-op listeners with the same interests. {@code scanAll} is the former dispatch visiting every
+ * listener and checking a channel attribute before each of them.
+ *
+ * @author esotericman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+  private static final AttributeKey<Boolean> LISTENER_FINISH =
+      AttributeKey.valueOf("BENCHMARK_LISTENER_FINISH");
+
+  @Param({"PUBLISH", "PUBACK", "SUBSCRIBE", "PINGREQ"})
+  private MqttMessageType messageType;
+
+  private EmbeddedChannel channel;
+  private ChannelHandlerContext context;
+  private MqttMessage message;
+  private MqttDispatcher dispatcher;
+  private List<MqttMessageListener> listeners;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    channel =
+        new EmbeddedChannel(
+            new ChannelOutboundHandlerAdapter() {
+              @Override
+              public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                ReferenceCountUtil.release(msg);
+                promise.setSuccess();
+              }
+            });
+    context = channel.pipeline().firstContext();
+    message =
+        new MqttMessage(new MqttFixedHeader(messageType, false, MqttQoS.AT_MOST_ONCE, false, 0));
+    listeners =
+        List.of(
+            new MqttPingMessageListener(),
+            new NoopListener(
+                blackhole,
+                EnumSet.of(
+                    MqttMessageType.CONNECT,
+                    MqttMessageType.DISCONNECT,
+                    MqttMessageType.SUBSCRIBE,
+                    MqttMessageType.UNSUBSCRIBE)),
+            new NoopListener(
+                blackhole,
+                EnumSet.of(
+                    MqttMessageType.CONNECT,
+                    MqttMessageType.PUBLISH,
+                    MqttMessageType.PUBACK,
+                    MqttMessageType.PUBREL,
+                    MqttMessageType.SUBSCRIBE,
+                    MqttMessageType.UNSUBSCRIBE,
+                    MqttMessageType.DISCONNECT)),
+            new NoopListener(blackhole, EnumSet.of(MqttMessageType.PUBLISH)),
+            new NoopListener(
+                blackhole, EnumSet.of(MqttMessageType.CONNECT, MqttMessageType.PUBLISH)));
+    dispatcher =
+        new MqttDispatcher().assembleListeners(listeners.toArray(new MqttMessageListener[0]));
+  }
+
+  @TearDown
+  public void tearDown() {
+    channel.finishAndReleaseAll();
+  }
+
+  @Benchmark
+  public void indexed() {
+    dispatcher.dispatch(context, message);
+  }
+
+  @Benchmark
+  public void scanAll() {
+    MqttMessageType type = message.fixedHeader().messageType();
+    for (MqttMessageListener listener : listeners) {
+      if (!Boolean.TRUE.equals(context.channel().attr(LISTENER_FINISH).get())
+          && listener.interests(type)) {
+        if (!listener.handle(context, message)) {
+          context.channel().attr(LISTENER_FINISH).set(Boolean.TRUE);
+        }
+      }
+    }
+    context.channel().attr(LISTENER_FINISH).set(Boolean.FALSE);
+  }
+
+  /** Listener doing nothing but consuming message */
+  private static final class NoopListener implements MqttMessageListener {
+    private final Blackhole blackhole;
+    private final Set<MqttMessageType> interests;
+
+    private NoopListener(Blackhole blackhole, Set<MqttMessageType> interests) {
+      this.blackhole = blackhole;
+      this.interests = interests;
+    }
+
+    @Override
+    public boolean interests(MqttMessageType mqttMessageType) {
+      return interests.contains(mqttMessageType);
+    }
+
+    @Override
+    public void onMessage(ChannelHandlerContext context, MqttMessage mqttMessage) {
+      blackhole.consume(mqttMessage);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.mqtt.MqttConstant;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Flushes reaching the transport per delivered message, every flush is a write syscall on a real
+ * socket. Each invocation runs one event-loop task writing a tick worth of messages to a channel
+ * initialized by the broker, as fan-out does; compare the {@code flushes} and {@code messages}
+ * rates reported by the aux counters.
+ *
+ * @author esotericman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushConsolidationBenchmark {
+  private static final ByteBuf FRAME =
+      Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[64]));
+
+  // 0 disables consolidation, like the broker did before
+  @Param({"0", "256"})
+  private int maxPendingFlushes;
+
+  @Param({"1", "16", "256"})
+  private int messagesPerTick;
+
+  private EventLoopGroup group;
+  private Channel server;
+  private Channel channel;
+  private FlushCounter flushCounter;
+
+  @Setup
+  public void setup() throws Exception {
+    group = new DefaultEventLoopGroup(2);
+    LocalAddress address = new LocalAddress("flush-consolidation-benchmark");
+    server =
+        new ServerBootstrap()
+            .group(group)
+            .channel(LocalServerChannel.class)
+            .childHandler(
+                new ChannelInboundHandlerAdapter() {
+                  @Override
+                  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    ReferenceCountUtil.release(msg);
+                  }
+                })
+            .bind(address)
+            .sync()
+            .channel();
+    flushCounter = new FlushCounter();
+    channel =
+        new Bootstrap()
+            .group(group)
+            .channel(LocalChannel.class)
+            .handler(
+                new ChannelInitializer<>() {
+                  @Override
+                  protected void initChannel(Channel ch) {
+                    ch.pipeline()
+                        .addLast(
+                            flushCounter,
+                            new MqttBroker.BrokerChannelInitializer(
+                                new ProviderManager(),
+                                new BrokerMetrics(),
+                                null,
+                                maxPendingFlushes,
+                                MqttConstant.DEFAULT_MAX_BYTES_IN_MESSAGE));
+                  }
+                })
+            .connect(address)
+            .sync()
+            .channel();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    channel.close().sync();
+    server.close().sync();
+    group.shutdownGracefully().sync();
+  }
+
+  @Benchmark
+  public void tick(Counters counters) throws Exception {
+    long before = flushCounter.flushes;
+    channel
+        .eventLoop()
+        .submit(
+            () -> {
+              for (int i = 0; i < messagesPerTick; i++) {
+                channel.writeAndFlush(FRAME.duplicate());
+              }
+            })
+        .sync();
+    // Consolidated flush runs as the next task of event loop
+    channel.eventLoop().submit(() -> {}).sync();
+    counters.messages += messagesPerTick;
+    counters.flushes += flushCounter.flushes - before;
+  }
+
+  /** Counters reported next to the benchmark score */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long messages;
+    public long flushes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      messages = 0;
+      flushes = 0;
+    }
+  }
+
+  /** Counts flushes arriving at the head of pipeline */
+  private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+    private long flushes;
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+      flushes++;
+      ctx.flush();
+    }
+  }
+}
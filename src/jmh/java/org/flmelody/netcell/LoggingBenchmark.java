@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.core.constants.NettyAttributeKeys;
+import org.flmelody.netcell.core.handler.MqttMessageHandler;
+import org.flmelody.netcell.core.trace.MessageTracer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Messages per second through {@link MqttMessageHandler} with per-message logging off, with trace
+ * level switched on (one line per message, as INFO used to be) and with only the current client
+ * traced by {@link MessageTracer}. Log lines go to {@code build/jmh-benchmark.log}.
+ *
+ * @author esotericman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggingBenchmark {
+  @Param({"off", "trace", "tracedClient"})
+  private String logging;
+
+  private EmbeddedChannel channel;
+  private ChannelPipeline pipeline;
+  private MqttMessage message;
+
+  @Setup
+  public void setup() {
+    Logger handlerLogger = (Logger) LoggerFactory.getLogger(MqttMessageHandler.class);
+    handlerLogger.setLevel("trace".equals(logging) ? Level.TRACE : Level.INFO);
+    if ("tracedClient".equals(logging)) {
+      MessageTracer.trace("benchmark");
+    }
+    channel = new EmbeddedChannel(new MqttMessageHandler(new MqttDispatcher()));
+    channel.attr(NettyAttributeKeys.MQTT_CLIENT_ID).set("benchmark");
+    pipeline = channel.pipeline();
+    message =
+        new MqttMessage(
+            new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 2),
+            MqttMessageIdVariableHeader.from(1));
+  }
+
+  @TearDown
+  public void tearDown() {
+    MessageTracer.untrace("benchmark");
+    channel.finishAndReleaseAll();
+  }
+
+  @Benchmark
+  public void receive() {
+    pipeline.fireChannelRead(message);
+  }
+}
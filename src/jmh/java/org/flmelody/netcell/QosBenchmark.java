@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConstant;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages per second over one publisher and one subscriber connection at qos 1 and qos 2. Every
+ * invocation is a complete exchange on both sides: PUBLISH and PUBACK, or PUBLISH, PUBREC, PUBREL
+ * and PUBCOMP, through the broker pipeline.
+ *
+ * @author esotericman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QosBenchmark {
+  private static final String TOPIC = "benchmark/qos";
+
+  @Param({"AT_LEAST_ONCE", "EXACTLY_ONCE"})
+  private MqttQoS qos;
+
+  private EmbeddedChannel publisher;
+  private EmbeddedChannel subscriber;
+  private ByteBuf payload;
+  private int packetId;
+
+  @Setup
+  public void setup() {
+    MqttBroker.BrokerChannelInitializer initializer =
+        new MqttBroker.BrokerChannelInitializer(
+            new ProviderManager(),
+            new BrokerMetrics(),
+            null,
+            0,
+            MqttConstant.DEFAULT_MAX_BYTES_IN_MESSAGE);
+    publisher = connect(initializer, "qos-publisher");
+    subscriber = connect(initializer, "qos-subscriber");
+    subscriber.writeInbound(
+        MqttMessageBuilders.subscribe().messageId(1).addSubscription(qos, TOPIC).build());
+    ReferenceCountUtil.release(subscriber.readOutbound());
+    payload = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[64]));
+  }
+
+  @TearDown
+  public void tearDown() {
+    publisher.finishAndReleaseAll();
+    subscriber.finishAndReleaseAll();
+  }
+
+  @Benchmark
+  public void exchange() {
+    packetId = packetId == 0xFFFF ? 1 : packetId + 1;
+    publisher.writeInbound(
+        new MqttPublishMessage(
+            new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+            new MqttPublishVariableHeader(TOPIC, packetId),
+            payload.duplicate()));
+    ReferenceCountUtil.release(publisher.readOutbound());
+    if (MqttQoS.EXACTLY_ONCE.equals(qos)) {
+      publisher.writeInbound(message(MqttMessageType.PUBREL, packetId));
+      ReferenceCountUtil.release(publisher.readOutbound());
+    }
+
+    ByteBuf delivered = subscriber.readOutbound();
+    int deliveredId = packetId(delivered);
+    delivered.release();
+    if (MqttQoS.AT_LEAST_ONCE.equals(qos)) {
+      subscriber.writeInbound(message(MqttMessageType.PUBACK, deliveredId));
+    } else {
+      subscriber.writeInbound(message(MqttMessageType.PUBREC, deliveredId));
+      ReferenceCountUtil.release(subscriber.readOutbound());
+      subscriber.writeInbound(message(MqttMessageType.PUBCOMP, deliveredId));
+    }
+  }
+
+  private static EmbeddedChannel connect(
+      MqttBroker.BrokerChannelInitializer initializer, String clientId) {
+    EmbeddedChannel channel = new EmbeddedChannel(initializer);
+    channel.writeInbound(
+        MqttMessageBuilders.connect()
+            .clientId(clientId)
+            .protocolVersion(MqttVersion.MQTT_3_1_1)
+            .cleanSession(true)
+            .build());
+    ReferenceCountUtil.release(channel.readOutbound());
+    return channel;
+  }
+
+  private static MqttMessage message(MqttMessageType messageType, int packetId) {
+    MqttQoS qos =
+        MqttMessageType.PUBREL.equals(messageType) ? MqttQoS.AT_LEAST_ONCE : MqttQoS.AT_MOST_ONCE;
+    return new MqttMessage(
+        new MqttFixedHeader(messageType, false, qos, false, 0),
+        MqttMessageIdVariableHeader.from(packetId));
+  }
+
+  // Packet id of an encoded PUBLISH, behind remaining length and topic
+  private static int packetId(ByteBuf frame) {
+    int index = frame.readerIndex() + 1;
+    while ((frame.getByte(index++) & 0x80) != 0) {
+      // Skip remaining length
+    }
+    return frame.getUnsignedShort(index + 2 + frame.getUnsignedShort(index));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link MqttDecoder} and {@link MqttEncoder} for a qos 1 PUBLISH, each on its own and as
+ * a round trip, as every message crosses both on its way through the broker.
+ *
+ * @author esotericman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+  @Param({"64", "4096"})
+  private int payloadSize;
+
+  private EmbeddedChannel encoder;
+  private EmbeddedChannel decoder;
+  private MqttPublishMessage message;
+  private ByteBuf frame;
+
+  @Setup
+  public void setup() {
+    encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+    encoder.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+    decoder = new EmbeddedChannel(new MqttDecoder());
+    decoder.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+    ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize);
+    payload.writeZero(payloadSize);
+    message =
+        new MqttPublishMessage(
+            new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+            new MqttPublishVariableHeader("fleet/42/device/7/telemetry", 7),
+            payload);
+    frame = encode(message.retainedDuplicate());
+  }
+
+  @TearDown
+  public void tearDown() {
+    message.release();
+    frame.release();
+    encoder.finishAndReleaseAll();
+    decoder.finishAndReleaseAll();
+  }
+
+  @Benchmark
+  public int encode() {
+    ByteBuf encoded = encode(message.retainedDuplicate());
+    int length = encoded.readableBytes();
+    encoded.release();
+    return length;
+  }
+
+  @Benchmark
+  public Object decode() {
+    return decode(frame.retainedDuplicate());
+  }
+
+  @Benchmark
+  public Object roundTrip() {
+    return decode(encode(message.retainedDuplicate()));
+  }
+
+  private ByteBuf encode(MqttPublishMessage publishMessage) {
+    encoder.writeOutbound(publishMessage);
+    return encoder.readOutbound();
+  }
+
+  private Object decode(ByteBuf encoded) {
+    decoder.writeInbound(encoded);
+    Object decoded = decoder.readInbound();
+    ReferenceCountUtil.release(decoded);
+    return decoded;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of delivering one PUBLISH to many subscribers, encoding per subscriber through {@link
+ * MqttEncoder} versus sharing frames of {@link EncodedPublish}. Run with {@code -prof gc} to
+ * compare allocations.
+ *
+ * @author esotericman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+  @Param({"10", "1000", "10000"})
+  private int subscribers;
+
+  @Param({"256"})
+  private int payloadSize;
+
+  private EmbeddedChannel channel;
+  private MqttPublishMessage message;
+
+  @Setup
+  public void setup() {
+    channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+    channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+    ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize);
+    payload.writeZero(payloadSize);
+    message =
+        new MqttPublishMessage(
+            new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+            new MqttPublishVariableHeader("fleet/42/device/7/telemetry", 0),
+            payload);
+  }
+
+  @TearDown
+  public void tearDown() {
+    message.release();
+    channel.finishAndReleaseAll();
+  }
+
+  @Benchmark
+  public void encodePerSubscriber() {
+    for (int i = 0; i < subscribers; i++) {
+      channel.write(message.retainedDuplicate());
+    }
+    drain();
+  }
+
+  @Benchmark
+  public void encodeOnce() {
+    EncodedPublish encodedPublish = new EncodedPublish(message, PooledByteBufAllocator.DEFAULT);
+    try {
+      for (int i = 0; i < subscribers; i++) {
+        channel.write(encodedPublish.frame(channel, MqttQoS.AT_MOST_ONCE, 0));
+      }
+    } finally {
+      encodedPublish.release();
+    }
+    drain();
+  }
+
+  private void drain() {
+    channel.flushOutbound();
+    ByteBuf frame;
+    while ((frame = channel.readOutbound()) != null) {
+      frame.release();
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.ProviderInteractor;
+import org.flmelody.netcell.core.listener.MqttMessageListener;
+import org.flmelody.netcell.core.provider.session.LocalSessionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Routing of a qos 0 PUBLISH by {@link LocalMessageDeliveryProvider}, with and without its route
+ * cache. Subscribers are persistent and offline, so the cost is that of finding them. Filters are
+ * mixed as in {@code TopicMatchBenchmark}.
+ *
+ * @author esotericman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+  private static final int TOPICS = 1024;
+
+  @Param({"10000", "100000"})
+  private int filters;
+
+  @Param({"0", "4096"})
+  private int routeCacheCapacity;
+
+  private List<MqttMessageListener> listeners;
+  private EmbeddedChannel publisher;
+  private String[] topics;
+  private ByteBuf payload;
+  private int cursor;
+
+  @Setup
+  public void setup() {
+    ProviderInteractor interactor = new ProviderInteractor();
+    listeners =
+        List.of(
+            new LocalSessionProvider().withActor(interactor),
+            new LocalMessageDeliveryProvider(routeCacheCapacity).withActor(interactor));
+    for (int i = 0; i < filters; i++) {
+      String filter;
+      if (i % 20 == 0) {
+        filter = "fleet/" + (i % 1000) + "/device/" + i + "/#";
+      } else if (i % 10 == 0) {
+        filter = "fleet/" + (i % 1000) + "/+/" + i + "/temp";
+      } else {
+        filter = "fleet/" + (i % 1000) + "/device/" + i + "/temp";
+      }
+      EmbeddedChannel subscriber = connect("client-" + i, false);
+      dispatch(
+          subscriber,
+          MqttMessageBuilders.subscribe()
+              .messageId(1)
+              .addSubscription(MqttQoS.AT_MOST_ONCE, filter)
+              .build());
+      dispatch(subscriber, MqttMessage.DISCONNECT);
+      subscriber.finishAndReleaseAll();
+    }
+    publisher = connect("publisher", true);
+    topics = new String[TOPICS];
+    for (int i = 0; i < TOPICS; i++) {
+      int device = ThreadLocalRandom.current().nextInt(filters);
+      topics[i] = "fleet/" + (device % 1000) + "/device/" + device + "/temp";
+    }
+    payload = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[64]));
+  }
+
+  @TearDown
+  public void tearDown() {
+    publisher.finishAndReleaseAll();
+  }
+
+  @Benchmark
+  public void publish() {
+    dispatch(
+        publisher,
+        new MqttPublishMessage(
+            new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+            new MqttPublishVariableHeader(topics[cursor++ & (TOPICS - 1)], 0),
+            payload.duplicate()));
+  }
+
+  private EmbeddedChannel connect(String clientId, boolean cleanSession) {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    dispatch(
+        channel,
+        MqttMessageBuilders.connect()
+            .clientId(clientId)
+            .protocolVersion(MqttVersion.MQTT_3_1_1)
+            .cleanSession(cleanSession)
+            .build());
+    ReferenceCountUtil.release(channel.readOutbound());
+    return channel;
+  }
+
+  private void dispatch(EmbeddedChannel channel, MqttMessage message) {
+    ChannelHandlerContext context = channel.pipeline().firstContext();
+    for (MqttMessageListener listener : listeners) {
+      if (listener.interests(message.fixedHeader().messageType())) {
+        listener.handle(context, message);
+      }
+    }
+    ReferenceCountUtil.release(message);
+  }
+}
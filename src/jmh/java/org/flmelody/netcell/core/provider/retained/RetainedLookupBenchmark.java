@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.retained;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lookup of retained messages on SUBSCRIBE: an exact topic filter, a '+' filter matching one
+ * message per fleet and a '#' filter matching the messages of one fleet.
+ *
+ * @author esotericman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetainedLookupBenchmark {
+  private static final int FLEETS = 100;
+  private static final int FILTERS = 1024;
+
+  @Param({"10000", "100000"})
+  private int retained;
+
+  private LocalRetainedMessageProvider provider;
+  private String[] exactFilters;
+  private String[] singleLevelFilters;
+  private String[] multiLevelFilters;
+  private int cursor;
+
+  @Setup
+  public void setup() {
+    provider = new LocalRetainedMessageProvider();
+    for (int i = 0; i < retained; i++) {
+      String topic = "fleet/" + (i % FLEETS) + "/device/" + i + "/status";
+      provider.setRetainedMessage(
+          topic,
+          new MqttPublishMessage(
+              new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, true, 0),
+              new MqttPublishVariableHeader(topic, 0),
+              Unpooled.wrappedBuffer(new byte[32])));
+    }
+    exactFilters = new String[FILTERS];
+    singleLevelFilters = new String[FILTERS];
+    multiLevelFilters = new String[FILTERS];
+    for (int i = 0; i < FILTERS; i++) {
+      int device = ThreadLocalRandom.current().nextInt(retained);
+      exactFilters[i] = "fleet/" + (device % FLEETS) + "/device/" + device + "/status";
+      singleLevelFilters[i] = "fleet/+/device/" + device + "/status";
+      multiLevelFilters[i] = "fleet/" + (device % FLEETS) + "/#";
+    }
+  }
+
+  @Benchmark
+  public void exact(Blackhole blackhole) {
+    lookup(exactFilters, blackhole);
+  }
+
+  @Benchmark
+  public void singleLevelWildcard(Blackhole blackhole) {
+    lookup(singleLevelFilters, blackhole);
+  }
+
+  @Benchmark
+  public void multiLevelWildcard(Blackhole blackhole) {
+    lookup(multiLevelFilters, blackhole);
+  }
+
+  private void lookup(String[] filters, Blackhole blackhole) {
+    provider.retainedMessages(filters[cursor++ & (FILTERS - 1)], blackhole::consume);
+  }
+}
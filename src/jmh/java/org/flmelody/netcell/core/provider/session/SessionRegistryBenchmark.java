@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.session;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Session registry under a connect storm from several threads: connect and disconnect of distinct
+ * client ids, takeovers of one client id, and lookups of connected sessions.
+ *
+ * @author esotericman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SessionRegistryBenchmark {
+  private static final int CLIENTS = 1 << 16;
+
+  private SessionRegistry registry;
+  private String[] clientIds;
+
+  @Setup
+  public void setup() {
+    registry = new SessionRegistry(CLIENTS);
+    clientIds = new String[CLIENTS];
+    ChannelHandlerContext context = Connection.context();
+    for (int i = 0; i < CLIENTS; i++) {
+      clientIds[i] = "client-" + i;
+      // Half of the clients stay connected
+      if ((i & 1) == 0) {
+        registry.connect(clientIds[i], context, false);
+      }
+    }
+  }
+
+  @Benchmark
+  public boolean connectAndDisconnect(Connection connection) {
+    String clientId = clientIds[ThreadLocalRandom.current().nextInt(CLIENTS) | 1];
+    registry.connect(clientId, connection.context, true);
+    return registry.disconnect(clientId, connection.context);
+  }
+
+  @Benchmark
+  public Object takeover(Connection connection) {
+    return registry.connect("contended", connection.context, false).previous();
+  }
+
+  @Benchmark
+  public Object lookup() {
+    return registry.get(clientIds[ThreadLocalRandom.current().nextInt(CLIENTS) & ~1]);
+  }
+
+  /** Connection of a benchmark thread */
+  @State(Scope.Thread)
+  public static class Connection {
+    private ChannelHandlerContext context;
+
+    @Setup
+    public void setup() {
+      context = context();
+    }
+
+    private static ChannelHandlerContext context() {
+      return new EmbeddedChannel(new ChannelInboundHandlerAdapter()).pipeline().firstContext();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.topic;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compare topic trie matching with the exact-match map it replaced. One in ten filters uses '+'
+ * and one in twenty uses '#'. {@code mapScan} is what a map needs to honor wildcards.
+ *
+ * @author esotericman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicMatchBenchmark {
+  private static final int TOPICS = 1024;
+
+  @Param({"10000", "100000", "1000000"})
+  private int filters;
+
+  private final TopicTrie<Integer> trie = new TopicTrie<>();
+  private final Map<String, Set<String>> map = new ConcurrentHashMap<>();
+  private String[] topics;
+  private int cursor;
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < filters; i++) {
+      String filter;
+      if (i % 20 == 0) {
+        filter = "fleet/" + (i % 1000) + "/device/" + i + "/#";
+      } else if (i % 10 == 0) {
+        filter = "fleet/" + (i % 1000) + "/+/" + i + "/temp";
+      } else {
+        filter = "fleet/" + (i % 1000) + "/device/" + i + "/temp";
+      }
+      String clientId = "client-" + i;
+      trie.put(filter, clientId, i);
+      map.computeIfAbsent(filter, k -> new HashSet<>()).add(clientId);
+    }
+    topics = new String[TOPICS];
+    for (int i = 0; i < TOPICS; i++) {
+      int device = ThreadLocalRandom.current().nextInt(filters);
+      topics[i] = "fleet/" + (device % 1000) + "/device/" + device + "/temp";
+    }
+  }
+
+  private String nextTopic() {
+    return topics[cursor++ & (TOPICS - 1)];
+  }
+
+  @Benchmark
+  public void trieMatch(Blackhole blackhole) {
+    trie.match(nextTopic(), (key, value) -> blackhole.consume(key));
+  }
+
+  @Benchmark
+  public void mapExactGet(Blackhole blackhole) {
+    blackhole.consume(map.get(nextTopic()));
+  }
+
+  @Benchmark
+  @Measurement(iterations = 3, time = 2)
+  public void mapScan(Blackhole blackhole) {
+    String topic = nextTopic();
+    for (Map.Entry<String, Set<String>> entry : map.entrySet()) {
+      if (Topics.matches(entry.getKey(), topic)) {
+        blackhole.consume(entry.getValue());
+      }
+    }
+  }
+}
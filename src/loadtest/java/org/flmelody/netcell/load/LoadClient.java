@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.load;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Client of a load test, publishing or subscribing. A publisher writes the time a message is due
+ * into the first 8 bytes of its payload, a subscriber records how long ago that was when the
+ * message arrives. With a rate, a message is due when the rate says so rather than when it was
+ * actually sent, so a broker falling behind shows up in latency instead of in fewer samples.
+ *
+ * @author esotericman
+ */
+final class LoadClient extends ChannelInboundHandlerAdapter {
+  private final String clientId;
+  private final LoadOptions options;
+  private final List<String> subscriptions;
+  private final Recorder latency;
+  private final LongAdder published;
+  private final LongAdder delivered;
+  private final CompletableFuture<Void> ready = new CompletableFuture<>();
+  private final double ratePerSecond;
+  private ChannelHandlerContext context;
+  private ScheduledFuture<?> ticker;
+  private long startNanos;
+  private long sent;
+  private int topic;
+  private int packetId;
+  private int inflight;
+
+  /**
+   * Create client.
+   *
+   * @param clientId client id
+   * @param options load options
+   * @param subscriptions topic filters to subscribe, empty for a publisher
+   * @param firstTopic topic index a publisher starts with
+   * @param latency recorder of end-to-end latency in nanoseconds
+   * @param published counter of published messages
+   * @param delivered counter of delivered messages
+   */
+  LoadClient(
+      String clientId,
+      LoadOptions options,
+      List<String> subscriptions,
+      int firstTopic,
+      Recorder latency,
+      LongAdder published,
+      LongAdder delivered) {
+    this.clientId = clientId;
+    this.options = options;
+    this.subscriptions = subscriptions;
+    this.topic = firstTopic;
+    this.latency = latency;
+    this.published = published;
+    this.delivered = delivered;
+    this.ratePerSecond = (double) options.rate() / options.publishers();
+  }
+
+  /**
+   * Completed once connected, and subscribed if subscribing.
+   *
+   * @return ready future
+   */
+  CompletableFuture<Void> ready() {
+    return ready;
+  }
+
+  /**
+   * Start publishing.
+   *
+   * @param startNanos time publishing starts, messages are due from then on
+   */
+  void start(long startNanos) {
+    context
+        .executor()
+        .execute(
+            () -> {
+              this.startNanos = startNanos;
+              ticker =
+                  context.executor().scheduleAtFixedRate(this::tick, 0, 1, TimeUnit.MILLISECONDS);
+            });
+  }
+
+  /** Stop publishing and disconnect. */
+  void close() {
+    context
+        .executor()
+        .execute(
+            () -> {
+              if (Objects.nonNull(ticker)) {
+                ticker.cancel(false);
+                ticker = null;
+              }
+              context
+                  .writeAndFlush(
+                      new MqttMessage(
+                          new MqttFixedHeader(
+                              MqttMessageType.DISCONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0)))
+                  .addListener(future -> context.close());
+            });
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    context = ctx;
+    ctx.writeAndFlush(
+        MqttMessageBuilders.connect()
+            .clientId(clientId)
+            .protocolVersion(MqttVersion.MQTT_3_1_1)
+            .cleanSession(true)
+            .keepAlive(0)
+            .build());
+    super.channelActive(ctx);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    MqttMessage message = (MqttMessage) msg;
+    try {
+      switch (message.fixedHeader().messageType()) {
+        case CONNACK:
+          if (subscriptions.isEmpty()) {
+            ready.complete(null);
+          } else {
+            MqttMessageBuilders.SubscribeBuilder subscribe =
+                MqttMessageBuilders.subscribe().messageId(1);
+            subscriptions.forEach(filter -> subscribe.addSubscription(options.qos(), filter));
+            ctx.write(subscribe.build());
+          }
+          break;
+        case SUBACK:
+          ready.complete(null);
+          break;
+        case PUBLISH:
+          receive(ctx, (MqttPublishMessage) message);
+          break;
+        case PUBREL:
+          ctx.write(acknowledgement(MqttMessageType.PUBCOMP, packetId(message)));
+          break;
+        case PUBREC:
+          ctx.write(acknowledgement(MqttMessageType.PUBREL, packetId(message)));
+          break;
+        case PUBACK:
+        case PUBCOMP:
+          inflight--;
+          break;
+        default:
+          break;
+      }
+    } finally {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) {
+    // Acknowledgements free the window, refill it right away
+    if (Objects.nonNull(ticker)) {
+      tick();
+    }
+    ctx.flush();
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    if (ctx.channel().isWritable() && Objects.nonNull(ticker)) {
+      tick();
+    }
+    super.channelWritabilityChanged(ctx);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    ready.completeExceptionally(new IllegalStateException(clientId + " disconnected"));
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+    ready.completeExceptionally(cause);
+    ctx.close();
+  }
+
+  private void receive(ChannelHandlerContext ctx, MqttPublishMessage message) {
+    long due = message.payload().getLong(message.payload().readerIndex());
+    latency.recordValue(Math.max(0, System.nanoTime() - due));
+    delivered.increment();
+    switch (message.fixedHeader().qosLevel()) {
+      case AT_LEAST_ONCE:
+        ctx.write(acknowledgement(MqttMessageType.PUBACK, message.variableHeader().packetId()));
+        break;
+      case EXACTLY_ONCE:
+        ctx.write(acknowledgement(MqttMessageType.PUBREC, message.variableHeader().packetId()));
+        break;
+      default:
+        break;
+    }
+  }
+
+  // Publish messages due, while the connection and the window take them
+  private void tick() {
+    long due =
+        ratePerSecond > 0
+            ? (long) ((System.nanoTime() - startNanos) * ratePerSecond / 1e9) - sent
+            : Long.MAX_VALUE;
+    boolean confirmed = !MqttQoS.AT_MOST_ONCE.equals(options.qos());
+    boolean written = false;
+    while (due-- > 0
+        && context.channel().isWritable()
+        && (!confirmed || inflight < options.inflight())) {
+      long dueNanos =
+          ratePerSecond > 0 ? startNanos + (long) (sent * 1e9 / ratePerSecond) : System.nanoTime();
+      publish(dueNanos, confirmed);
+      written = true;
+    }
+    if (written) {
+      context.flush();
+    }
+  }
+
+  private void publish(long dueNanos, boolean confirmed) {
+    ByteBuf payload = context.alloc().buffer(options.payloadSize());
+    payload.writeLong(dueNanos).writeZero(options.payloadSize() - Long.BYTES);
+    if (confirmed) {
+      packetId = packetId == 0xFFFF ? 1 : packetId + 1;
+      inflight++;
+    }
+    context.write(
+        new MqttPublishMessage(
+            new MqttFixedHeader(MqttMessageType.PUBLISH, false, options.qos(), false, 0),
+            new MqttPublishVariableHeader(options.topic(topic), confirmed ? packetId : 0),
+            payload));
+    topic = (topic + 1) % options.topics();
+    sent++;
+    published.increment();
+  }
+
+  private static int packetId(MqttMessage message) {
+    return ((MqttMessageIdVariableHeader) message.variableHeader()).messageId();
+  }
+
+  private static MqttMessage acknowledgement(MqttMessageType messageType, int packetId) {
+    MqttQoS qos =
+        MqttMessageType.PUBREL.equals(messageType) ? MqttQoS.AT_LEAST_ONCE : MqttQoS.AT_MOST_ONCE;
+    return new MqttMessage(
+        new MqttFixedHeader(messageType, false, qos, false, 0),
+        MqttMessageIdVariableHeader.from(packetId));
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.flmelody.netcell.Netcell;
+import org.flmelody.netcell.NetcellConfig;
+import org.flmelody.netcell.core.Transport;
+import org.flmelody.netcell.core.provider.delivery.LocalMessageDeliveryProvider;
+import org.flmelody.netcell.core.provider.session.LocalSessionProvider;
+
+/**
+ * Starts {@link Netcell} in-process and drives MQTT clients against it over loopback, then reports
+ * throughput and percentiles of end-to-end latency. Clients share one JVM with the broker, so
+ * results are comparable between runs on the same machine rather than absolute.
+ *
+ * <pre>{@code
+ * gradle loadtest -PloadtestArgs="publishers=4 subscribers=64 topics=16 fanout=4 qos=1"
+ * }</pre>
+ *
+ * <p>To compare transports, run the same load with {@code transport=nio}, {@code epoll} and {@code
+ * io_uring}, holding many idle connections open besides the active clients. On Linux the report
+ * adds read and write syscalls and context switches of the process per delivered message, taken
+ * from {@code /proc}; io_uring submits most I/O through its rings and shows few of them. Both ends
+ * of every connection are in this process, 100k connections need {@code ulimit -n} above 200k:
+ *
+ * <pre>{@code
+ * gradle loadtest -PloadtestArgs="transport=io_uring connections=100000 rate=100000"
+ * }</pre>
+ *
+ * <p>Idle connections are opened first, a thousand at a time, and the report gives their connect
+ * rate: with {@code acceptors} above one the broker accepts them on that many server sockets.
+ *
+ * @see LoadOptions
+ * @author esotericman
+ */
+public class LoadGenerator {
+  private static final String HOST = "127.0.0.1";
+  // Connections from one source address, beyond the next loopback address is used
+  private static final int CONNECTIONS_PER_ADDRESS = 20_000;
+  private static final int CONNECT_BATCH = 1000;
+  private static final long BROKER_TIMEOUT_MILLIS = 10_000;
+  private static final long READY_TIMEOUT_SECONDS = 60;
+
+  private final LoadOptions options;
+  private final Recorder latency = new Recorder(3);
+  private final LongAdder published = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private int connectionCount;
+
+  public LoadGenerator(LoadOptions options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    new LoadGenerator(LoadOptions.parse(args)).run(System.out);
+  }
+
+  /**
+   * Run load test and print its report.
+   *
+   * @param out stream to print report to
+   * @throws Exception if broker or clients fail to start
+   */
+  public void run(PrintStream out) throws Exception {
+    Netcell netcell =
+        Netcell.setup(
+                NetcellConfig.builder()
+                    .port(options.port())
+                    .transport(options.transport())
+                    .acceptors(options.acceptors())
+                    .build())
+            .use(new LocalSessionProvider(), new LocalMessageDeliveryProvider());
+    Thread broker = new Thread(netcell::run, "netcell-broker");
+    broker.start();
+    Transport transport = options.transport().resolve();
+    EventLoopGroup group = transport.newEventLoopGroup(options.clientThreads());
+    try {
+      awaitBroker();
+      List<LoadClient> idle = new ArrayList<>();
+      for (int index = 0; index < options.connections(); index++) {
+        idle.add(client("load-idle-" + index, List.of(), 0));
+      }
+      long connectNanos = System.nanoTime();
+      await(group, transport, idle);
+      connectNanos = System.nanoTime() - connectNanos;
+      List<LoadClient> subscribers = new ArrayList<>();
+      for (int index = 0; index < options.subscribers(); index++) {
+        subscribers.add(client("load-subscriber-" + index, subscriptions(index), 0));
+      }
+      await(group, transport, subscribers);
+      List<LoadClient> publishers = new ArrayList<>();
+      for (int index = 0; index < options.publishers(); index++) {
+        publishers.add(client("load-publisher-" + index, List.of(), index % options.topics()));
+      }
+      await(group, transport, publishers);
+
+      long startNanos = System.nanoTime();
+      publishers.forEach(publisher -> publisher.start(startNanos));
+      TimeUnit.SECONDS.sleep(options.warmupSeconds());
+      latency.reset();
+      published.reset();
+      delivered.reset();
+      KernelCounters kernelBefore = KernelCounters.read();
+      long measureNanos = System.nanoTime();
+      TimeUnit.SECONDS.sleep(options.durationSeconds());
+      Histogram histogram = latency.getIntervalHistogram();
+      long publishedCount = published.sum();
+      long deliveredCount = delivered.sum();
+      long elapsedNanos = System.nanoTime() - measureNanos;
+      KernelCounters kernel = KernelCounters.read().minus(kernelBefore);
+
+      publishers.forEach(LoadClient::close);
+      subscribers.forEach(LoadClient::close);
+      idle.forEach(LoadClient::close);
+      report(
+          out,
+          transport,
+          connectNanos,
+          elapsedNanos,
+          publishedCount,
+          deliveredCount,
+          histogram,
+          kernel);
+    } finally {
+      group.shutdownGracefully().syncUninterruptibly();
+      netcell.stop();
+      broker.join(BROKER_TIMEOUT_MILLIS);
+    }
+  }
+
+  // Subscription k of topic t goes to subscriber (t * fanout + k) % subscribers
+  private List<String> subscriptions(int subscriber) {
+    List<String> filters = new ArrayList<>();
+    for (int topic = 0; topic < options.topics(); topic++) {
+      int offset = Math.floorMod(subscriber - topic * options.fanout(), options.subscribers());
+      if (offset < options.fanout()) {
+        filters.add(options.topic(topic));
+      }
+    }
+    return filters;
+  }
+
+  private LoadClient client(String clientId, List<String> subscriptions, int firstTopic) {
+    return new LoadClient(
+        clientId, options, subscriptions, firstTopic, latency, published, delivered);
+  }
+
+  // Connect in batches, a batch is connected and has its CONNACK before the next one starts
+  private void await(EventLoopGroup group, Transport transport, List<LoadClient> clients)
+      throws Exception {
+    Bootstrap bootstrap =
+        new Bootstrap()
+            .group(group)
+            .channel(transport.channelClass())
+            .option(ChannelOption.TCP_NODELAY, true);
+    for (int from = 0; from < clients.size(); from += CONNECT_BATCH) {
+      List<LoadClient> batch =
+          clients.subList(from, Math.min(from + CONNECT_BATCH, clients.size()));
+      for (LoadClient client : batch) {
+        InetSocketAddress remote = new InetSocketAddress(HOST, options.port());
+        int address = connectionCount++ / CONNECTIONS_PER_ADDRESS;
+        Bootstrap clientBootstrap =
+            bootstrap
+                .clone()
+                .handler(
+                    new ChannelInitializer<>() {
+                      @Override
+                      protected void initChannel(Channel channel) {
+                        channel.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE, client);
+                      }
+                    });
+        ChannelFuture connect =
+            address == 0
+                ? clientBootstrap.connect(remote)
+                : clientBootstrap.connect(
+                    remote, new InetSocketAddress("127.0.0." + (address + 1), 0));
+        connect.addListener(
+            future -> {
+              if (!future.isSuccess()) {
+                client.ready().completeExceptionally(future.cause());
+              }
+            });
+      }
+      CompletableFuture.allOf(
+              batch.stream().map(LoadClient::ready).toArray(CompletableFuture[]::new))
+          .get(READY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  private void awaitBroker() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + BROKER_TIMEOUT_MILLIS;
+    while (true) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(HOST, options.port()));
+        return;
+      } catch (IOException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IllegalStateException("Broker did not start on port " + options.port(), e);
+        }
+        TimeUnit.MILLISECONDS.sleep(100);
+      }
+    }
+  }
+
+  private void report(
+      PrintStream out,
+      Transport transport,
+      long connectNanos,
+      long elapsedNanos,
+      long publishedCount,
+      long deliveredCount,
+      Histogram histogram,
+      KernelCounters kernel) {
+    double seconds = elapsedNanos / 1e9;
+    long expected = publishedCount * options.fanout();
+    out.printf(
+        "%s, %d idle connections, %d publishers, %d subscribers, %d topics, fanout %d, %s,"
+            + " %d byte payloads, rate %s%n",
+        transport,
+        options.connections(),
+        options.publishers(),
+        options.subscribers(),
+        options.topics(),
+        options.fanout(),
+        options.qos(),
+        options.payloadSize(),
+        options.rate() > 0 ? options.rate() + " msg/s" : "unlimited");
+    if (options.connections() > 0) {
+      out.printf(
+          "Connected  %,12.0f conn/s, %,d connections over %d acceptors%n",
+          options.connections() / (connectNanos / 1e9),
+          options.connections(),
+          transport.supportsReusePort() ? options.acceptors() : 1);
+    }
+    out.printf("Published  %,12.0f msg/s%n", publishedCount / seconds);
+    out.printf(
+        "Delivered  %,12.0f msg/s, %.1f%% of expected%n",
+        deliveredCount / seconds,
+        expected > 0 ? deliveredCount * 100.0 / expected : 0.0);
+    out.printf(
+        "Latency    p50 %,.0f us, p99 %,.0f us, p999 %,.0f us, max %,.0f us over %,d samples%n",
+        histogram.getValueAtPercentile(50) / 1e3,
+        histogram.getValueAtPercentile(99) / 1e3,
+        histogram.getValueAtPercentile(99.9) / 1e3,
+        histogram.getMaxValue() / 1e3,
+        histogram.getTotalCount());
+    double messages = Math.max(1, deliveredCount);
+    out.printf("CPU        %,.1f us per message%n", kernel.cpuNanos() / 1e3 / messages);
+    if (kernel.syscalls() >= 0) {
+      out.printf(
+          "Kernel     %.2f read and write syscalls, %.3f context switches per message%n",
+          kernel.syscalls() / messages, kernel.contextSwitches() / messages);
+    }
+  }
+
+  /**
+   * Counters of this process kept by the kernel, syscalls negative where {@code /proc} is missing.
+   *
+   * @param syscalls read and write syscalls, such as read, write, readv, writev and sendmsg
+   * @param contextSwitches voluntary and involuntary context switches of all threads
+   * @param cpuNanos CPU time of all threads
+   */
+  private record KernelCounters(long syscalls, long contextSwitches, long cpuNanos) {
+    private static KernelCounters read() {
+      long cpuNanos =
+          ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+              .getProcessCpuTime();
+      try {
+        long syscalls = 0;
+        for (String line : Files.readAllLines(Path.of("/proc/self/io"))) {
+          if (line.startsWith("syscr:") || line.startsWith("syscw:")) {
+            syscalls += Long.parseLong(line.substring(6).trim());
+          }
+        }
+        long contextSwitches = 0;
+        try (DirectoryStream<Path> tasks = Files.newDirectoryStream(Path.of("/proc/self/task"))) {
+          for (Path task : tasks) {
+            try {
+              for (String line : Files.readAllLines(task.resolve("status"))) {
+                if (line.contains("ctxt_switches:")) {
+                  contextSwitches += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                }
+              }
+            } catch (IOException e) {
+              // Thread ended meanwhile
+            }
+          }
+        }
+        return new KernelCounters(syscalls, contextSwitches, cpuNanos);
+      } catch (IOException e) {
+        return new KernelCounters(-1, -1, cpuNanos);
+      }
+    }
+
+    private KernelCounters minus(KernelCounters before) {
+      return new KernelCounters(
+          syscalls - before.syscalls,
+          contextSwitches - before.contextSwitches,
+          cpuNanos - before.cpuNanos);
+    }
+  }
+}
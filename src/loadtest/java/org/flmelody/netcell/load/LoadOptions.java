@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.load;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.flmelody.netcell.core.Transport;
+
+/**
+ * Options of a load test, given as {@code name=value} arguments. Subscriptions are spread so that
+ * every one of {@code topics} topics has {@code fanout} subscribers, and publishers publish to all
+ * topics in turn: each message is delivered {@code fanout} times.
+ *
+ * @param port port of the in-process broker
+ * @param publishers publishing clients
+ * @param subscribers subscribing clients
+ * @param topics distinct topics published to
+ * @param fanout subscribers of each topic, at most {@code subscribers}
+ * @param qos qos of publishes and subscriptions
+ * @param payloadSize payload bytes, at least 8 for the send timestamp
+ * @param rate messages per second of all publishers, 0 to publish as fast as the broker accepts
+ * @param inflight unacknowledged qos 1 and 2 messages of a publisher
+ * @param warmupSeconds seconds before measuring
+ * @param durationSeconds seconds measured
+ * @param clientThreads event loop threads of clients, 0 for netty default
+ * @param transport transport of broker and clients
+ * @param connections idle connections held open besides publishers and subscribers
+ * @param acceptors server sockets of the broker bound with SO_REUSEPORT, epoll and io_uring only
+ * @author esotericman
+ */
+public record LoadOptions(
+    int port,
+    int publishers,
+    int subscribers,
+    int topics,
+    int fanout,
+    MqttQoS qos,
+    int payloadSize,
+    long rate,
+    int inflight,
+    int warmupSeconds,
+    int durationSeconds,
+    int clientThreads,
+    Transport transport,
+    int connections,
+    int acceptors) {
+
+  public LoadOptions {
+    if (publishers < 1 || subscribers < 1 || topics < 1) {
+      throw new IllegalArgumentException("Publishers, subscribers and topics must be positive");
+    }
+    if (fanout < 1 || fanout > subscribers) {
+      throw new IllegalArgumentException("Fanout must be between 1 and subscribers");
+    }
+    if (payloadSize < Long.BYTES) {
+      throw new IllegalArgumentException("Payload size must be at least " + Long.BYTES);
+    }
+    if (inflight < 1 || inflight > 0xFFFF) {
+      throw new IllegalArgumentException("Inflight must be between 1 and 65535");
+    }
+    if (connections < 0) {
+      throw new IllegalArgumentException("Connections must not be negative");
+    }
+    if (acceptors < 1) {
+      throw new IllegalArgumentException("Acceptors must be positive");
+    }
+  }
+
+  /**
+   * Parse {@code name=value} arguments, unnamed options keep their defaults.
+   *
+   * @param args arguments
+   * @return options
+   */
+  public static LoadOptions parse(String... args) {
+    Map<String, String> values = new LinkedHashMap<>();
+    values.put("port", "18830");
+    values.put("publishers", "4");
+    values.put("subscribers", "16");
+    values.put("topics", "16");
+    values.put("fanout", "1");
+    values.put("qos", "0");
+    values.put("payloadSize", "64");
+    values.put("rate", "10000");
+    values.put("inflight", "1000");
+    values.put("warmupSeconds", "5");
+    values.put("durationSeconds", "20");
+    values.put("clientThreads", "0");
+    values.put("transport", "nio");
+    values.put("connections", "0");
+    values.put("acceptors", "1");
+    for (String arg : args) {
+      if (arg.isBlank()) {
+        continue;
+      }
+      int separator = arg.indexOf('=');
+      if (separator < 0 || !values.containsKey(arg.substring(0, separator))) {
+        throw new IllegalArgumentException("Unknown option " + arg + ", options are " + values);
+      }
+      values.put(arg.substring(0, separator), arg.substring(separator + 1));
+    }
+    return new LoadOptions(
+        Integer.parseInt(values.get("port")),
+        Integer.parseInt(values.get("publishers")),
+        Integer.parseInt(values.get("subscribers")),
+        Integer.parseInt(values.get("topics")),
+        Integer.parseInt(values.get("fanout")),
+        MqttQoS.valueOf(Integer.parseInt(values.get("qos"))),
+        Integer.parseInt(values.get("payloadSize")),
+        Long.parseLong(values.get("rate")),
+        Integer.parseInt(values.get("inflight")),
+        Integer.parseInt(values.get("warmupSeconds")),
+        Integer.parseInt(values.get("durationSeconds")),
+        Integer.parseInt(values.get("clientThreads")),
+        Transport.valueOf(values.get("transport").toUpperCase(Locale.ROOT)),
+        Integer.parseInt(values.get("connections")),
+        Integer.parseInt(values.get("acceptors")));
+  }
+
+  /**
+   * Topic of index.
+   *
+   * @param index topic index
+   * @return topic
+   */
+  public String topic(int index) {
+    return "load/" + index;
+  }
+}
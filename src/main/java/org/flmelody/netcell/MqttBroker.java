@@ -17,27 +17,31 @@
 package org.flmelody.netcell;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollServerSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.OptionalSslHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.timeout.IdleStateHandler;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.function.Supplier;
 import javax.net.ssl.SSLException;
 import org.flmelody.netcell.core.Broker;
+import org.flmelody.netcell.core.Transport;
+import org.flmelody.netcell.core.handler.KeepAliveHandler;
+import org.flmelody.netcell.core.handler.MetricsHandler;
 import org.flmelody.netcell.core.handler.MqttMessageHandler;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
 import org.flmelody.netcell.core.provider.ProviderSeries;
 import org.flmelody.netcell.core.provider.security.SslProvider;
 import org.slf4j.Logger;
@@ -48,11 +52,18 @@ import org.slf4j.LoggerFactory;
  */
 public class MqttBroker implements Broker {
   private static final Logger logger = LoggerFactory.getLogger(MqttBroker.class);
+  public static final int DEFAULT_MAX_PENDING_FLUSHES =
+      FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES;
   private final EventLoopGroup bossGroup;
   private final EventLoopGroup workerGroup;
   private final int port;
-  private final boolean useEpoll;
-  private final boolean useSsl;
+  private final NetcellConfig config;
+  private final Transport transport;
+  private final int acceptors;
+  private final ByteBufAllocator allocator;
+  private final ProviderManager providerManager;
+  private final BrokerMetrics metrics;
+  private volatile List<Channel> serverChannels = List.of();
 
   public MqttBroker() {
     this(0);
@@ -72,17 +83,59 @@ public class MqttBroker implements Broker {
 
   public MqttBroker(
       int port, int bossThreads, int workerThreads, boolean useEpoll, boolean useSsl) {
-    if (useEpoll) {
-      this.bossGroup = new EpollEventLoopGroup(bossThreads);
-      this.workerGroup = new EpollEventLoopGroup(workerThreads);
-    } else {
-      this.bossGroup = new NioEventLoopGroup(bossThreads);
-      this.workerGroup = new NioEventLoopGroup(workerThreads);
+    this(
+        NetcellConfig.builder()
+            .port(port)
+            .bossThreads(bossThreads)
+            .workerThreads(workerThreads)
+            .transport(useEpoll ? Transport.EPOLL : Transport.NIO)
+            .useSsl(useSsl)
+            .build());
+  }
+
+  /**
+   * Create broker with configuration, its socket and allocator options apply to every connection.
+   * Providers are loaded with SPI.
+   *
+   * @see NetcellConfig
+   * @param config configuration
+   */
+  public MqttBroker(NetcellConfig config) {
+    this(config, new ProviderManager(), new BrokerMetrics());
+  }
+
+  /**
+   * Create broker with configuration and its own providers, they start and stop with the broker.
+   *
+   * @param config configuration
+   * @param providerManager providers of this broker
+   * @param metrics counters of this broker
+   */
+  MqttBroker(NetcellConfig config, ProviderManager providerManager, BrokerMetrics metrics) {
+    this.config = config;
+    this.providerManager = providerManager;
+    this.metrics = metrics;
+    this.transport = config.transport().resolve();
+    if (this.transport != config.transport()) {
+      logger
+          .atWarn()
+          .log("Transport {} not available, using {}", config.transport(), this.transport);
+    }
+    int acceptors = config.acceptors();
+    if (acceptors > 1 && !this.transport.supportsReusePort()) {
+      logger.atWarn().log("Transport {} has no SO_REUSEPORT, using one acceptor", this.transport);
+      acceptors = 1;
     }
-    this.useEpoll = useEpoll;
-    this.useSsl = useSsl;
+    this.acceptors = acceptors;
+    // Boss threads are only used by acceptors, netty default would be twice the cores
+    this.bossGroup =
+        this.transport.newEventLoopGroup(
+            config.bossThreads() == 0 ? acceptors : config.bossThreads());
+    this.workerGroup = this.transport.newEventLoopGroup(config.workerThreads());
+    this.allocator = config.newAllocator();
+    int port = config.port();
     if (port == 0) {
-      if (this.useSsl) {
+      if (config.useSsl()) {
         this.port = 8883;
       } else {
         this.port = 1883;
@@ -95,36 +148,81 @@ public class MqttBroker implements Broker {
   @Override
   public void start() {
     try {
+      providerManager.start(metrics);
       ServerBootstrap bootstrap =
           new ServerBootstrap()
               .group(bossGroup, workerGroup)
-              .channel(useEpoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
-              .childHandler(new BrokerChannelInitializer(initializeSslContext()))
-              .childOption(ChannelOption.TCP_NODELAY, true)
-              .childOption(ChannelOption.SO_KEEPALIVE, true)
-              .option(ChannelOption.SO_REUSEADDR, true);
-      ChannelFuture f = bootstrap.bind(this.port).sync();
-      logger.atInfo().log("Netcell started successfully, listening on port {}", port);
-      f.channel().closeFuture().sync();
+              .channel(transport.serverChannelClass())
+              .childHandler(
+                  new BrokerChannelInitializer(
+                      providerManager,
+                      metrics,
+                      initializeSslContext(),
+                      config.maxPendingFlushes(),
+                      config.maxBytesInMessage()))
+              .childOption(ChannelOption.TCP_NODELAY, config.tcpNoDelay())
+              .childOption(ChannelOption.SO_KEEPALIVE, config.keepAlive())
+              .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, config.writeBufferWaterMark())
+              .childOption(ChannelOption.ALLOCATOR, allocator)
+              .option(ChannelOption.SO_REUSEADDR, config.reuseAddress())
+              .option(ChannelOption.ALLOCATOR, allocator);
+      // Left to the operating system unless configured
+      if (config.backlog() > 0) {
+        bootstrap.option(ChannelOption.SO_BACKLOG, config.backlog());
+      }
+      if (config.sendBufferSize() > 0) {
+        bootstrap.childOption(ChannelOption.SO_SNDBUF, config.sendBufferSize());
+      }
+      if (config.receiveBufferSize() > 0) {
+        // Set on the server socket too, windows above 64 KiB must be agreed on in the handshake
+        bootstrap.option(ChannelOption.SO_RCVBUF, config.receiveBufferSize());
+        bootstrap.childOption(ChannelOption.SO_RCVBUF, config.receiveBufferSize());
+      }
+      if (acceptors > 1) {
+        bootstrap.option(UnixChannelOption.SO_REUSEPORT, true);
+      }
+      // Each bind registers a server channel on the next boss thread
+      List<Channel> channels = new ArrayList<>(acceptors);
+      for (int i = 0; i < acceptors; i++) {
+        ChannelFuture f = bootstrap.bind(this.port).sync();
+        channels.add(f.channel());
+      }
+      serverChannels = channels;
+      logger
+          .atInfo()
+          .log(
+              "Netcell started successfully, listening on port {} over {} with {} acceptors",
+              port,
+              transport,
+              acceptors);
+      for (Channel channel : channels) {
+        channel.closeFuture().sync();
+      }
     } catch (Exception e) {
       logger.error("Netcell started failed", e);
     } finally {
       this.bossGroup.shutdownGracefully();
       this.workerGroup.shutdownGracefully();
+      providerManager.stop();
     }
   }
 
+  @Override
+  public void stop() {
+    serverChannels.forEach(Channel::close);
+  }
+
   private SslContext initializeSslContext() {
-    if (useSsl) {
-      if (Objects.isNull(ProviderManager.provider(ProviderSeries.SSL))) {
+    if (config.useSsl()) {
+      if (Objects.isNull(providerManager.provider(ProviderSeries.SSL))) {
         logger.atWarn().log("SSL provider not set, ignoring ssl setting");
       } else {
         try {
           return SslContextBuilder.forServer(
-                  ProviderManager.provider(
+                  providerManager.provider(
                           ProviderSeries.SSL, SslProvider.class, (Supplier<SslProvider>) () -> null)
                       .certFile(),
-                  ProviderManager.provider(
+                  providerManager.provider(
                           ProviderSeries.SSL, SslProvider.class, (Supplier<SslProvider>) () -> null)
                       .keyFile())
               .build();
@@ -136,12 +234,26 @@ public class MqttBroker implements Broker {
     return null;
   }
 
-  /** Initialize channel */
+  /** Initialize channel, dispatcher and handler are built once and shared by all channels */
   static class BrokerChannelInitializer extends ChannelInitializer<Channel> {
     private final SslContext sslContext;
+    private final int maxPendingFlushes;
+    private final int maxBytesInMessage;
+    private final MetricsHandler metricsHandler;
+    private final MqttMessageHandler mqttMessageHandler;
 
-    BrokerChannelInitializer(SslContext sslContext) {
+    BrokerChannelInitializer(
+        ProviderManager providerManager,
+        BrokerMetrics metrics,
+        SslContext sslContext,
+        int maxPendingFlushes,
+        int maxBytesInMessage) {
       this.sslContext = sslContext;
+      this.maxPendingFlushes = maxPendingFlushes;
+      this.maxBytesInMessage = maxBytesInMessage;
+      this.metricsHandler = new MetricsHandler(metrics);
+      this.mqttMessageHandler =
+          new MqttMessageHandler(new MqttDispatcher().assembleListeners(providerManager), metrics);
     }
 
     @Override
@@ -150,10 +262,15 @@ public class MqttBroker implements Broker {
       if (Objects.nonNull(sslContext)) {
         pipeline.addLast(new OptionalSslHandler(sslContext));
       }
-      pipeline.addLast(new MqttDecoder());
+      if (maxPendingFlushes > 0) {
+        // Writes of the same tick, including fan-out from other event loops, share one flush
+        pipeline.addLast(new FlushConsolidationHandler(maxPendingFlushes, true));
+      }
+      pipeline.addLast(metricsHandler);
+      pipeline.addLast(new MqttDecoder(maxBytesInMessage));
       pipeline.addLast(MqttEncoder.INSTANCE);
-      pipeline.addLast(new IdleStateHandler(0, 0, 10));
-      pipeline.addLast(new MqttMessageHandler(new MqttDispatcher().assembleListeners()));
+      pipeline.addLast(new KeepAliveHandler());
+      pipeline.addLast(mqttMessageHandler);
     }
   }
 }
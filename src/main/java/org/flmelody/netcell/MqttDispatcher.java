@@ -20,8 +20,8 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import org.flmelody.netcell.core.constants.NettyAttributeKeys;
 import org.flmelody.netcell.core.listener.MqttMessageListener;
 import org.flmelody.netcell.core.listener.MqttPingMessageListener;
 import org.flmelody.netcell.core.provider.ProviderSeries;
@@ -31,48 +31,65 @@ import org.flmelody.netcell.core.provider.retained.RetainedMessageProvider;
 import org.flmelody.netcell.core.provider.session.TemporarySessionProvider;
 
 /**
+ * Dispatch inbound messages to listeners. Listeners are indexed by message type when assembled, a
+ * message only visits listeners interested in its type, in the order they were assembled.
+ *
  * @author esotericman
  */
 public final class MqttDispatcher {
-  private final List<MqttMessageListener> mqttMessageListeners = new ArrayList<>();
+  private static final MqttMessageType[] MESSAGE_TYPES = MqttMessageType.values();
+  private static final MqttMessageListener[] NO_LISTENERS = new MqttMessageListener[0];
+  // Listeners interested in each message type, indexed by ordinal of message type
+  private final MqttMessageListener[][] listenersByType =
+      new MqttMessageListener[MESSAGE_TYPES.length][];
+
+  public MqttDispatcher() {
+    Arrays.fill(listenersByType, NO_LISTENERS);
+  }
 
-  MqttDispatcher assembleListeners() {
-    mqttMessageListeners.add(new MqttPingMessageListener());
-    mqttMessageListeners.add(
-        ProviderManager.provider(
+  MqttDispatcher assembleListeners(ProviderManager providerManager) {
+    return assembleListeners(
+        new MqttPingMessageListener(),
+        providerManager.provider(
             ProviderSeries.SESSION,
             TemporarySessionProvider.class,
-            TemporarySessionProvider.EMPTY));
-    mqttMessageListeners.add(
-        ProviderManager.provider(
-            ProviderSeries.DELIVERY, MessageDeliveryProvider.class, MessageDeliveryProvider.EMPTY));
-    mqttMessageListeners.add(
-        ProviderManager.provider(
-            ProviderSeries.RETAINED, RetainedMessageProvider.class, RetainedMessageProvider.EMPTY));
-    mqttMessageListeners.add(
-        ProviderManager.provider(
+            TemporarySessionProvider.EMPTY),
+        providerManager.provider(
+            ProviderSeries.DELIVERY, MessageDeliveryProvider.class, MessageDeliveryProvider.EMPTY),
+        providerManager.provider(
+            ProviderSeries.RETAINED, RetainedMessageProvider.class, RetainedMessageProvider.EMPTY),
+        providerManager.provider(
             ProviderSeries.PERSISTENCE,
             PersistentStoreProvider.class,
             PersistentStoreProvider.EMPTY));
-    return this;
   }
 
-  public void dispatch(ChannelHandlerContext context, MqttMessage mqttMessage) {
-    MqttMessageType messageType = mqttMessage.fixedHeader().messageType();
-    for (MqttMessageListener mqttMessageListener : mqttMessageListeners) {
-      if (!alreadyStop(context) && mqttMessageListener.interests(messageType)) {
-        mqttMessageListener.onMessage(context, mqttMessage);
+  /**
+   * Assemble listeners, replacing those assembled before.
+   *
+   * @param mqttMessageListeners listeners in dispatch order
+   * @return this dispatcher
+   */
+  public MqttDispatcher assembleListeners(MqttMessageListener... mqttMessageListeners) {
+    for (MqttMessageType messageType : MESSAGE_TYPES) {
+      List<MqttMessageListener> interested = new ArrayList<>();
+      for (MqttMessageListener mqttMessageListener : mqttMessageListeners) {
+        if (mqttMessageListener.interests(messageType)) {
+          interested.add(mqttMessageListener);
+        }
       }
+      listenersByType[messageType.ordinal()] = interested.toArray(NO_LISTENERS);
     }
-    stop(context);
-  }
-
-  private void stop(ChannelHandlerContext context) {
-    context.channel().attr(NettyAttributeKeys.MQTT_LISTENER_FINISH).set(Boolean.TRUE);
+    return this;
   }
 
-  private boolean alreadyStop(ChannelHandlerContext context) {
-    return Boolean.TRUE.equals(
-        context.channel().attr(NettyAttributeKeys.MQTT_LISTENER_FINISH).get());
+  public void dispatch(ChannelHandlerContext context, MqttMessage mqttMessage) {
+    MqttMessageListener[] listeners =
+        listenersByType[mqttMessage.fixedHeader().messageType().ordinal()];
+    for (MqttMessageListener mqttMessageListener : listeners) {
+      if (!mqttMessageListener.handle(context, mqttMessage)) {
+        return;
+      }
+    }
   }
 }
@@ -16,9 +16,16 @@
 
 package org.flmelody.netcell;
 
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import org.flmelody.netcell.core.Broker;
 import org.flmelody.netcell.core.Order;
+import org.flmelody.netcell.core.Transport;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.flmelody.netcell.core.metrics.MetricsSnapshot;
+import org.flmelody.netcell.core.metrics.SysTopicPublisher;
 import org.flmelody.netcell.core.provider.Provider;
+import org.flmelody.netcell.core.provider.ProviderSeries;
 import org.flmelody.netcell.core.provider.delivery.MessageDeliveryProvider;
 import org.flmelody.netcell.core.provider.persistence.PersistentStoreProvider;
 import org.flmelody.netcell.core.provider.retained.RetainedMessageProvider;
@@ -49,8 +56,14 @@ public class Netcell {
   private Broker broker;
   // A manager contains many useful providers
   private ProviderManager providerManager;
+  // Counters of broker
+  private BrokerMetrics brokerMetrics;
   // Indict whether Netcell is running or not
   private boolean isRunning;
+  // Seconds between publications of $SYS topics, 0 to not publish them
+  private long sysIntervalSeconds = SysTopicPublisher.DEFAULT_INTERVAL_SECONDS;
+  private SysTopicPublisher sysTopicPublisher;
+  private long startNanos;
 
   private Netcell() {}
 
@@ -112,9 +125,35 @@ public class Netcell {
    */
   public static Netcell setup(
       int port, int bossThreads, int workerThreads, boolean useEpoll, boolean useSsl) {
+    return setup(
+        NetcellConfig.builder()
+            .port(port)
+            .bossThreads(bossThreads)
+            .workerThreads(workerThreads)
+            .transport(useEpoll ? Transport.EPOLL : Transport.NIO)
+            .useSsl(useSsl)
+            .build());
+  }
+
+  /**
+   * Initialize Netcell with configuration, which covers all options of the other setups as well as
+   * socket options, allocator and decoding. Tuning needs no code when configuration is loaded from
+   * a file:
+   *
+   * <pre>{@code
+   * Netcell.setup(NetcellConfig.load(Path.of("netcell.properties"))).run();
+   * }</pre>
+   *
+   * @see NetcellConfig
+   * @param config configuration
+   * @return Netcell
+   */
+  public static Netcell setup(NetcellConfig config) {
     Netcell netcell = new Netcell();
     netcell.providerManager = new ProviderManager();
-    netcell.broker = new MqttBroker(port, bossThreads, workerThreads, useEpoll, useSsl);
+    netcell.brokerMetrics = new BrokerMetrics();
+    netcell.broker = new MqttBroker(config, netcell.providerManager, netcell.brokerMetrics);
+    netcell.sysIntervalSeconds = config.sysIntervalSeconds();
     return netcell;
   }
 
@@ -137,13 +176,68 @@ public class Netcell {
     return this;
   }
 
+  /**
+   * Interval of publishing metrics on {@code $SYS/broker/...} topics, 10 seconds by default.
+   *
+   * @see MetricsSnapshot#sysTopics()
+   * @param seconds seconds between publications, 0 to not publish them
+   * @return Netcell
+   */
+  public Netcell sysInterval(long seconds) {
+    if (seconds < 0) {
+      throw new IllegalArgumentException("Interval must not be negative");
+    }
+    this.sysIntervalSeconds = seconds;
+    return this;
+  }
+
+  /**
+   * Metrics of broker, counters since it started and counts taken from providers now.
+   *
+   * @return metrics
+   */
+  public MetricsSnapshot metrics() {
+    return MetricsSnapshot.capture(
+        this.isRunning ? TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.startNanos) : 0,
+        this.brokerMetrics,
+        this.providerManager.provider(
+            ProviderSeries.SESSION,
+            TemporarySessionProvider.class,
+            TemporarySessionProvider.EMPTY),
+        this.providerManager.provider(
+            ProviderSeries.RETAINED, RetainedMessageProvider.class, RetainedMessageProvider.EMPTY));
+  }
+
   /** Start broker. */
   public void run() {
     System.out.println(
         ConsoleUtil.ANSI_PURPLE
             + String.format(banner, VersionUtil.NETCELL_VERSION)
             + ConsoleUtil.ANSI_RESET);
-    this.broker.start();
+    this.startNanos = System.nanoTime();
     this.isRunning = true;
+    if (this.sysIntervalSeconds > 0) {
+      this.sysTopicPublisher =
+          new SysTopicPublisher(
+              this::metrics,
+              this.providerManager.provider(
+                  ProviderSeries.DELIVERY,
+                  MessageDeliveryProvider.class,
+                  MessageDeliveryProvider.EMPTY),
+              this.sysIntervalSeconds);
+      this.sysTopicPublisher.start();
+    }
+    try {
+      this.broker.start();
+    } finally {
+      if (Objects.nonNull(this.sysTopicPublisher)) {
+        this.sysTopicPublisher.close();
+      }
+    }
+  }
+
+  /** Stop broker, {@link #run()} returns once it is stopped. */
+  public void stop() {
+    this.broker.stop();
   }
 }
@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.codec.mqtt.MqttConstant;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Properties;
+import org.flmelody.netcell.core.Transport;
+import org.flmelody.netcell.core.metrics.SysTopicPublisher;
+
+/**
+ * Configuration of Netcell, covering event loops, sockets, buffers and decoding. Built with {@link
+ * #builder()} or loaded from a properties file, whose keys are the names of builder methods:
+ *
+ * <pre>
+ * port=1883
+ * transport=epoll
+ * workerThreads=8
+ * backlog=4096
+ * receiveBufferSize=65536
+ * allocator=pooled_direct
+ * maxBytesInMessage=262144
+ * </pre>
+ *
+ * <p>Flat YAML with {@code name: value} lines is read the same way. Options not given keep the
+ * defaults of the builder, 0 leaves a size or count to netty or the operating system.
+ *
+ * @see Netcell#setup(NetcellConfig)
+ * @author esotericman
+ */
+public final class NetcellConfig {
+  private int port;
+  private int bossThreads;
+  private int workerThreads;
+  private Transport transport = Transport.NIO;
+  private int acceptors = 1;
+  private boolean useSsl;
+  private int maxPendingFlushes = MqttBroker.DEFAULT_MAX_PENDING_FLUSHES;
+  private WriteBufferWaterMark writeBufferWaterMark = WriteBufferWaterMark.DEFAULT;
+  private int backlog;
+  private int sendBufferSize;
+  private int receiveBufferSize;
+  private boolean tcpNoDelay = true;
+  private boolean keepAlive = true;
+  private boolean reuseAddress = true;
+  private Allocator allocator = Allocator.DEFAULT;
+  private int allocatorArenas;
+  private int maxBytesInMessage = MqttConstant.DEFAULT_MAX_BYTES_IN_MESSAGE;
+  private long sysIntervalSeconds = SysTopicPublisher.DEFAULT_INTERVAL_SECONDS;
+
+  private NetcellConfig() {}
+
+  public static NetcellConfigBuilder builder() {
+    return new NetcellConfigBuilder(new NetcellConfig());
+  }
+
+  /**
+   * Load configuration from properties file.
+   *
+   * @param path properties file
+   * @return configuration
+   */
+  public static NetcellConfig load(Path path) {
+    try (InputStream inputStream = Files.newInputStream(path)) {
+      return load(inputStream);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Load configuration from properties, stream is not closed.
+   *
+   * @param inputStream properties
+   * @return configuration
+   */
+  public static NetcellConfig load(InputStream inputStream) {
+    Properties properties = new Properties();
+    try {
+      properties.load(inputStream);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return load(properties);
+  }
+
+  /**
+   * Load configuration from properties, unknown names are rejected.
+   *
+   * @param properties properties
+   * @return configuration
+   */
+  public static NetcellConfig load(Properties properties) {
+    NetcellConfigBuilder builder = builder();
+    int lowWaterMark = WriteBufferWaterMark.DEFAULT.low();
+    int highWaterMark = WriteBufferWaterMark.DEFAULT.high();
+    for (String name : properties.stringPropertyNames()) {
+      String value = properties.getProperty(name).trim();
+      switch (name) {
+        case "port":
+          builder.port(Integer.parseInt(value));
+          break;
+        case "bossThreads":
+          builder.bossThreads(Integer.parseInt(value));
+          break;
+        case "workerThreads":
+          builder.workerThreads(Integer.parseInt(value));
+          break;
+        case "transport":
+          builder.transport(Transport.valueOf(value.toUpperCase(Locale.ROOT)));
+          break;
+        case "acceptors":
+          builder.acceptors(Integer.parseInt(value));
+          break;
+        case "useSsl":
+          builder.useSsl(Boolean.parseBoolean(value));
+          break;
+        case "maxPendingFlushes":
+          builder.maxPendingFlushes(Integer.parseInt(value));
+          break;
+        case "writeBufferLowWaterMark":
+          lowWaterMark = Integer.parseInt(value);
+          break;
+        case "writeBufferHighWaterMark":
+          highWaterMark = Integer.parseInt(value);
+          break;
+        case "backlog":
+          builder.backlog(Integer.parseInt(value));
+          break;
+        case "sendBufferSize":
+          builder.sendBufferSize(Integer.parseInt(value));
+          break;
+        case "receiveBufferSize":
+          builder.receiveBufferSize(Integer.parseInt(value));
+          break;
+        case "tcpNoDelay":
+          builder.tcpNoDelay(Boolean.parseBoolean(value));
+          break;
+        case "keepAlive":
+          builder.keepAlive(Boolean.parseBoolean(value));
+          break;
+        case "reuseAddress":
+          builder.reuseAddress(Boolean.parseBoolean(value));
+          break;
+        case "allocator":
+          builder.allocator(Allocator.valueOf(value.toUpperCase(Locale.ROOT)));
+          break;
+        case "allocatorArenas":
+          builder.allocatorArenas(Integer.parseInt(value));
+          break;
+        case "maxBytesInMessage":
+          builder.maxBytesInMessage(Integer.parseInt(value));
+          break;
+        case "sysIntervalSeconds":
+          builder.sysIntervalSeconds(Long.parseLong(value));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown configuration " + name);
+      }
+    }
+    return builder.writeBufferWaterMark(lowWaterMark, highWaterMark).build();
+  }
+
+  public int port() {
+    return this.port;
+  }
+
+  public int bossThreads() {
+    return this.bossThreads;
+  }
+
+  public int workerThreads() {
+    return this.workerThreads;
+  }
+
+  public Transport transport() {
+    return this.transport;
+  }
+
+  public int acceptors() {
+    return this.acceptors;
+  }
+
+  public boolean useSsl() {
+    return this.useSsl;
+  }
+
+  public int maxPendingFlushes() {
+    return this.maxPendingFlushes;
+  }
+
+  public WriteBufferWaterMark writeBufferWaterMark() {
+    return this.writeBufferWaterMark;
+  }
+
+  public int backlog() {
+    return this.backlog;
+  }
+
+  public int sendBufferSize() {
+    return this.sendBufferSize;
+  }
+
+  public int receiveBufferSize() {
+    return this.receiveBufferSize;
+  }
+
+  public boolean tcpNoDelay() {
+    return this.tcpNoDelay;
+  }
+
+  public boolean keepAlive() {
+    return this.keepAlive;
+  }
+
+  public boolean reuseAddress() {
+    return this.reuseAddress;
+  }
+
+  public Allocator allocator() {
+    return this.allocator;
+  }
+
+  public int allocatorArenas() {
+    return this.allocatorArenas;
+  }
+
+  public int maxBytesInMessage() {
+    return this.maxBytesInMessage;
+  }
+
+  public long sysIntervalSeconds() {
+    return this.sysIntervalSeconds;
+  }
+
+  /**
+   * Allocator of channel buffers, with {@link #allocatorArenas()} arenas if pooled.
+   *
+   * @return allocator
+   */
+  public ByteBufAllocator newAllocator() {
+    switch (allocator) {
+      case POOLED_DIRECT:
+        return pooledAllocator(true);
+      case POOLED_HEAP:
+        return pooledAllocator(false);
+      case UNPOOLED_DIRECT:
+        return new UnpooledByteBufAllocator(true);
+      case UNPOOLED_HEAP:
+        return new UnpooledByteBufAllocator(false);
+      default:
+        return ByteBufAllocator.DEFAULT;
+    }
+  }
+
+  private ByteBufAllocator pooledAllocator(boolean preferDirect) {
+    int heapArenas = PooledByteBufAllocator.defaultNumHeapArena();
+    int directArenas = PooledByteBufAllocator.defaultNumDirectArena();
+    if (allocatorArenas > 0) {
+      if (preferDirect) {
+        directArenas = allocatorArenas;
+      } else {
+        heapArenas = allocatorArenas;
+      }
+    }
+    return new PooledByteBufAllocator(
+        preferDirect,
+        heapArenas,
+        directArenas,
+        PooledByteBufAllocator.defaultPageSize(),
+        PooledByteBufAllocator.defaultMaxOrder(),
+        PooledByteBufAllocator.defaultSmallCacheSize(),
+        PooledByteBufAllocator.defaultNormalCacheSize(),
+        PooledByteBufAllocator.defaultUseCacheForAllThreads());
+  }
+
+  /** Allocator of channel buffers */
+  public enum Allocator {
+    /** Netty default, pooled and direct unless changed by {@code io.netty.allocator.*} */
+    DEFAULT,
+    /** Pooled direct buffers, reads and writes need no copy to native memory. */
+    POOLED_DIRECT,
+    /** Pooled heap buffers, copied to native memory on every read and write. */
+    POOLED_HEAP,
+    /** Direct buffers allocated and freed one by one. */
+    UNPOOLED_DIRECT,
+    /** Heap buffers allocated and collected one by one. */
+    UNPOOLED_HEAP
+  }
+
+  /** Builder for NetcellConfig */
+  public static class NetcellConfigBuilder {
+    private final NetcellConfig config;
+
+    private NetcellConfigBuilder(NetcellConfig config) {
+      this.config = config;
+    }
+
+    /**
+     * Port to bind.
+     *
+     * @param port port, 0 for 1883 or 8883 with ssl
+     * @return builder
+     */
+    public NetcellConfigBuilder port(int port) {
+      if (port < 0 || port > 0xFFFF) {
+        throw new IllegalArgumentException("Port must be between 0 and 65535");
+      }
+      this.config.port = port;
+      return this;
+    }
+
+    /**
+     * Threads accepting connections.
+     *
+     * @param bossThreads boss threads, 0 for one per acceptor
+     * @return builder
+     */
+    public NetcellConfigBuilder bossThreads(int bossThreads) {
+      this.config.bossThreads = notNegative(bossThreads, "BossThreads");
+      return this;
+    }
+
+    /**
+     * Threads serving connections.
+     *
+     * @param workerThreads worker threads, 0 for netty default of twice the cores
+     * @return builder
+     */
+    public NetcellConfigBuilder workerThreads(int workerThreads) {
+      this.config.workerThreads = notNegative(workerThreads, "WorkerThreads");
+      return this;
+    }
+
+    /**
+     * Transport of event loops and sockets, NIO by default.
+     *
+     * @see Transport#resolve()
+     * @param transport transport, falls back if not available
+     * @return builder
+     */
+    public NetcellConfigBuilder transport(Transport transport) {
+      if (Objects.isNull(transport)) {
+        throw new IllegalArgumentException("Transport must not be null");
+      }
+      this.config.transport = transport;
+      return this;
+    }
+
+    /**
+     * Server sockets bound to the port with SO_REUSEPORT, epoll and io_uring only.
+     *
+     * @param acceptors acceptors, 1 by default
+     * @return builder
+     */
+    public NetcellConfigBuilder acceptors(int acceptors) {
+      if (acceptors < 1) {
+        throw new IllegalArgumentException("Acceptors must be positive");
+      }
+      this.config.acceptors = acceptors;
+      return this;
+    }
+
+    public NetcellConfigBuilder useSsl(boolean useSsl) {
+      this.config.useSsl = useSsl;
+      return this;
+    }
+
+    /**
+     * Cap of flushes consolidated into one.
+     *
+     * @param maxPendingFlushes cap, 0 to flush every write immediately
+     * @return builder
+     */
+    public NetcellConfigBuilder maxPendingFlushes(int maxPendingFlushes) {
+      this.config.maxPendingFlushes = notNegative(maxPendingFlushes, "MaxPendingFlushes");
+      return this;
+    }
+
+    /**
+     * Water marks of the outbound buffer of each connection, 32 and 64 KiB by default.
+     *
+     * @param low bytes below which a connection is writable again
+     * @param high bytes above which a connection is not writable
+     * @return builder
+     */
+    public NetcellConfigBuilder writeBufferWaterMark(int low, int high) {
+      return writeBufferWaterMark(new WriteBufferWaterMark(low, high));
+    }
+
+    public NetcellConfigBuilder writeBufferWaterMark(WriteBufferWaterMark writeBufferWaterMark) {
+      if (Objects.isNull(writeBufferWaterMark)) {
+        throw new IllegalArgumentException("WriteBufferWaterMark must not be null");
+      }
+      this.config.writeBufferWaterMark = writeBufferWaterMark;
+      return this;
+    }
+
+    /**
+     * Length of the queue of connections not accepted yet, raise it for reconnect storms.
+     *
+     * @param backlog backlog, 0 for the system's somaxconn
+     * @return builder
+     */
+    public NetcellConfigBuilder backlog(int backlog) {
+      this.config.backlog = notNegative(backlog, "Backlog");
+      return this;
+    }
+
+    /**
+     * SO_SNDBUF of connections.
+     *
+     * @param sendBufferSize bytes, 0 for system default
+     * @return builder
+     */
+    public NetcellConfigBuilder sendBufferSize(int sendBufferSize) {
+      this.config.sendBufferSize = notNegative(sendBufferSize, "SendBufferSize");
+      return this;
+    }
+
+    /**
+     * SO_RCVBUF of connections.
+     *
+     * @param receiveBufferSize bytes, 0 for system default
+     * @return builder
+     */
+    public NetcellConfigBuilder receiveBufferSize(int receiveBufferSize) {
+      this.config.receiveBufferSize = notNegative(receiveBufferSize, "ReceiveBufferSize");
+      return this;
+    }
+
+    public NetcellConfigBuilder tcpNoDelay(boolean tcpNoDelay) {
+      this.config.tcpNoDelay = tcpNoDelay;
+      return this;
+    }
+
+    public NetcellConfigBuilder keepAlive(boolean keepAlive) {
+      this.config.keepAlive = keepAlive;
+      return this;
+    }
+
+    public NetcellConfigBuilder reuseAddress(boolean reuseAddress) {
+      this.config.reuseAddress = reuseAddress;
+      return this;
+    }
+
+    /**
+     * Allocator of channel buffers, netty default by default.
+     *
+     * @param allocator allocator
+     * @return builder
+     */
+    public NetcellConfigBuilder allocator(Allocator allocator) {
+      if (Objects.isNull(allocator)) {
+        throw new IllegalArgumentException("Allocator must not be null");
+      }
+      this.config.allocator = allocator;
+      return this;
+    }
+
+    /**
+     * Arenas of a pooled allocator, fewer arenas save memory, more arenas contend less.
+     *
+     * @param allocatorArenas arenas, 0 for netty default of twice the cores
+     * @return builder
+     */
+    public NetcellConfigBuilder allocatorArenas(int allocatorArenas) {
+      this.config.allocatorArenas = notNegative(allocatorArenas, "AllocatorArenas");
+      return this;
+    }
+
+    /**
+     * Largest message accepted, larger ones close the connection.
+     *
+     * @param maxBytesInMessage bytes, 8092 by default
+     * @return builder
+     */
+    public NetcellConfigBuilder maxBytesInMessage(int maxBytesInMessage) {
+      if (maxBytesInMessage < 1) {
+        throw new IllegalArgumentException("MaxBytesInMessage must be positive");
+      }
+      this.config.maxBytesInMessage = maxBytesInMessage;
+      return this;
+    }
+
+    /**
+     * Interval of publishing metrics on {@code $SYS/broker/...} topics.
+     *
+     * @param sysIntervalSeconds seconds, 0 to not publish them
+     * @return builder
+     */
+    public NetcellConfigBuilder sysIntervalSeconds(long sysIntervalSeconds) {
+      if (sysIntervalSeconds < 0) {
+        throw new IllegalArgumentException("SysIntervalSeconds must not be negative");
+      }
+      this.config.sysIntervalSeconds = sysIntervalSeconds;
+      return this;
+    }
+
+    public NetcellConfig build() {
+      return config;
+    }
+
+    private static int notNegative(int value, String name) {
+      if (value < 0) {
+        throw new IllegalArgumentException(name + " must not be negative");
+      }
+      return value;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import java.util.Objects;
 import java.util.ServiceLoader;
 import java.util.function.Supplier;
 import org.flmelody.netcell.core.interactor.Interactable;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
 import org.flmelody.netcell.core.provider.Provider;
 import org.flmelody.netcell.core.provider.ProviderSeries;
 import org.flmelody.netcell.core.provider.delivery.MessageDeliveryProvider;
@@ -38,38 +39,40 @@ import org.slf4j.LoggerFactory;
  */
 public final class ProviderManager implements Provider {
   private static final Logger logger = LoggerFactory.getLogger(ProviderManager.class);
-  private static final Map<ProviderSeries, Provider> providers = new HashMap<>();
+  // Providers of one broker, each broker has its own
+  private final Map<ProviderSeries, Provider> providers = new HashMap<>();
   private final ProviderInteractor interactor = new ProviderInteractor();
 
-  // We use SPI to load providers default
+  // We use SPI to load providers default, every provider is instantiated once
   ProviderManager() {
     ServiceLoader.load(MessageDeliveryProvider.class).stream()
-        .max(Comparator.comparing(provider -> provider.get().priority()))
+        .map(ServiceLoader.Provider::get)
+        .max(Comparator.comparing(Provider::priority))
         .ifPresent(
-            provider ->
-                providers.put(provider.get().withActor(this.interactor).series(), provider.get()));
+            provider -> providers.put(provider.withActor(this.interactor).series(), provider));
 
     ServiceLoader.load(TemporarySessionProvider.class).stream()
-        .max(Comparator.comparing(provider -> provider.get().priority()))
+        .map(ServiceLoader.Provider::get)
+        .max(Comparator.comparing(Provider::priority))
         .ifPresent(
-            provider ->
-                providers.put(provider.get().withActor(this.interactor).series(), provider.get()));
+            provider -> providers.put(provider.withActor(this.interactor).series(), provider));
 
     ServiceLoader.load(PersistentStoreProvider.class).stream()
-        .max(Comparator.comparing(provider -> provider.get().priority()))
+        .map(ServiceLoader.Provider::get)
+        .max(Comparator.comparing(Provider::priority))
         .ifPresent(
-            provider ->
-                providers.put(provider.get().withActor(this.interactor).series(), provider.get()));
+            provider -> providers.put(provider.withActor(this.interactor).series(), provider));
 
     ServiceLoader.load(RetainedMessageProvider.class).stream()
-        .max(Comparator.comparing(provider -> provider.get().priority()))
+        .map(ServiceLoader.Provider::get)
+        .max(Comparator.comparing(Provider::priority))
         .ifPresent(
-            provider ->
-                providers.put(provider.get().withActor(this.interactor).series(), provider.get()));
+            provider -> providers.put(provider.withActor(this.interactor).series(), provider));
 
     ServiceLoader.load(SslProvider.class).stream()
-        .max(Comparator.comparing(provider -> provider.get().priority()))
-        .ifPresent(provider -> providers.put(provider.get().series(), provider.get()));
+        .map(ServiceLoader.Provider::get)
+        .max(Comparator.comparing(Provider::priority))
+        .ifPresent(provider -> providers.put(provider.series(), provider));
   }
 
   /**
@@ -84,15 +87,15 @@ public final class ProviderManager implements Provider {
         //noinspection unchecked
         interactable.withActor(this.interactor);
       }
-      ProviderManager.providers.put(provider.series(), provider);
+      this.providers.put(provider.series(), provider);
     }
   }
 
-  static Provider provider(ProviderSeries series) {
+  Provider provider(ProviderSeries series) {
     return providers.get(series);
   }
 
-  static <T extends Provider> T provider(
+  <T extends Provider> T provider(
       ProviderSeries series, Class<T> clazz, Supplier<T> supplier) {
     Provider provider = providers.get(series);
     if (Objects.nonNull(provider)) {
@@ -104,7 +107,7 @@ public final class ProviderManager implements Provider {
     return supplier.get();
   }
 
-  static <T extends Provider> T provider(ProviderSeries series, Class<T> clazz, T defaultProvider) {
+  <T extends Provider> T provider(ProviderSeries series, Class<T> clazz, T defaultProvider) {
     Provider provider = providers.get(series);
     if (Objects.nonNull(provider)) {
       if (clazz.isAssignableFrom(provider.getClass())) {
@@ -115,6 +118,30 @@ public final class ProviderManager implements Provider {
     return defaultProvider;
   }
 
+  /**
+   * Start providers in use, before the broker accepts connections.
+   *
+   * @param metrics counters of the broker
+   */
+  @Override
+  public void start(BrokerMetrics metrics) {
+    for (Provider provider : providers.values()) {
+      provider.start(metrics);
+    }
+  }
+
+  /** Stop providers in use, a provider failing to stop does not keep the others running. */
+  @Override
+  public void stop() {
+    for (Provider provider : providers.values()) {
+      try {
+        provider.stop();
+      } catch (RuntimeException e) {
+        logger.error("Failed to stop provider {}", provider.getClass().getName(), e);
+      }
+    }
+  }
+
   @Override
   public ProviderSeries series() {
     return null;
@@ -23,4 +23,7 @@ package org.flmelody.netcell.core;
 public interface Broker {
 
   void start();
+
+  /** Stop broker, {@link #start()} returns once it is stopped. */
+  default void stop() {}
 }
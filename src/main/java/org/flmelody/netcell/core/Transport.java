@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+
+/**
+ * Transport of the broker's event loops and sockets. A native transport needs Linux and its native
+ * library, io_uring a kernel of 5.10 or later; when it is not available, {@link #resolve()} falls
+ * back to epoll and then to NIO.
+ *
+ * @author esotericman
+ */
+public enum Transport {
+  /** Java NIO selectors, available everywhere. */
+  NIO,
+  /** Linux epoll, edge-triggered with fewer syscalls and less garbage than NIO. */
+  EPOLL,
+  /** Linux io_uring, submitting reads and writes in batches through shared rings. */
+  IO_URING;
+
+  /**
+   * Whether transport can be used on this host.
+   *
+   * @return true if available
+   */
+  public boolean isAvailable() {
+    switch (this) {
+      case IO_URING:
+        return IOUring.isAvailable();
+      case EPOLL:
+        return Epoll.isAvailable();
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Whether several server sockets of transport can bind the same port with {@code SO_REUSEPORT},
+   * the kernel then spreads incoming connections across them.
+   *
+   * @return true for native transports
+   */
+  public boolean supportsReusePort() {
+    switch (this) {
+      case IO_URING:
+      case EPOLL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * This transport if available, otherwise the best available one it falls back to.
+   *
+   * @return available transport
+   */
+  public Transport resolve() {
+    if (isAvailable()) {
+      return this;
+    }
+    switch (this) {
+      case IO_URING:
+        return EPOLL.resolve();
+      default:
+        return NIO;
+    }
+  }
+
+  /**
+   * Create event loops of transport, which must be available.
+   *
+   * @param threads count of threads, 0 for netty default
+   * @return event loop group
+   */
+  public EventLoopGroup newEventLoopGroup(int threads) {
+    switch (this) {
+      case IO_URING:
+        return new IOUringEventLoopGroup(threads);
+      case EPOLL:
+        return new EpollEventLoopGroup(threads);
+      default:
+        return new NioEventLoopGroup(threads);
+    }
+  }
+
+  public Class<? extends ServerChannel> serverChannelClass() {
+    switch (this) {
+      case IO_URING:
+        return IOUringServerSocketChannel.class;
+      case EPOLL:
+        return EpollServerSocketChannel.class;
+      default:
+        return NioServerSocketChannel.class;
+    }
+  }
+
+  public Class<? extends SocketChannel> channelClass() {
+    switch (this) {
+      case IO_URING:
+        return IOUringSocketChannel.class;
+      case EPOLL:
+        return EpollSocketChannel.class;
+      default:
+        return NioSocketChannel.class;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.cluster;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decode frames written by {@link ClusterEncoder}. Payloads of forwarded publishes are slices of
+ * the frame, they are not copied.
+ *
+ * @author esotericman
+ */
+public final class ClusterDecoder extends LengthFieldBasedFrameDecoder {
+  // A batch holds at least one publish, which may be as large as MQTT allows
+  private static final int MAX_FRAME_LENGTH = 512 << 20;
+
+  public ClusterDecoder() {
+    super(MAX_FRAME_LENGTH, 0, 4, 0, 4);
+  }
+
+  @Override
+  protected Object decode(ChannelHandlerContext context, ByteBuf in) throws Exception {
+    ByteBuf frame = (ByteBuf) super.decode(context, in);
+    if (Objects.isNull(frame)) {
+      return null;
+    }
+    try {
+      byte type = frame.readByte();
+      switch (type) {
+        case ClusterEncoder.HELLO:
+          return new ClusterFrame.Hello(readString(frame));
+        case ClusterEncoder.FILTERS_ADDED:
+        case ClusterEncoder.FILTERS_REMOVED:
+          int filterCount = frame.readInt();
+          List<String> topicFilters = new ArrayList<>(filterCount);
+          for (int i = 0; i < filterCount; i++) {
+            topicFilters.add(readString(frame));
+          }
+          return new ClusterFrame.Filters(type == ClusterEncoder.FILTERS_ADDED, topicFilters);
+        case ClusterEncoder.PUBLISHES:
+          int messageCount = frame.readInt();
+          List<MqttPublishMessage> messages = new ArrayList<>(messageCount);
+          try {
+            for (int i = 0; i < messageCount; i++) {
+              String topicName = readString(frame);
+              int flags = frame.readByte();
+              MqttFixedHeader fixedHeader =
+                  new MqttFixedHeader(
+                      MqttMessageType.PUBLISH,
+                      false,
+                      MqttQoS.valueOf(flags & 0x03),
+                      (flags & ClusterEncoder.RETAIN_FLAG) != 0,
+                      0);
+              messages.add(
+                  new MqttPublishMessage(
+                      fixedHeader,
+                      new MqttPublishVariableHeader(topicName, 1),
+                      frame.readRetainedSlice(frame.readInt())));
+            }
+          } catch (RuntimeException e) {
+            messages.forEach(MqttPublishMessage::release);
+            throw e;
+          }
+          return new ClusterFrame.Publishes(messages);
+        default:
+          throw new CorruptedFrameException("Unknown cluster frame type " + type);
+      }
+    } finally {
+      frame.release();
+    }
+  }
+
+  private static String readString(ByteBuf frame) {
+    int length = frame.readUnsignedShort();
+    String value = frame.toString(frame.readerIndex(), length, StandardCharsets.UTF_8);
+    frame.skipBytes(length);
+    return value;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.cluster;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Encode {@link ClusterFrame} as its length, its type and its body. Strings are written as their
+ * UTF-8 length in two bytes and their bytes, a forwarded publish as its topic, qos and retain flag
+ * in one byte, and its payload after its length.
+ *
+ * @author esotericman
+ */
+@ChannelHandler.Sharable
+public final class ClusterEncoder extends MessageToByteEncoder<ClusterFrame> {
+  public static final ClusterEncoder INSTANCE = new ClusterEncoder();
+  static final byte HELLO = 1;
+  static final byte FILTERS_ADDED = 2;
+  static final byte FILTERS_REMOVED = 3;
+  static final byte PUBLISHES = 4;
+  static final int RETAIN_FLAG = 0x04;
+
+  private ClusterEncoder() {}
+
+  @Override
+  protected void encode(ChannelHandlerContext context, ClusterFrame frame, ByteBuf out) {
+    int start = out.writerIndex();
+    out.writeInt(0);
+    if (frame instanceof ClusterFrame.Hello hello) {
+      out.writeByte(HELLO);
+      writeString(out, hello.nodeId());
+    } else if (frame instanceof ClusterFrame.Filters filters) {
+      out.writeByte(filters.added() ? FILTERS_ADDED : FILTERS_REMOVED);
+      out.writeInt(filters.topicFilters().size());
+      for (String topicFilter : filters.topicFilters()) {
+        writeString(out, topicFilter);
+      }
+    } else if (frame instanceof ClusterFrame.Publishes publishes) {
+      out.writeByte(PUBLISHES);
+      out.writeInt(publishes.messages().size());
+      try {
+        for (MqttPublishMessage message : publishes.messages()) {
+          writeString(out, message.variableHeader().topicName());
+          out.writeByte(
+              message.fixedHeader().qosLevel().value()
+                  | (message.fixedHeader().isRetain() ? RETAIN_FLAG : 0));
+          ByteBuf payload = message.payload();
+          out.writeInt(payload.readableBytes());
+          out.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        }
+      } finally {
+        publishes.messages().forEach(ReferenceCountUtil::release);
+      }
+    }
+    out.setInt(start, out.writerIndex() - start - 4);
+  }
+
+  private static void writeString(ByteBuf out, String value) {
+    int lengthIndex = out.writerIndex();
+    out.writeShort(0);
+    int length = ByteBufUtil.writeUtf8(out, value);
+    out.setShort(lengthIndex, length);
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.cluster;
+
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import java.util.List;
+
+/**
+ * Frame exchanged between cluster nodes. A node dials every peer and sends {@link Hello} and a
+ * snapshot of its topic filters, then changes of its filters and publishes forwarded to the peer.
+ * The peer answers {@link Hello} and sends nothing else on that link.
+ *
+ * @author esotericman
+ */
+public sealed interface ClusterFrame {
+
+  /**
+   * First frame on a link, in both directions.
+   *
+   * @param nodeId id of sending node
+   */
+  record Hello(String nodeId) implements ClusterFrame {}
+
+  /**
+   * Topic filters the sending node gained or lost its last subscriber for, the first one after
+   * {@link Hello} is a snapshot of all of them.
+   *
+   * @param added true if filters gained subscribers, false if they lost them
+   * @param topicFilters topic filters, shared groups as their topic filter
+   */
+  record Filters(boolean added, List<String> topicFilters) implements ClusterFrame {}
+
+  /**
+   * Publishes forwarded in one batch, released once written.
+   *
+   * @param messages messages with topic, qos, retain flag and payload
+   */
+  record Publishes(List<MqttPublishMessage> messages) implements ClusterFrame {}
+}
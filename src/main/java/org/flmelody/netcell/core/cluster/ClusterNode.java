@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.cluster;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.PlatformDependent;
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.flmelody.netcell.core.Transport;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.flmelody.netcell.core.topic.TopicTrie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node of a cluster of brokers meshed over TCP. A node dials every peer and sends it a summary of
+ * its subscriptions: the distinct topic filters its sessions subscribe to, kept up to date as
+ * filters gain their first or lose their last subscriber. Summaries of all peers form one topic
+ * tree, so a publish is forwarded only to peers with a filter matching its topic. Forwards to a
+ * peer are queued on its link and written as one batch with one flush per event loop tick.
+ *
+ * <p>Every node lists all other nodes as peers and delivers forwarded messages to its own
+ * subscribers only. Forwarding is at most once: messages for a peer whose link is down or not
+ * writable are dropped, links are dialed again every {@link #RECONNECT_DELAY_MILLIS}.
+ *
+ * @author esotericman
+ */
+public final class ClusterNode implements Closeable {
+  public static final long RECONNECT_DELAY_MILLIS = 1000;
+  private static final Logger logger = LoggerFactory.getLogger(ClusterNode.class);
+  // Publishes per frame, a longer queue is written as several frames before one flush
+  private static final int MAX_BATCH = 256;
+
+  private final String nodeId;
+  private final int port;
+  private final List<InetSocketAddress> peers;
+  private final Transport transport;
+  // Topic filter -> count of local routes; changes and link attachment are serialized on it
+  private final Map<String, Integer> localFilters = new HashMap<>();
+  private final List<PeerLink> links = new ArrayList<>();
+  // Peer id -> link dialed to peer, once peer answered
+  private final Map<String, PeerLink> linksByPeer = new ConcurrentHashMap<>();
+  // Topic filter -> peer id -> peer with subscribers
+  private final TopicTrie<RemotePeer> remoteFilters = new TopicTrie<>();
+  private final LongAdder forwardedMessages = new LongAdder();
+  private final LongAdder receivedMessages = new LongAdder();
+  // Set once started, before any link or server channel exists
+  private volatile Consumer<MqttPublishMessage> receiver;
+  private volatile BrokerMetrics metrics;
+  private volatile EventLoopGroup group;
+  private volatile Channel serverChannel;
+  private volatile boolean closed;
+
+  public ClusterNode(String nodeId, int port, List<InetSocketAddress> peers) {
+    this(nodeId, port, peers, Transport.NIO);
+  }
+
+  /**
+   * Create node, {@link #start(Consumer)} binds its port and dials its peers.
+   *
+   * @param nodeId id of node, unique in cluster
+   * @param port port peers dial
+   * @param peers addresses of all other nodes
+   * @param transport transport of links, falls back if not available
+   */
+  public ClusterNode(String nodeId, int port, List<InetSocketAddress> peers, Transport transport) {
+    this.nodeId = nodeId;
+    this.port = port;
+    this.peers = List.copyOf(peers);
+    this.transport = transport.resolve();
+  }
+
+  /**
+   * Bind port and dial peers, links come up in the background. Local filters known before start
+   * are sent to peers as links come up.
+   *
+   * @param receiver delivers messages forwarded by peers to local subscribers, messages are
+   *     released once it returns
+   * @param metrics counters of the broker, forwards dropped are counted into them
+   */
+  public synchronized void start(Consumer<MqttPublishMessage> receiver, BrokerMetrics metrics) {
+    if (closed || Objects.nonNull(group)) {
+      throw new IllegalStateException("Cluster node already started or closed");
+    }
+    this.receiver = receiver;
+    this.metrics = metrics;
+    this.group = transport.newEventLoopGroup(0);
+    ServerBootstrap bootstrap =
+        new ServerBootstrap()
+            .group(group)
+            .channel(transport.serverChannelClass())
+            .childOption(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.SO_REUSEADDR, true)
+            .childHandler(
+                new ChannelInitializer<>() {
+                  @Override
+                  protected void initChannel(Channel channel) {
+                    channel
+                        .pipeline()
+                        .addLast(new ClusterDecoder())
+                        .addLast(ClusterEncoder.INSTANCE)
+                        .addLast(new InboundHandler());
+                  }
+                });
+    serverChannel = bootstrap.bind(port).syncUninterruptibly().channel();
+    logger.atInfo().log("Cluster node {} listening on port {}", nodeId, port);
+    for (InetSocketAddress address : peers) {
+      PeerLink link = new PeerLink(address);
+      synchronized (localFilters) {
+        links.add(link);
+      }
+      link.connect();
+    }
+  }
+
+  /**
+   * A local route for topic filter was added, peers learn of filters new to this node.
+   *
+   * @param topicFilter topic filter
+   */
+  public void subscribed(String topicFilter) {
+    synchronized (localFilters) {
+      if (localFilters.merge(topicFilter, 1, Integer::sum) == 1) {
+        broadcast(new ClusterFrame.Filters(true, List.of(topicFilter)));
+      }
+    }
+  }
+
+  /**
+   * A local route for topic filter was removed, peers learn of filters left without routes.
+   *
+   * @param topicFilter topic filter
+   */
+  public void unsubscribed(String topicFilter) {
+    synchronized (localFilters) {
+      Integer count = localFilters.get(topicFilter);
+      if (Objects.isNull(count)) {
+        return;
+      }
+      if (count > 1) {
+        localFilters.put(topicFilter, count - 1);
+        return;
+      }
+      localFilters.remove(topicFilter);
+      broadcast(new ClusterFrame.Filters(false, List.of(topicFilter)));
+    }
+  }
+
+  private void broadcast(ClusterFrame frame) {
+    for (PeerLink link : links) {
+      if (link.attached) {
+        link.send(frame);
+      }
+    }
+  }
+
+  /**
+   * Forward message a local client published to peers with subscribers for its topic.
+   *
+   * @param message message, not released
+   */
+  public void forward(MqttPublishMessage message) {
+    if (remoteFilters.isEmpty()) {
+      return;
+    }
+    List<String> peerIds = new ArrayList<>(2);
+    remoteFilters.match(
+        message.variableHeader().topicName(),
+        (peerId, peer) -> {
+          if (!peerIds.contains(peerId)) {
+            peerIds.add(peerId);
+          }
+        });
+    for (String peerId : peerIds) {
+      PeerLink link = linksByPeer.get(peerId);
+      if (Objects.nonNull(link)) {
+        link.send(message.retainedDuplicate());
+      }
+    }
+  }
+
+  /**
+   * Peers having subscribers for topic, as far as their summaries have arrived.
+   *
+   * @param topicName topic name
+   * @return ids of peers
+   */
+  public Set<String> peers(String topicName) {
+    Set<String> peerIds = new LinkedHashSet<>();
+    remoteFilters.match(topicName, (peerId, peer) -> peerIds.add(peerId));
+    return peerIds;
+  }
+
+  /**
+   * Peers this node has a link to.
+   *
+   * @return ids of peers
+   */
+  public Set<String> linkedPeers() {
+    return Set.copyOf(linksByPeer.keySet());
+  }
+
+  public String nodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Messages forwarded to peers, counted once per peer.
+   *
+   * @return count of forwarded messages
+   */
+  public long forwardedMessages() {
+    return forwardedMessages.sum();
+  }
+
+  /**
+   * Messages received from peers.
+   *
+   * @return count of received messages
+   */
+  public long receivedMessages() {
+    return receivedMessages.sum();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (Objects.isNull(group)) {
+      return;
+    }
+    Channel channel = serverChannel;
+    if (Objects.nonNull(channel)) {
+      channel.close().syncUninterruptibly();
+    }
+    for (PeerLink link : links) {
+      Channel linkChannel = link.channel;
+      if (Objects.nonNull(linkChannel)) {
+        linkChannel.close().syncUninterruptibly();
+      }
+    }
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+  }
+
+  /** Link dialed to a peer, carries this node's summary and forwards */
+  private final class PeerLink {
+    private final InetSocketAddress address;
+    // Frames and publishes to write, drained on the event loop of the link
+    private final Queue<Object> pending = PlatformDependent.newMpscQueue();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Channel channel;
+    // Hello and snapshot are queued, changes of local filters follow them
+    private volatile boolean attached;
+
+    private PeerLink(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    private void connect() {
+      if (closed) {
+        return;
+      }
+      new Bootstrap()
+          .group(group)
+          .channel(transport.channelClass())
+          .option(ChannelOption.TCP_NODELAY, true)
+          .handler(
+              new ChannelInitializer<>() {
+                @Override
+                protected void initChannel(Channel channel) {
+                  channel
+                      .pipeline()
+                      .addLast(new ClusterDecoder(), ClusterEncoder.INSTANCE, new LinkHandler());
+                }
+              })
+          .connect(address)
+          .addListener(
+              (ChannelFuture future) -> {
+                if (!future.isSuccess()) {
+                  reconnect();
+                }
+              });
+    }
+
+    private void reconnect() {
+      if (!closed && !group.isShuttingDown()) {
+        group.schedule(this::connect, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void send(Object item) {
+      Channel current = channel;
+      if (Objects.isNull(current)) {
+        ReferenceCountUtil.release(item);
+        return;
+      }
+      pending.offer(item);
+      if (scheduled.compareAndSet(false, true)) {
+        current.eventLoop().execute(this::drain);
+      }
+    }
+
+    // Runs of publishes become batches, frames keep their order
+    private void drain() {
+      scheduled.set(false);
+      Channel current = channel;
+      List<MqttPublishMessage> batch = new ArrayList<>();
+      Object item;
+      while (Objects.nonNull(item = pending.poll())) {
+        if (Objects.isNull(current) || !current.isActive()) {
+          ReferenceCountUtil.release(item);
+        } else if (item instanceof MqttPublishMessage message) {
+          if (!current.isWritable()) {
+            message.release();
+            metrics.messageDropped();
+            continue;
+          }
+          batch.add(message);
+          forwardedMessages.increment();
+          if (batch.size() == MAX_BATCH) {
+            current.write(new ClusterFrame.Publishes(batch));
+            batch = new ArrayList<>();
+          }
+        } else {
+          if (!batch.isEmpty()) {
+            current.write(new ClusterFrame.Publishes(batch));
+            batch = new ArrayList<>();
+          }
+          current.write(item);
+        }
+      }
+      if (Objects.nonNull(current)) {
+        if (!batch.isEmpty()) {
+          current.write(new ClusterFrame.Publishes(batch));
+        }
+        current.flush();
+      }
+    }
+
+    /** Handler of one connection of link */
+    private final class LinkHandler extends ChannelInboundHandlerAdapter {
+      private String peerId;
+
+      @Override
+      public void channelActive(ChannelHandlerContext context) {
+        synchronized (localFilters) {
+          channel = context.channel();
+          send(new ClusterFrame.Hello(nodeId));
+          if (!localFilters.isEmpty()) {
+            send(new ClusterFrame.Filters(true, new ArrayList<>(localFilters.keySet())));
+          }
+          attached = true;
+        }
+        context.fireChannelActive();
+      }
+
+      @Override
+      public void channelRead(ChannelHandlerContext context, Object msg) {
+        if (msg instanceof ClusterFrame.Hello hello) {
+          peerId = hello.nodeId();
+          linksByPeer.put(peerId, PeerLink.this);
+          logger.atInfo().log("Cluster node {} linked to {} at {}", nodeId, peerId, address);
+        } else {
+          ReferenceCountUtil.release(msg);
+        }
+      }
+
+      @Override
+      public void channelInactive(ChannelHandlerContext context) {
+        synchronized (localFilters) {
+          attached = false;
+          channel = null;
+        }
+        if (Objects.nonNull(peerId)) {
+          linksByPeer.remove(peerId, PeerLink.this);
+          logger.atInfo().log("Cluster node {} lost link to {}", nodeId, peerId);
+        }
+        // Frames queued meanwhile are released
+        drain();
+        reconnect();
+      }
+
+      @Override
+      public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+        logger.atWarn().log("Cluster link to {} failed", address, cause);
+        context.close();
+      }
+    }
+  }
+
+  /** Handler of a link dialed by a peer, receives its summary and forwards */
+  private final class InboundHandler extends ChannelInboundHandlerAdapter {
+    private RemotePeer peer;
+
+    @Override
+    public void channelRead(ChannelHandlerContext context, Object msg) {
+      if (msg instanceof ClusterFrame.Hello hello) {
+        peer = new RemotePeer(hello.nodeId());
+        context.writeAndFlush(new ClusterFrame.Hello(nodeId));
+      } else if (msg instanceof ClusterFrame.Filters filters && Objects.nonNull(peer)) {
+        for (String topicFilter : filters.topicFilters()) {
+          if (filters.added()) {
+            remoteFilters.put(topicFilter, peer.nodeId, peer);
+            peer.topicFilters.add(topicFilter);
+          } else {
+            RemotePeer current = peer;
+            remoteFilters.remove(topicFilter, peer.nodeId, value -> value == current);
+            peer.topicFilters.remove(topicFilter);
+          }
+        }
+      } else if (msg instanceof ClusterFrame.Publishes publishes) {
+        for (MqttPublishMessage message : publishes.messages()) {
+          try {
+            receivedMessages.increment();
+            receiver.accept(message);
+          } catch (RuntimeException e) {
+            logger.atWarn().log("Failed to deliver message forwarded by {}", peer, e);
+          } finally {
+            message.release();
+          }
+        }
+      }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext context) {
+      RemotePeer current = peer;
+      if (Objects.nonNull(current)) {
+        // A newer link of the same peer replaced these entries, they are left alone
+        for (String topicFilter : current.topicFilters) {
+          remoteFilters.remove(topicFilter, current.nodeId, value -> value == current);
+        }
+      }
+      context.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+      logger.atWarn().log("Cluster link from {} failed", peer, cause);
+      context.close();
+    }
+  }
+
+  /** Peer dialing this node, one per link */
+  private static final class RemotePeer {
+    private final String nodeId;
+    // Touched on the event loop of the link only
+    private final Set<String> topicFilters = new HashSet<>();
+
+    private RemotePeer(String nodeId) {
+      this.nodeId = nodeId;
+    }
+
+    @Override
+    public String toString() {
+      return nodeId;
+    }
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.AttributeKey;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PUBLISH message encoded once and shared by all subscribers. A frame is encoded lazily for each
+ * combination of protocol level and qos, subscribers get {@link ByteBuf#retainedDuplicate()} of
+ * it, so neither the payload nor the header are copied per subscriber. A different packet id or
+ * DUP flag only copies the header, the payload is still shared.
+ *
+ * <p>Message Expiry Interval is forwarded as the time left since the broker received the message,
+ * a message expired meanwhile is not to be delivered.
+ *
+ * <p>Frames are written as raw {@link ByteBuf} and pass through {@code MqttEncoder} untouched.
+ * {@link #release()} must be called once fan-out is done.
+ *
+ * @author esotericman
+ */
+public final class EncodedPublish {
+  // Protocol level negotiated by MqttDecoder on CONNECT
+  private static final AttributeKey<MqttVersion> MQTT_VERSION_KEY =
+      AttributeKey.valueOf("NETTY_CODEC_MQTT_VERSION");
+  private static final int MESSAGE_EXPIRY_INTERVAL =
+      MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value();
+  private final ByteBufAllocator allocator;
+  private final byte[] topic;
+  private final ByteBuf payload;
+  private final MqttProperties properties;
+  private final int packetId;
+  private final boolean retain;
+  private final long receivedNanos;
+  // Indexed by [mqtt5 ? 1 : 0][qos]
+  private final ByteBuf[][] frames = new ByteBuf[2][3];
+  private byte[] encodedProperties;
+
+  public EncodedPublish(MqttPublishMessage message, ByteBufAllocator allocator) {
+    this(message, false, allocator);
+  }
+
+  /**
+   * Prepare message for fan-out, nothing is encoded until the first frame is requested.
+   *
+   * @param message message to deliver, its payload must stay readable until {@link #release()}
+   * @param retain retain flag of delivered frames, only retained messages sent on SUBSCRIBE set it
+   * @param allocator allocator of frames
+   */
+  public EncodedPublish(MqttPublishMessage message, boolean retain, ByteBufAllocator allocator) {
+    this(message, retain, System.nanoTime(), allocator);
+  }
+
+  /**
+   * Prepare message held by the broker since it was received.
+   *
+   * @param message message to deliver, its payload must stay readable until {@link #release()}
+   * @param retain retain flag of delivered frames, only retained messages sent on SUBSCRIBE set it
+   * @param receivedNanos {@link System#nanoTime()} the message was received at
+   * @param allocator allocator of frames
+   */
+  public EncodedPublish(
+      MqttPublishMessage message, boolean retain, long receivedNanos, ByteBufAllocator allocator) {
+    this.allocator = allocator;
+    this.topic = message.variableHeader().topicName().getBytes(StandardCharsets.UTF_8);
+    this.payload = message.payload();
+    this.properties = message.variableHeader().properties();
+    this.packetId = message.variableHeader().packetId();
+    this.retain = retain;
+    this.receivedNanos = receivedNanos;
+  }
+
+  /**
+   * Protocol level of channel, MQTT 3.1.1 if not negotiated yet.
+   *
+   * @param channel channel
+   * @return protocol level
+   */
+  public static MqttVersion version(Channel channel) {
+    MqttVersion version = channel.attr(MQTT_VERSION_KEY).get();
+    return Objects.isNull(version) ? MqttVersion.MQTT_3_1_1 : version;
+  }
+
+  /**
+   * Whether Message Expiry Interval of message has passed since it was received.
+   *
+   * @return true if message must not be delivered
+   */
+  public boolean isExpired() {
+    Integer interval = expiryInterval();
+    return Objects.nonNull(interval) && heldSeconds() >= Integer.toUnsignedLong(interval);
+  }
+
+  /**
+   * Frame for a subscriber, the caller owns the returned buffer.
+   *
+   * @param version protocol level of subscriber
+   * @param qos qos of delivery
+   * @param packetId packet id of delivery, ignored for qos 0
+   * @return frame ready to write
+   */
+  public ByteBuf frame(MqttVersion version, MqttQoS qos, int packetId) {
+    int level = MqttVersion.MQTT_5.equals(version) ? 1 : 0;
+    ByteBuf frame = frames[level][qos.value()];
+    if (Objects.isNull(frame)) {
+      frame = encode(level == 1, qos);
+      frames[level][qos.value()] = frame;
+    }
+    if (MqttQoS.AT_MOST_ONCE.equals(qos) || packetId == this.packetId) {
+      return frame.retainedDuplicate();
+    }
+    return withPacketId(frame, packetId, allocator);
+  }
+
+  /**
+   * Copy of a qos 1 or 2 PUBLISH frame with another packet id. Only the header is copied, the
+   * payload stays shared. The given frame is not released.
+   *
+   * @param frame encoded PUBLISH frame
+   * @param packetId packet id
+   * @param allocator allocator of header
+   * @return frame with packet id
+   */
+  public static ByteBuf withPacketId(ByteBuf frame, int packetId, ByteBufAllocator allocator) {
+    int start = frame.readerIndex();
+    int offset = 1;
+    while ((frame.getByte(start + offset++) & 0x80) != 0) {
+      // Skip remaining length
+    }
+    offset += 2 + frame.getUnsignedShort(start + offset);
+    int headerLength = offset + 2;
+    ByteBuf header = allocator.buffer(headerLength);
+    header.writeBytes(frame, start, headerLength);
+    header.setShort(offset, packetId);
+    return allocator
+        .compositeBuffer(2)
+        .addComponents(
+            true,
+            header,
+            frame.retainedSlice(start + headerLength, frame.readableBytes() - headerLength));
+  }
+
+  /**
+   * Copy of a PUBLISH frame with DUP flag set, for redelivery. Only the first byte is copied. The
+   * given frame is not released.
+   *
+   * @param frame encoded PUBLISH frame
+   * @param allocator allocator of header
+   * @return frame with DUP flag
+   */
+  public static ByteBuf withDuplicateFlag(ByteBuf frame, ByteBufAllocator allocator) {
+    int start = frame.readerIndex();
+    ByteBuf header = allocator.buffer(1).writeByte(frame.getByte(start) | 0x08);
+    return allocator
+        .compositeBuffer(2)
+        .addComponents(true, header, frame.retainedSlice(start + 1, frame.readableBytes() - 1));
+  }
+
+  /**
+   * Copy of an MQTT 5 PUBLISH frame held for a while since it was encoded, with its Message Expiry
+   * Interval lowered by that time. Only the header is copied, the payload stays shared. The given
+   * frame is not released.
+   *
+   * @param frame PUBLISH frame encoded for MQTT 5 by this class
+   * @param heldSeconds seconds frame was held
+   * @param allocator allocator of header
+   * @return frame with the time left, a duplicate if it has no interval, null if message expired
+   */
+  public static ByteBuf withExpiryElapsed(
+      ByteBuf frame, long heldSeconds, ByteBufAllocator allocator) {
+    int start = frame.readerIndex();
+    int offset = 1;
+    while ((frame.getByte(start + offset++) & 0x80) != 0) {
+      // Skip remaining length
+    }
+    offset += 2 + frame.getUnsignedShort(start + offset);
+    if ((frame.getByte(start) & 0x06) != 0) {
+      offset += 2;
+    }
+    boolean hasProperties = frame.getByte(start + offset) != 0;
+    while ((frame.getByte(start + offset++) & 0x80) != 0) {
+      // Skip properties length
+    }
+    // Message Expiry Interval is encoded first
+    if (!hasProperties || frame.getByte(start + offset) != MESSAGE_EXPIRY_INTERVAL) {
+      return frame.retainedDuplicate();
+    }
+    long interval = frame.getUnsignedInt(start + offset + 1);
+    if (heldSeconds >= interval) {
+      return null;
+    }
+    int headerLength = offset + 5;
+    ByteBuf header = allocator.buffer(headerLength);
+    header.writeBytes(frame, start, headerLength);
+    header.setInt(offset + 1, (int) (interval - heldSeconds));
+    return allocator
+        .compositeBuffer(2)
+        .addComponents(
+            true,
+            header,
+            frame.retainedSlice(start + headerLength, frame.readableBytes() - headerLength));
+  }
+
+  /**
+   * Copy of a PUBLISH frame for another protocol level, for a session reconnecting with it. Only
+   * the header is copied, the payload stays shared. Properties are dropped going to MQTT 3.1.1, a
+   * frame of MQTT 3.1.1 has none to carry over. The given frame is not released.
+   *
+   * @param frame encoded PUBLISH frame
+   * @param from protocol level frame is encoded for
+   * @param to protocol level of frame returned
+   * @param allocator allocator of header
+   * @return frame for protocol level
+   */
+  public static ByteBuf withVersion(
+      ByteBuf frame, MqttVersion from, MqttVersion to, ByteBufAllocator allocator) {
+    boolean fromMqtt5 = MqttVersion.MQTT_5.equals(from);
+    boolean toMqtt5 = MqttVersion.MQTT_5.equals(to);
+    if (fromMqtt5 == toMqtt5) {
+      return frame.retainedDuplicate();
+    }
+    int start = frame.readerIndex();
+    int first = frame.getUnsignedByte(start);
+    int offset = 1;
+    while ((frame.getByte(start + offset++) & 0x80) != 0) {
+      // Skip remaining length
+    }
+    int variableHeaderStart = offset;
+    offset += 2 + frame.getUnsignedShort(start + offset);
+    if ((first & 0x06) != 0) {
+      offset += 2;
+    }
+    int variableHeaderLength = offset - variableHeaderStart;
+    if (fromMqtt5) {
+      int propertiesLength = 0;
+      int shift = 0;
+      byte digit;
+      do {
+        digit = frame.getByte(start + offset++);
+        propertiesLength |= (digit & 0x7F) << shift;
+        shift += 7;
+      } while ((digit & 0x80) != 0);
+      offset += propertiesLength;
+    }
+    int payloadLength = frame.readableBytes() - offset;
+    int remainingLength = variableHeaderLength + (toMqtt5 ? 1 : 0) + payloadLength;
+    ByteBuf header =
+        allocator.buffer(
+            1 + variableLengthSize(remainingLength) + variableHeaderLength + (toMqtt5 ? 1 : 0));
+    header.writeByte(first);
+    writeVariableLength(header, remainingLength);
+    header.writeBytes(frame, start + variableHeaderStart, variableHeaderLength);
+    if (toMqtt5) {
+      // No properties
+      header.writeByte(0);
+    }
+    return allocator
+        .compositeBuffer(2)
+        .addComponents(true, header, frame.retainedSlice(start + offset, payloadLength));
+  }
+
+  /**
+   * Same as {@link #frame(MqttVersion, MqttQoS, int)}, with the protocol level of channel.
+   *
+   * @param channel subscriber channel
+   * @param qos qos of delivery
+   * @param packetId packet id of delivery, ignored for qos 0
+   * @return frame ready to write
+   */
+  public ByteBuf frame(Channel channel, MqttQoS qos, int packetId) {
+    return frame(version(channel), qos, packetId);
+  }
+
+  /** Release encoded frames, frames handed out stay valid until written. */
+  public void release() {
+    for (ByteBuf[] levelFrames : frames) {
+      for (int i = 0; i < levelFrames.length; i++) {
+        if (Objects.nonNull(levelFrames[i])) {
+          levelFrames[i].release();
+          levelFrames[i] = null;
+        }
+      }
+    }
+  }
+
+  // Length of properties including its own variable length prefix
+  private int propertiesLength() {
+    int length = forwardedProperties().length;
+    return variableLengthSize(length) + length;
+  }
+
+  private ByteBuf encode(boolean mqtt5, MqttQoS qos) {
+    int payloadLength = payload.readableBytes();
+    int variableHeaderLength = 2 + topic.length + (qos.value() > 0 ? 2 : 0);
+    if (mqtt5) {
+      variableHeaderLength += propertiesLength();
+    }
+    int remainingLength = variableHeaderLength + payloadLength;
+    ByteBuf frame = allocator.buffer(1 + variableLengthSize(remainingLength) + remainingLength);
+    frame.writeByte(
+        (MqttMessageType.PUBLISH.value() << 4) | (qos.value() << 1) | (retain ? 0x01 : 0));
+    writeVariableLength(frame, remainingLength);
+    frame.writeShort(topic.length);
+    frame.writeBytes(topic);
+    if (qos.value() > 0) {
+      frame.writeShort(packetId);
+    }
+    if (mqtt5) {
+      writeVariableLength(frame, forwardedProperties().length);
+      frame.writeBytes(forwardedProperties());
+    }
+    frame.writeBytes(payload, payload.readerIndex(), payloadLength);
+    return frame;
+  }
+
+  private Integer expiryInterval() {
+    if (Objects.isNull(properties)) {
+      return null;
+    }
+    MqttProperties.MqttProperty<?> property = properties.getProperty(MESSAGE_EXPIRY_INTERVAL);
+    return property instanceof MqttProperties.IntegerProperty interval ? interval.value() : null;
+  }
+
+  private long heldSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - receivedNanos);
+  }
+
+  // Properties of publisher forwarded to subscribers, topic alias and subscription identifier are
+  // specific to a connection and dropped
+  private byte[] forwardedProperties() {
+    if (Objects.nonNull(encodedProperties)) {
+      return encodedProperties;
+    }
+    if (Objects.isNull(properties) || properties.isEmpty()) {
+      encodedProperties = new byte[0];
+      return encodedProperties;
+    }
+    ByteBuf buf = Unpooled.buffer();
+    // Time left, first so that a frame held in a queue can have it lowered in place
+    Integer interval = expiryInterval();
+    if (Objects.nonNull(interval)) {
+      long remaining = Math.max(1, Integer.toUnsignedLong(interval) - heldSeconds());
+      writeVariableLength(buf, MESSAGE_EXPIRY_INTERVAL);
+      buf.writeInt((int) remaining);
+    }
+    for (MqttProperties.MqttProperty<?> property : properties.listAll()) {
+      MqttProperties.MqttPropertyType type =
+          MqttProperties.MqttPropertyType.valueOf(property.propertyId());
+      switch (type) {
+        case PAYLOAD_FORMAT_INDICATOR:
+          writeVariableLength(buf, property.propertyId());
+          buf.writeByte((Integer) property.value());
+          break;
+        case CONTENT_TYPE:
+        case RESPONSE_TOPIC:
+          writeVariableLength(buf, property.propertyId());
+          writeString(buf, (String) property.value());
+          break;
+        case CORRELATION_DATA:
+          byte[] data = (byte[]) property.value();
+          writeVariableLength(buf, property.propertyId());
+          buf.writeShort(data.length);
+          buf.writeBytes(data);
+          break;
+        case USER_PROPERTY:
+          List<?> pairs =
+              property.value() instanceof List<?> list ? list : List.of(property.value());
+          for (Object pair : pairs) {
+            MqttProperties.StringPair stringPair = (MqttProperties.StringPair) pair;
+            writeVariableLength(buf, property.propertyId());
+            writeString(buf, stringPair.key);
+            writeString(buf, stringPair.value);
+          }
+          break;
+        default:
+      }
+    }
+    encodedProperties = new byte[buf.readableBytes()];
+    buf.readBytes(encodedProperties);
+    return encodedProperties;
+  }
+
+  private static void writeString(ByteBuf buf, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    buf.writeShort(bytes.length);
+    buf.writeBytes(bytes);
+  }
+
+  private static void writeVariableLength(ByteBuf buf, int value) {
+    do {
+      int digit = value & 0x7F;
+      value >>>= 7;
+      if (value > 0) {
+        digit |= 0x80;
+      }
+      buf.writeByte(digit);
+    } while (value > 0);
+  }
+
+  private static int variableLengthSize(int value) {
+    int size = 1;
+    while ((value >>>= 7) > 0) {
+      size++;
+    }
+    return size;
+  }
+}
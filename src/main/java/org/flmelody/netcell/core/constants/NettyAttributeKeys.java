@@ -17,11 +17,16 @@
 package org.flmelody.netcell.core.constants;
 
 import io.netty.util.AttributeKey;
+import java.util.concurrent.CompletableFuture;
+import org.flmelody.netcell.core.provider.session.ClientSession;
 
 /**
  * @author esotericman
  */
 public interface NettyAttributeKeys {
-  AttributeKey<Boolean> MQTT_LISTENER_FINISH = AttributeKey.valueOf("MQTT_LISTENER_FINISH");
   AttributeKey<String> MQTT_CLIENT_ID = AttributeKey.valueOf("MQTT_CLIENT_ID");
+  AttributeKey<Boolean> MQTT_CLEAN_SESSION = AttributeKey.valueOf("MQTT_CLEAN_SESSION");
+  AttributeKey<ClientSession> MQTT_SESSION = AttributeKey.valueOf("MQTT_SESSION");
+  // Last ack of channel waiting for its message to be durable, later acks are sent after it
+  AttributeKey<CompletableFuture<Void>> MQTT_PENDING_ACK = AttributeKey.valueOf("MQTT_PENDING_ACK");
 }
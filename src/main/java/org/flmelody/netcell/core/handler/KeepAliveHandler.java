@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.handler;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes a connection silent for 1.5 times the Keep Alive of its CONNECT, or one that does not send
+ * CONNECT within the connect timeout. A Keep Alive of zero turns the check off.
+ *
+ * <p>Reading a packet only records its time. A single timeout per connection lives in a timer
+ * shared by all connections; when it fires, the connection is closed or the timeout set again for
+ * the time left, so an active connection costs one timeout per Keep Alive period rather than one
+ * per packet. The check runs on the event loop of the connection.
+ *
+ * @author esotericman
+ */
+public class KeepAliveHandler extends ChannelInboundHandlerAdapter implements TimerTask {
+  public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+  private static final Logger logger = LoggerFactory.getLogger(KeepAliveHandler.class);
+  private static final Timer keepAliveTimer =
+      new HashedWheelTimer(
+          new DefaultThreadFactory("netcell-keepalive", true), 500, TimeUnit.MILLISECONDS, 1024);
+  private final Timer timer;
+  private final long connectTimeoutNanos;
+  private ChannelHandlerContext context;
+  private Timeout timeout;
+  private long lastReadNanos;
+  // Zero when the connection is never closed for being silent
+  private long timeoutNanos;
+
+  public KeepAliveHandler() {
+    this(keepAliveTimer, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Create handler.
+   *
+   * @param timer timer shared by connections
+   * @param connectTimeoutMillis time to wait for CONNECT, 0 to wait forever
+   */
+  public KeepAliveHandler(Timer timer, long connectTimeoutMillis) {
+    this.timer = timer;
+    this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    context = ctx;
+    lastReadNanos = System.nanoTime();
+    timeoutNanos = connectTimeoutNanos;
+    schedule(timeoutNanos);
+    super.channelActive(ctx);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    lastReadNanos = System.nanoTime();
+    if (msg instanceof MqttConnectMessage connectMessage) {
+      int keepAlive = connectMessage.variableHeader().keepAliveTimeSeconds();
+      timeoutNanos = TimeUnit.MILLISECONDS.toNanos(keepAlive * 1500L);
+      schedule(timeoutNanos);
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    schedule(0);
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void run(Timeout expired) {
+    context.executor().execute(() -> check(expired));
+  }
+
+  private void check(Timeout expired) {
+    // Replaced by a later schedule
+    if (expired != timeout || !context.channel().isActive()) {
+      return;
+    }
+    long left = timeoutNanos - (System.nanoTime() - lastReadNanos);
+    if (left > 0) {
+      timeout = timer.newTimeout(this, left, TimeUnit.NANOSECONDS);
+      return;
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Connection {} exceeded its keep alive, closing it", context.channel());
+    }
+    timeout = null;
+    // Ends the session like any lost connection, see MqttMessageHandler#channelInactive
+    context.close();
+  }
+
+  private void schedule(long delayNanos) {
+    if (Objects.nonNull(timeout)) {
+      timeout.cancel();
+      timeout = null;
+    }
+    if (delayNanos > 0) {
+      timeout = timer.newTimeout(this, delayNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import org.flmelody.netcell.core.codec.EncodedPublish;
+import org.flmelody.netcell.core.constants.NettyAttributeKeys;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.flmelody.netcell.core.trace.MessageTracer;
+
+/**
+ * Count bytes in and out, and messages out by type. Placed before the decoder, so it sees every
+ * encoded packet, including PUBLISH frames encoded once for many subscribers; every outbound
+ * buffer holds exactly one packet, whose type is in the high bits of its first byte. Packets sent
+ * to traced clients are recorded by {@link MessageTracer} here for the same reason.
+ *
+ * @author esotericman
+ */
+@ChannelHandler.Sharable
+public class MetricsHandler extends ChannelDuplexHandler {
+  private final BrokerMetrics metrics;
+
+  public MetricsHandler(BrokerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof ByteBuf buf) {
+      metrics.bytesReceived(buf.readableBytes());
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    if (msg instanceof ByteBuf buf && buf.isReadable()) {
+      metrics.bytesSent(buf.readableBytes());
+      metrics.messageSent(MqttMessageType.valueOf(buf.getUnsignedByte(buf.readerIndex()) >> 4));
+      if (MessageTracer.enabled()) {
+        MessageTracer.recordSent(
+            ctx.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).get(),
+            buf,
+            EncodedPublish.version(ctx.channel()));
+      }
+    }
+    super.write(ctx, msg, promise);
+  }
+}
@@ -19,10 +19,15 @@ package org.flmelody.netcell.core.handler;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttMessage;
-import io.netty.handler.codec.mqtt.MqttMessageType;
+import java.util.Objects;
 import org.flmelody.netcell.MqttDispatcher;
 import org.flmelody.netcell.core.constants.NettyAttributeKeys;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.flmelody.netcell.core.provider.delivery.InflightWindow;
+import org.flmelody.netcell.core.provider.session.ClientSession;
+import org.flmelody.netcell.core.trace.MessageTracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,24 +37,73 @@ import org.slf4j.LoggerFactory;
 @ChannelHandler.Sharable
 public class MqttMessageHandler extends SimpleChannelInboundHandler<MqttMessage> {
   private static final Logger logger = LoggerFactory.getLogger(MqttMessageHandler.class);
+  private final BrokerMetrics metrics;
   private final MqttDispatcher mqttDispatcher;
 
   public MqttMessageHandler(MqttDispatcher mqttDispatcher) {
+    this(mqttDispatcher, new BrokerMetrics());
+  }
+
+  /**
+   * Create handler counting into metrics of its broker.
+   *
+   * @param mqttDispatcher dispatcher of inbound messages
+   * @param metrics counters of broker
+   */
+  public MqttMessageHandler(MqttDispatcher mqttDispatcher, BrokerMetrics metrics) {
     this.mqttDispatcher = mqttDispatcher;
+    this.metrics = metrics;
   }
 
   @Override
   protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) throws Exception {
-    MqttMessageType messageType = msg.fixedHeader().messageType();
-    logger.atInfo().log("New message received, current message type: {}", messageType);
-    try {
+    // Per-message logging stays off the hot path unless explicitly asked for
+    if (logger.isTraceEnabled()) {
+      logger.trace("New message received, message type: {}", msg.fixedHeader().messageType());
+    }
+    if (MessageTracer.enabled()) {
+      MessageTracer.record(clientId(ctx, msg), "in", msg);
+    }
+    metrics.messageReceived(msg.fixedHeader().messageType());
+    if (BrokerMetrics.sample()) {
+      long startNanos = System.nanoTime();
       mqttDispatcher.dispatch(ctx, msg);
-    } finally {
-      ctx.channel()
-          .attr(NettyAttributeKeys.MQTT_LISTENER_FINISH)
-          .compareAndSet(Boolean.TRUE, Boolean.FALSE);
+      metrics.dispatchLatency().record(System.nanoTime() - startNanos);
+    } else {
+      mqttDispatcher.dispatch(ctx, msg);
+    }
+  }
+
+  private static String clientId(ChannelHandlerContext ctx, MqttMessage msg) {
+    if (msg instanceof MqttConnectMessage connectMessage) {
+      return connectMessage.payload().clientIdentifier();
+    }
+    return ctx.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).get();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    // Lost without DISCONNECT, e.g. dropped by the network, taken over, silent past its keep alive
+    // or too slow: the session ends as if the client had sent DISCONNECT. A session taken over or
+    // already ended is no longer bound to this connection.
+    ClientSession session = ctx.channel().attr(NettyAttributeKeys.MQTT_SESSION).get();
+    if (Objects.nonNull(session) && session.context() == ctx) {
+      mqttDispatcher.dispatch(ctx, MqttMessage.DISCONNECT);
+    }
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    // Messages queued while the outbound buffer was above its high water mark go out now
+    if (ctx.channel().isWritable()) {
+      ClientSession session = ctx.channel().attr(NettyAttributeKeys.MQTT_SESSION).get();
+      InflightWindow window = Objects.isNull(session) ? null : session.inflightWindow();
+      if (Objects.nonNull(window)) {
+        window.resume();
+      }
     }
-    logger.atInfo().log("Dispatch message successful , current message type: {}", messageType);
+    super.channelWritabilityChanged(ctx);
   }
 
   @Override
@@ -19,21 +19,34 @@ package org.flmelody.netcell.core.listener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
-import org.flmelody.netcell.core.constants.NettyAttributeKeys;
 
 /**
+ * Listener of inbound MQTT messages.
+ *
  * @author esotericman
  */
 public interface MqttMessageListener {
 
+  /**
+   * Whether listener cares about message type, evaluated once when dispatcher is assembled, so the
+   * answer must not change afterwards.
+   *
+   * @param mqttMessageType message type
+   * @return true if interested
+   */
   boolean interests(MqttMessageType mqttMessageType);
 
   default void onMessage(ChannelHandlerContext context, MqttMessage mqttMessage) {}
 
-  default void markStop(ChannelHandlerContext context) {
-    context
-        .channel()
-        .attr(NettyAttributeKeys.MQTT_LISTENER_FINISH)
-        .compareAndSet(Boolean.FALSE, Boolean.TRUE);
+  /**
+   * Handle message and decide whether listeners after this one receive it as well.
+   *
+   * @param context context of channel
+   * @param mqttMessage message
+   * @return false to stop dispatching this message
+   */
+  default boolean handle(ChannelHandlerContext context, MqttMessage mqttMessage) {
+    onMessage(context, mqttMessage);
+    return true;
   }
 }
@@ -30,8 +30,8 @@ public class MqttPingMessageListener implements MqttMessageListener {
   }
 
   @Override
-  public void onMessage(ChannelHandlerContext context, MqttMessage mqttMessage) {
+  public boolean handle(ChannelHandlerContext context, MqttMessage mqttMessage) {
     context.writeAndFlush(MqttMessage.PINGRESP);
-    markStop(context);
+    return false;
   }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.metrics;
+
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the broker, updated from event loops. Counters are {@link LongAdder}s, which stripe
+ * updates of different threads over different cells; latencies are recorded for one message in
+ * {@value #SAMPLE_RATE} only, chosen at random, to keep clock reads off most messages. Counters
+ * count since the broker started, each broker has its own.
+ *
+ * @see MetricsSnapshot
+ * @author esotericman
+ */
+public final class BrokerMetrics {
+  public static final int SAMPLE_RATE = 16;
+  private static final MqttMessageType[] MESSAGE_TYPES = MqttMessageType.values();
+
+  // Indexed by ordinal of message type
+  private final LongAdder[] messagesReceived = new LongAdder[MESSAGE_TYPES.length];
+  private final LongAdder[] messagesSent = new LongAdder[MESSAGE_TYPES.length];
+  private final LongAdder bytesReceived = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder droppedMessages = new LongAdder();
+  private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+  private final LatencyHistogram fanoutLatency = new LatencyHistogram();
+
+  public BrokerMetrics() {
+    for (int index = 0; index < MESSAGE_TYPES.length; index++) {
+      messagesReceived[index] = new LongAdder();
+      messagesSent[index] = new LongAdder();
+    }
+  }
+
+  /**
+   * Whether latency of the current message is recorded.
+   *
+   * @return true for one call in {@value #SAMPLE_RATE} on average
+   */
+  public static boolean sample() {
+    return (ThreadLocalRandom.current().nextInt() & (SAMPLE_RATE - 1)) == 0;
+  }
+
+  public void messageReceived(MqttMessageType messageType) {
+    messagesReceived[messageType.ordinal()].increment();
+  }
+
+  public void messageSent(MqttMessageType messageType) {
+    messagesSent[messageType.ordinal()].increment();
+  }
+
+  public void bytesReceived(long bytes) {
+    bytesReceived.add(bytes);
+  }
+
+  public void bytesSent(long bytes) {
+    bytesSent.add(bytes);
+  }
+
+  /** Count a message not delivered to a subscriber, its queue or outbound buffer being full. */
+  public void messageDropped() {
+    droppedMessages.increment();
+  }
+
+  public long messagesReceived(MqttMessageType messageType) {
+    return messagesReceived[messageType.ordinal()].sum();
+  }
+
+  public long messagesSent(MqttMessageType messageType) {
+    return messagesSent[messageType.ordinal()].sum();
+  }
+
+  public long bytesReceived() {
+    return bytesReceived.sum();
+  }
+
+  public long bytesSent() {
+    return bytesSent.sum();
+  }
+
+  public long droppedMessages() {
+    return droppedMessages.sum();
+  }
+
+  /**
+   * Time from a decoded message to all listeners having handled it.
+   *
+   * @return dispatch latency
+   */
+  public LatencyHistogram dispatchLatency() {
+    return dispatchLatency;
+  }
+
+  /**
+   * Time to hand a published message to all its subscribers.
+   *
+   * @return fan-out latency
+   */
+  public LatencyHistogram fanoutLatency() {
+    return fanoutLatency;
+  }
+}
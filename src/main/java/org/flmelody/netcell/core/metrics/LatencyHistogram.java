@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.metrics;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, with buckets growing in powers of two that are split in
+ * 8 linear sub-buckets, so a recorded value is reported within 12.5% of it. Every thread records
+ * into a stripe of its own without contention, readers add up the stripes.
+ *
+ * @author esotericman
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+  private final FastThreadLocal<Stripe> stripe =
+      new FastThreadLocal<>() {
+        @Override
+        protected Stripe initialValue() {
+          Stripe stripe = new Stripe();
+          stripes.add(stripe);
+          return stripe;
+        }
+      };
+
+  /**
+   * Record latency.
+   *
+   * @param nanos latency in nanoseconds, negative counts as 0
+   */
+  public void record(long nanos) {
+    stripe.get().record(Math.max(0, nanos));
+  }
+
+  /**
+   * Counts recorded so far, by all threads.
+   *
+   * @return snapshot
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    long max = 0;
+    for (Stripe stripe : stripes) {
+      for (int index = 0; index < BUCKETS; index++) {
+        counts[index] += stripe.counts.get(index);
+      }
+      max = Math.max(max, stripe.max);
+    }
+    return new Snapshot(counts, max);
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // Highest value of bucket
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  /** Buckets of one thread, only that thread writes them */
+  private static final class Stripe {
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private volatile long max;
+
+    private void record(long value) {
+      int index = index(value);
+      counts.lazySet(index, counts.get(index) + 1);
+      if (value > max) {
+        max = value;
+      }
+    }
+  }
+
+  /** Counts of a histogram at one point in time */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long max;
+
+    private Snapshot(long[] counts, long max) {
+      this.counts = counts;
+      long count = 0;
+      for (long bucketCount : counts) {
+        count += bucketCount;
+      }
+      this.count = count;
+      this.max = max;
+    }
+
+    /**
+     * Count of recorded values.
+     *
+     * @return count
+     */
+    public long count() {
+      return count;
+    }
+
+    /**
+     * Highest recorded value.
+     *
+     * @return max in nanoseconds
+     */
+    public long max() {
+      return max;
+    }
+
+    /**
+     * Value that percentile of recorded values are at or below.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return value in nanoseconds, 0 if nothing is recorded
+     */
+    public long valueAtPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int index = 0; index < counts.length; index++) {
+        seen += counts[index];
+        if (seen >= rank) {
+          return Math.min(highestValue(index), max);
+        }
+      }
+      return max;
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.metrics;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import org.flmelody.netcell.core.provider.delivery.InflightWindow;
+import org.flmelody.netcell.core.provider.retained.RetainedMessageProvider;
+import org.flmelody.netcell.core.provider.session.ClientSession;
+import org.flmelody.netcell.core.provider.session.TemporarySessionProvider;
+
+/**
+ * Metrics of the broker at one point in time: counters of {@link BrokerMetrics} and counts taken
+ * from providers, which are walked when the snapshot is captured rather than kept on the hot path.
+ *
+ * @param uptimeSeconds seconds since broker started
+ * @param messagesReceived messages received by type
+ * @param messagesSent messages sent by type
+ * @param bytesReceived bytes received
+ * @param bytesSent bytes sent
+ * @param connectedClients clients with an active connection
+ * @param sessions sessions, connected or not
+ * @param subscriptions subscriptions of all sessions
+ * @param retainedMessages topics with a retained message
+ * @param inflightMessages qos 1 and 2 messages sent and not acknowledged yet
+ * @param queuedMessages qos 1 and 2 messages waiting for room in an inflight window
+ * @param droppedMessages messages not delivered because a subscriber was too slow
+ * @param dispatchLatency latency of dispatching a message to listeners
+ * @param fanoutLatency latency of handing a published message to its subscribers
+ * @author esotericman
+ */
+public record MetricsSnapshot(
+    long uptimeSeconds,
+    Map<MqttMessageType, Long> messagesReceived,
+    Map<MqttMessageType, Long> messagesSent,
+    long bytesReceived,
+    long bytesSent,
+    long connectedClients,
+    long sessions,
+    long subscriptions,
+    long retainedMessages,
+    long inflightMessages,
+    long queuedMessages,
+    long droppedMessages,
+    LatencyHistogram.Snapshot dispatchLatency,
+    LatencyHistogram.Snapshot fanoutLatency) {
+  public static final String SYS_TOPIC_PREFIX = "$SYS/broker/";
+
+  /**
+   * Capture metrics.
+   *
+   * @param uptimeSeconds seconds since broker started
+   * @param metrics counters of broker
+   * @param sessionProvider provider of sessions
+   * @param retainedMessageProvider provider of retained messages
+   * @return snapshot
+   */
+  public static MetricsSnapshot capture(
+      long uptimeSeconds,
+      BrokerMetrics metrics,
+      TemporarySessionProvider sessionProvider,
+      RetainedMessageProvider retainedMessageProvider) {
+    Map<MqttMessageType, Long> received = new EnumMap<>(MqttMessageType.class);
+    Map<MqttMessageType, Long> sent = new EnumMap<>(MqttMessageType.class);
+    for (MqttMessageType messageType : MqttMessageType.values()) {
+      received.put(messageType, metrics.messagesReceived(messageType));
+      sent.put(messageType, metrics.messagesSent(messageType));
+    }
+    long connected = 0;
+    long sessions = 0;
+    long subscriptions = 0;
+    long inflight = 0;
+    long queued = 0;
+    for (ClientSession session : sessionProvider.sessions()) {
+      sessions++;
+      ChannelHandlerContext context = session.context();
+      if (Objects.nonNull(context) && context.channel().isActive()) {
+        connected++;
+      }
+      subscriptions += session.subscriptions().size();
+      InflightWindow window = session.inflightWindow();
+      if (Objects.nonNull(window)) {
+        inflight += window.inflightCount();
+        queued += window.queuedCount();
+      }
+    }
+    return new MetricsSnapshot(
+        uptimeSeconds,
+        Collections.unmodifiableMap(received),
+        Collections.unmodifiableMap(sent),
+        metrics.bytesReceived(),
+        metrics.bytesSent(),
+        connected,
+        sessions,
+        subscriptions,
+        retainedMessageProvider.retainedCount(),
+        inflight,
+        queued,
+        metrics.droppedMessages(),
+        metrics.dispatchLatency().snapshot(),
+        metrics.fanoutLatency().snapshot());
+  }
+
+  public long totalMessagesReceived() {
+    return messagesReceived.values().stream().mapToLong(Long::longValue).sum();
+  }
+
+  public long totalMessagesSent() {
+    return messagesSent.values().stream().mapToLong(Long::longValue).sum();
+  }
+
+  /**
+   * Values as published on {@code $SYS/broker/...} topics, latencies in microseconds.
+   *
+   * @return values by topic
+   */
+  public Map<String, String> sysTopics() {
+    Map<String, String> topics = new LinkedHashMap<>();
+    topics.put(SYS_TOPIC_PREFIX + "uptime", String.valueOf(uptimeSeconds));
+    topics.put(SYS_TOPIC_PREFIX + "clients/connected", String.valueOf(connectedClients));
+    topics.put(SYS_TOPIC_PREFIX + "clients/total", String.valueOf(sessions));
+    topics.put(SYS_TOPIC_PREFIX + "subscriptions/count", String.valueOf(subscriptions));
+    topics.put(SYS_TOPIC_PREFIX + "retained messages/count", String.valueOf(retainedMessages));
+    topics.put(SYS_TOPIC_PREFIX + "messages/inflight", String.valueOf(inflightMessages));
+    topics.put(SYS_TOPIC_PREFIX + "messages/queued", String.valueOf(queuedMessages));
+    topics.put(SYS_TOPIC_PREFIX + "messages/dropped", String.valueOf(droppedMessages));
+    topics.put(SYS_TOPIC_PREFIX + "messages/received", String.valueOf(totalMessagesReceived()));
+    topics.put(SYS_TOPIC_PREFIX + "messages/sent", String.valueOf(totalMessagesSent()));
+    countTopics(topics, "messages/received/", messagesReceived);
+    countTopics(topics, "messages/sent/", messagesSent);
+    topics.put(SYS_TOPIC_PREFIX + "bytes/received", String.valueOf(bytesReceived));
+    topics.put(SYS_TOPIC_PREFIX + "bytes/sent", String.valueOf(bytesSent));
+    latencyTopics(topics, "dispatch", dispatchLatency);
+    latencyTopics(topics, "fanout", fanoutLatency);
+    return topics;
+  }
+
+  private static void countTopics(
+      Map<String, String> topics, String name, Map<MqttMessageType, Long> counts) {
+    counts.forEach(
+        (messageType, count) ->
+            topics.put(
+                SYS_TOPIC_PREFIX + name + messageType.name().toLowerCase(Locale.ROOT),
+                String.valueOf(count)));
+  }
+
+  private static void latencyTopics(
+      Map<String, String> topics, String name, LatencyHistogram.Snapshot latency) {
+    String prefix = SYS_TOPIC_PREFIX + "latency/" + name + "/";
+    topics.put(prefix + "p50", micros(latency.valueAtPercentile(50)));
+    topics.put(prefix + "p99", micros(latency.valueAtPercentile(99)));
+    topics.put(prefix + "p999", micros(latency.valueAtPercentile(99.9)));
+    topics.put(prefix + "max", micros(latency.max()));
+  }
+
+  private static String micros(long nanos) {
+    return String.valueOf(nanos / 1000);
+  }
+}
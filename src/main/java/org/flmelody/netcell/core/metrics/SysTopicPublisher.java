@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.metrics;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.flmelody.netcell.core.provider.delivery.MessageDeliveryProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publish metrics on {@code $SYS/broker/...} topics at a fixed interval, at qos 0 and not
+ * retained. Wildcards at the first level do not match {@code $SYS} topics, only clients
+ * subscribing to them explicitly receive these messages.
+ *
+ * @see MetricsSnapshot#sysTopics()
+ * @author esotericman
+ */
+public final class SysTopicPublisher implements Closeable {
+  public static final long DEFAULT_INTERVAL_SECONDS = 10;
+  private static final Logger logger = LoggerFactory.getLogger(SysTopicPublisher.class);
+  private final Supplier<MetricsSnapshot> metrics;
+  private final MessageDeliveryProvider deliveryProvider;
+  private final long intervalSeconds;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Create publisher.
+   *
+   * @param metrics source of metrics
+   * @param deliveryProvider provider delivering to subscribers
+   * @param intervalSeconds seconds between two publications
+   */
+  public SysTopicPublisher(
+      Supplier<MetricsSnapshot> metrics,
+      MessageDeliveryProvider deliveryProvider,
+      long intervalSeconds) {
+    if (intervalSeconds <= 0) {
+      throw new IllegalArgumentException("Interval must be positive");
+    }
+    this.metrics = metrics;
+    this.deliveryProvider = deliveryProvider;
+    this.intervalSeconds = intervalSeconds;
+  }
+
+  /** Start publishing every interval on a daemon thread. */
+  public synchronized void start() {
+    if (Objects.nonNull(scheduler)) {
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("netcell-sys", true));
+    scheduler.scheduleAtFixedRate(
+        this::publish, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Publish current metrics once. */
+  public void publish() {
+    try {
+      for (Map.Entry<String, String> entry : metrics.get().sysTopics().entrySet()) {
+        MqttPublishMessage message =
+            new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttPublishVariableHeader(entry.getKey(), 0),
+                Unpooled.copiedBuffer(entry.getValue(), StandardCharsets.UTF_8));
+        try {
+          deliveryProvider.publish(message);
+        } finally {
+          message.release();
+        }
+      }
+    } catch (Exception e) {
+      // Thrown out of a scheduled task, it would cancel all later publications
+      logger.atWarn().log("Failed to publish $SYS topics", e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (Objects.nonNull(scheduler)) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+}
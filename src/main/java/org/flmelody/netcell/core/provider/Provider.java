@@ -17,10 +17,21 @@
 package org.flmelody.netcell.core.provider;
 
 import org.flmelody.netcell.core.Order;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
 
 /**
  * @author esotericman
  */
 public interface Provider extends Order {
   ProviderSeries series();
+
+  /**
+   * Start provider, the broker calls it before accepting connections.
+   *
+   * @param metrics counters of the broker, the provider counts into them
+   */
+  default void start(BrokerMetrics metrics) {}
+
+  /** Stop provider, the broker calls it once it no longer accepts connections. */
+  default void stop() {}
 }
@@ -17,6 +17,7 @@
 package org.flmelody.netcell.core.provider.delivery;
 
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
 import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
@@ -35,10 +36,15 @@ public abstract class AbstractMessageDeliveryProvider
   private static final Set<MqttMessageType> supportedMessageTypes =
       new HashSet<>(
           Arrays.asList(
+              MqttMessageType.CONNECT,
               MqttMessageType.PUBLISH,
+              MqttMessageType.PUBACK,
+              MqttMessageType.PUBREC,
               MqttMessageType.PUBREL,
+              MqttMessageType.PUBCOMP,
               MqttMessageType.SUBSCRIBE,
-              MqttMessageType.UNSUBSCRIBE));
+              MqttMessageType.UNSUBSCRIBE,
+              MqttMessageType.DISCONNECT));
 
   @Override
   public final boolean interests(MqttMessageType mqttMessageType) {
@@ -50,10 +56,23 @@ public abstract class AbstractMessageDeliveryProvider
     MqttMessageType mqttMessageType = mqttMessage.fixedHeader().messageType();
 
     switch (mqttMessageType) {
+      case CONNECT:
+        connect(context, (MqttConnectMessage) mqttMessage);
+        break;
       case PUBLISH:
         publish(context, mqttMessage);
         break;
+      case PUBACK:
+        acknowledge(context, mqttMessage);
+        break;
+      case PUBREC:
+        publishReceived(context, mqttMessage);
+        break;
       case PUBREL:
+        publishRelease(context, mqttMessage);
+        break;
+      case PUBCOMP:
+        publishComplete(context, mqttMessage);
         break;
       case SUBSCRIBE:
         subscribe(context, (MqttSubscribeMessage) mqttMessage);
@@ -61,6 +80,9 @@ public abstract class AbstractMessageDeliveryProvider
       case UNSUBSCRIBE:
         unsubscribe(context, (MqttUnsubscribeMessage) mqttMessage);
         break;
+      case DISCONNECT:
+        disconnect(context, mqttMessage);
+        break;
       default:
     }
   }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.flmelody.netcell.core.Transport;
+import org.flmelody.netcell.core.cluster.ClusterNode;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+
+/**
+ * Delivery across a cluster of brokers. Subscribers are served by the node they are connected to
+ * as with {@link LocalMessageDeliveryProvider}, and messages published by clients are also
+ * forwarded to the peers having subscribers for their topic, which deliver them to their own.
+ *
+ * <p>Retained messages and shared groups stay local: a shared group with members on several nodes
+ * gets a message once per node. Forwarding is at most once, publishers are acknowledged once their
+ * local node has the message.
+ *
+ * @see ClusterNode
+ * @author esotericman
+ */
+public class ClusterMessageDeliveryProvider extends LocalMessageDeliveryProvider {
+  private final ClusterNode clusterNode;
+
+  public ClusterMessageDeliveryProvider(String nodeId, int port, List<InetSocketAddress> peers) {
+    this(nodeId, port, peers, Transport.NIO);
+  }
+
+  /**
+   * Create provider, its cluster node binds port and dials peers once the broker starts it.
+   *
+   * @param nodeId id of node, unique in cluster
+   * @param port port peers dial
+   * @param peers addresses of all other nodes
+   * @param transport transport of links, falls back if not available
+   */
+  public ClusterMessageDeliveryProvider(
+      String nodeId, int port, List<InetSocketAddress> peers, Transport transport) {
+    this.clusterNode = new ClusterNode(nodeId, port, peers, transport);
+  }
+
+  @Override
+  public void start(BrokerMetrics metrics) {
+    super.start(metrics);
+    clusterNode.start(this::publish, metrics);
+  }
+
+  @Override
+  public void stop() {
+    clusterNode.close();
+  }
+
+  @Override
+  protected CompletableFuture<?> route(
+      ChannelHandlerContext context, MqttPublishMessage publishMessage) {
+    clusterNode.forward(publishMessage);
+    return super.route(context, publishMessage);
+  }
+
+  @Override
+  protected void routeAdded(String topicFilter) {
+    clusterNode.subscribed(topicFilter);
+  }
+
+  @Override
+  protected void routeRemoved(String topicFilter) {
+    clusterNode.unsubscribed(topicFilter);
+  }
+
+  public ClusterNode clusterNode() {
+    return clusterNode;
+  }
+}
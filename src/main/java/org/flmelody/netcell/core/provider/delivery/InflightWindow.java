@@ -0,0 +1,603 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.core.codec.EncodedPublish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Outbound qos 1 and 2 messages of one session. Allocates packet ids, keeps at most Receive
+ * Maximum messages unacknowledged, queues the rest and resends unacknowledged messages with DUP
+ * set, on a timer and when the session reconnects. A qos 2 message drops its frame once PUBREC
+ * arrives and only its PUBREL is resent until PUBCOMP. Messages are kept as encoded frames, keyed
+ * by primitive packet id. A message may carry a completion, run once it leaves the window however
+ * that happens.
+ *
+ * <p>Each frame remembers the protocol level it was encoded for. A session reconnecting with
+ * another level gets its unacknowledged and queued frames converted as they are sent. A queued
+ * MQTT 5 frame has its Message Expiry Interval lowered by the time it waited, and is dropped if it
+ * expired meanwhile.
+ *
+ * <p>Past a threshold, queued frames are spilled to a file instead of the heap and read back one
+ * at a time as slots free up, so a session coming back after a long absence is drained at the
+ * pace its client acknowledges.
+ *
+ * <p>New messages are queued rather than sent while the channel is not writable, that is while its
+ * outbound buffer is above the high water mark; {@link #resume()} sends them once it drains.
+ *
+ * @author esotericman
+ */
+public final class InflightWindow {
+  public static final int DEFAULT_MAX_INFLIGHT = 64;
+  public static final int DEFAULT_MAX_QUEUED = 1024;
+  public static final long DEFAULT_RETRY_INTERVAL_MILLIS = 20_000;
+  private static final Logger logger = LoggerFactory.getLogger(InflightWindow.class);
+  private static final int MAX_PACKET_ID = 0xFFFF;
+
+  private final IntObjectMap<InflightMessage> inflight = new IntObjectHashMap<>();
+  private final Deque<QueuedMessage> queued = new ArrayDeque<>();
+  // Completions of spilled frames, in the same order
+  private final Deque<QueuedMessage> spilled = new ArrayDeque<>();
+  private final int maxInflight;
+  private final int maxQueued;
+  private final int maxQueuedInMemory;
+  private final SpillQueue spill;
+  private final Timer timer;
+  private final long retryIntervalMillis;
+  private ChannelHandlerContext context;
+  private MqttVersion version = MqttVersion.MQTT_3_1_1;
+  private int capacity;
+  private boolean persistent;
+  private int nextPacketId = 1;
+  private long nextSequence;
+  private long dropped;
+  private long droppedBytes;
+  private long queuedBytes;
+  // Messages in flight and queued, read without the lock of window
+  private volatile int load;
+
+  /**
+   * Create window.
+   *
+   * @param maxInflight upper bound of unacknowledged messages, whatever the client allows
+   * @param maxQueued messages queued when window is full or client is offline
+   * @param timer timer of resends
+   * @param retryIntervalMillis resend interval, 0 to resend only on reconnect
+   */
+  public InflightWindow(int maxInflight, int maxQueued, Timer timer, long retryIntervalMillis) {
+    this(maxInflight, maxQueued, maxQueued, null, timer, retryIntervalMillis);
+  }
+
+  /**
+   * Create window spilling queued frames to disk.
+   *
+   * @param maxInflight upper bound of unacknowledged messages, whatever the client allows
+   * @param maxQueued messages queued when window is full or client is offline, in memory and on
+   *     disk
+   * @param maxQueuedInMemory queued messages kept in memory before they are spilled
+   * @param spillDirectory directory of spill files, null to keep all queued messages in memory
+   * @param timer timer of resends
+   * @param retryIntervalMillis resend interval, 0 to resend only on reconnect
+   */
+  public InflightWindow(
+      int maxInflight,
+      int maxQueued,
+      int maxQueuedInMemory,
+      Path spillDirectory,
+      Timer timer,
+      long retryIntervalMillis) {
+    if (maxInflight <= 0 || maxInflight > MAX_PACKET_ID) {
+      throw new IllegalArgumentException("maxInflight must be between 1 and " + MAX_PACKET_ID);
+    }
+    this.maxInflight = maxInflight;
+    this.maxQueued = maxQueued;
+    this.maxQueuedInMemory =
+        Objects.isNull(spillDirectory) ? maxQueued : Math.min(maxQueuedInMemory, maxQueued);
+    this.spill = Objects.isNull(spillDirectory) ? null : new SpillQueue(spillDirectory);
+    this.timer = timer;
+    this.retryIntervalMillis = retryIntervalMillis;
+    this.capacity = maxInflight;
+  }
+
+  /**
+   * Bind window to connection of session, resend unacknowledged messages in order and then send
+   * queued ones.
+   *
+   * @param context connection
+   * @param receiveMaximum Receive Maximum of client, 0 if not given
+   * @param persistent whether session outlives connection
+   */
+  public synchronized void attach(
+      ChannelHandlerContext context, int receiveMaximum, boolean persistent) {
+    this.context = context;
+    this.persistent = persistent;
+    this.version = EncodedPublish.version(context.channel());
+    this.capacity = receiveMaximum > 0 ? Math.min(receiveMaximum, maxInflight) : maxInflight;
+    // Resend in the order of first delivery, packet ids may have wrapped around
+    InflightMessage[] messages = inflight.values().toArray(new InflightMessage[0]);
+    Arrays.sort(messages, Comparator.comparingLong(message -> message.sequence));
+    for (InflightMessage message : messages) {
+      resend(message);
+    }
+    drain();
+  }
+
+  /**
+   * Protocol version of the attached connection, frames offered must be encoded for it.
+   *
+   * @return protocol version
+   */
+  public synchronized MqttVersion version() {
+    return version;
+  }
+
+  /**
+   * Whether session outlives connection, as told by the last connection.
+   *
+   * @return true if persistent
+   */
+  public synchronized boolean persistent() {
+    return persistent;
+  }
+
+  /**
+   * Send a qos 1 or 2 PUBLISH frame encoded for {@link #version()}, or queue it if window is full.
+   * Window takes ownership of frame, its packet id is replaced.
+   *
+   * @param frame encoded PUBLISH frame
+   * @return false if frame was dropped because queue is full
+   */
+  public synchronized boolean offer(ByteBuf frame) {
+    return offer(frame, version, null);
+  }
+
+  /**
+   * Same as {@link #offer(ByteBuf)}, with completion run when message is acknowledged, dropped or
+   * released.
+   *
+   * @param frame encoded PUBLISH frame
+   * @param completion completion, may be null
+   * @return false if frame was dropped because queue is full
+   */
+  public synchronized boolean offer(ByteBuf frame, Runnable completion) {
+    return offer(frame, version, completion);
+  }
+
+  /**
+   * Same as {@link #offer(ByteBuf, Runnable)}, with frame encoded for the given protocol level. It
+   * is converted if the session is attached with another one by the time it is sent.
+   *
+   * @param frame encoded PUBLISH frame
+   * @param frameVersion protocol level frame is encoded for
+   * @param completion completion, may be null
+   * @return false if frame was dropped because queue is full
+   */
+  public synchronized boolean offer(ByteBuf frame, MqttVersion frameVersion, Runnable completion) {
+    boolean accepted = enqueue(frame, frameVersion, completion);
+    updateLoad();
+    return accepted;
+  }
+
+  private boolean enqueue(ByteBuf frame, MqttVersion frameVersion, Runnable completion) {
+    if (queued.isEmpty() && spilled.isEmpty() && writable() && inflight.size() < capacity) {
+      send(frame, frameVersion, completion);
+      return true;
+    }
+    if (queued.size() + spilled.size() >= maxQueued) {
+      return drop(frame, completion);
+    }
+    int size = frame.readableBytes();
+    long queuedNanos = System.nanoTime();
+    // Once anything is spilled, later frames follow it to keep the order
+    if (!spilled.isEmpty() || queued.size() >= maxQueuedInMemory) {
+      try {
+        spill.add(frame);
+      } catch (IOException e) {
+        logger.warn("Failed to spill queued message", e);
+        dropped++;
+        droppedBytes += size;
+        complete(completion);
+        return false;
+      }
+      spilled.add(new QueuedMessage(null, size, frameVersion, queuedNanos, completion));
+    } else {
+      queued.add(new QueuedMessage(frame, size, frameVersion, queuedNanos, completion));
+    }
+    queuedBytes += size;
+    return true;
+  }
+
+  private boolean drop(ByteBuf frame, Runnable completion) {
+    dropped++;
+    droppedBytes += frame.readableBytes();
+    frame.release();
+    complete(completion);
+    return false;
+  }
+
+  /** Send queued messages, once channel became writable again. */
+  public synchronized void resume() {
+    drain();
+  }
+
+  /**
+   * Complete qos 1 message acknowledged by PUBACK and send the next queued one.
+   *
+   * @param packetId packet id
+   * @return false if no qos 1 message was in flight with this packet id
+   */
+  public synchronized boolean acknowledge(int packetId) {
+    InflightMessage message = inflight.get(packetId);
+    if (Objects.isNull(message) || message.exactlyOnce) {
+      return false;
+    }
+    complete(message);
+    return true;
+  }
+
+  /**
+   * Qos 2 message received by client as told by PUBREC, drop its frame and answer PUBREL.
+   *
+   * @param packetId packet id
+   * @return false if no qos 2 message was in flight with this packet id
+   */
+  public synchronized boolean received(int packetId) {
+    InflightMessage message = inflight.get(packetId);
+    if (Objects.isNull(message) || !message.exactlyOnce) {
+      return false;
+    }
+    if (!message.released) {
+      message.frame.release();
+      message.frame = null;
+      message.released = true;
+    }
+    resend(message);
+    return true;
+  }
+
+  /**
+   * Complete qos 2 message acknowledged by PUBCOMP and send the next queued one.
+   *
+   * @param packetId packet id
+   * @return false if no released qos 2 message was in flight with this packet id
+   */
+  public synchronized boolean completed(int packetId) {
+    InflightMessage message = inflight.get(packetId);
+    if (Objects.isNull(message) || !message.released) {
+      return false;
+    }
+    complete(message);
+    return true;
+  }
+
+  /** Release all messages, when session ends. */
+  public synchronized void release() {
+    inflight.values().forEach(InflightMessage::discard);
+    inflight.clear();
+    queued.forEach(QueuedMessage::discard);
+    queued.clear();
+    discardSpilled();
+    queuedBytes = 0;
+    updateLoad();
+    context = null;
+  }
+
+  /**
+   * Unacknowledged messages.
+   *
+   * @return count of messages in flight
+   */
+  public synchronized int inflightCount() {
+    return inflight.size();
+  }
+
+  /**
+   * Messages waiting for a free slot.
+   *
+   * @return count of queued messages
+   */
+  public synchronized int queuedCount() {
+    return queued.size() + spilled.size();
+  }
+
+  /**
+   * Queued messages spilled to disk.
+   *
+   * @return count of spilled messages
+   */
+  public synchronized int spilledCount() {
+    return spilled.size();
+  }
+
+  /**
+   * Messages in flight and queued, as of the last change. Does not take the lock of window.
+   *
+   * @return count of outstanding messages
+   */
+  public int load() {
+    return load;
+  }
+
+  /**
+   * Messages dropped because queue was full.
+   *
+   * @return count of dropped messages
+   */
+  public synchronized long droppedCount() {
+    return dropped;
+  }
+
+  /**
+   * Bytes of messages dropped because queue was full.
+   *
+   * @return bytes of dropped messages
+   */
+  public synchronized long droppedBytes() {
+    return droppedBytes;
+  }
+
+  /**
+   * Bytes of messages waiting for a free slot, in memory and on disk.
+   *
+   * @return bytes of queued messages
+   */
+  public synchronized long queuedBytes() {
+    return queuedBytes;
+  }
+
+  private boolean connected() {
+    return Objects.nonNull(context) && context.channel().isActive();
+  }
+
+  // Resends go out regardless, they are bounded by the window
+  private boolean writable() {
+    return connected() && context.channel().isWritable();
+  }
+
+  private void complete(InflightMessage message) {
+    inflight.remove(message.packetId);
+    message.discard();
+    drain();
+  }
+
+  private void drain() {
+    while (writable() && inflight.size() < capacity) {
+      QueuedMessage message = queued.poll();
+      if (Objects.isNull(message)) {
+        message = unspill();
+        if (Objects.isNull(message)) {
+          break;
+        }
+      }
+      queuedBytes -= message.size;
+      ByteBuf frame = expire(message);
+      if (Objects.isNull(frame)) {
+        complete(message.completion);
+        continue;
+      }
+      send(frame, message.version, message.completion);
+    }
+    updateLoad();
+  }
+
+  // Message Expiry Interval is sent as the time left, null if message expired while queued
+  private ByteBuf expire(QueuedMessage message) {
+    long heldSeconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - message.queuedNanos);
+    if (heldSeconds == 0 || !MqttVersion.MQTT_5.equals(message.version)) {
+      return message.frame;
+    }
+    try {
+      return EncodedPublish.withExpiryElapsed(message.frame, heldSeconds, context.alloc());
+    } finally {
+      message.frame.release();
+    }
+  }
+
+  private void updateLoad() {
+    load = inflight.size() + queued.size() + spilled.size();
+  }
+
+  // Read back one spilled frame, a slot is free for it
+  private QueuedMessage unspill() {
+    QueuedMessage message = spilled.peek();
+    if (Objects.isNull(message)) {
+      return null;
+    }
+    try {
+      ByteBuf frame = spill.poll(context.alloc());
+      spilled.poll();
+      return new QueuedMessage(
+          frame, message.size, message.version, message.queuedNanos, message.completion);
+    } catch (IOException e) {
+      logger.warn("Failed to read {} spilled messages, dropped", spilled.size(), e);
+      dropped += spilled.size();
+      for (QueuedMessage lost : spilled) {
+        droppedBytes += lost.size;
+        queuedBytes -= lost.size;
+      }
+      discardSpilled();
+      return null;
+    }
+  }
+
+  private void discardSpilled() {
+    spilled.forEach(QueuedMessage::discard);
+    spilled.clear();
+    if (Objects.nonNull(spill)) {
+      spill.close();
+    }
+  }
+
+  private void send(ByteBuf frame, MqttVersion frameVersion, Runnable completion) {
+    int packetId = nextPacketId();
+    ByteBuf converted = frame;
+    ByteBuf patched;
+    try {
+      if (frameVersion != version) {
+        converted = EncodedPublish.withVersion(frame, frameVersion, version, context.alloc());
+        frame.release();
+      }
+      patched = EncodedPublish.withPacketId(converted, packetId, context.alloc());
+    } finally {
+      converted.release();
+    }
+    boolean exactlyOnce =
+        ((patched.getByte(patched.readerIndex()) & 0x06) >> 1) == MqttQoS.EXACTLY_ONCE.value();
+    InflightMessage message =
+        new InflightMessage(packetId, nextSequence++, exactlyOnce, patched, version, completion);
+    inflight.put(packetId, message);
+    context.writeAndFlush(patched.retainedDuplicate());
+    schedule(message);
+  }
+
+  private void resend(InflightMessage message) {
+    if (!connected()) {
+      return;
+    }
+    message.cancel();
+    if (message.released) {
+      context.writeAndFlush(
+          new MqttMessage(
+              new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+              MqttMessageIdVariableHeader.from(message.packetId)));
+    } else {
+      if (message.version != version) {
+        ByteBuf converted =
+            EncodedPublish.withVersion(message.frame, message.version, version, context.alloc());
+        message.frame.release();
+        message.frame = converted;
+        message.version = version;
+      }
+      context.writeAndFlush(EncodedPublish.withDuplicateFlag(message.frame, context.alloc()));
+    }
+    schedule(message);
+  }
+
+  private void schedule(InflightMessage message) {
+    if (retryIntervalMillis <= 0) {
+      return;
+    }
+    ChannelHandlerContext scheduledContext = context;
+    message.timeout =
+        timer.newTimeout(
+            timeout ->
+                scheduledContext.executor().execute(() -> retry(scheduledContext, message)),
+            retryIntervalMillis,
+            TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void retry(ChannelHandlerContext scheduledContext, InflightMessage message) {
+    // Acknowledged or reconnected meanwhile
+    if (scheduledContext == context && inflight.get(message.packetId) == message) {
+      resend(message);
+    }
+  }
+
+  private int nextPacketId() {
+    // Window is never larger than the id space, a free id always exists
+    while (inflight.containsKey(nextPacketId)) {
+      nextPacketId = nextPacketId == MAX_PACKET_ID ? 1 : nextPacketId + 1;
+    }
+    int packetId = nextPacketId;
+    nextPacketId = nextPacketId == MAX_PACKET_ID ? 1 : nextPacketId + 1;
+    return packetId;
+  }
+
+  private static void complete(Runnable completion) {
+    if (Objects.nonNull(completion)) {
+      completion.run();
+    }
+  }
+
+  /** Message waiting for a free slot */
+  private record QueuedMessage(
+      ByteBuf frame, int size, MqttVersion version, long queuedNanos, Runnable completion) {
+    private void discard() {
+      // Spilled messages have their frame on disk
+      if (Objects.nonNull(frame)) {
+        frame.release();
+      }
+      complete(completion);
+    }
+  }
+
+  /** Message waiting for PUBACK, or PUBREC and PUBCOMP */
+  private static final class InflightMessage {
+    private final int packetId;
+    private final long sequence;
+    private final boolean exactlyOnce;
+    private final Runnable completion;
+    // Null once released
+    private ByteBuf frame;
+    // Protocol level frame is encoded for
+    private MqttVersion version;
+    private boolean released;
+    private Timeout timeout;
+
+    private InflightMessage(
+        int packetId,
+        long sequence,
+        boolean exactlyOnce,
+        ByteBuf frame,
+        MqttVersion version,
+        Runnable completion) {
+      this.packetId = packetId;
+      this.sequence = sequence;
+      this.exactlyOnce = exactlyOnce;
+      this.frame = frame;
+      this.version = version;
+      this.completion = completion;
+    }
+
+    private void cancel() {
+      if (Objects.nonNull(timeout)) {
+        timeout.cancel();
+        timeout = null;
+      }
+    }
+
+    private void discard() {
+      cancel();
+      if (Objects.nonNull(frame)) {
+        frame.release();
+        frame = null;
+      }
+      complete(completion);
+    }
+  }
+}
@@ -1,104 +1,906 @@
 package org.flmelody.netcell.core.provider.delivery;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttFixedHeader;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
 import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
 import io.netty.handler.codec.mqtt.MqttPubAckMessage;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.netty.handler.codec.mqtt.MqttSubAckMessage;
 import io.netty.handler.codec.mqtt.MqttSubAckPayload;
 import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
 import io.netty.handler.codec.mqtt.MqttUnsubscribeMessage;
-import java.util.HashSet;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.Attribute;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.flmelody.netcell.core.codec.EncodedPublish;
 import org.flmelody.netcell.core.constants.NettyAttributeKeys;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
 import org.flmelody.netcell.core.provider.ProviderSeries;
+import org.flmelody.netcell.core.provider.persistence.PersistentStoreProvider;
+import org.flmelody.netcell.core.provider.persistence.StoredMessage;
 import org.flmelody.netcell.core.provider.retained.RetainedMessageProvider;
+import org.flmelody.netcell.core.provider.session.ClientSession;
 import org.flmelody.netcell.core.provider.session.TemporarySessionProvider;
+import org.flmelody.netcell.core.topic.TopicTrie;
+import org.flmelody.netcell.core.topic.Topics;
 
 /**
  * @author esotericman
  */
 public class LocalMessageDeliveryProvider extends AbstractMessageDeliveryProvider {
-  private static final Map<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+  private static final int SUBSCRIPTION_FAILURE = 0x80;
+  // Highest qos granted to subscriptions
+  private static final MqttQoS MAX_QOS = MqttQoS.EXACTLY_ONCE;
+  // One wheel resends for all sessions, its thread starts with the first timeout
+  private static final Timer retryTimer =
+      new HashedWheelTimer(
+          new DefaultThreadFactory("netcell-retry", true), 100, TimeUnit.MILLISECONDS);
+  // Topic filter -> client id -> session and granted qos, subscriptions of all sessions for routing
+  private final TopicTrie<Route> subscriptions = new TopicTrie<>();
+  // Shared topic filter -> group, and topic filter -> share name -> group for routing
+  private final Map<String, SharedGroup> sharedGroups = new ConcurrentHashMap<>();
+  private final TopicTrie<SharedGroup> sharedSubscriptions = new TopicTrie<>();
+  // Client id -> stored messages recovered on startup, delivered when client connects
+  private final Map<String, List<RestoredMessage>> restoredMessages = new ConcurrentHashMap<>();
+  private volatile boolean restored;
+  private final RouteCache routeCache;
+  private final int maxInflight;
+  private final int maxQueued;
+  private final int maxQueuedInMemory;
+  private final Path spillDirectory;
+  private final long retryIntervalMillis;
+  private final SlowConsumerPolicy slowConsumerPolicy;
+  private final SharedSubscriptionStrategy sharedSubscriptionStrategy;
+  // Bytes of messages dropped for slow subscribers
+  private final LongAdder droppedBytes = new LongAdder();
+  private final LongAdder slowConsumerDisconnects = new LongAdder();
+  // Counters of the broker that started this provider, its own until then
+  private volatile BrokerMetrics metrics = new BrokerMetrics();
+
+  public LocalMessageDeliveryProvider() {
+    this(RouteCache.DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create provider with specific capacity of route cache.
+   *
+   * @param routeCacheCapacity count of hot topics whose subscribers are cached, 0 to disable
+   */
+  public LocalMessageDeliveryProvider(int routeCacheCapacity) {
+    this(
+        routeCacheCapacity,
+        InflightWindow.DEFAULT_MAX_INFLIGHT,
+        InflightWindow.DEFAULT_MAX_QUEUED,
+        InflightWindow.DEFAULT_RETRY_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Create provider with specific route cache and outbound qos 1 settings.
+   *
+   * @param routeCacheCapacity count of hot topics whose subscribers are cached, 0 to disable
+   * @param maxInflight unacknowledged messages per session, lowered by Receive Maximum of client
+   * @param maxQueued messages queued per session when its window is full or it is offline
+   * @param retryIntervalMillis resend interval of unacknowledged messages, 0 to resend only on
+   *     reconnect
+   */
+  public LocalMessageDeliveryProvider(
+      int routeCacheCapacity, int maxInflight, int maxQueued, long retryIntervalMillis) {
+    this(routeCacheCapacity, maxInflight, maxQueued, retryIntervalMillis, maxQueued, null);
+  }
+
+  /**
+   * Create provider whose sessions spill queued messages to disk.
+   *
+   * @param routeCacheCapacity count of hot topics whose subscribers are cached, 0 to disable
+   * @param maxInflight unacknowledged messages per session, lowered by Receive Maximum of client
+   * @param maxQueued messages queued per session when its window is full or it is offline
+   * @param retryIntervalMillis resend interval of unacknowledged messages, 0 to resend only on
+   *     reconnect
+   * @param maxQueuedInMemory queued messages per session kept in memory before they are spilled
+   * @param spillDirectory directory of spill files, null to keep queued messages in memory
+   */
+  public LocalMessageDeliveryProvider(
+      int routeCacheCapacity,
+      int maxInflight,
+      int maxQueued,
+      long retryIntervalMillis,
+      int maxQueuedInMemory,
+      Path spillDirectory) {
+    this(
+        routeCacheCapacity,
+        maxInflight,
+        maxQueued,
+        retryIntervalMillis,
+        maxQueuedInMemory,
+        spillDirectory,
+        SlowConsumerPolicy.DROP);
+  }
+
+  /**
+   * Create provider with specific handling of slow subscribers.
+   *
+   * @param routeCacheCapacity count of hot topics whose subscribers are cached, 0 to disable
+   * @param maxInflight unacknowledged messages per session, lowered by Receive Maximum of client
+   * @param maxQueued messages queued per session when its window is full, its channel is not
+   *     writable or it is offline
+   * @param retryIntervalMillis resend interval of unacknowledged messages, 0 to resend only on
+   *     reconnect
+   * @param maxQueuedInMemory queued messages per session kept in memory before they are spilled
+   * @param spillDirectory directory of spill files, null to keep queued messages in memory
+   * @param slowConsumerPolicy what happens once the queue of a slow subscriber is full
+   */
+  public LocalMessageDeliveryProvider(
+      int routeCacheCapacity,
+      int maxInflight,
+      int maxQueued,
+      long retryIntervalMillis,
+      int maxQueuedInMemory,
+      Path spillDirectory,
+      SlowConsumerPolicy slowConsumerPolicy) {
+    this(
+        routeCacheCapacity,
+        maxInflight,
+        maxQueued,
+        retryIntervalMillis,
+        maxQueuedInMemory,
+        spillDirectory,
+        slowConsumerPolicy,
+        SharedSubscriptionStrategy.ROUND_ROBIN);
+  }
+
+  /**
+   * Create provider with all available params.
+   *
+   * @param routeCacheCapacity count of hot topics whose subscribers are cached, 0 to disable
+   * @param maxInflight unacknowledged messages per session, lowered by Receive Maximum of client
+   * @param maxQueued messages queued per session when its window is full, its channel is not
+   *     writable or it is offline
+   * @param retryIntervalMillis resend interval of unacknowledged messages, 0 to resend only on
+   *     reconnect
+   * @param maxQueuedInMemory queued messages per session kept in memory before they are spilled
+   * @param spillDirectory directory of spill files, null to keep queued messages in memory
+   * @param slowConsumerPolicy what happens once the queue of a slow subscriber is full
+   * @param sharedSubscriptionStrategy how shared groups choose the member receiving a message
+   */
+  public LocalMessageDeliveryProvider(
+      int routeCacheCapacity,
+      int maxInflight,
+      int maxQueued,
+      long retryIntervalMillis,
+      int maxQueuedInMemory,
+      Path spillDirectory,
+      SlowConsumerPolicy slowConsumerPolicy,
+      SharedSubscriptionStrategy sharedSubscriptionStrategy) {
+    this.routeCache = new RouteCache(routeCacheCapacity);
+    this.maxInflight = maxInflight;
+    this.maxQueued = maxQueued;
+    this.retryIntervalMillis = retryIntervalMillis;
+    this.maxQueuedInMemory = maxQueuedInMemory;
+    this.spillDirectory = spillDirectory;
+    this.slowConsumerPolicy = slowConsumerPolicy;
+    this.sharedSubscriptionStrategy = sharedSubscriptionStrategy;
+  }
+
+  @Override
+  public void start(BrokerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void connect(ChannelHandlerContext context, MqttConnectMessage mqttConnectMessage) {
+    if (!restored) {
+      restore();
+    }
+    ClientSession session = session(context);
+    if (Objects.isNull(session)) {
+      logger.warn("No session found for connection, ignored message delivery");
+      return;
+    }
+    synchronized (session) {
+      // Taken over meanwhile, the newer connection sets the session up
+      if (session.context() != context) {
+        return;
+      }
+      resume(context, mqttConnectMessage, session);
+      refreshSharedGroups(session);
+    }
+  }
+
+  private void resume(
+      ChannelHandlerContext context, MqttConnectMessage mqttConnectMessage, ClientSession session) {
+    if (!session.present()) {
+      discardSession(session);
+    }
+    InflightWindow window =
+        session.inflightWindow(
+            () ->
+                new InflightWindow(
+                    maxInflight,
+                    maxQueued,
+                    maxQueuedInMemory,
+                    spillDirectory,
+                    retryTimer,
+                    retryIntervalMillis));
+    window.attach(context, receiveMaximum(mqttConnectMessage), session.persistent());
+    List<RestoredMessage> restoredOfClient = restoredMessages.remove(session.clientId());
+    if (Objects.nonNull(restoredOfClient)) {
+      for (RestoredMessage restoredMessage : restoredOfClient) {
+        if (!session.present()) {
+          restoredMessage.delivery().run();
+        } else {
+          offer(context, window, restoredMessage);
+        }
+      }
+    }
+  }
 
   @Override
   public void publish(ChannelHandlerContext context, MqttMessage mqttMessage) {
     if (mqttMessage instanceof MqttPublishMessage publishMessage) {
-      String topicName = publishMessage.variableHeader().topicName();
       int packetId = publishMessage.variableHeader().packetId();
       MqttQoS mqttQoS = publishMessage.fixedHeader().qosLevel();
-      Set<String> clients = subscribers.get(topicName);
-      TemporarySessionProvider provider =
-          providerInteractor.getProvider(ProviderSeries.SESSION, TemporarySessionProvider.class);
-      if (Objects.isNull(provider)) {
-        logger.warn("No provider found for session, ignored message delivery");
-        return;
-      }
-      if (Objects.nonNull(clients)) {
-        for (String client : clients) {
-          provider.client(client).writeAndFlush(publishMessage);
+      if (MqttQoS.EXACTLY_ONCE.equals(mqttQoS)) {
+        ClientSession session = session(context);
+        // A PUBLISH resent before PUBREL is answered again but not delivered again
+        PacketIdSet receivedPacketIds =
+            Objects.isNull(session) ? null : session.receivedPacketIds();
+        CompletableFuture<?> durable = null;
+        if (Objects.isNull(receivedPacketIds) || receivedPacketIds.add(packetId)) {
+          durable = route(context, publishMessage);
+          if (Objects.nonNull(receivedPacketIds) && Objects.nonNull(durable)) {
+            // Not stored and not acknowledged, the PUBLISH sent again must be routed again
+            durable.whenComplete(
+                (ignored, e) -> {
+                  if (Objects.nonNull(e)) {
+                    receivedPacketIds.remove(packetId);
+                  }
+                });
+          }
         }
+        acknowledge(context, durable, reply(MqttMessageType.PUBREC, packetId));
+        return;
       }
+      CompletableFuture<?> durable = route(context, publishMessage);
       if (MqttQoS.AT_LEAST_ONCE.equals(mqttQoS)) {
         MqttFixedHeader fixedHeader =
             new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
         MqttMessageIdVariableHeader idVariableHeader = MqttMessageIdVariableHeader.from(packetId);
-        context.writeAndFlush(new MqttPubAckMessage(fixedHeader, idVariableHeader));
+        acknowledge(context, durable, new MqttPubAckMessage(fixedHeader, idVariableHeader));
       }
     }
   }
 
+  // Acks leave in the order of their PUBLISH, each one once its message is durable. Waiting happens
+  // off the event loop, only this channel's acks are held back.
+  private void acknowledge(
+      ChannelHandlerContext context, CompletableFuture<?> durable, MqttMessage ack) {
+    Attribute<CompletableFuture<Void>> pendingAck =
+        context.channel().attr(NettyAttributeKeys.MQTT_PENDING_ACK);
+    CompletableFuture<Void> previous = pendingAck.get();
+    boolean previousSent = Objects.isNull(previous) || previous.isDone();
+    if (previousSent && (Objects.isNull(durable) || isDurable(durable))) {
+      context.writeAndFlush(ack);
+      return;
+    }
+    CompletableFuture<?> ready =
+        previousSent
+            ? durable
+            : Objects.isNull(durable) ? previous : CompletableFuture.allOf(previous, durable);
+    pendingAck.set(
+        ready.handleAsync(
+            (ignored, e) -> {
+              if (Objects.isNull(e)) {
+                context.writeAndFlush(ack);
+              } else {
+                // Not acknowledged, the client sends the message again
+                logger.warn("Failed to store message, {} not sent", ack.fixedHeader(), e);
+              }
+              return null;
+            },
+            context.executor()));
+  }
+
+  /**
+   * Route message a client published to subscribers, once per message: a qos 2 message sent again
+   * before PUBREL is not routed again.
+   *
+   * @param context context of publisher
+   * @param publishMessage message, not released
+   * @return completed once message is durable, null if not stored
+   */
+  protected CompletableFuture<?> route(
+      ChannelHandlerContext context, MqttPublishMessage publishMessage) {
+    return deliver(context.alloc(), publisherId(context), publishMessage);
+  }
+
   @Override
-  public synchronized void subscribe(
-      ChannelHandlerContext context, MqttSubscribeMessage mqttSubscribeMessage) {
-    String clientId = context.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).get();
+  public void publish(MqttPublishMessage publishMessage) {
+    deliver(ByteBufAllocator.DEFAULT, null, publishMessage);
+  }
+
+  private static boolean isDurable(CompletableFuture<?> durable) {
+    return durable.isDone() && !durable.isCompletedExceptionally();
+  }
+
+  /**
+   * Route message to subscribers.
+   *
+   * @param publisherId client id of publisher, null for the broker
+   * @return completed once message is durable, null if not stored
+   */
+  private CompletableFuture<?> deliver(
+      ByteBufAllocator allocator, String publisherId, MqttPublishMessage publishMessage) {
+    String topicName = publishMessage.variableHeader().topicName();
+    int packetId = publishMessage.variableHeader().packetId();
+    MqttQoS mqttQoS = publishMessage.fixedHeader().qosLevel();
+    TemporarySessionProvider provider =
+        providerInteractor.getProvider(ProviderSeries.SESSION, TemporarySessionProvider.class);
+    if (Objects.isNull(provider)) {
+      logger.warn("No provider found for session, ignored message delivery");
+      return null;
+    }
+    Subscriber[] subscribers = routeCache.get(topicName, this::resolve);
+    if (subscribers.length > 0) {
+      long startNanos = BrokerMetrics.sample() ? System.nanoTime() : 0;
+      // Encode once, every subscriber shares the same frame
+      EncodedPublish encodedPublish = new EncodedPublish(publishMessage, allocator);
+      // Stored once a persistent session takes the message, removed when all of them are done
+      StoredDelivery storedDelivery = null;
+      boolean stored = false;
+      try {
+        for (Subscriber subscriber : subscribers) {
+          String clientId = subscriber.clientId();
+          MqttQoS grantedQoS = subscriber.qos();
+          if (subscriber.shared()) {
+            SharedGroup.Member member = subscriber.group().select(publisherId);
+            if (Objects.isNull(member)) {
+              continue;
+            }
+            clientId = member.session().clientId();
+            grantedQoS = member.qos();
+          }
+          MqttQoS qos = min(mqttQoS, grantedQoS);
+          if (MqttQoS.AT_MOST_ONCE.equals(qos)) {
+            ChannelHandlerContext clientContext = provider.client(clientId);
+            if (Objects.isNull(clientContext)) {
+              continue;
+            }
+            ByteBuf frame = encodedPublish.frame(clientContext.channel(), qos, packetId);
+            // Outbound buffer of a slow subscriber stops growing at the high water mark
+            if (clientContext.channel().isWritable()) {
+              clientContext.writeAndFlush(frame);
+            } else {
+              droppedBytes.add(frame.readableBytes());
+              metrics.messageDropped();
+              frame.release();
+            }
+            continue;
+          }
+          ClientSession session = provider.session(clientId);
+          InflightWindow window = Objects.isNull(session) ? null : session.inflightWindow();
+          if (Objects.isNull(window)) {
+            continue;
+          }
+          if (!stored && window.persistent()) {
+            storedDelivery = storeMessage(publishMessage);
+            stored = true;
+          }
+          MqttVersion version = window.version();
+          ByteBuf frame = encodedPublish.frame(version, qos, packetId);
+          int size = frame.readableBytes();
+          if (!window.offer(
+              frame,
+              version,
+              window.persistent() && Objects.nonNull(storedDelivery)
+                  ? storedDelivery.retain()
+                  : null)) {
+            overflow(session, size);
+          }
+        }
+      } finally {
+        encodedPublish.release();
+        if (Objects.nonNull(storedDelivery)) {
+          storedDelivery.run();
+        }
+        if (startNanos != 0) {
+          metrics.fanoutLatency().record(System.nanoTime() - startNanos);
+        }
+      }
+      return Objects.isNull(storedDelivery) ? null : storedDelivery.messageId();
+    }
+    return null;
+  }
+
+  // Queue of a slow subscriber had no room for a message
+  private void overflow(ClientSession session, int size) {
+    droppedBytes.add(size);
+    metrics.messageDropped();
+    ChannelHandlerContext clientContext = session.context();
+    if (SlowConsumerPolicy.DISCONNECT.equals(slowConsumerPolicy)
+        && Objects.nonNull(clientContext)
+        && clientContext.channel().isActive()) {
+      logger.warn("Client {} is too slow to consume, closing connection", session.clientId());
+      slowConsumerDisconnects.increment();
+      clientContext.close();
+    }
+  }
+
+  @Override
+  public void acknowledge(ChannelHandlerContext context, MqttMessage mqttMessage) {
+    InflightWindow window = inflightWindow(context);
+    if (Objects.nonNull(window)) {
+      window.acknowledge(packetId(mqttMessage));
+    }
+  }
+
+  @Override
+  public void publishReceived(ChannelHandlerContext context, MqttMessage mqttMessage) {
+    InflightWindow window = inflightWindow(context);
+    if (Objects.nonNull(window)) {
+      window.received(packetId(mqttMessage));
+    }
+  }
+
+  @Override
+  public void publishRelease(ChannelHandlerContext context, MqttMessage mqttMessage) {
+    ClientSession session = session(context);
+    int packetId = packetId(mqttMessage);
+    if (Objects.nonNull(session)) {
+      session.receivedPacketIds().remove(packetId);
+    }
+    context.writeAndFlush(reply(MqttMessageType.PUBCOMP, packetId));
+  }
+
+  @Override
+  public void publishComplete(ChannelHandlerContext context, MqttMessage mqttMessage) {
+    InflightWindow window = inflightWindow(context);
+    if (Objects.nonNull(window)) {
+      window.completed(packetId(mqttMessage));
+    }
+  }
+
+  @Override
+  public void subscribe(ChannelHandlerContext context, MqttSubscribeMessage mqttSubscribeMessage) {
+    ClientSession session = session(context);
+    if (Objects.isNull(session)) {
+      return;
+    }
+    List<Integer> reasonCodes = new ArrayList<>();
+    Map<String, MqttQoS> granted = new LinkedHashMap<>();
     mqttSubscribeMessage
         .payload()
         .topicSubscriptions()
         .forEach(
-            topicSubscription ->
-                subscribers
-                    .computeIfAbsent(topicSubscription.topicFilter(), k -> new HashSet<>())
-                    .add(clientId));
+            topicSubscription -> {
+              String topicFilter = topicSubscription.topicFilter();
+              boolean shared = Topics.isShared(topicFilter);
+              if (shared
+                  ? !Topics.isValidSharedSubscription(topicFilter)
+                  : !Topics.isValidTopicFilter(topicFilter)) {
+                reasonCodes.add(SUBSCRIPTION_FAILURE);
+                return;
+              }
+              MqttQoS grantedQoS = min(topicSubscription.qualityOfService(), MAX_QOS);
+              addRoute(session, topicFilter, grantedQoS);
+              session.subscriptions().put(topicFilter, grantedQoS);
+              // Retained messages are not sent for shared subscriptions
+              if (!shared) {
+                granted.put(topicFilter, grantedQoS);
+              }
+              reasonCodes.add(grantedQoS.value());
+            });
     RetainedMessageProvider provider =
         providerInteractor.getProvider(ProviderSeries.RETAINED, RetainedMessageProvider.class);
     MqttFixedHeader fixedHeader =
         new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
     MqttMessageIdVariableHeader idVariableHeader =
         MqttMessageIdVariableHeader.from(mqttSubscribeMessage.variableHeader().messageId());
-    MqttSubAckPayload subAckPayload = new MqttSubAckPayload(MqttQoS.AT_MOST_ONCE.value());
+    MqttSubAckPayload subAckPayload = new MqttSubAckPayload(reasonCodes);
     context.writeAndFlush(new MqttSubAckMessage(fixedHeader, idVariableHeader, subAckPayload));
-    if (Objects.nonNull(provider)) {
-      MqttMessage retainedMessage = provider.getRetainedMessage("topic");
-      if (Objects.nonNull(retainedMessage)) {
-        TemporarySessionProvider sessionProvider =
-            providerInteractor.getProvider(ProviderSeries.SESSION, TemporarySessionProvider.class);
-        if (Objects.nonNull(sessionProvider)) {
-          sessionProvider.client(clientId).writeAndFlush(retainedMessage);
+    if (Objects.nonNull(provider) && !granted.isEmpty()) {
+      InflightWindow window = session.inflightWindow();
+      granted.forEach(
+          (topicFilter, grantedQoS) ->
+              provider.retainedMessages(
+                  topicFilter, message -> sendRetained(context, window, message, grantedQoS)));
+      context.flush();
+    }
+  }
+
+  private void sendRetained(
+      ChannelHandlerContext context,
+      InflightWindow window,
+      MqttPublishMessage message,
+      MqttQoS grantedQoS) {
+    MqttQoS qos = min(message.fixedHeader().qosLevel(), grantedQoS);
+    EncodedPublish encodedPublish = new EncodedPublish(message, true, context.alloc());
+    try {
+      if (MqttQoS.AT_MOST_ONCE.equals(qos)) {
+        ByteBuf frame = encodedPublish.frame(context.channel(), qos, 0);
+        // Frames written so far may drain once flushed, a filter matching many topics must not
+        // grow the outbound buffer past the high water mark either
+        if (!context.channel().isWritable()) {
+          context.flush();
         }
+        if (context.channel().isWritable()) {
+          context.write(frame);
+        } else {
+          droppedBytes.add(frame.readableBytes());
+          metrics.messageDropped();
+          frame.release();
+        }
+      } else if (Objects.nonNull(window)) {
+        MqttVersion version = window.version();
+        window.offer(encodedPublish.frame(version, qos, 1), version, null);
       }
+    } finally {
+      encodedPublish.release();
     }
   }
 
   @Override
   public void unsubscribe(
       ChannelHandlerContext context, MqttUnsubscribeMessage mqttUnsubscribeMessage) {
-    String clientId = context.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).get();
+    ClientSession session = session(context);
+    if (Objects.isNull(session)) {
+      return;
+    }
     mqttUnsubscribeMessage
         .payload()
         .topics()
         .forEach(
             topic -> {
-              if (subscribers.containsKey(topic)) {
-                subscribers.get(topic).remove(clientId);
+              if (removeRoute(session, topic)) {
+                routeCache.invalidate(topic);
               }
+              session.subscriptions().remove(topic);
             });
   }
+
+  @Override
+  public void disconnect(ChannelHandlerContext context, MqttMessage mqttMessage) {
+    ClientSession session = session(context);
+    // Still attached if another connection took the session over
+    if (Objects.isNull(session)) {
+      return;
+    }
+    synchronized (session) {
+      if (Objects.nonNull(session.context())) {
+        return;
+      }
+      if (session.persistent()) {
+        refreshSharedGroups(session);
+        return;
+      }
+      discardSession(session);
+    }
+  }
+
+  // Shared groups choose among connected members, they learn when a member connects or leaves
+  private void refreshSharedGroups(ClientSession session) {
+    for (String topicFilter : session.subscriptions().keySet()) {
+      if (Topics.isShared(topicFilter)) {
+        SharedGroup group = sharedGroups.get(topicFilter);
+        if (Objects.nonNull(group)) {
+          group.refresh();
+        }
+      }
+    }
+  }
+
+  // Routes of session go first, nothing is offered to it while its state is dropped
+  private void discardSession(ClientSession session) {
+    String clientId = session.clientId();
+    if (!session.subscriptions().isEmpty()) {
+      session
+          .subscriptions()
+          .keySet()
+          .forEach(topicFilter -> removeRoute(session, topicFilter));
+      routeCache.invalidateClient(clientId);
+    }
+    session.reset();
+  }
+
+  private void addRoute(ClientSession session, String topicFilter, MqttQoS qos) {
+    if (!Topics.isShared(topicFilter)) {
+      if (Objects.isNull(
+          subscriptions.put(topicFilter, session.clientId(), new Route(session, qos)))) {
+        routeAdded(topicFilter);
+      }
+      routeCache.invalidate(topicFilter);
+      return;
+    }
+    sharedGroups.compute(
+        topicFilter,
+        (k, group) -> {
+          if (Objects.isNull(group)) {
+            group =
+                new SharedGroup(
+                    Topics.shareName(k), Topics.sharedTopicFilter(k), sharedSubscriptionStrategy);
+            sharedSubscriptions.put(group.topicFilter(), group.shareName(), group);
+            routeAdded(group.topicFilter());
+            routeCache.invalidate(group.topicFilter());
+          }
+          // Routes hold the group, joining it needs no invalidation
+          group.join(session, qos);
+          return group;
+        });
+  }
+
+  // True if a route that was not shared is removed, the caller invalidates cached routes for it
+  private boolean removeRoute(ClientSession session, String topicFilter) {
+    if (!Topics.isShared(topicFilter)) {
+      if (Objects.isNull(
+          subscriptions.remove(
+              topicFilter, session.clientId(), route -> route.session() == session))) {
+        return false;
+      }
+      routeRemoved(topicFilter);
+      return true;
+    }
+    sharedGroups.computeIfPresent(
+        topicFilter,
+        (k, group) -> {
+          if (!group.leave(session) || !group.isEmpty()) {
+            return group;
+          }
+          sharedSubscriptions.remove(group.topicFilter(), group.shareName(), g -> g == group);
+          routeRemoved(group.topicFilter());
+          routeCache.invalidate(group.topicFilter());
+          return null;
+        });
+    return false;
+  }
+
+  /**
+   * Called when a route is added for topic filter: a session subscribed to it, or a shared group
+   * on it was created. Routes of the same filter are added and removed in pairs.
+   *
+   * @param topicFilter topic filter, without share name for shared groups
+   */
+  protected void routeAdded(String topicFilter) {}
+
+  /**
+   * Called when a route added for topic filter is removed.
+   *
+   * @param topicFilter topic filter, without share name for shared groups
+   */
+  protected void routeRemoved(String topicFilter) {}
+
+  private StoredDelivery storeMessage(MqttPublishMessage publishMessage) {
+    PersistentStoreProvider store =
+        providerInteractor.getProvider(ProviderSeries.PERSISTENCE, PersistentStoreProvider.class);
+    if (Objects.isNull(store)) {
+      return null;
+    }
+    return new StoredDelivery(store, store.storeMessage(publishMessage));
+  }
+
+  // Subscriptions and undelivered messages of persistent sessions, from before a restart
+  private synchronized void restore() {
+    if (restored) {
+      return;
+    }
+    restored = true;
+    PersistentStoreProvider store =
+        providerInteractor.getProvider(ProviderSeries.PERSISTENCE, PersistentStoreProvider.class);
+    TemporarySessionProvider sessionProvider =
+        providerInteractor.getProvider(ProviderSeries.SESSION, TemporarySessionProvider.class);
+    if (Objects.isNull(store) || Objects.isNull(sessionProvider)) {
+      return;
+    }
+    // Sessions were restored by session provider, which handled this connection first
+    for (ClientSession session : sessionProvider.sessions()) {
+      session
+          .subscriptions()
+          .forEach((topicFilter, qos) -> addRoute(session, topicFilter, min(qos, MAX_QOS)));
+    }
+    routeCache.clear();
+    for (StoredMessage message : store.messages()) {
+      StoredDelivery delivery =
+          new StoredDelivery(store, CompletableFuture.completedFuture(message.id()));
+      for (Subscriber subscriber : resolve(message.topic())) {
+        String clientId = subscriber.clientId();
+        MqttQoS grantedQoS = subscriber.qos();
+        if (subscriber.shared()) {
+          SharedGroup.Member member = subscriber.group().select(null);
+          if (Objects.isNull(member)) {
+            continue;
+          }
+          clientId = member.session().clientId();
+          grantedQoS = member.qos();
+        }
+        MqttQoS qos = min(message.qos(), grantedQoS);
+        if (!MqttQoS.AT_MOST_ONCE.equals(qos)) {
+          restoredMessages
+              .computeIfAbsent(clientId, k -> new ArrayList<>())
+              .add(new RestoredMessage(message, qos, delivery.retain()));
+        }
+      }
+      delivery.run();
+    }
+  }
+
+  private static void offer(
+      ChannelHandlerContext context, InflightWindow window, RestoredMessage restoredMessage) {
+    StoredMessage message = restoredMessage.message();
+    MqttPublishMessage publishMessage =
+        new MqttPublishMessage(
+            new MqttFixedHeader(
+                MqttMessageType.PUBLISH, false, message.qos(), message.retain(), 0),
+            new MqttPublishVariableHeader(message.topic(), 1),
+            Unpooled.wrappedBuffer(message.payload()));
+    EncodedPublish encodedPublish = new EncodedPublish(publishMessage, context.alloc());
+    try {
+      MqttVersion version = window.version();
+      window.offer(
+          encodedPublish.frame(version, restoredMessage.qos(), 1),
+          version,
+          restoredMessage.delivery());
+    } finally {
+      encodedPublish.release();
+    }
+  }
+
+  /**
+   * Count of routes, one per client and topic filter it subscribed to, shared subscriptions aside.
+   *
+   * @return route count
+   */
+  public int routeCount() {
+    return subscriptions.size();
+  }
+
+  /**
+   * Route cache of hot topics, hit and miss counters help to size it.
+   *
+   * @return route cache
+   */
+  public RouteCache routeCache() {
+    return routeCache;
+  }
+
+  /**
+   * Bytes of messages dropped for slow subscribers: qos 0 messages for unwritable channels, and
+   * qos 1 and 2 messages their queue had no room for.
+   *
+   * @return dropped bytes
+   */
+  public long droppedBytes() {
+    return droppedBytes.sum();
+  }
+
+  /**
+   * Bytes of qos 1 and 2 messages queued by all sessions, in memory and on disk.
+   *
+   * @return queued bytes
+   */
+  public long queuedBytes() {
+    TemporarySessionProvider provider =
+        providerInteractor.getProvider(ProviderSeries.SESSION, TemporarySessionProvider.class);
+    if (Objects.isNull(provider)) {
+      return 0;
+    }
+    long bytes = 0;
+    for (ClientSession session : provider.sessions()) {
+      InflightWindow window = session.inflightWindow();
+      if (Objects.nonNull(window)) {
+        bytes += window.queuedBytes();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Connections closed by {@link SlowConsumerPolicy#DISCONNECT}.
+   *
+   * @return count of closed connections
+   */
+  public long slowConsumerDisconnects() {
+    return slowConsumerDisconnects.sum();
+  }
+
+  /**
+   * Outbound qos 1 and 2 messages of session.
+   *
+   * @param clientId client id
+   * @return in-flight window, null if client never connected
+   */
+  public InflightWindow inflightWindow(String clientId) {
+    TemporarySessionProvider provider =
+        providerInteractor.getProvider(ProviderSeries.SESSION, TemporarySessionProvider.class);
+    ClientSession session = Objects.isNull(provider) ? null : provider.session(clientId);
+    return Objects.isNull(session) ? null : session.inflightWindow();
+  }
+
+  private static InflightWindow inflightWindow(ChannelHandlerContext context) {
+    ClientSession session = session(context);
+    return Objects.isNull(session) ? null : session.inflightWindow();
+  }
+
+  private static String publisherId(ChannelHandlerContext context) {
+    return context.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).get();
+  }
+
+  private static ClientSession session(ChannelHandlerContext context) {
+    return context.channel().attr(NettyAttributeKeys.MQTT_SESSION).get();
+  }
+
+  private static int packetId(MqttMessage mqttMessage) {
+    return mqttMessage.variableHeader() instanceof MqttMessageIdVariableHeader idHeader
+        ? idHeader.messageId()
+        : -1;
+  }
+
+  private static MqttMessage reply(MqttMessageType messageType, int packetId) {
+    return new MqttMessage(
+        new MqttFixedHeader(messageType, false, MqttQoS.AT_MOST_ONCE, false, 0),
+        MqttMessageIdVariableHeader.from(packetId));
+  }
+
+  private static int receiveMaximum(MqttConnectMessage mqttConnectMessage) {
+    MqttProperties.MqttProperty<?> property =
+        mqttConnectMessage
+            .variableHeader()
+            .properties()
+            .getProperty(MqttProperties.MqttPropertyType.RECEIVE_MAXIMUM.value());
+    return property instanceof MqttProperties.IntegerProperty integerProperty
+        ? integerProperty.value()
+        : 0;
+  }
+
+  private Subscriber[] resolve(String topicName) {
+    // A client with overlapping subscriptions receives the message only once
+    Map<String, MqttQoS> clients = new HashMap<>();
+    subscriptions.match(
+        topicName,
+        (client, route) -> clients.merge(client, route.qos(), LocalMessageDeliveryProvider::max));
+    List<SharedGroup> groups = new ArrayList<>();
+    sharedSubscriptions.match(topicName, (shareName, group) -> groups.add(group));
+    Subscriber[] resolved = new Subscriber[clients.size() + groups.size()];
+    int index = 0;
+    for (Map.Entry<String, MqttQoS> entry : clients.entrySet()) {
+      resolved[index++] = new Subscriber(entry.getKey(), entry.getValue());
+    }
+    for (SharedGroup group : groups) {
+      resolved[index++] = new Subscriber(group);
+    }
+    return resolved;
+  }
+
+  /** Subscription of a session, removed only by the session that made it */
+  private record Route(ClientSession session, MqttQoS qos) {}
+
+  /** Stored message waiting for its session to connect after a restart */
+  private record RestoredMessage(StoredMessage message, MqttQoS qos, StoredDelivery delivery) {}
+
+  private static MqttQoS max(MqttQoS left, MqttQoS right) {
+    return left.value() >= right.value() ? left : right;
+  }
+
+  private static MqttQoS min(MqttQoS left, MqttQoS right) {
+    return left.value() <= right.value() ? left : right;
+  }
 }
@@ -17,8 +17,10 @@
 package org.flmelody.netcell.core.provider.delivery;
 
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
 import io.netty.handler.codec.mqtt.MqttUnsubscribeMessage;
 import org.flmelody.netcell.ProviderInteractor;
@@ -37,12 +39,31 @@ public interface MessageDeliveryProvider
         MqttMessageListener,
         Interactable<MessageDeliveryProvider, ProviderInteractor> {
 
+  void connect(ChannelHandlerContext context, MqttConnectMessage mqttConnectMessage);
+
   void publish(ChannelHandlerContext context, MqttMessage mqttMessage);
 
+  /**
+   * Publish message of the broker itself, such as {@code $SYS} topics, to subscribers.
+   *
+   * @param publishMessage message, not released
+   */
+  default void publish(MqttPublishMessage publishMessage) {}
+
+  void acknowledge(ChannelHandlerContext context, MqttMessage mqttMessage);
+
+  void publishReceived(ChannelHandlerContext context, MqttMessage mqttMessage);
+
+  void publishRelease(ChannelHandlerContext context, MqttMessage mqttMessage);
+
+  void publishComplete(ChannelHandlerContext context, MqttMessage mqttMessage);
+
   void subscribe(ChannelHandlerContext context, MqttSubscribeMessage mqttSubscribeMessage);
 
   void unsubscribe(ChannelHandlerContext context, MqttUnsubscribeMessage mqttUnsubscribeMessage);
 
+  void disconnect(ChannelHandlerContext context, MqttMessage mqttMessage);
+
   default ProviderSeries series() {
     return ProviderSeries.DELIVERY;
   }
@@ -56,9 +77,24 @@ public interface MessageDeliveryProvider
       return false;
     }
 
+    @Override
+    public void connect(ChannelHandlerContext context, MqttConnectMessage mqttConnectMessage) {}
+
     @Override
     public void publish(ChannelHandlerContext context, MqttMessage mqttMessage) {}
 
+    @Override
+    public void acknowledge(ChannelHandlerContext context, MqttMessage mqttMessage) {}
+
+    @Override
+    public void publishReceived(ChannelHandlerContext context, MqttMessage mqttMessage) {}
+
+    @Override
+    public void publishRelease(ChannelHandlerContext context, MqttMessage mqttMessage) {}
+
+    @Override
+    public void publishComplete(ChannelHandlerContext context, MqttMessage mqttMessage) {}
+
     @Override
     public void subscribe(
         ChannelHandlerContext context, MqttSubscribeMessage mqttSubscribeMessage) {}
@@ -67,6 +103,9 @@ public interface MessageDeliveryProvider
     public void unsubscribe(
         ChannelHandlerContext context, MqttUnsubscribeMessage mqttUnsubscribeMessage) {}
 
+    @Override
+    public void disconnect(ChannelHandlerContext context, MqttMessage mqttMessage) {}
+
     @Override
     public MessageDeliveryProvider withActor(ProviderInteractor interactor) {
       return this;
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import java.util.Objects;
+
+/**
+ * Set of packet ids as a bitset. The id space is split into pages of 1024 bits which are allocated
+ * on first use and dropped when empty, so a session with a few ids in use costs a few hundred
+ * bytes rather than 8 KiB.
+ *
+ * @author esotericman
+ */
+public final class PacketIdSet {
+  private static final int PAGE_SHIFT = 10;
+  private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+  private static final int PAGE_COUNT = 0x10000 >>> PAGE_SHIFT;
+  private static final int WORDS_PER_PAGE = (1 << PAGE_SHIFT) >>> 6;
+
+  private final long[][] pages = new long[PAGE_COUNT][];
+  private final short[] pageSizes = new short[PAGE_COUNT];
+  private int size;
+
+  /**
+   * Add packet id.
+   *
+   * @param packetId packet id
+   * @return false if already present
+   */
+  public synchronized boolean add(int packetId) {
+    int page = packetId >>> PAGE_SHIFT;
+    long[] words = pages[page];
+    if (Objects.isNull(words)) {
+      words = new long[WORDS_PER_PAGE];
+      pages[page] = words;
+    }
+    int bit = packetId & PAGE_MASK;
+    long mask = 1L << bit;
+    if ((words[bit >>> 6] & mask) != 0) {
+      return false;
+    }
+    words[bit >>> 6] |= mask;
+    pageSizes[page]++;
+    size++;
+    return true;
+  }
+
+  /**
+   * Remove packet id.
+   *
+   * @param packetId packet id
+   * @return false if not present
+   */
+  public synchronized boolean remove(int packetId) {
+    int page = packetId >>> PAGE_SHIFT;
+    long[] words = pages[page];
+    if (Objects.isNull(words)) {
+      return false;
+    }
+    int bit = packetId & PAGE_MASK;
+    long mask = 1L << bit;
+    if ((words[bit >>> 6] & mask) == 0) {
+      return false;
+    }
+    words[bit >>> 6] &= ~mask;
+    if (--pageSizes[page] == 0) {
+      pages[page] = null;
+    }
+    size--;
+    return true;
+  }
+
+  /**
+   * Whether packet id is present.
+   *
+   * @param packetId packet id
+   * @return true if present
+   */
+  public synchronized boolean contains(int packetId) {
+    long[] words = pages[packetId >>> PAGE_SHIFT];
+    int bit = packetId & PAGE_MASK;
+    return Objects.nonNull(words) && (words[bit >>> 6] & (1L << bit)) != 0;
+  }
+
+  /**
+   * Count of packet ids present.
+   *
+   * @return size
+   */
+  public synchronized int size() {
+    return size;
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.flmelody.netcell.core.topic.Topics;
+
+/**
+ * Bounded cache from concrete topic name to its resolved subscribers. Entries are evicted with a
+ * CLOCK sweep once capacity is exceeded, so recently published topics stay cached.
+ *
+ * <p>Changes of subscriptions must be reported through {@link #invalidate(String)} or {@link
+ * #invalidateClient(String)}, only affected topics are dropped.
+ *
+ * @author esotericman
+ */
+public final class RouteCache {
+  public static final int DEFAULT_CAPACITY = 4096;
+  private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+  private final int capacity;
+  private final Map<String, Route> routes;
+  // Bumped on every invalidation, routes resolved across an invalidation are not cached
+  private final AtomicLong version = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private Iterator<Route> clockHand;
+
+  public RouteCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public RouteCache(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Capacity must not be negative");
+    }
+    this.capacity = capacity;
+    this.routes = new ConcurrentHashMap<>(Math.min(capacity, DEFAULT_CAPACITY));
+  }
+
+  /**
+   * Get cached subscribers of topic, or resolve and cache them.
+   *
+   * @param topicName concrete topic name
+   * @param resolver resolver of subscribers, called on cache miss
+   * @return immutable subscribers, must not be modified
+   */
+  public Subscriber[] get(String topicName, Function<String, Subscriber[]> resolver) {
+    Route route = routes.get(topicName);
+    if (Objects.nonNull(route)) {
+      route.referenced = true;
+      hits.increment();
+      return route.subscribers;
+    }
+    misses.increment();
+    long snapshot = version.get();
+    Subscriber[] subscribers = resolver.apply(topicName);
+    if (subscribers.length == 0) {
+      subscribers = NO_SUBSCRIBERS;
+    }
+    if (capacity > 0 && snapshot == version.get()) {
+      Route resolved = new Route(topicName, subscribers);
+      routes.put(topicName, resolved);
+      // An invalidation raced with us, the resolved route may be stale
+      if (snapshot != version.get()) {
+        routes.remove(topicName, resolved);
+      } else if (routes.size() > capacity) {
+        evict();
+      }
+    }
+    return subscribers;
+  }
+
+  /**
+   * Drop cached topics matched by topic filter.
+   *
+   * @param topicFilter subscribed or unsubscribed topic filter
+   */
+  public void invalidate(String topicFilter) {
+    version.incrementAndGet();
+    if (!Topics.hasWildcard(topicFilter)) {
+      routes.remove(topicFilter);
+      return;
+    }
+    routes.keySet().removeIf(topicName -> Topics.matches(topicFilter, topicName));
+  }
+
+  /**
+   * Drop cached topics routed to client.
+   *
+   * @param clientId client id
+   */
+  public void invalidateClient(String clientId) {
+    version.incrementAndGet();
+    routes.values().removeIf(route -> route.contains(clientId));
+  }
+
+  /** Drop all cached topics. */
+  public void clear() {
+    version.incrementAndGet();
+    routes.clear();
+  }
+
+  private synchronized void evict() {
+    // Bound the sweep, two rounds are enough to find an unreferenced route
+    int budget = routes.size() * 2;
+    while (routes.size() > capacity && budget-- > 0) {
+      if (Objects.isNull(clockHand) || !clockHand.hasNext()) {
+        clockHand = routes.values().iterator();
+        if (!clockHand.hasNext()) {
+          return;
+        }
+      }
+      Route route = clockHand.next();
+      if (route.referenced) {
+        route.referenced = false;
+      } else if (routes.remove(route.topicName, route)) {
+        evictions.increment();
+      }
+    }
+  }
+
+  public long hitCount() {
+    return hits.sum();
+  }
+
+  public long missCount() {
+    return misses.sum();
+  }
+
+  public long evictionCount() {
+    return evictions.sum();
+  }
+
+  public int size() {
+    return routes.size();
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /** Cached route of a topic */
+  private static final class Route {
+    private final String topicName;
+    private final Subscriber[] subscribers;
+    private volatile boolean referenced;
+
+    private Route(String topicName, Subscriber[] subscribers) {
+      this.topicName = topicName;
+      this.subscribers = subscribers;
+    }
+
+    private boolean contains(String clientId) {
+      for (Subscriber subscriber : subscribers) {
+        if (clientId.equals(subscriber.clientId())) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
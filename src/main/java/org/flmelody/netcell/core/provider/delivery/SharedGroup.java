@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.flmelody.netcell.core.provider.session.ClientSession;
+
+/**
+ * Members of a shared subscription {@code $share/{ShareName}/{filter}}, each message goes to one of
+ * them. Members, and those of them connected, are kept in arrays replaced on every join, leave and
+ * {@link #refresh()}, so choosing one takes no lock and constant time.
+ *
+ * @author esotericman
+ */
+public final class SharedGroup {
+  private static final Member[] NO_MEMBERS = new Member[0];
+  private final String shareName;
+  private final String topicFilter;
+  private final SharedSubscriptionStrategy strategy;
+  private final AtomicInteger cursor = new AtomicInteger();
+  private volatile Member[] members = NO_MEMBERS;
+  // Members whose session is bound to a connection
+  private volatile Member[] online = NO_MEMBERS;
+
+  /**
+   * Create group without members.
+   *
+   * @param shareName share name
+   * @param topicFilter topic filter matched by group
+   * @param strategy how a member is chosen
+   */
+  public SharedGroup(String shareName, String topicFilter, SharedSubscriptionStrategy strategy) {
+    this.shareName = shareName;
+    this.topicFilter = topicFilter;
+    this.strategy = strategy;
+  }
+
+  /**
+   * Add session, or replace an earlier session of the same client.
+   *
+   * @param session session of member
+   * @param qos granted qos
+   */
+  public synchronized void join(ClientSession session, MqttQoS qos) {
+    Member member = new Member(session, qos);
+    Member[] current = members;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].session().clientId().equals(session.clientId())) {
+        Member[] replaced = current.clone();
+        replaced[i] = member;
+        members = replaced;
+        refresh();
+        return;
+      }
+    }
+    Member[] joined = Arrays.copyOf(current, current.length + 1);
+    joined[current.length] = member;
+    members = joined;
+    refresh();
+  }
+
+  /**
+   * Remove session, unless another session of its client replaced it.
+   *
+   * @param session session of member
+   * @return false if session is not a member
+   */
+  public synchronized boolean leave(ClientSession session) {
+    Member[] current = members;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].session() == session) {
+        Member[] left = new Member[current.length - 1];
+        System.arraycopy(current, 0, left, 0, i);
+        System.arraycopy(current, i + 1, left, i, left.length - i);
+        members = left;
+        refresh();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Collect connected members again, after the session of a member attached or detached. */
+  public synchronized void refresh() {
+    Member[] current = members;
+    int count = 0;
+    for (Member member : current) {
+      if (member.online()) {
+        count++;
+      }
+    }
+    Member[] connected = new Member[count];
+    count = 0;
+    for (Member member : current) {
+      if (member.online()) {
+        connected[count++] = member;
+      }
+    }
+    online = connected;
+  }
+
+  /**
+   * Choose the member receiving a message, among connected members if there are any.
+   *
+   * @param publisherId client id of publisher, null if unknown
+   * @return member, null if group has none
+   */
+  public Member select(String publisherId) {
+    Member[] current = online;
+    if (current.length == 0) {
+      // Queued by an offline persistent member
+      current = members;
+    }
+    int size = current.length;
+    if (size <= 1) {
+      return size == 0 ? null : current[0];
+    }
+    int start;
+    switch (strategy) {
+      case RANDOM:
+        start = ThreadLocalRandom.current().nextInt(size);
+        break;
+      case STICKY:
+        start =
+            Objects.isNull(publisherId)
+                ? Math.floorMod(cursor.getAndIncrement(), size)
+                : Math.floorMod(spread(publisherId.hashCode()), size);
+        break;
+      case LEAST_INFLIGHT:
+        start = lessLoaded(current);
+        break;
+      default:
+        start = Math.floorMod(cursor.getAndIncrement(), size);
+        break;
+    }
+    return current[start];
+  }
+
+  public String shareName() {
+    return shareName;
+  }
+
+  public String topicFilter() {
+    return topicFilter;
+  }
+
+  public int size() {
+    return members.length;
+  }
+
+  public boolean isEmpty() {
+    return members.length == 0;
+  }
+
+  /**
+   * Count of members whose session is bound to a connection.
+   *
+   * @return connected members
+   */
+  public int onlineSize() {
+    return online.length;
+  }
+
+  // Two random choices, nearly as balanced as scanning all members
+  private static int lessLoaded(Member[] current) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(current.length);
+    int second = random.nextInt(current.length - 1);
+    if (second >= first) {
+      second++;
+    }
+    return current[second].load() < current[first].load() ? second : first;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Member of group.
+   *
+   * @param session session of member
+   * @param qos granted qos
+   */
+  public record Member(ClientSession session, MqttQoS qos) {
+
+    private boolean online() {
+      return Objects.nonNull(session.context());
+    }
+
+    private int load() {
+      InflightWindow window = session.inflightWindow();
+      return Objects.isNull(window) ? 0 : window.load();
+    }
+  }
+}
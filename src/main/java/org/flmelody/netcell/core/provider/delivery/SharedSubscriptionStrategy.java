@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+/**
+ * How a shared group chooses the member receiving a message. Every strategy prefers connected
+ * members, an offline persistent member is only chosen if no member is connected.
+ *
+ * @author esotericman
+ */
+public enum SharedSubscriptionStrategy {
+  /** Members in turn. */
+  ROUND_ROBIN,
+  /** A member at random. */
+  RANDOM,
+  /** The same member for all messages of a publisher, while connected members do not change. */
+  STICKY,
+  /** The less loaded of two members at random, by messages in flight and queued. */
+  LEAST_INFLIGHT
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+/**
+ * What happens to messages for a subscriber whose channel is not writable, that is whose outbound
+ * buffer is above the high water mark. Qos 0 messages are dropped and qos 1 and 2 messages queued
+ * in the session either way; policies differ once the queue is full.
+ *
+ * @author esotericman
+ */
+public enum SlowConsumerPolicy {
+  /** Drop messages that do not fit in the queue, the subscriber stays connected. */
+  DROP,
+  /** Close the connection of a subscriber whose queue is full, a persistent session keeps it. */
+  DISCONNECT
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Frames queued for an offline session that did not fit in memory, appended to a file and read
+ * back in order. Nothing is forced to disk: the file only keeps frames off the heap, messages of
+ * persistent sessions survive a restart through the store. The file is created on first use,
+ * truncated whenever it is drained and deleted on close.
+ *
+ * @author esotericman
+ */
+final class SpillQueue {
+  private final Path directory;
+  private final ByteBuffer header = ByteBuffer.allocate(4);
+  private Path path;
+  private FileChannel channel;
+  private long readPosition;
+  private long writePosition;
+  private int size;
+
+  SpillQueue(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Append frame, which is released.
+   *
+   * @param frame frame
+   * @throws IOException if file cannot be written
+   */
+  void add(ByteBuf frame) throws IOException {
+    try {
+      if (Objects.isNull(channel)) {
+        Files.createDirectories(directory);
+        path = Files.createTempFile(directory, "session-", ".spill");
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      }
+      int length = frame.readableBytes();
+      header.clear().putInt(0, length);
+      long position = writePosition;
+      while (header.hasRemaining()) {
+        position += channel.write(header, position);
+      }
+      int written = 0;
+      while (written < length) {
+        written +=
+            frame.getBytes(
+                frame.readerIndex() + written, channel, position + written, length - written);
+      }
+      writePosition = position + length;
+      size++;
+    } finally {
+      frame.release();
+    }
+  }
+
+  /**
+   * Read the oldest frame.
+   *
+   * @param allocator allocator of frame
+   * @return frame, null if queue is empty
+   * @throws IOException if file cannot be read
+   */
+  ByteBuf poll(ByteBufAllocator allocator) throws IOException {
+    if (size == 0) {
+      return null;
+    }
+    header.clear();
+    long position = readPosition;
+    while (header.hasRemaining()) {
+      int read = channel.read(header, position);
+      if (read < 0) {
+        throw new IOException("Spill file " + path + " ends before its frames");
+      }
+      position += read;
+    }
+    int length = header.getInt(0);
+    ByteBuf frame = allocator.buffer(length);
+    try {
+      while (frame.readableBytes() < length) {
+        int read =
+            frame.writeBytes(
+                channel, position + frame.readableBytes(), length - frame.readableBytes());
+        if (read < 0) {
+          throw new IOException("Spill file " + path + " ends before its frames");
+        }
+      }
+    } catch (IOException e) {
+      frame.release();
+      throw e;
+    }
+    readPosition = position + length;
+    if (--size == 0) {
+      channel.truncate(0);
+      readPosition = 0;
+      writePosition = 0;
+    }
+    return frame;
+  }
+
+  /**
+   * Frames in queue.
+   *
+   * @return size
+   */
+  int size() {
+    return size;
+  }
+
+  /** Drop all frames and delete file. */
+  void close() {
+    size = 0;
+    readPosition = 0;
+    writePosition = 0;
+    if (Objects.isNull(channel)) {
+      return;
+    }
+    try {
+      channel.close();
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // Temporary file, nothing depends on it any more
+    }
+    channel = null;
+    path = null;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.flmelody.netcell.core.provider.persistence.PersistentStoreProvider;
+
+/**
+ * Stored message delivered to several persistent sessions. Every session runs it once it is done
+ * with the message, the last one removes the message from store.
+ *
+ * @author esotericman
+ */
+final class StoredDelivery implements Runnable {
+  private final PersistentStoreProvider store;
+  private final CompletableFuture<Long> messageId;
+  // One for the fan-out itself, released when it ends
+  private final AtomicInteger pending = new AtomicInteger(1);
+
+  StoredDelivery(PersistentStoreProvider store, CompletableFuture<Long> messageId) {
+    this.store = store;
+    this.messageId = messageId;
+  }
+
+  /**
+   * Count one more session.
+   *
+   * @return this
+   */
+  StoredDelivery retain() {
+    pending.incrementAndGet();
+    return this;
+  }
+
+  /**
+   * Id of message, completed once it is durable.
+   *
+   * @return message id
+   */
+  CompletableFuture<Long> messageId() {
+    return messageId;
+  }
+
+  @Override
+  public void run() {
+    if (pending.decrementAndGet() == 0) {
+      // Never runs ahead of the store, a message not stored is not removed either
+      messageId.thenAccept(store::removeMessage);
+    }
+  }
+}
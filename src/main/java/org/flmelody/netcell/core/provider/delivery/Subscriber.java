@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.delivery;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.Objects;
+
+/**
+ * Resolved delivery target of a topic: a client, or a shared group choosing one of its members for
+ * each message.
+ *
+ * @param clientId client id of subscriber, null for a shared group
+ * @param qos maximum qos granted across all matching subscriptions of the client, null for a
+ *     shared group
+ * @param group shared group, null for a client
+ * @author esotericman
+ */
+public record Subscriber(String clientId, MqttQoS qos, SharedGroup group) {
+
+  public Subscriber(String clientId, MqttQoS qos) {
+    this(clientId, qos, null);
+  }
+
+  public Subscriber(SharedGroup group) {
+    this(null, null, group);
+  }
+
+  public boolean shared() {
+    return Objects.nonNull(group);
+  }
+}
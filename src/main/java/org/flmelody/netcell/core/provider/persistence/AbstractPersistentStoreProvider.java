@@ -16,23 +16,83 @@
 
 package org.flmelody.netcell.core.provider.persistence;
 
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.handler.codec.mqtt.MqttUnsubscribeMessage;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import org.flmelody.netcell.core.constants.NettyAttributeKeys;
 import org.flmelody.netcell.core.provider.InteractableProviderSupport;
+import org.flmelody.netcell.core.topic.Topics;
 
 /**
+ * Keeps persistent sessions and their subscriptions in store as clients connect, subscribe and
+ * unsubscribe. Messages are stored by message delivery.
+ *
  * @author esotericman
  */
 public abstract class AbstractPersistentStoreProvider
     extends InteractableProviderSupport<PersistentStoreProvider>
     implements PersistentStoreProvider {
   private static final Set<MqttMessageType> supportedMessageTypes =
-      new HashSet<>(Arrays.asList(MqttMessageType.CONNECT, MqttMessageType.PUBLISH));
+      new HashSet<>(
+          Arrays.asList(
+              MqttMessageType.CONNECT, MqttMessageType.SUBSCRIBE, MqttMessageType.UNSUBSCRIBE));
 
   @Override
   public final boolean interests(MqttMessageType mqttMessageType) {
     return supportedMessageTypes.contains(mqttMessageType);
   }
+
+  @Override
+  public void onMessage(ChannelHandlerContext context, MqttMessage mqttMessage) {
+    String clientId = context.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).get();
+    switch (mqttMessage.fixedHeader().messageType()) {
+      case CONNECT:
+        MqttConnectMessage mqttConnectMessage = (MqttConnectMessage) mqttMessage;
+        clientId = mqttConnectMessage.payload().clientIdentifier();
+        if (mqttConnectMessage.variableHeader().isCleanSession()) {
+          removeSession(clientId);
+        } else {
+          storeSession(clientId);
+        }
+        break;
+      case SUBSCRIBE:
+        if (persistent(context)) {
+          String subscriber = clientId;
+          ((MqttSubscribeMessage) mqttMessage)
+              .payload()
+              .topicSubscriptions()
+              .forEach(
+                  topicSubscription -> {
+                    if (Topics.isValidTopicFilter(topicSubscription.topicFilter())) {
+                      storeSubscription(
+                          subscriber,
+                          topicSubscription.topicFilter(),
+                          topicSubscription.qualityOfService());
+                    }
+                  });
+        }
+        break;
+      case UNSUBSCRIBE:
+        if (persistent(context)) {
+          String subscriber = clientId;
+          ((MqttUnsubscribeMessage) mqttMessage)
+              .payload()
+              .topics()
+              .forEach(topicFilter -> removeSubscription(subscriber, topicFilter));
+        }
+        break;
+      default:
+    }
+  }
+
+  private static boolean persistent(ChannelHandlerContext context) {
+    Boolean cleanSession = context.channel().attr(NettyAttributeKeys.MQTT_CLEAN_SESSION).get();
+    return Boolean.FALSE.equals(cleanSession);
+  }
 }
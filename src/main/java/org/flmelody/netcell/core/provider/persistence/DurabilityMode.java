@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.persistence;
+
+/**
+ * When appended records are forced to disk.
+ *
+ * @author esotericman
+ */
+public enum DurabilityMode {
+  /** Never forced, the operating system writes pages back. Survives a broker crash only. */
+  NONE,
+  /** Forced once per batch of records, one fsync covers all records of the batch. */
+  BATCH,
+  /** Forced before append returns, one fsync per record. */
+  EVERY_WRITE
+}
@@ -17,7 +17,11 @@
 package org.flmelody.netcell.core.provider.persistence;
 
 import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.flmelody.netcell.ProviderInteractor;
 import org.flmelody.netcell.core.interactor.Interactable;
 import org.flmelody.netcell.core.listener.MqttMessageListener;
@@ -28,6 +32,10 @@ import org.flmelody.netcell.core.provider.ProviderSeries;
  * The persistence of messages should be implemented in a way that ensures as high a quality as
  * possible.
  *
+ * <p>Changes are called from event loops and must not block them: an implementation does its disk
+ * I/O elsewhere and completes the returned future once the change is durable. Futures may complete
+ * on any thread.
+ *
  * @see MqttQoS
  * @author esotericman
  */
@@ -36,6 +44,44 @@ public interface PersistentStoreProvider
         MqttMessageListener,
         Interactable<PersistentStoreProvider, ProviderInteractor> {
 
+  /**
+   * Store qos 1 or 2 message until {@link #removeMessage(long)}.
+   *
+   * @param publishMessage message
+   * @return message id once it is durable, negative if not stored
+   */
+  CompletableFuture<Long> storeMessage(MqttPublishMessage publishMessage);
+
+  CompletableFuture<Void> removeMessage(long messageId);
+
+  CompletableFuture<Void> storeSession(String clientId);
+
+  /**
+   * Remove session with its subscriptions.
+   *
+   * @param clientId client id
+   * @return completed once durable
+   */
+  CompletableFuture<Void> removeSession(String clientId);
+
+  CompletableFuture<Void> storeSubscription(String clientId, String topicFilter, MqttQoS qos);
+
+  CompletableFuture<Void> removeSubscription(String clientId, String topicFilter);
+
+  /**
+   * Sessions stored, as recovered on startup and changed since.
+   *
+   * @return persistent sessions
+   */
+  Collection<StoredSession> sessions();
+
+  /**
+   * Messages stored and not removed yet.
+   *
+   * @return stored messages
+   */
+  Collection<StoredMessage> messages();
+
   default ProviderSeries series() {
     return ProviderSeries.PERSISTENCE;
   }
@@ -44,11 +90,54 @@ public interface PersistentStoreProvider
 
   /** Empty implementation */
   class Empty implements PersistentStoreProvider {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
     @Override
     public boolean interests(MqttMessageType mqttMessageType) {
       return false;
     }
 
+    @Override
+    public CompletableFuture<Long> storeMessage(MqttPublishMessage publishMessage) {
+      return CompletableFuture.completedFuture(-1L);
+    }
+
+    @Override
+    public CompletableFuture<Void> removeMessage(long messageId) {
+      return DONE;
+    }
+
+    @Override
+    public CompletableFuture<Void> storeSession(String clientId) {
+      return DONE;
+    }
+
+    @Override
+    public CompletableFuture<Void> removeSession(String clientId) {
+      return DONE;
+    }
+
+    @Override
+    public CompletableFuture<Void> storeSubscription(
+        String clientId, String topicFilter, MqttQoS qos) {
+      return DONE;
+    }
+
+    @Override
+    public CompletableFuture<Void> removeSubscription(String clientId, String topicFilter) {
+      return DONE;
+    }
+
+    @Override
+    public Collection<StoredSession> sessions() {
+      return List.of();
+    }
+
+    @Override
+    public Collection<StoredMessage> messages() {
+      return List.of();
+    }
+
     @Override
     public PersistentStoreProvider withActor(ProviderInteractor interactor) {
       return this;
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.persistence;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * Qos 1 or 2 message kept until every persistent session subscribed to it received it. MQTT 5
+ * properties are not kept.
+ *
+ * @param id message id given by store
+ * @param topic topic name
+ * @param qos qos of publisher
+ * @param retain retain flag
+ * @param payload payload
+ * @author esotericman
+ */
+public record StoredMessage(long id, String topic, MqttQoS qos, boolean retain, byte[] payload) {}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.persistence;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import io.netty.util.internal.PlatformDependent;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Store backed by a memory-mapped {@link WriteAheadLog}. State is kept in memory and every change
+ * is appended to the log, which is replayed on startup. Once the log has more than {@code
+ * maxSegments} segments, live state is rewritten into a fresh segment and older ones are deleted.
+ *
+ * <p>Callers only change memory and queue the change. A single writer thread drains the queue in
+ * batches, appends them and forces the log once per batch, then completes their futures. A full
+ * queue fails the change instead of blocking the caller.
+ *
+ * @author esotericman
+ */
+public class WalPersistentStoreProvider extends AbstractPersistentStoreProvider
+    implements Closeable {
+  public static final int DEFAULT_MAX_SEGMENTS = 4;
+  public static final int DEFAULT_MAX_PENDING_WRITES = 65536;
+  private static final int MAX_BATCH = 1024;
+  private static final byte SESSION_PUT = 1;
+  private static final byte SESSION_REMOVE = 2;
+  private static final byte SUBSCRIPTION_PUT = 3;
+  private static final byte SUBSCRIPTION_REMOVE = 4;
+  private static final byte MESSAGE_PUT = 5;
+  private static final byte MESSAGE_REMOVE = 6;
+  private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+  private final WriteAheadLog log;
+  private final DurabilityMode durabilityMode;
+  private final int maxSegments;
+  // All state below is guarded by this
+  private final Map<String, Map<String, MqttQoS>> sessions = new HashMap<>();
+  private final LongObjectMap<StoredMessage> messages = new LongObjectHashMap<>();
+  private long nextMessageId = 1;
+  // Changes queued in the order they were applied to memory, drained by writer only
+  private final Queue<Write> writes;
+  private final List<Write> batch = new ArrayList<>(MAX_BATCH);
+  private final ByteBuf record = Unpooled.buffer(256);
+  private final Thread writer;
+  private volatile boolean idle;
+  private volatile boolean closed;
+
+  public WalPersistentStoreProvider() {
+    this(Path.of("netcell-wal"));
+  }
+
+  /**
+   * Create store with log in directory, forced once per batch of changes.
+   *
+   * @param directory directory of log segments
+   */
+  public WalPersistentStoreProvider(Path directory) {
+    this(
+        directory,
+        WriteAheadLog.DEFAULT_SEGMENT_SIZE,
+        DurabilityMode.BATCH,
+        DEFAULT_MAX_SEGMENTS,
+        DEFAULT_MAX_PENDING_WRITES);
+  }
+
+  /**
+   * Create store and recover its state from log.
+   *
+   * @param directory directory of log segments
+   * @param segmentSize size of a segment
+   * @param durabilityMode when records are forced to disk
+   * @param maxSegments segments kept before live state is compacted
+   * @param maxPendingWrites changes queued for writer before further changes fail
+   */
+  public WalPersistentStoreProvider(
+      Path directory,
+      int segmentSize,
+      DurabilityMode durabilityMode,
+      int maxSegments,
+      int maxPendingWrites) {
+    this.log = new WriteAheadLog(directory, segmentSize, durabilityMode);
+    this.durabilityMode = durabilityMode;
+    this.maxSegments = maxSegments;
+    this.writes = PlatformDependent.newFixedMpscQueue(maxPendingWrites);
+    synchronized (this) {
+      log.replay(this::apply);
+    }
+    logger.info("Recovered {} sessions and {} messages from log", sessions.size(), messages.size());
+    this.writer = new Thread(this::write, "netcell-wal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Override
+  public synchronized CompletableFuture<Long> storeMessage(MqttPublishMessage publishMessage) {
+    MqttQoS qos = publishMessage.fixedHeader().qosLevel();
+    if (MqttQoS.AT_MOST_ONCE.equals(qos)) {
+      return CompletableFuture.completedFuture(-1L);
+    }
+    StoredMessage message =
+        new StoredMessage(
+            nextMessageId,
+            publishMessage.variableHeader().topicName(),
+            qos,
+            publishMessage.fixedHeader().isRetain(),
+            ByteBufUtil.getBytes(publishMessage.payload()));
+    CompletableFuture<Void> durable = submit(MESSAGE_PUT, buf -> writeMessage(buf, message));
+    if (!durable.isCompletedExceptionally()) {
+      nextMessageId++;
+      messages.put(message.id(), message);
+    }
+    return durable.thenApply(ignored -> message.id());
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> removeMessage(long messageId) {
+    if (!messages.containsKey(messageId)) {
+      return DONE;
+    }
+    return apply(
+        submit(MESSAGE_REMOVE, buf -> buf.writeLong(messageId)), () -> messages.remove(messageId));
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> storeSession(String clientId) {
+    if (sessions.containsKey(clientId)) {
+      return DONE;
+    }
+    return apply(
+        submit(SESSION_PUT, buf -> writeString(buf, clientId)),
+        () -> sessions.put(clientId, new HashMap<>()));
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> removeSession(String clientId) {
+    if (!sessions.containsKey(clientId)) {
+      return DONE;
+    }
+    return apply(
+        submit(SESSION_REMOVE, buf -> writeString(buf, clientId)),
+        () -> sessions.remove(clientId));
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> storeSubscription(
+      String clientId, String topicFilter, MqttQoS qos) {
+    Map<String, MqttQoS> subscriptions = sessions.get(clientId);
+    if (Objects.isNull(subscriptions) || qos.equals(subscriptions.get(topicFilter))) {
+      return DONE;
+    }
+    return apply(
+        submit(
+            SUBSCRIPTION_PUT,
+            buf -> writeString(writeString(buf, clientId), topicFilter).writeByte(qos.value())),
+        () -> subscriptions.put(topicFilter, qos));
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> removeSubscription(
+      String clientId, String topicFilter) {
+    Map<String, MqttQoS> subscriptions = sessions.get(clientId);
+    if (Objects.isNull(subscriptions) || !subscriptions.containsKey(topicFilter)) {
+      return DONE;
+    }
+    return apply(
+        submit(SUBSCRIPTION_REMOVE, buf -> writeString(writeString(buf, clientId), topicFilter)),
+        () -> subscriptions.remove(topicFilter));
+  }
+
+  @Override
+  public synchronized Collection<StoredSession> sessions() {
+    List<StoredSession> storedSessions = new ArrayList<>(sessions.size());
+    sessions.forEach(
+        (clientId, subscriptions) ->
+            storedSessions.add(new StoredSession(clientId, Map.copyOf(subscriptions))));
+    return storedSessions;
+  }
+
+  @Override
+  public synchronized Collection<StoredMessage> messages() {
+    return new ArrayList<>(messages.values());
+  }
+
+  /**
+   * Log of store.
+   *
+   * @return write-ahead log
+   */
+  public WriteAheadLog log() {
+    return log;
+  }
+
+  /**
+   * Count of changes queued and not written yet.
+   *
+   * @return pending writes
+   */
+  public int pendingWrites() {
+    return writes.size();
+  }
+
+  /** Write all queued changes, then stop writer and force log. */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // Queued after writer saw the queue empty for the last time, changes are queued under lock
+    synchronized (this) {
+      Write write;
+      while (Objects.nonNull(write = writes.poll())) {
+        write.durable().completeExceptionally(new RejectedExecutionException("Store is closed"));
+      }
+    }
+    log.close();
+  }
+
+  // Memory is changed once the change is queued, ahead of the log. A change that fails to be
+  // written stays in memory until restart, its caller sees the failure and does not acknowledge.
+  private static CompletableFuture<Void> apply(CompletableFuture<Void> durable, Runnable change) {
+    if (!durable.isCompletedExceptionally()) {
+      change.run();
+    }
+    return durable;
+  }
+
+  // Called under lock
+  private CompletableFuture<Void> submit(byte type, Consumer<ByteBuf> body) {
+    if (closed) {
+      return CompletableFuture.failedFuture(new RejectedExecutionException("Store is closed"));
+    }
+    Write write = new Write(type, body, new CompletableFuture<>());
+    if (!writes.offer(write)) {
+      return CompletableFuture.failedFuture(
+          new RejectedExecutionException("Too many pending writes"));
+    }
+    if (idle) {
+      LockSupport.unpark(writer);
+    }
+    return write.durable();
+  }
+
+  private void write() {
+    while (true) {
+      Write write = writes.poll();
+      if (Objects.isNull(write)) {
+        if (closed) {
+          return;
+        }
+        idle = true;
+        // Recheck, a change queued before idle was set did not unpark writer
+        if (writes.isEmpty() && !closed) {
+          LockSupport.park(this);
+        }
+        idle = false;
+        continue;
+      }
+      do {
+        batch.add(write);
+      } while (batch.size() < MAX_BATCH && Objects.nonNull(write = writes.poll()));
+      writeBatch();
+    }
+  }
+
+  private void writeBatch() {
+    Throwable failure = null;
+    try {
+      for (Write write : batch) {
+        write.body().accept(record.clear());
+        log.append(write.type(), record);
+      }
+      if (log.segmentCount() > maxSegments) {
+        synchronized (this) {
+          log.compact(this::snapshot);
+        }
+      }
+      if (DurabilityMode.BATCH.equals(durabilityMode)) {
+        log.sync();
+      }
+    } catch (Throwable e) {
+      logger.error("Failed to write {} changes to log", batch.size(), e);
+      failure = e;
+    }
+    for (Write write : batch) {
+      if (Objects.isNull(failure)) {
+        write.durable().complete(null);
+      } else {
+        write.durable().completeExceptionally(failure);
+      }
+    }
+    batch.clear();
+  }
+
+  // Runs on writer under lock, changes queued but not written yet are appended again after it
+  private void snapshot() {
+    sessions.forEach(
+        (clientId, subscriptions) -> {
+          writeString(record.clear(), clientId);
+          log.append(SESSION_PUT, record);
+          subscriptions.forEach(
+              (topicFilter, qos) -> {
+                writeString(writeString(record.clear(), clientId), topicFilter)
+                    .writeByte(qos.value());
+                log.append(SUBSCRIPTION_PUT, record);
+              });
+        });
+    for (StoredMessage message : messages.values()) {
+      writeMessage(record.clear(), message);
+      log.append(MESSAGE_PUT, record);
+    }
+  }
+
+  private void apply(byte type, ByteBuffer body) {
+    ByteBuf buf = Unpooled.wrappedBuffer(body);
+    Map<String, MqttQoS> subscriptions;
+    switch (type) {
+      case SESSION_PUT:
+        sessions.putIfAbsent(readString(buf), new HashMap<>());
+        break;
+      case SESSION_REMOVE:
+        sessions.remove(readString(buf));
+        break;
+      case SUBSCRIPTION_PUT:
+        subscriptions = sessions.get(readString(buf));
+        String topicFilter = readString(buf);
+        if (Objects.nonNull(subscriptions)) {
+          subscriptions.put(topicFilter, MqttQoS.valueOf(buf.readByte()));
+        }
+        break;
+      case SUBSCRIPTION_REMOVE:
+        subscriptions = sessions.get(readString(buf));
+        if (Objects.nonNull(subscriptions)) {
+          subscriptions.remove(readString(buf));
+        }
+        break;
+      case MESSAGE_PUT:
+        StoredMessage message = readMessage(buf);
+        messages.put(message.id(), message);
+        nextMessageId = Math.max(nextMessageId, message.id() + 1);
+        break;
+      case MESSAGE_REMOVE:
+        messages.remove(buf.readLong());
+        break;
+      default:
+        logger.warn("Unknown log record type {}, skipped", type);
+    }
+  }
+
+  private static void writeMessage(ByteBuf buf, StoredMessage message) {
+    writeString(buf.writeLong(message.id()), message.topic())
+        .writeByte(message.qos().value())
+        .writeBoolean(message.retain())
+        .writeInt(message.payload().length)
+        .writeBytes(message.payload());
+  }
+
+  private static StoredMessage readMessage(ByteBuf buf) {
+    long id = buf.readLong();
+    String topic = readString(buf);
+    MqttQoS qos = MqttQoS.valueOf(buf.readByte());
+    boolean retain = buf.readBoolean();
+    byte[] payload = new byte[buf.readInt()];
+    buf.readBytes(payload);
+    return new StoredMessage(id, topic, qos, retain, payload);
+  }
+
+  private static ByteBuf writeString(ByteBuf buf, String value) {
+    buf.writeShort(ByteBufUtil.utf8Bytes(value));
+    buf.writeCharSequence(value, StandardCharsets.UTF_8);
+    return buf;
+  }
+
+  private static String readString(ByteBuf buf) {
+    return buf.readCharSequence(buf.readUnsignedShort(), StandardCharsets.UTF_8).toString();
+  }
+
+  /** Change queued for writer */
+  private record Write(byte type, Consumer<ByteBuf> body, CompletableFuture<Void> durable) {}
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.persistence;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.PlatformDependent;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of memory-mapped segment files. A record is its length, a CRC32C of its type and
+ * body, its type and its body; a zero length ends a segment. Appending copies the record into the
+ * mapped segment, when it reaches disk depends on {@link DurabilityMode}. Replay stops a segment at
+ * the first record whose checksum does not match, which is where a torn write ends the log.
+ *
+ * <p>The log does not know which records are still live: its owner rewrites live state with {@link
+ * #compact(Runnable)}, which drops all older segments.
+ *
+ * @author esotericman
+ */
+public final class WriteAheadLog implements Closeable {
+  public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+  private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+  private static final String SUFFIX = ".wal";
+  private static final int HEADER_SIZE = 8;
+
+  private final Path directory;
+  private final int segmentSize;
+  private final DurabilityMode durabilityMode;
+  private final List<Segment> segments = new ArrayList<>();
+  private final CRC32C crc = new CRC32C();
+  private Segment current;
+  // Segment id in the high 32 bits, offset in segment in the low 32 bits
+  private volatile long appendPosition;
+  private volatile long durablePosition;
+
+  /**
+   * Open log in directory, creating it if missing. Call {@link #replay(RecordHandler)} before
+   * appending.
+   *
+   * @param directory directory of segment files
+   * @param segmentSize size of a segment file
+   * @param durabilityMode when records are forced to disk
+   */
+  public WriteAheadLog(Path directory, int segmentSize, DurabilityMode durabilityMode) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.durabilityMode = durabilityMode;
+  }
+
+  /**
+   * Read every valid record in append order, then position the log after the last one.
+   *
+   * @param handler handler of records
+   */
+  public synchronized void replay(RecordHandler handler) {
+    try {
+      Files.createDirectories(directory);
+      List<Path> paths;
+      try (Stream<Path> files = Files.list(directory)) {
+        paths = files.filter(path -> path.toString().endsWith(SUFFIX)).sorted().toList();
+      }
+      for (Path path : paths) {
+        String name = path.getFileName().toString();
+        Segment segment = map(path, Long.parseLong(name.substring(0, name.length() - 4)), 0);
+        segment.offset = replay(segment, handler);
+        segments.add(segment);
+      }
+      if (segments.isEmpty()) {
+        segments.add(newSegment(0, segmentSize));
+      }
+      current = segments.get(segments.size() - 1);
+      wipeTail(current);
+      appendPosition = position(current);
+      durablePosition = appendPosition;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Append record.
+   *
+   * @param type record type
+   * @param body record body, not consumed
+   * @return log position after record
+   */
+  public synchronized long append(byte type, ByteBuf body) {
+    int length = 1 + body.readableBytes();
+    if (current.offset + HEADER_SIZE + length + 4 > current.buffer.capacity()) {
+      rotate(HEADER_SIZE + length + 4);
+    }
+    MappedByteBuffer buffer = current.buffer;
+    int offset = current.offset;
+    ByteBuffer record =
+        buffer.duplicate().limit(offset + HEADER_SIZE + length).position(offset + HEADER_SIZE);
+    record.put(type);
+    body.getBytes(body.readerIndex(), record);
+    crc.reset();
+    crc.update(record.position(offset + HEADER_SIZE));
+    buffer.putInt(offset + 4, (int) crc.getValue());
+    // Length last, a record is not visible to replay before it is complete
+    buffer.putInt(offset, length);
+    current.offset = offset + HEADER_SIZE + length;
+    appendPosition = position(current);
+    if (DurabilityMode.EVERY_WRITE.equals(durabilityMode)) {
+      buffer.force(offset, HEADER_SIZE + length);
+      durablePosition = appendPosition;
+    } else if (DurabilityMode.NONE.equals(durabilityMode)) {
+      durablePosition = appendPosition;
+    }
+    return appendPosition;
+  }
+
+  /**
+   * Force records appended so far to disk, one fsync for all of them. Only needed in {@link
+   * DurabilityMode#BATCH}.
+   *
+   * @return durable position
+   */
+  public synchronized long sync() {
+    if (appendPosition > durablePosition) {
+      force();
+    }
+    return durablePosition;
+  }
+
+  /**
+   * Start a new segment, let snapshot append all live records into it, force it and delete all
+   * older segments. Older segments are unmapped first, their mappings would otherwise keep the
+   * disk space and address space of deleted files until garbage collected.
+   *
+   * @param snapshot appender of live records
+   */
+  public synchronized void compact(Runnable snapshot) {
+    rotate(segmentSize);
+    List<Segment> obsolete = new ArrayList<>(segments.subList(0, segments.size() - 1));
+    snapshot.run();
+    force();
+    segments.removeAll(obsolete);
+    for (Segment segment : obsolete) {
+      PlatformDependent.freeDirectBuffer(segment.buffer);
+      try {
+        Files.deleteIfExists(segment.path);
+      } catch (IOException e) {
+        logger.atWarn().log("Failed to delete log segment {}", segment.path, e);
+      }
+    }
+  }
+
+  /**
+   * Count of segment files, grows until {@link #compact(Runnable)}.
+   *
+   * @return segment count
+   */
+  public synchronized int segmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Position after the last appended record.
+   *
+   * @return append position
+   */
+  public long appendPosition() {
+    return appendPosition;
+  }
+
+  /**
+   * Position up to which records are on disk, as far as the durability mode promises.
+   *
+   * @return durable position
+   */
+  public long durablePosition() {
+    return durablePosition;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (Objects.nonNull(current)) {
+      force();
+    }
+  }
+
+  private void rotate(int minimumSize) {
+    if (!DurabilityMode.NONE.equals(durabilityMode)) {
+      current.buffer.force();
+    }
+    try {
+      current = newSegment(current.id + 1, Math.max(segmentSize, minimumSize));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    segments.add(current);
+    appendPosition = position(current);
+  }
+
+  private void force() {
+    current.buffer.force();
+    durablePosition = appendPosition;
+  }
+
+  private Segment newSegment(long id, int size) throws IOException {
+    return map(directory.resolve(String.format("%020d%s", id, SUFFIX)), id, size);
+  }
+
+  private static Segment map(Path path, long id, int size) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long length = Math.max(size, channel.size());
+      return new Segment(path, id, channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+    }
+  }
+
+  private int replay(Segment segment, RecordHandler handler) {
+    MappedByteBuffer buffer = segment.buffer;
+    int offset = 0;
+    while (offset + HEADER_SIZE <= buffer.capacity()) {
+      int length = buffer.getInt(offset);
+      if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+        break;
+      }
+      ByteBuffer record =
+          buffer.duplicate().position(offset + HEADER_SIZE).limit(offset + HEADER_SIZE + length);
+      crc.reset();
+      crc.update(record.duplicate());
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+        logger.atWarn().log("Log segment {} is torn at offset {}", segment.path, offset);
+        break;
+      }
+      byte type = record.get();
+      handler.handle(type, record.slice().asReadOnlyBuffer());
+      offset += HEADER_SIZE + length;
+    }
+    return offset;
+  }
+
+  // A torn record has no length but may have a body, new records must not run into its remains
+  private static void wipeTail(Segment segment) {
+    MappedByteBuffer buffer = segment.buffer;
+    int index = segment.offset;
+    int end = buffer.capacity();
+    boolean dirty = false;
+    for (; index + 8 <= end; index += 8) {
+      if (buffer.getLong(index) != 0) {
+        buffer.putLong(index, 0);
+        dirty = true;
+      }
+    }
+    for (; index < end; index++) {
+      if (buffer.get(index) != 0) {
+        buffer.put(index, (byte) 0);
+        dirty = true;
+      }
+    }
+    if (dirty) {
+      buffer.force();
+    }
+  }
+
+  private static long position(Segment segment) {
+    return (segment.id << 32) | segment.offset;
+  }
+
+  /** Receives records on replay */
+  @FunctionalInterface
+  public interface RecordHandler {
+    /**
+     * Handle record.
+     *
+     * @param type record type
+     * @param body record body, only valid during the call
+     */
+    void handle(byte type, ByteBuffer body);
+  }
+
+  /** Mapped segment file */
+  private static final class Segment {
+    private final Path path;
+    private final long id;
+    private final MappedByteBuffer buffer;
+    private int offset;
+
+    private Segment(Path path, long id, MappedByteBuffer buffer) {
+      this.path = path;
+      this.id = id;
+      this.buffer = buffer;
+    }
+  }
+}
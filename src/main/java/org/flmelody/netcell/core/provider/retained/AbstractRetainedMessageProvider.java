@@ -38,7 +38,11 @@ public abstract class AbstractRetainedMessageProvider
     if (mqttMessage instanceof MqttPublishMessage mqttPublishMessage) {
       if (mqttPublishMessage.fixedHeader().isRetain()) {
         String topicName = mqttPublishMessage.variableHeader().topicName();
-        setRetainedMessage(topicName, mqttPublishMessage);
+        if (mqttPublishMessage.payload().isReadable()) {
+          setRetainedMessage(topicName, mqttPublishMessage);
+        } else {
+          removeRetainedMessage(topicName);
+        }
       }
     }
   }
@@ -16,24 +16,303 @@
 
 package org.flmelody.netcell.core.provider.retained;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
 import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import org.flmelody.netcell.core.topic.TopicTrie;
 
 /**
+ * Retained messages indexed by a topic tree keyed by topic name, so a wildcard subscription only
+ * visits the topics it matches. Payloads are copied into pooled direct memory and count against a
+ * byte budget; when it is exceeded, messages not read since the last sweep are evicted first (the
+ * clock approximation of LRU). A message expires after its MQTT 5 Message Expiry Interval, or
+ * after the maximum age if it has none, and is dropped when it is next read or swept.
+ *
  * @author esotericman
  */
 public class LocalRetainedMessageProvider extends AbstractRetainedMessageProvider {
-  // 1024 topics default
-  private final Map<String, MqttMessage> retainedMessages = new ConcurrentHashMap<>(2 << 10);
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+  private static final long NEVER = Long.MAX_VALUE;
+  private static final int MESSAGE_EXPIRY_INTERVAL =
+      MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value();
+
+  private final TopicTrie<Retained> retainedMessages = new TopicTrie<>();
+  // Readers hold the read lock while they use a payload, payloads are released under write lock
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // Insertion order, swept by eviction; guarded by write lock like the counters below
+  private final Map<String, Retained> clock = new LinkedHashMap<>();
+  private final ByteBufAllocator allocator;
+  private final long maxBytes;
+  private final long maxAgeNanos;
+  private volatile long residentBytes;
+  private volatile long evictedCount;
+  private volatile long expiredCount;
 
+  public LocalRetainedMessageProvider() {
+    this(DEFAULT_MAX_BYTES, 0, PooledByteBufAllocator.DEFAULT);
+  }
+
+  /**
+   * Create provider with specific memory settings.
+   *
+   * @param maxBytes payload bytes kept before messages are evicted
+   * @param maxAgeMillis age of messages without Message Expiry Interval before they expire, 0 to
+   *     keep them until evicted
+   * @param allocator allocator of payload copies
+   */
+  public LocalRetainedMessageProvider(
+      long maxBytes, long maxAgeMillis, ByteBufAllocator allocator) {
+    this.maxBytes = maxBytes;
+    this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    this.allocator = allocator;
+  }
+
+  // Topic name looked up as is, a wildcard in it matches nothing
   @Override
   public MqttMessage getRetainedMessage(String topic) {
-    return retainedMessages.get(topic);
+    long now = System.nanoTime();
+    Retained retained;
+    lock.readLock().lock();
+    try {
+      retained = retainedMessages.get(topic, topic);
+      if (Objects.nonNull(retained) && !retained.isExpired(now)) {
+        retained.referenced = true;
+        MqttPublishMessage message = retained.message(now);
+        return message.replace(Unpooled.copiedBuffer(message.payload()));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (Objects.nonNull(retained)) {
+      expire(List.of(topic), now);
+    }
+    return null;
   }
 
   @Override
   public void setRetainedMessage(String topic, MqttMessage mqttMessage) {
-    retainedMessages.put(topic, mqttMessage);
+    if (!(mqttMessage instanceof MqttPublishMessage publishMessage)) {
+      return;
+    }
+    ByteBuf source = publishMessage.payload();
+    int size = source.readableBytes();
+    if (size > maxBytes) {
+      logger.warn("Retained message of {} bytes on {} exceeds budget, dropped", size, topic);
+      removeRetainedMessage(topic);
+      return;
+    }
+    ByteBuf payload = allocator.directBuffer(size).writeBytes(source, source.readerIndex(), size);
+    long now = System.nanoTime();
+    Retained retained =
+        new Retained(publishMessage.replace(payload), size, expiresAt(publishMessage, now));
+    lock.writeLock().lock();
+    try {
+      discard(retainedMessages.put(topic, topic, retained));
+      clock.remove(topic);
+      clock.put(topic, retained);
+      residentBytes += size;
+      evict();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void removeRetainedMessage(String topic) {
+    lock.writeLock().lock();
+    try {
+      Retained retained = retainedMessages.remove(topic, topic);
+      if (Objects.nonNull(retained)) {
+        clock.remove(topic);
+        discard(retained);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void retainedMessages(String topicFilter, Consumer<MqttPublishMessage> consumer) {
+    long now = System.nanoTime();
+    List<String> expired = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      retainedMessages.scan(
+          topicFilter,
+          (topic, retained) -> {
+            if (retained.isExpired(now)) {
+              expired.add(topic);
+              return;
+            }
+            retained.referenced = true;
+            consumer.accept(retained.message(now));
+          });
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (!expired.isEmpty()) {
+      expire(expired, now);
+    }
+  }
+
+  @Override
+  public int retainedCount() {
+    return retainedMessages.size();
+  }
+
+  /**
+   * Payload bytes held in direct memory.
+   *
+   * @return resident bytes
+   */
+  public long residentBytes() {
+    return residentBytes;
+  }
+
+  /**
+   * Count of messages evicted to stay within the byte budget.
+   *
+   * @return evicted count
+   */
+  public long evictedCount() {
+    return evictedCount;
+  }
+
+  /**
+   * Count of messages dropped after they expired.
+   *
+   * @return expired count
+   */
+  public long expiredCount() {
+    return expiredCount;
+  }
+
+  private void expire(List<String> topics, long now) {
+    lock.writeLock().lock();
+    try {
+      for (String topic : topics) {
+        Retained retained = clock.get(topic);
+        // Replaced since it was read, the new message is not expired
+        if (Objects.nonNull(retained) && retained.isExpired(now)) {
+          retainedMessages.remove(topic, topic);
+          clock.remove(topic);
+          discard(retained);
+          expiredCount++;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Sweep from the oldest message, one read since the last sweep buys it another round
+  private void evict() {
+    long now = System.nanoTime();
+    List<Map.Entry<String, Retained>> spared = new ArrayList<>();
+    Iterator<Map.Entry<String, Retained>> iterator = clock.entrySet().iterator();
+    while (residentBytes > maxBytes) {
+      if (!iterator.hasNext()) {
+        // Every message was read since the last sweep, sweep the spared ones again
+        spared.forEach(entry -> clock.put(entry.getKey(), entry.getValue()));
+        spared.clear();
+        iterator = clock.entrySet().iterator();
+        continue;
+      }
+      Map.Entry<String, Retained> entry = iterator.next();
+      Retained retained = entry.getValue();
+      iterator.remove();
+      if (retained.isExpired(now)) {
+        expiredCount++;
+      } else if (retained.referenced) {
+        retained.referenced = false;
+        spared.add(entry);
+        continue;
+      } else {
+        evictedCount++;
+      }
+      retainedMessages.remove(entry.getKey(), entry.getKey());
+      discard(retained);
+    }
+    // Spared messages move behind the ones never read
+    spared.forEach(entry -> clock.put(entry.getKey(), entry.getValue()));
+  }
+
+  private void discard(Retained retained) {
+    if (Objects.nonNull(retained)) {
+      residentBytes -= retained.size;
+      retained.message.release();
+    }
+  }
+
+  private long expiresAt(MqttPublishMessage publishMessage, long now) {
+    MqttProperties.MqttProperty<?> property =
+        publishMessage.variableHeader().properties().getProperty(MESSAGE_EXPIRY_INTERVAL);
+    if (property instanceof MqttProperties.IntegerProperty interval) {
+      return now + TimeUnit.SECONDS.toNanos(Integer.toUnsignedLong(interval.value()));
+    }
+    return maxAgeNanos > 0 ? now + maxAgeNanos : NEVER;
+  }
+
+  /** Retained message with its payload in direct memory */
+  private static final class Retained {
+    private final MqttPublishMessage message;
+    private final int size;
+    private final long expiresAt;
+    private final boolean hasExpiryInterval;
+    // Read since the last eviction sweep
+    private volatile boolean referenced;
+
+    private Retained(MqttPublishMessage message, int size, long expiresAt) {
+      this.message = message;
+      this.size = size;
+      this.expiresAt = expiresAt;
+      this.hasExpiryInterval =
+          Objects.nonNull(
+              message.variableHeader().properties().getProperty(MESSAGE_EXPIRY_INTERVAL));
+    }
+
+    private boolean isExpired(long now) {
+      return expiresAt != NEVER && now - expiresAt >= 0;
+    }
+
+    // Message Expiry Interval is sent as the time left
+    private MqttPublishMessage message(long now) {
+      if (!hasExpiryInterval) {
+        return message;
+      }
+      MqttProperties properties = new MqttProperties();
+      for (MqttProperties.MqttProperty<?> property :
+          message.variableHeader().properties().listAll()) {
+        if (property.propertyId() != MESSAGE_EXPIRY_INTERVAL) {
+          properties.add(property);
+        }
+      }
+      long remaining = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(expiresAt - now));
+      properties.add(
+          new MqttProperties.IntegerProperty(MESSAGE_EXPIRY_INTERVAL, (int) remaining));
+      MqttPublishVariableHeader variableHeader = message.variableHeader();
+      MqttFixedHeader fixedHeader = message.fixedHeader();
+      return new MqttPublishMessage(
+          fixedHeader,
+          new MqttPublishVariableHeader(
+              variableHeader.topicName(), variableHeader.packetId(), properties),
+          message.payload());
+    }
   }
 }
@@ -18,6 +18,8 @@ package org.flmelody.netcell.core.provider.retained;
 
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import java.util.function.Consumer;
 import org.flmelody.netcell.ProviderInteractor;
 import org.flmelody.netcell.core.interactor.Interactable;
 import org.flmelody.netcell.core.listener.MqttMessageListener;
@@ -50,6 +52,30 @@ public interface RetainedMessageProvider
    */
   void setRetainedMessage(String topic, MqttMessage mqttMessage);
 
+  /**
+   * Remove retained message of specific topic, as a retained PUBLISH with empty payload does.
+   *
+   * @param topic topic
+   */
+  void removeRetainedMessage(String topic);
+
+  /**
+   * Find retained messages whose topic matches the topic filter, as sent to a new subscription.
+   *
+   * @param topicFilter topic filter, may contain wildcards
+   * @param consumer consumer of retained messages, only valid during the call
+   */
+  void retainedMessages(String topicFilter, Consumer<MqttPublishMessage> consumer);
+
+  /**
+   * Count of topics with a retained message.
+   *
+   * @return retained count, 0 if not counted
+   */
+  default int retainedCount() {
+    return 0;
+  }
+
   default ProviderSeries series() {
     return ProviderSeries.RETAINED;
   }
@@ -66,6 +92,12 @@ public interface RetainedMessageProvider
     @Override
     public void setRetainedMessage(String topic, MqttMessage mqttMessage) {}
 
+    @Override
+    public void removeRetainedMessage(String topic) {}
+
+    @Override
+    public void retainedMessages(String topicFilter, Consumer<MqttPublishMessage> consumer) {}
+
     @Override
     public boolean interests(MqttMessageType mqttMessageType) {
       return false;
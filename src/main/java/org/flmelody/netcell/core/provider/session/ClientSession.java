@@ -16,7 +16,141 @@
 
 package org.flmelody.netcell.core.provider.session;
 
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.flmelody.netcell.core.provider.delivery.InflightWindow;
+import org.flmelody.netcell.core.provider.delivery.PacketIdSet;
+
 /**
+ * State of a client session: its subscriptions, outbound qos 1 and 2 messages in flight or queued
+ * while the client is offline, and inbound qos 2 packet ids not released yet. A persistent session
+ * keeps it across connections, a clean one drops it when it ends.
+ *
+ * <p>Binding to a connection and work that must not race a takeover synchronize on the session.
+ *
  * @author esotericman
  */
-public class ClientSession {}
+public class ClientSession {
+  private final String clientId;
+  // Topic filter -> granted qos
+  private final Map<String, MqttQoS> subscriptions = new ConcurrentHashMap<>();
+  private volatile PacketIdSet receivedPacketIds = new PacketIdSet();
+  private volatile InflightWindow inflightWindow;
+  private volatile ChannelHandlerContext context;
+  private volatile boolean persistent;
+  private volatile boolean present;
+
+  public ClientSession(String clientId) {
+    this.clientId = clientId;
+  }
+
+  /**
+   * Bind session to a new connection.
+   *
+   * @param context connection
+   * @param persistent whether session outlives connection
+   * @param present whether state of an earlier connection is resumed, otherwise it is reset
+   */
+  public synchronized void attach(
+      ChannelHandlerContext context, boolean persistent, boolean present) {
+    this.context = context;
+    this.persistent = persistent;
+    this.present = present;
+  }
+
+  /**
+   * Unbind session from connection, unless another one took it over meanwhile.
+   *
+   * @param context connection
+   * @return false if session is not bound to connection
+   */
+  public synchronized boolean detach(ChannelHandlerContext context) {
+    if (Objects.isNull(context) || this.context != context) {
+      return false;
+    }
+    this.context = null;
+    return true;
+  }
+
+  /** Drop all state, for a session that starts clean or ends. */
+  public synchronized void reset() {
+    subscriptions.clear();
+    receivedPacketIds = new PacketIdSet();
+    InflightWindow window = inflightWindow;
+    inflightWindow = null;
+    if (Objects.nonNull(window)) {
+      window.release();
+    }
+  }
+
+  public String clientId() {
+    return clientId;
+  }
+
+  /**
+   * Connection of session.
+   *
+   * @return connection, null while client is offline
+   */
+  public ChannelHandlerContext context() {
+    return context;
+  }
+
+  /**
+   * Whether session outlives connection, as told by the last connection.
+   *
+   * @return true if persistent
+   */
+  public boolean persistent() {
+    return persistent;
+  }
+
+  /**
+   * Whether the last connection resumed state of an earlier one, which is Session Present of its
+   * CONNACK.
+   *
+   * @return true if resumed
+   */
+  public boolean present() {
+    return present;
+  }
+
+  /**
+   * Subscriptions of session.
+   *
+   * @return topic filter to granted qos, modifiable
+   */
+  public Map<String, MqttQoS> subscriptions() {
+    return subscriptions;
+  }
+
+  public PacketIdSet receivedPacketIds() {
+    return receivedPacketIds;
+  }
+
+  /**
+   * Outbound qos 1 and 2 messages of session.
+   *
+   * @return in-flight window, null if not created yet
+   */
+  public InflightWindow inflightWindow() {
+    return inflightWindow;
+  }
+
+  /**
+   * Outbound qos 1 and 2 messages of session, created on first use.
+   *
+   * @param factory factory of window
+   * @return in-flight window
+   */
+  public synchronized InflightWindow inflightWindow(Supplier<InflightWindow> factory) {
+    if (Objects.isNull(inflightWindow)) {
+      inflightWindow = factory.get();
+    }
+    return inflightWindow;
+  }
+}
@@ -26,41 +26,94 @@ import io.netty.handler.codec.mqtt.MqttFixedHeader;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
 import io.netty.handler.codec.mqtt.MqttQoS;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collection;
+import java.util.Objects;
 import org.flmelody.netcell.core.constants.NettyAttributeKeys;
+import org.flmelody.netcell.core.provider.ProviderSeries;
+import org.flmelody.netcell.core.provider.persistence.PersistentStoreProvider;
+import org.flmelody.netcell.core.provider.persistence.StoredSession;
 
 /**
+ * Sessions kept in memory. A client connecting with the id of a connected client takes its session
+ * over and the old connection is closed. Persistent sessions stored before a restart are restored
+ * on the first connection, so their clients find them present.
+ *
  * @author esotericman
  */
 public class LocalSessionProvider extends AbstractTemporarySessionProvider {
-  protected static final Map<String, ChannelHandlerContext> clients =
-      new ConcurrentHashMap<>(2 << 10);
+  private final SessionRegistry registry = new SessionRegistry();
+  private volatile boolean restored;
 
   @Override
   public void connect(ChannelHandlerContext context, MqttConnectMessage mqttConnectMessage) {
-    clients.put(mqttConnectMessage.payload().clientIdentifier(), context);
-    context
-        .channel()
-        .attr(NettyAttributeKeys.MQTT_CLIENT_ID)
-        .set(mqttConnectMessage.payload().clientIdentifier());
+    if (!restored) {
+      restore();
+    }
+    String clientId = mqttConnectMessage.payload().clientIdentifier();
     MqttConnectVariableHeader mqttConnectVariableHeader = mqttConnectMessage.variableHeader();
+    boolean cleanSession = mqttConnectVariableHeader.isCleanSession();
+    context.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).set(clientId);
+    context.channel().attr(NettyAttributeKeys.MQTT_CLEAN_SESSION).set(cleanSession);
+    SessionRegistry.Takeover takeover = registry.connect(clientId, context, cleanSession);
+    context.channel().attr(NettyAttributeKeys.MQTT_SESSION).set(takeover.session());
+    if (Objects.nonNull(takeover.previous())) {
+      logger.info("Client {} connected again, closing its previous connection", clientId);
+      takeover.previous().close();
+    }
     MqttFixedHeader fixedHeader =
         new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
     MqttConnAckVariableHeader variableHeader =
         new MqttConnAckVariableHeader(
-            MqttConnectReturnCode.CONNECTION_ACCEPTED, !mqttConnectVariableHeader.isCleanSession());
+            MqttConnectReturnCode.CONNECTION_ACCEPTED, takeover.present());
     MqttConnAckMessage mqttConnAckMessage = new MqttConnAckMessage(fixedHeader, variableHeader);
     context.writeAndFlush(mqttConnAckMessage);
   }
 
   @Override
   public void disconnect(ChannelHandlerContext context, MqttMessage mqttMessage) {
-    clients.remove(context.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).get());
+    String clientId = context.channel().attr(NettyAttributeKeys.MQTT_CLIENT_ID).get();
+    if (Objects.nonNull(clientId)) {
+      registry.disconnect(clientId, context);
+    }
   }
 
   @Override
   public ChannelHandlerContext client(String clientId) {
-    return clients.get(clientId);
+    ClientSession session = registry.get(clientId);
+    return Objects.isNull(session) ? null : session.context();
+  }
+
+  @Override
+  public ClientSession session(String clientId) {
+    return registry.get(clientId);
+  }
+
+  @Override
+  public Collection<ClientSession> sessions() {
+    return registry.sessions();
+  }
+
+  /**
+   * Registry of sessions.
+   *
+   * @return session registry
+   */
+  public SessionRegistry registry() {
+    return registry;
+  }
+
+  private synchronized void restore() {
+    if (restored) {
+      return;
+    }
+    restored = true;
+    PersistentStoreProvider store =
+        providerInteractor.getProvider(ProviderSeries.PERSISTENCE, PersistentStoreProvider.class);
+    if (Objects.isNull(store)) {
+      return;
+    }
+    for (StoredSession storedSession : store.sessions()) {
+      registry.restore(storedSession.clientId(), storedSession.subscriptions());
+    }
   }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.provider.session;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sessions by client id, with atomic takeover. Every change of a client id runs under the lock of
+ * its bin in the map, so connects and disconnects of one client id are serialized while those of
+ * different ids rarely share a lock; lookups take no lock at all.
+ *
+ * @author esotericman
+ */
+public final class SessionRegistry {
+  private final Map<String, ClientSession> sessions;
+  private final LongAdder takeovers = new LongAdder();
+
+  public SessionRegistry() {
+    this(2 << 10);
+  }
+
+  /**
+   * Create registry.
+   *
+   * @param initialCapacity expected count of sessions
+   */
+  public SessionRegistry(int initialCapacity) {
+    this.sessions = new ConcurrentHashMap<>(initialCapacity);
+  }
+
+  /**
+   * Bind session of client to connection, creating it if missing. A connection still bound to the
+   * session is taken over, the caller closes it.
+   *
+   * @param clientId client id
+   * @param context new connection
+   * @param cleanSession whether state of an earlier connection is dropped
+   * @return session and connection taken over
+   */
+  public Takeover connect(String clientId, ChannelHandlerContext context, boolean cleanSession) {
+    Takeover[] takeover = new Takeover[1];
+    sessions.compute(
+        clientId,
+        (k, session) -> {
+          // State left by a clean session is never resumed
+          boolean present = !cleanSession && Objects.nonNull(session) && session.persistent();
+          if (Objects.isNull(session)) {
+            session = new ClientSession(clientId);
+          }
+          ChannelHandlerContext previous = session.context();
+          session.attach(context, !cleanSession, present);
+          takeover[0] = new Takeover(session, present, previous == context ? null : previous);
+          return session;
+        });
+    if (Objects.nonNull(takeover[0].previous())) {
+      takeovers.increment();
+    }
+    return takeover[0];
+  }
+
+  /**
+   * Unbind session from connection, a clean session ends. Nothing happens if another connection
+   * took the session over.
+   *
+   * @param clientId client id
+   * @param context connection
+   * @return false if connection was not bound to session
+   */
+  public boolean disconnect(String clientId, ChannelHandlerContext context) {
+    boolean[] detached = new boolean[1];
+    sessions.computeIfPresent(
+        clientId,
+        (k, session) -> {
+          detached[0] = session.detach(context);
+          return detached[0] && !session.persistent() ? null : session;
+        });
+    return detached[0];
+  }
+
+  /**
+   * Add persistent session recovered from store, offline until its client connects.
+   *
+   * @param clientId client id
+   * @param subscriptions subscriptions of session
+   */
+  public void restore(String clientId, Map<String, MqttQoS> subscriptions) {
+    sessions.compute(
+        clientId,
+        (k, session) -> {
+          if (Objects.isNull(session)) {
+            session = new ClientSession(clientId);
+            session.attach(null, true, true);
+            session.subscriptions().putAll(subscriptions);
+          }
+          return session;
+        });
+  }
+
+  public ClientSession get(String clientId) {
+    return sessions.get(clientId);
+  }
+
+  public Collection<ClientSession> sessions() {
+    return sessions.values();
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Count of connections taken over by a new connection of the same client id.
+   *
+   * @return takeover count
+   */
+  public long takeoverCount() {
+    return takeovers.sum();
+  }
+
+  /**
+   * Outcome of a connect.
+   *
+   * @param session session now bound to the new connection
+   * @param present whether state of an earlier connection is resumed
+   * @param previous connection taken over, null if none
+   */
+  public record Takeover(ClientSession session, boolean present, ChannelHandlerContext previous) {}
+}
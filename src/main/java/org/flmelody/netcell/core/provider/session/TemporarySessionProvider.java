@@ -20,6 +20,8 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
+import java.util.Collection;
+import java.util.List;
 import org.flmelody.netcell.ProviderInteractor;
 import org.flmelody.netcell.core.interactor.Interactable;
 import org.flmelody.netcell.core.listener.MqttMessageListener;
@@ -42,6 +44,21 @@ public interface TemporarySessionProvider
 
   ChannelHandlerContext client(String clientId);
 
+  /**
+   * Session of client, whether it is connected or not.
+   *
+   * @param clientId client id
+   * @return session, null if client has none
+   */
+  ClientSession session(String clientId);
+
+  /**
+   * All sessions, connected or not.
+   *
+   * @return sessions
+   */
+  Collection<ClientSession> sessions();
+
   default ProviderSeries series() {
     return ProviderSeries.SESSION;
   }
@@ -66,6 +83,16 @@ public interface TemporarySessionProvider
       return null;
     }
 
+    @Override
+    public ClientSession session(String clientId) {
+      return null;
+    }
+
+    @Override
+    public Collection<ClientSession> sessions() {
+      return List.of();
+    }
+
     @Override
     public TemporarySessionProvider withActor(ProviderInteractor interactor) {
       return this;
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Concurrent topic tree, every level of a topic is a node of the tree and each node holds values
+ * keyed by an owner (e.g. client id). Lookups are lock free and their cost depends on the depth of
+ * the topic instead of the number of stored entries, mutations are serialized.
+ *
+ * @param <V> type of value
+ * @author esotericman
+ */
+public final class TopicTrie<V> {
+  private final Node<V> root = new Node<>();
+  private volatile int size;
+
+  /**
+   * Store value for key under topic.
+   *
+   * @param topic topic filter or topic name
+   * @param key owner of value
+   * @param value value
+   * @return previous value, or null
+   */
+  public synchronized V put(String topic, String key, V value) {
+    Node<V> node = root;
+    for (String level : Topics.split(topic)) {
+      node = node.children.computeIfAbsent(level, k -> new Node<>());
+    }
+    V previous = node.values.put(key, value);
+    if (Objects.isNull(previous)) {
+      size++;
+    }
+    return previous;
+  }
+
+  /**
+   * Remove value of key under topic, empty nodes are pruned.
+   *
+   * @param topic topic filter or topic name
+   * @param key owner of value
+   * @return removed value, or null
+   */
+  public synchronized V remove(String topic, String key) {
+    return remove(topic, key, value -> true);
+  }
+
+  /**
+   * Remove value of key under topic if it satisfies condition, empty nodes are pruned.
+   *
+   * @param topic topic filter or topic name
+   * @param key owner of value
+   * @param condition condition of removal
+   * @return removed value, or null
+   */
+  public synchronized V remove(String topic, String key, Predicate<? super V> condition) {
+    String[] levels = Topics.split(topic);
+    List<Node<V>> path = new ArrayList<>(levels.length + 1);
+    path.add(root);
+    for (int i = 0; i < levels.length; i++) {
+      Node<V> child = path.get(i).children.get(levels[i]);
+      if (Objects.isNull(child)) {
+        return null;
+      }
+      path.add(child);
+    }
+    Map<String, V> values = path.get(levels.length).values;
+    V removed = values.get(key);
+    if (Objects.isNull(removed) || !condition.test(removed)) {
+      return null;
+    }
+    values.remove(key);
+    size--;
+    for (int i = levels.length; i > 0 && path.get(i).isEmpty(); i--) {
+      path.get(i - 1).children.remove(levels[i - 1], path.get(i));
+    }
+    return removed;
+  }
+
+  /**
+   * Value of key stored under exactly this topic, wildcards are plain levels here.
+   *
+   * @param topic topic filter or topic name
+   * @param key owner of value
+   * @return value, or null
+   */
+  public V get(String topic, String key) {
+    Node<V> node = root;
+    for (String level : Topics.split(topic)) {
+      node = node.children.get(level);
+      if (Objects.isNull(node)) {
+        return null;
+      }
+    }
+    return node.values.get(key);
+  }
+
+  /**
+   * Find values stored under topic filters matching the topic name, wildcards are honored and
+   * wildcards at the first level never match system topics starting with '$'.
+   *
+   * @param topicName concrete topic name
+   * @param consumer consumer of key and value, may be called multiple times for the same key
+   */
+  public void match(String topicName, BiConsumer<String, V> consumer) {
+    match(root, Topics.split(topicName), 0, Topics.isSystemTopic(topicName), consumer);
+  }
+
+  private void match(
+      Node<V> node,
+      String[] levels,
+      int index,
+      boolean systemTopic,
+      BiConsumer<String, V> consumer) {
+    boolean wildcardAllowed = index > 0 || !systemTopic;
+    if (wildcardAllowed) {
+      // '#' also matches the parent level, so 'a/#' matches 'a'
+      Node<V> multi = node.children.get(Topics.MULTI_LEVEL_WILDCARD);
+      if (Objects.nonNull(multi)) {
+        multi.values.forEach(consumer);
+      }
+    }
+    if (index == levels.length) {
+      node.values.forEach(consumer);
+      return;
+    }
+    if (wildcardAllowed) {
+      Node<V> single = node.children.get(Topics.SINGLE_LEVEL_WILDCARD);
+      if (Objects.nonNull(single)) {
+        match(single, levels, index + 1, systemTopic, consumer);
+      }
+    }
+    Node<V> exact = node.children.get(levels[index]);
+    if (Objects.nonNull(exact)) {
+      match(exact, levels, index + 1, systemTopic, consumer);
+    }
+  }
+
+  /**
+   * Find values stored under topic names matching the topic filter, the reverse of {@link
+   * #match(String, BiConsumer)}. Only branches selected by the filter are visited, so a filter
+   * without wildcards costs its depth and a wildcard costs the entries it matches.
+   *
+   * @param topicFilter topic filter, may contain wildcards
+   * @param consumer consumer of key and value
+   */
+  public void scan(String topicFilter, BiConsumer<String, V> consumer) {
+    scan(root, Topics.split(topicFilter), 0, consumer);
+  }
+
+  private void scan(Node<V> node, String[] levels, int index, BiConsumer<String, V> consumer) {
+    if (index == levels.length) {
+      node.values.forEach(consumer);
+      return;
+    }
+    String level = levels[index];
+    if (Topics.MULTI_LEVEL_WILDCARD.equals(level)) {
+      // '#' also matches the parent level, so 'a/#' matches 'a'
+      node.values.forEach(consumer);
+      node.children.forEach(
+          (name, child) -> {
+            if (index > 0 || !Topics.isSystemTopic(name)) {
+              scanAll(child, consumer);
+            }
+          });
+    } else if (Topics.SINGLE_LEVEL_WILDCARD.equals(level)) {
+      node.children.forEach(
+          (name, child) -> {
+            if (index > 0 || !Topics.isSystemTopic(name)) {
+              scan(child, levels, index + 1, consumer);
+            }
+          });
+    } else {
+      Node<V> exact = node.children.get(level);
+      if (Objects.nonNull(exact)) {
+        scan(exact, levels, index + 1, consumer);
+      }
+    }
+  }
+
+  private void scanAll(Node<V> node, BiConsumer<String, V> consumer) {
+    node.values.forEach(consumer);
+    for (Node<V> child : node.children.values()) {
+      scanAll(child, consumer);
+    }
+  }
+
+  /**
+   * Count of stored values.
+   *
+   * @return size
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Node of topic tree */
+  private static final class Node<V> {
+    private final Map<String, Node<V>> children = new ConcurrentHashMap<>(4);
+    private final Map<String, V> values = new ConcurrentHashMap<>(4);
+
+    private boolean isEmpty() {
+      return children.isEmpty() && values.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Helpers for MQTT topic names and topic filters.
+ *
+ * @author esotericman
+ */
+public final class Topics {
+  public static final char SEPARATOR = '/';
+  public static final String SINGLE_LEVEL_WILDCARD = "+";
+  public static final String MULTI_LEVEL_WILDCARD = "#";
+  public static final char SYSTEM_PREFIX = '$';
+  public static final String SHARED_PREFIX = "$share/";
+
+  private Topics() {}
+
+  /**
+   * Split topic into levels, empty levels are kept as the spec requires.
+   *
+   * @param topic topic name or topic filter
+   * @return levels of topic
+   */
+  public static String[] split(String topic) {
+    List<String> levels = new ArrayList<>(8);
+    int start = 0;
+    int index;
+    while ((index = topic.indexOf(SEPARATOR, start)) >= 0) {
+      levels.add(topic.substring(start, index));
+      start = index + 1;
+    }
+    levels.add(topic.substring(start));
+    return levels.toArray(new String[0]);
+  }
+
+  /**
+   * Whether topic is a system topic, wildcards at the first level never match them.
+   *
+   * @param topic topic name
+   * @return true if topic starts with '$'
+   */
+  public static boolean isSystemTopic(String topic) {
+    return !topic.isEmpty() && topic.charAt(0) == SYSTEM_PREFIX;
+  }
+
+  /**
+   * Check topic name used by PUBLISH, wildcards are not allowed.
+   *
+   * @param topicName topic name
+   * @return true if valid
+   */
+  public static boolean isValidTopicName(String topicName) {
+    if (Objects.isNull(topicName) || topicName.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < topicName.length(); i++) {
+      char c = topicName.charAt(i);
+      if (c == '+' || c == '#' || c == '\u0000') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check topic filter used by SUBSCRIBE, '+' must occupy an entire level and '#' must be the last
+   * level.
+   *
+   * @param topicFilter topic filter
+   * @return true if valid
+   */
+  public static boolean isValidTopicFilter(String topicFilter) {
+    if (Objects.isNull(topicFilter) || topicFilter.isEmpty()) {
+      return false;
+    }
+    int length = topicFilter.length();
+    for (int i = 0; i < length; i++) {
+      char c = topicFilter.charAt(i);
+      if (c == '\u0000') {
+        return false;
+      }
+      if (c == '+' || c == '#') {
+        boolean levelStart = i == 0 || topicFilter.charAt(i - 1) == SEPARATOR;
+        boolean levelEnd = i == length - 1 || topicFilter.charAt(i + 1) == SEPARATOR;
+        if (!levelStart || !levelEnd) {
+          return false;
+        }
+        if (c == '#' && i != length - 1) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether topic filter subscribes to a shared group, as in {@code $share/{ShareName}/{filter}}.
+   *
+   * @param topicFilter topic filter
+   * @return true if shared
+   */
+  public static boolean isShared(String topicFilter) {
+    return topicFilter.startsWith(SHARED_PREFIX);
+  }
+
+  /**
+   * Check shared subscription: share name must be a non-empty level without wildcards, followed by
+   * a valid topic filter.
+   *
+   * @param topicFilter topic filter starting with {@link #SHARED_PREFIX}
+   * @return true if valid
+   */
+  public static boolean isValidSharedSubscription(String topicFilter) {
+    int end = topicFilter.indexOf(SEPARATOR, SHARED_PREFIX.length());
+    if (end <= SHARED_PREFIX.length()) {
+      return false;
+    }
+    String shareName = topicFilter.substring(SHARED_PREFIX.length(), end);
+    return !hasWildcard(shareName) && isValidTopicFilter(topicFilter.substring(end + 1));
+  }
+
+  /**
+   * Share name of a valid shared subscription.
+   *
+   * @param topicFilter shared topic filter
+   * @return share name
+   */
+  public static String shareName(String topicFilter) {
+    return topicFilter.substring(
+        SHARED_PREFIX.length(), topicFilter.indexOf(SEPARATOR, SHARED_PREFIX.length()));
+  }
+
+  /**
+   * Topic filter matched by a valid shared subscription, without its prefix and share name.
+   *
+   * @param topicFilter shared topic filter
+   * @return topic filter
+   */
+  public static String sharedTopicFilter(String topicFilter) {
+    return topicFilter.substring(topicFilter.indexOf(SEPARATOR, SHARED_PREFIX.length()) + 1);
+  }
+
+  /**
+   * Whether topic filter contains any wildcard.
+   *
+   * @param topicFilter topic filter
+   * @return true if wildcard present
+   */
+  public static boolean hasWildcard(String topicFilter) {
+    return topicFilter.indexOf('+') >= 0 || topicFilter.indexOf('#') >= 0;
+  }
+
+  /**
+   * Match a single topic filter against a topic name.
+   *
+   * @param topicFilter topic filter, may contain wildcards
+   * @param topicName topic name
+   * @return true if matched
+   */
+  public static boolean matches(String topicFilter, String topicName) {
+    if (isSystemTopic(topicName)
+        && !topicFilter.isEmpty()
+        && (topicFilter.charAt(0) == '+' || topicFilter.charAt(0) == '#')) {
+      return false;
+    }
+    String[] filterLevels = split(topicFilter);
+    String[] nameLevels = split(topicName);
+    int i = 0;
+    for (; i < filterLevels.length; i++) {
+      String level = filterLevels[i];
+      if (MULTI_LEVEL_WILDCARD.equals(level)) {
+        return true;
+      }
+      if (i >= nameLevels.length) {
+        return false;
+      }
+      if (!SINGLE_LEVEL_WILDCARD.equals(level) && !level.equals(nameLevels[i])) {
+        return false;
+      }
+    }
+    return i == nameLevels.length;
+  }
+}
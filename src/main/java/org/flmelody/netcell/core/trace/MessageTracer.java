@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2023 Flmelody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.flmelody.netcell.core.trace;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.internal.PlatformDependent;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Structured event log of selected clients, for debugging a client without turning on global
+ * logging. Messages are recorded as they are received and as encoded packets when sent. Event
+ * loops only enqueue events into a bounded lock-free queue, a daemon thread writes them to logger
+ * {@code org.flmelody.netcell.trace}. Events are dropped rather than blocking when the queue is
+ * full.
+ *
+ * @author esotericman
+ */
+public final class MessageTracer {
+  private static final Logger logger = LoggerFactory.getLogger("org.flmelody.netcell.trace");
+  private static final int QUEUE_CAPACITY = 1 << 16;
+  private static final Queue<TraceEvent> events = PlatformDependent.newMpscQueue(QUEUE_CAPACITY);
+  private static final LongAdder dropped = new LongAdder();
+  // Copy on write, read on every message
+  private static volatile Set<String> tracedClients = Set.of();
+  private static volatile Thread writer;
+  // Writer is parked until an event arrives
+  private static volatile boolean idle;
+
+  private MessageTracer() {}
+
+  /**
+   * Start tracing messages of client.
+   *
+   * @param clientId client id
+   */
+  public static synchronized void trace(String clientId) {
+    Set<String> clients = new HashSet<>(tracedClients);
+    clients.add(Objects.requireNonNull(clientId));
+    tracedClients = Set.copyOf(clients);
+    if (Objects.isNull(writer)) {
+      writer = new Thread(MessageTracer::write, "netcell-tracer");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+
+  /**
+   * Stop tracing messages of client.
+   *
+   * @param clientId client id
+   */
+  public static synchronized void untrace(String clientId) {
+    Set<String> clients = new HashSet<>(tracedClients);
+    clients.remove(clientId);
+    tracedClients = Set.copyOf(clients);
+  }
+
+  /**
+   * Whether any client is traced, a cheap check before looking up client id.
+   *
+   * @return true if tracing
+   */
+  public static boolean enabled() {
+    return !tracedClients.isEmpty();
+  }
+
+  /**
+   * Whether client is traced.
+   *
+   * @param clientId client id, may be null before CONNECT
+   * @return true if traced
+   */
+  public static boolean traced(String clientId) {
+    return Objects.nonNull(clientId) && tracedClients.contains(clientId);
+  }
+
+  /**
+   * Record message of a traced client.
+   *
+   * @param clientId client id
+   * @param direction "in" or "out"
+   * @param mqttMessage message
+   */
+  public static void record(String clientId, String direction, MqttMessage mqttMessage) {
+    if (!traced(clientId)) {
+      return;
+    }
+    int packetId = -1;
+    String topic = null;
+    int payloadSize = -1;
+    if (mqttMessage instanceof MqttPublishMessage publishMessage) {
+      packetId = publishMessage.variableHeader().packetId();
+      topic = publishMessage.variableHeader().topicName();
+      payloadSize = publishMessage.payload().readableBytes();
+    } else if (mqttMessage.variableHeader() instanceof MqttMessageIdVariableHeader idHeader) {
+      packetId = idHeader.messageId();
+    }
+    TraceEvent event =
+        new TraceEvent(
+            System.currentTimeMillis(),
+            clientId,
+            direction,
+            mqttMessage.fixedHeader().messageType().name(),
+            mqttMessage.fixedHeader().qosLevel().value(),
+            packetId,
+            topic,
+            payloadSize);
+    enqueue(event);
+  }
+
+  /**
+   * Record packet sent to a traced client, as encoded on the wire.
+   *
+   * @param clientId client id, may be null before CONNECT
+   * @param frame exactly one encoded packet, not consumed
+   * @param version protocol level of client
+   */
+  public static void recordSent(String clientId, ByteBuf frame, MqttVersion version) {
+    if (!traced(clientId)) {
+      return;
+    }
+    int start = frame.readerIndex();
+    int first = frame.getUnsignedByte(start);
+    MqttMessageType type = MqttMessageType.valueOf(first >> 4);
+    int offset = 1;
+    int remainingLength = 0;
+    int shift = 0;
+    byte digit;
+    do {
+      digit = frame.getByte(start + offset++);
+      remainingLength |= (digit & 0x7F) << shift;
+      shift += 7;
+    } while ((digit & 0x80) != 0);
+    int end = offset + remainingLength;
+    int packetId = -1;
+    String topic = null;
+    int payloadSize = -1;
+    switch (type) {
+      case PUBLISH:
+        int topicLength = frame.getUnsignedShort(start + offset);
+        topic = frame.toString(start + offset + 2, topicLength, StandardCharsets.UTF_8);
+        offset += 2 + topicLength;
+        if ((first & 0x06) != 0) {
+          packetId = frame.getUnsignedShort(start + offset);
+          offset += 2;
+        }
+        if (MqttVersion.MQTT_5.equals(version)) {
+          int propertiesLength = 0;
+          shift = 0;
+          do {
+            digit = frame.getByte(start + offset++);
+            propertiesLength |= (digit & 0x7F) << shift;
+            shift += 7;
+          } while ((digit & 0x80) != 0);
+          offset += propertiesLength;
+        }
+        payloadSize = end - offset;
+        break;
+      case PUBACK:
+      case PUBREC:
+      case PUBREL:
+      case PUBCOMP:
+      case SUBACK:
+      case UNSUBACK:
+        packetId = frame.getUnsignedShort(start + offset);
+        break;
+      default:
+    }
+    enqueue(
+        new TraceEvent(
+            System.currentTimeMillis(),
+            clientId,
+            "out",
+            type.name(),
+            (first & 0x06) >> 1,
+            packetId,
+            topic,
+            payloadSize));
+  }
+
+  private static void enqueue(TraceEvent event) {
+    if (!events.offer(event)) {
+      dropped.increment();
+    } else if (idle) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Events dropped because the queue was full.
+   *
+   * @return dropped events
+   */
+  public static long droppedCount() {
+    return dropped.sum();
+  }
+
+  private static void write() {
+    while (!Thread.currentThread().isInterrupted()) {
+      TraceEvent event = events.poll();
+      if (Objects.isNull(event)) {
+        idle = true;
+        // Recheck, an event queued before idle was set did not unpark writer
+        if (events.isEmpty()) {
+          LockSupport.park(MessageTracer.class);
+        }
+        idle = false;
+        continue;
+      }
+      logger
+          .atInfo()
+          .addKeyValue("ts", event.timestamp())
+          .addKeyValue("clientId", event.clientId())
+          .addKeyValue("dir", event.direction())
+          .addKeyValue("type", event.type())
+          .addKeyValue("qos", event.qos())
+          .addKeyValue("packetId", event.packetId())
+          .addKeyValue("topic", event.topic())
+          .addKeyValue("payloadSize", event.payloadSize())
+          .log("mqtt {} {} {}", event.direction(), event.clientId(), event.type());
+    }
+  }
+
+  /** Traced event */
+  private record TraceEvent(
+      long timestamp,
+      String clientId,
+      String direction,
+      String type,
+      int qos,
+      int packetId,
+      String topic,
+      int payloadSize) {}
+}
@@ -1,13 +1,73 @@
 package org.flmelody.netcell;
 
-import org.flmelody.netcell.core.provider.delivery.LocalMessageDeliveryProvider;
-import org.flmelody.netcell.core.provider.session.LocalSessionProvider;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConstant;
+import io.netty.util.ReferenceCountUtil;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.junit.jupiter.api.Test;
 
 /**
  * @author esotericman
  */
 public class MqttBrokerTest {
-  public static void main(String[] args) throws Exception {
-    Netcell.setup().use(new LocalSessionProvider(), new LocalMessageDeliveryProvider()).run();
+  private static final int PINGS = 10;
+
+  /** Counts flushes reaching the transport */
+  private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+    private int flushes;
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+      flushes++;
+      ctx.flush();
+    }
+  }
+
+  private static EmbeddedChannel channel(FlushCounter flushCounter, int maxPendingFlushes) {
+    return new EmbeddedChannel(
+        flushCounter,
+        new MqttBroker.BrokerChannelInitializer(
+            new ProviderManager(),
+            new BrokerMetrics(),
+            null,
+            maxPendingFlushes,
+            MqttConstant.DEFAULT_MAX_BYTES_IN_MESSAGE));
+  }
+
+  // PINGREQ packets arriving in one read, each one answered with writeAndFlush
+  private static void readPings(EmbeddedChannel channel) {
+    ByteBuf[] pings = new ByteBuf[PINGS];
+    for (int i = 0; i < PINGS; i++) {
+      pings[i] = Unpooled.wrappedBuffer(new byte[] {(byte) 0xC0, 0});
+    }
+    channel.writeInbound((Object[]) pings);
+    assertEquals(PINGS, channel.outboundMessages().size());
+    channel.outboundMessages().forEach(ReferenceCountUtil::release);
+    channel.outboundMessages().clear();
+  }
+
+  @Test
+  public void flushEveryAnswerWithoutConsolidation() {
+    FlushCounter flushCounter = new FlushCounter();
+    EmbeddedChannel channel = channel(flushCounter, 0);
+    readPings(channel);
+    assertEquals(PINGS, flushCounter.flushes);
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void coalesceFlushesOfOneRead() {
+    FlushCounter flushCounter = new FlushCounter();
+    EmbeddedChannel channel = channel(flushCounter, 4);
+    readPings(channel);
+    // Every fourth flush goes through during the read, the rest once the read completes
+    assertEquals(PINGS / 4 + 1, flushCounter.flushes);
+    channel.finishAndReleaseAll();
   }
 }
@@ -0,0 +1,86 @@
+package org.flmelody.netcell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.flmelody.netcell.core.listener.MqttMessageListener;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class MqttDispatcherTest {
+  private final List<String> calls = new ArrayList<>();
+
+  /** Listener recording its calls, continuing the chain or not */
+  private final class RecordingListener implements MqttMessageListener {
+    private final String name;
+    private final Set<MqttMessageType> messageTypes;
+    private final boolean proceed;
+
+    private RecordingListener(String name, boolean proceed, MqttMessageType... messageTypes) {
+      this.name = name;
+      this.proceed = proceed;
+      this.messageTypes = Set.of(messageTypes);
+    }
+
+    @Override
+    public boolean interests(MqttMessageType mqttMessageType) {
+      return messageTypes.contains(mqttMessageType);
+    }
+
+    @Override
+    public boolean handle(ChannelHandlerContext context, MqttMessage mqttMessage) {
+      calls.add(name + ":" + mqttMessage.fixedHeader().messageType());
+      return proceed;
+    }
+  }
+
+  @Test
+  public void dispatchOnlyToInterestedListeners() {
+    MqttDispatcher dispatcher =
+        new MqttDispatcher()
+            .assembleListeners(
+                new RecordingListener("ping", true, MqttMessageType.PINGREQ),
+                new RecordingListener(
+                    "session", true, MqttMessageType.PINGREQ, MqttMessageType.DISCONNECT),
+                new RecordingListener("disconnect", true, MqttMessageType.DISCONNECT));
+    dispatcher.dispatch(null, MqttMessage.PINGREQ);
+    dispatcher.dispatch(null, MqttMessage.DISCONNECT);
+    dispatcher.dispatch(null, MqttMessage.PINGRESP);
+    assertEquals(
+        List.of("ping:PINGREQ", "session:PINGREQ", "session:DISCONNECT", "disconnect:DISCONNECT"),
+        calls);
+  }
+
+  @Test
+  public void stopChainWhenListenerReturnsFalse() {
+    MqttDispatcher dispatcher =
+        new MqttDispatcher()
+            .assembleListeners(
+                new RecordingListener("first", true, MqttMessageType.PINGREQ),
+                new RecordingListener("stop", false, MqttMessageType.PINGREQ),
+                new RecordingListener("last", true, MqttMessageType.PINGREQ));
+    dispatcher.dispatch(null, MqttMessage.PINGREQ);
+    dispatcher.dispatch(null, MqttMessage.PINGREQ);
+    assertEquals(List.of("first:PINGREQ", "stop:PINGREQ", "first:PINGREQ", "stop:PINGREQ"), calls);
+  }
+
+  @Test
+  public void replaceListenersOnAssemble() {
+    MqttDispatcher dispatcher =
+        new MqttDispatcher()
+            .assembleListeners(new RecordingListener("old", true, MqttMessageType.PINGREQ));
+    dispatcher.assembleListeners(new RecordingListener("new", true, MqttMessageType.PINGREQ));
+    dispatcher.dispatch(null, MqttMessage.PINGREQ);
+    assertEquals(List.of("new:PINGREQ"), calls);
+    // Nothing assembled for a type, nothing called
+    new MqttDispatcher().dispatch(null, MqttMessage.PINGREQ);
+    assertEquals(1, calls.size());
+  }
+}
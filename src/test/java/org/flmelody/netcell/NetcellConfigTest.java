@@ -0,0 +1,81 @@
+package org.flmelody.netcell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.codec.mqtt.MqttConstant;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.flmelody.netcell.core.Transport;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class NetcellConfigTest {
+
+  private static NetcellConfig load(String text) {
+    return NetcellConfig.load(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void defaults() {
+    NetcellConfig config = NetcellConfig.builder().build();
+    assertEquals(Transport.NIO, config.transport());
+    assertEquals(1, config.acceptors());
+    assertTrue(config.tcpNoDelay());
+    assertEquals(WriteBufferWaterMark.DEFAULT, config.writeBufferWaterMark());
+    assertEquals(MqttConstant.DEFAULT_MAX_BYTES_IN_MESSAGE, config.maxBytesInMessage());
+    assertSame(ByteBufAllocator.DEFAULT, config.newAllocator());
+  }
+
+  @Test
+  public void loadProperties() {
+    NetcellConfig config =
+        load(
+            """
+            port=18831
+            transport=epoll
+            backlog=4096
+            tcpNoDelay=false
+            writeBufferLowWaterMark=1024
+            writeBufferHighWaterMark=4096
+            allocator=pooled_heap
+            allocatorArenas=2
+            maxBytesInMessage=262144
+            """);
+    assertEquals(18831, config.port());
+    assertEquals(Transport.EPOLL, config.transport());
+    assertEquals(4096, config.backlog());
+    assertFalse(config.tcpNoDelay());
+    assertEquals(1024, config.writeBufferWaterMark().low());
+    assertEquals(4096, config.writeBufferWaterMark().high());
+    assertEquals(262144, config.maxBytesInMessage());
+    PooledByteBufAllocator allocator = (PooledByteBufAllocator) config.newAllocator();
+    ByteBuf buffer = allocator.buffer();
+    assertFalse(buffer.isDirect());
+    buffer.release();
+    assertEquals(2, allocator.metric().numHeapArenas());
+  }
+
+  @Test
+  public void loadFlatYaml() {
+    NetcellConfig config = load("workerThreads: 8\nsysIntervalSeconds: 0\n");
+    assertEquals(8, config.workerThreads());
+    assertEquals(0, config.sysIntervalSeconds());
+  }
+
+  @Test
+  public void rejectUnknownOrInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> load("prot=1883"));
+    assertThrows(IllegalArgumentException.class, () -> load("acceptors=0"));
+    assertThrows(IllegalArgumentException.class, () -> load("allocator=jemalloc"));
+  }
+}
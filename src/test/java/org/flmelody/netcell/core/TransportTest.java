@@ -0,0 +1,29 @@
+package org.flmelody.netcell.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.channel.EventLoopGroup;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class TransportTest {
+
+  @Test
+  public void resolveToAvailableTransport() {
+    assertEquals(Transport.NIO, Transport.NIO.resolve());
+    for (Transport transport : Transport.values()) {
+      Transport resolved = transport.resolve();
+      assertTrue(resolved.isAvailable());
+      assertTrue(resolved.ordinal() <= transport.ordinal());
+    }
+  }
+
+  @Test
+  public void createEventLoopsOfResolvedTransport() {
+    EventLoopGroup group = Transport.IO_URING.resolve().newEventLoopGroup(1);
+    group.shutdownGracefully().syncUninterruptibly();
+  }
+}
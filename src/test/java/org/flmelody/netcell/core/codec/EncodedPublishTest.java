@@ -0,0 +1,172 @@
+package org.flmelody.netcell.core.codec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.AttributeKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class EncodedPublishTest {
+
+  private static MqttPublishMessage publish(MqttQoS qos, int packetId, MqttProperties properties) {
+    return new MqttPublishMessage(
+        new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+        new MqttPublishVariableHeader("sensors/1/temp", packetId, properties),
+        Unpooled.copiedBuffer("21.5", StandardCharsets.UTF_8));
+  }
+
+  private static String encodeWithNetty(MqttPublishMessage message, MqttVersion version) {
+    EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+    channel.attr(AttributeKey.<MqttVersion>valueOf("NETTY_CODEC_MQTT_VERSION")).set(version);
+    channel.writeOutbound(message);
+    ByteBuf encoded = channel.readOutbound();
+    try {
+      return ByteBufUtil.hexDump(encoded);
+    } finally {
+      encoded.release();
+      channel.finishAndReleaseAll();
+    }
+  }
+
+  // Message Expiry Interval of a frame encoded for MQTT 5, null if it has none
+  private static Integer expiryInterval(ByteBuf frame) {
+    EmbeddedChannel channel = new EmbeddedChannel(new MqttDecoder());
+    channel
+        .attr(AttributeKey.<MqttVersion>valueOf("NETTY_CODEC_MQTT_VERSION"))
+        .set(MqttVersion.MQTT_5);
+    channel.writeInbound(frame);
+    MqttPublishMessage message = channel.readInbound();
+    try {
+      MqttProperties.MqttProperty<?> property =
+          message.variableHeader().properties().getProperty(0x02);
+      return Objects.isNull(property) ? null : (Integer) property.value();
+    } finally {
+      message.release();
+      channel.finishAndReleaseAll();
+    }
+  }
+
+  private static MqttProperties expiryProperties(int interval) {
+    MqttProperties properties = new MqttProperties();
+    properties.add(new MqttProperties.IntegerProperty(0x02, interval));
+    properties.add(new MqttProperties.UserProperty("region", "eu"));
+    return properties;
+  }
+
+  private static String hexDump(ByteBuf frame) {
+    try {
+      return ByteBufUtil.hexDump(frame);
+    } finally {
+      frame.release();
+    }
+  }
+
+  @Test
+  public void sameBytesAsMqttEncoder() {
+    MqttPublishMessage message = publish(MqttQoS.AT_LEAST_ONCE, 7, MqttProperties.NO_PROPERTIES);
+    EncodedPublish encodedPublish = new EncodedPublish(message, Unpooled.buffer().alloc());
+    assertEquals(
+        encodeWithNetty(publish(MqttQoS.AT_LEAST_ONCE, 7, null), MqttVersion.MQTT_3_1_1),
+        hexDump(encodedPublish.frame(MqttVersion.MQTT_3_1_1, MqttQoS.AT_LEAST_ONCE, 7)));
+    assertEquals(
+        encodeWithNetty(publish(MqttQoS.AT_LEAST_ONCE, 42, null), MqttVersion.MQTT_3_1_1),
+        hexDump(encodedPublish.frame(MqttVersion.MQTT_3_1_1, MqttQoS.AT_LEAST_ONCE, 42)));
+    assertEquals(
+        encodeWithNetty(publish(MqttQoS.AT_MOST_ONCE, 0, null), MqttVersion.MQTT_3_1_1),
+        hexDump(encodedPublish.frame(MqttVersion.MQTT_3_1_1, MqttQoS.AT_MOST_ONCE, 0)));
+    encodedPublish.release();
+    message.release();
+  }
+
+  @Test
+  public void forwardPropertiesOfMqtt5() {
+    MqttProperties properties = new MqttProperties();
+    properties.add(new MqttProperties.StringProperty(0x03, "text/plain"));
+    properties.add(new MqttProperties.UserProperty("region", "eu"));
+    MqttPublishMessage message = publish(MqttQoS.AT_LEAST_ONCE, 7, properties);
+    EncodedPublish encodedPublish = new EncodedPublish(message, Unpooled.buffer().alloc());
+    assertEquals(
+        encodeWithNetty(publish(MqttQoS.AT_LEAST_ONCE, 9, properties), MqttVersion.MQTT_5),
+        hexDump(encodedPublish.frame(MqttVersion.MQTT_5, MqttQoS.AT_LEAST_ONCE, 9)));
+    encodedPublish.release();
+    message.release();
+  }
+
+  @Test
+  public void forwardExpiryIntervalLeft() {
+    MqttPublishMessage message = publish(MqttQoS.AT_LEAST_ONCE, 7, expiryProperties(100));
+    long receivedNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(30);
+    EncodedPublish encodedPublish =
+        new EncodedPublish(message, false, receivedNanos, Unpooled.buffer().alloc());
+    assertFalse(encodedPublish.isExpired());
+    assertEquals(
+        70, expiryInterval(encodedPublish.frame(MqttVersion.MQTT_5, MqttQoS.AT_MOST_ONCE, 0)));
+    assertEquals(
+        70, expiryInterval(encodedPublish.frame(MqttVersion.MQTT_5, MqttQoS.AT_LEAST_ONCE, 9)));
+    encodedPublish.release();
+    message.release();
+  }
+
+  @Test
+  public void expireMessageHeldPastInterval() {
+    MqttPublishMessage message = publish(MqttQoS.AT_LEAST_ONCE, 7, expiryProperties(20));
+    long receivedNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(30);
+    EncodedPublish encodedPublish =
+        new EncodedPublish(message, false, receivedNanos, Unpooled.buffer().alloc());
+    assertTrue(encodedPublish.isExpired());
+    encodedPublish.release();
+    message.release();
+
+    message = publish(MqttQoS.AT_LEAST_ONCE, 7, MqttProperties.NO_PROPERTIES);
+    encodedPublish = new EncodedPublish(message, false, receivedNanos, Unpooled.buffer().alloc());
+    assertFalse(encodedPublish.isExpired());
+    encodedPublish.release();
+    message.release();
+  }
+
+  @Test
+  public void lowerExpiryIntervalOfHeldFrame() {
+    MqttPublishMessage message = publish(MqttQoS.AT_LEAST_ONCE, 7, expiryProperties(100));
+    EncodedPublish encodedPublish = new EncodedPublish(message, Unpooled.buffer().alloc());
+    ByteBuf frame = encodedPublish.frame(MqttVersion.MQTT_5, MqttQoS.AT_LEAST_ONCE, 9);
+    assertEquals(
+        60, expiryInterval(EncodedPublish.withExpiryElapsed(frame, 40, Unpooled.buffer().alloc())));
+    assertNull(EncodedPublish.withExpiryElapsed(frame, 100, Unpooled.buffer().alloc()));
+    frame.release();
+    encodedPublish.release();
+    message.release();
+
+    // No interval, frame left as is
+    message = publish(MqttQoS.AT_LEAST_ONCE, 7, MqttProperties.NO_PROPERTIES);
+    encodedPublish = new EncodedPublish(message, Unpooled.buffer().alloc());
+    frame = encodedPublish.frame(MqttVersion.MQTT_5, MqttQoS.AT_LEAST_ONCE, 9);
+    String expected = ByteBufUtil.hexDump(frame);
+    assertEquals(
+        expected,
+        hexDump(EncodedPublish.withExpiryElapsed(frame, 40, Unpooled.buffer().alloc())));
+    frame.release();
+    encodedPublish.release();
+    message.release();
+  }
+}
@@ -0,0 +1,184 @@
+package org.flmelody.netcell.core.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.MqttDispatcher;
+import org.flmelody.netcell.ProviderInteractor;
+import org.flmelody.netcell.core.provider.delivery.LocalMessageDeliveryProvider;
+import org.flmelody.netcell.core.provider.session.LocalSessionProvider;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class KeepAliveHandlerTest {
+
+  private static MqttConnectMessage connect(int keepAlive) {
+    return MqttMessageBuilders.connect()
+        .clientId("c1")
+        .protocolVersion(MqttVersion.MQTT_3_1_1)
+        .keepAlive(keepAlive)
+        .build();
+  }
+
+  @Test
+  public void closeWithoutConnect() throws Exception {
+    ManualTimer timer = new ManualTimer();
+    EmbeddedChannel channel = new EmbeddedChannel(new KeepAliveHandler(timer, 1));
+    Thread.sleep(5);
+    timer.expireAll();
+    channel.runPendingTasks();
+    assertFalse(channel.isActive());
+  }
+
+  @Test
+  public void checkAgainForTimeLeft() throws Exception {
+    ManualTimer timer = new ManualTimer();
+    EmbeddedChannel channel = new EmbeddedChannel(new KeepAliveHandler(timer, 1));
+    channel.writeInbound(connect(10));
+    assertEquals(1, timer.live());
+    // 1.5 times keep alive; expiring it early only sets it again for the time left
+    assertEquals(TimeUnit.SECONDS.toNanos(15), timer.lastDelayNanos);
+    timer.expireAll();
+    channel.runPendingTasks();
+    assertTrue(channel.isActive());
+    assertEquals(1, timer.live());
+    assertTrue(timer.lastDelayNanos <= TimeUnit.SECONDS.toNanos(15));
+
+    channel.writeInbound(MqttMessage.PINGREQ);
+    channel.close();
+    assertEquals(0, timer.live());
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void zeroKeepAliveNeverCloses() {
+    ManualTimer timer = new ManualTimer();
+    EmbeddedChannel channel = new EmbeddedChannel(new KeepAliveHandler(timer, 1));
+    channel.writeInbound(connect(0));
+    assertEquals(0, timer.live());
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void endSessionWhenKeepAliveExpires() throws Exception {
+    ProviderInteractor interactor = new ProviderInteractor();
+    LocalSessionProvider sessionProvider = new LocalSessionProvider();
+    LocalMessageDeliveryProvider deliveryProvider = new LocalMessageDeliveryProvider();
+    MqttMessageHandler handler =
+        new MqttMessageHandler(
+            new MqttDispatcher()
+                .assembleListeners(
+                    sessionProvider.withActor(interactor), deliveryProvider.withActor(interactor)));
+    ManualTimer timer = new ManualTimer();
+    EmbeddedChannel channel = new EmbeddedChannel(new KeepAliveHandler(timer, 1), handler);
+    channel.writeInbound(
+        MqttMessageBuilders.connect()
+            .clientId("c1")
+            .protocolVersion(MqttVersion.MQTT_3_1_1)
+            .cleanSession(true)
+            .keepAlive(1)
+            .build());
+    channel.writeInbound(
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_MOST_ONCE, "sensors/+/temp")
+            .build());
+    assertEquals(1, deliveryProvider.routeCount());
+
+    Thread.sleep(1600);
+    timer.expireAll();
+    channel.runPendingTasks();
+    assertFalse(channel.isActive());
+    assertEquals(0, deliveryProvider.routeCount());
+    assertNull(sessionProvider.session("c1"));
+    channel.finishAndReleaseAll();
+  }
+
+  /** Timer expiring timeouts on demand */
+  private static final class ManualTimer implements Timer {
+    private final List<ManualTimeout> timeouts = new ArrayList<>();
+    private long lastDelayNanos;
+
+    @Override
+    public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+      ManualTimeout timeout = new ManualTimeout(this, task);
+      timeouts.add(timeout);
+      lastDelayNanos = unit.toNanos(delay);
+      return timeout;
+    }
+
+    @Override
+    public Set<Timeout> stop() {
+      return Set.of();
+    }
+
+    private long live() {
+      return timeouts.stream().filter(timeout -> !timeout.cancelled).count();
+    }
+
+    private void expireAll() throws Exception {
+      List<ManualTimeout> expiring = new ArrayList<>(timeouts);
+      timeouts.clear();
+      for (ManualTimeout timeout : expiring) {
+        if (!timeout.cancelled) {
+          timeout.task.run(timeout);
+        }
+      }
+    }
+  }
+
+  /** Timeout of {@link ManualTimer} */
+  private static final class ManualTimeout implements Timeout {
+    private final Timer timer;
+    private final TimerTask task;
+    private boolean cancelled;
+
+    private ManualTimeout(Timer timer, TimerTask task) {
+      this.timer = timer;
+      this.task = task;
+    }
+
+    @Override
+    public Timer timer() {
+      return timer;
+    }
+
+    @Override
+    public TimerTask task() {
+      return task;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean cancel() {
+      cancelled = true;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package org.flmelody.netcell.core.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.flmelody.netcell.MqttDispatcher;
+import org.flmelody.netcell.ProviderInteractor;
+import org.flmelody.netcell.core.provider.delivery.LocalMessageDeliveryProvider;
+import org.flmelody.netcell.core.provider.session.ClientSession;
+import org.flmelody.netcell.core.provider.session.LocalSessionProvider;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class MqttMessageHandlerTest {
+  private final LocalSessionProvider sessionProvider = new LocalSessionProvider();
+  private final LocalMessageDeliveryProvider deliveryProvider = new LocalMessageDeliveryProvider();
+  private final MqttMessageHandler handler;
+
+  public MqttMessageHandlerTest() {
+    ProviderInteractor interactor = new ProviderInteractor();
+    handler =
+        new MqttMessageHandler(
+            new MqttDispatcher()
+                .assembleListeners(
+                    sessionProvider.withActor(interactor), deliveryProvider.withActor(interactor)));
+  }
+
+  private EmbeddedChannel connect(String clientId, boolean cleanSession) {
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+    channel.writeInbound(
+        MqttMessageBuilders.connect()
+            .clientId(clientId)
+            .protocolVersion(MqttVersion.MQTT_3_1_1)
+            .cleanSession(cleanSession)
+            .build());
+    return channel;
+  }
+
+  private static void subscribe(EmbeddedChannel channel, String topicFilter) {
+    channel.writeInbound(
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_LEAST_ONCE, topicFilter)
+            .build());
+  }
+
+  private EmbeddedChannel subscribe(String clientId, boolean cleanSession) {
+    EmbeddedChannel channel = connect(clientId, cleanSession);
+    subscribe(channel, "sensors/+/temp");
+    return channel;
+  }
+
+  @Test
+  public void endCleanSessionWhenConnectionIsLost() {
+    EmbeddedChannel channel = subscribe("c1", true);
+    assertEquals(1, deliveryProvider.routeCount());
+    // No DISCONNECT
+    channel.close();
+    assertEquals(0, deliveryProvider.routeCount());
+    assertNull(sessionProvider.session("c1"));
+    assertNull(sessionProvider.client("c1"));
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void keepPersistentSessionOffline() {
+    EmbeddedChannel channel = subscribe("c1", false);
+    channel.close();
+    ClientSession session = sessionProvider.session("c1");
+    assertNotNull(session);
+    assertNull(session.context());
+    assertEquals(1, deliveryProvider.routeCount());
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void leaveSessionTakenOverAlone() {
+    EmbeddedChannel first = subscribe("c1", true);
+    EmbeddedChannel second = subscribe("c1", true);
+    // Closed by takeover, the session now belongs to the second connection
+    assertFalse(first.isActive());
+    assertEquals(1, deliveryProvider.routeCount());
+    assertSame(second.pipeline().context(handler), sessionProvider.client("c1"));
+    second.close();
+    assertEquals(0, deliveryProvider.routeCount());
+    first.finishAndReleaseAll();
+    second.finishAndReleaseAll();
+  }
+
+  @Test
+  public void skipSharedMemberWhoseConnectionIsLost() {
+    EmbeddedChannel first = connect("w1", false);
+    EmbeddedChannel second = connect("w2", false);
+    subscribe(first, "$share/workers/jobs/+");
+    subscribe(second, "$share/workers/jobs/+");
+    // CONNACK and SUBACK
+    second.outboundMessages().clear();
+    first.close();
+
+    EmbeddedChannel publisher = connect("publisher", true);
+    for (int i = 1; i <= 4; i++) {
+      publisher.writeInbound(
+          new MqttPublishMessage(
+              new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+              new MqttPublishVariableHeader("jobs/" + i, i),
+              Unpooled.copiedBuffer("job", StandardCharsets.UTF_8)));
+    }
+    assertEquals(4, second.outboundMessages().size());
+    for (EmbeddedChannel channel : List.of(first, second, publisher)) {
+      channel.finishAndReleaseAll();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.flmelody.netcell.core.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketHoldsItsValues() {
+    for (long value : new long[] {0, 7, 8, 15, 16, 1000, 123_456_789L, Long.MAX_VALUE}) {
+      long highest = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+      assertTrue(highest >= value);
+      assertTrue(highest - value <= value / 8);
+    }
+  }
+
+  @Test
+  public void percentilesWithinPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 10_000; value++) {
+      histogram.record(value * 1000);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(10_000, snapshot.count());
+    assertEquals(10_000_000, snapshot.max());
+    assertWithin(5_000_000, snapshot.valueAtPercentile(50));
+    assertWithin(9_900_000, snapshot.valueAtPercentile(99));
+    assertWithin(9_990_000, snapshot.valueAtPercentile(99.9));
+    assertEquals(10_000_000, snapshot.valueAtPercentile(100));
+    assertEquals(0, new LatencyHistogram().snapshot().valueAtPercentile(99));
+  }
+
+  @Test
+  public void addUpStripesOfThreads() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int value = 0; value < 1000; value++) {
+                  histogram.record(value);
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(4000, histogram.snapshot().count());
+    assertEquals(999, histogram.snapshot().max());
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(actual >= expected && actual <= expected + expected / 8, expected + " " + actual);
+  }
+}
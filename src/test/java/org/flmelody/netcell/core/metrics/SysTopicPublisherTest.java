@@ -0,0 +1,99 @@
+package org.flmelody.netcell.core.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.flmelody.netcell.ProviderInteractor;
+import org.flmelody.netcell.core.listener.MqttMessageListener;
+import org.flmelody.netcell.core.provider.delivery.LocalMessageDeliveryProvider;
+import org.flmelody.netcell.core.provider.delivery.MessageDeliveryProvider;
+import org.flmelody.netcell.core.provider.retained.RetainedMessageProvider;
+import org.flmelody.netcell.core.provider.session.LocalSessionProvider;
+import org.flmelody.netcell.core.provider.session.TemporarySessionProvider;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class SysTopicPublisherTest {
+  private final ProviderInteractor interactor = new ProviderInteractor();
+  private final TemporarySessionProvider sessionProvider =
+      new LocalSessionProvider().withActor(interactor);
+  private final MessageDeliveryProvider deliveryProvider =
+      new LocalMessageDeliveryProvider().withActor(interactor);
+
+  private void dispatch(EmbeddedChannel channel, MqttMessage message) {
+    ChannelHandlerContext context = channel.pipeline().firstContext();
+    for (MqttMessageListener listener : List.of(sessionProvider, deliveryProvider)) {
+      if (listener.interests(message.fixedHeader().messageType())) {
+        listener.handle(context, message);
+      }
+    }
+    ReferenceCountUtil.release(message);
+  }
+
+  private EmbeddedChannel subscribe(String clientId, String topicFilter) {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    dispatch(
+        channel,
+        MqttMessageBuilders.connect()
+            .clientId(clientId)
+            .protocolVersion(MqttVersion.MQTT_3_1_1)
+            .cleanSession(true)
+            .build());
+    dispatch(
+        channel,
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_MOST_ONCE, topicFilter)
+            .build());
+    // CONNACK and SUBACK
+    channel.outboundMessages().clear();
+    return channel;
+  }
+
+  @Test
+  public void publishToExplicitSubscribers() {
+    EmbeddedChannel monitor = subscribe("monitor", "$SYS/broker/clients/+");
+    EmbeddedChannel everything = subscribe("everything", "#");
+    SysTopicPublisher publisher =
+        new SysTopicPublisher(
+            () ->
+                MetricsSnapshot.capture(
+                    0, new BrokerMetrics(), sessionProvider, RetainedMessageProvider.EMPTY),
+            deliveryProvider,
+            SysTopicPublisher.DEFAULT_INTERVAL_SECONDS);
+    publisher.publish();
+
+    assertEquals(2, monitor.outboundMessages().size());
+    MqttPublishMessage connected = delivered(monitor);
+    assertEquals("$SYS/broker/clients/connected", connected.variableHeader().topicName());
+    assertEquals("2", connected.payload().toString(StandardCharsets.UTF_8));
+    connected.release();
+    // Wildcards at the first level do not match $SYS
+    assertTrue(everything.outboundMessages().isEmpty());
+    monitor.finishAndReleaseAll();
+    everything.finishAndReleaseAll();
+  }
+
+  private static MqttPublishMessage delivered(EmbeddedChannel channel) {
+    EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+    decoder.writeInbound((ByteBuf) channel.readOutbound());
+    MqttPublishMessage message = decoder.readInbound();
+    decoder.finishAndReleaseAll();
+    return message;
+  }
+}
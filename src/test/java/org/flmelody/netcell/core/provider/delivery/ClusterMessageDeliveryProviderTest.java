@@ -0,0 +1,394 @@
+package org.flmelody.netcell.core.provider.delivery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.flmelody.netcell.Netcell;
+import org.flmelody.netcell.NetcellConfig;
+import org.flmelody.netcell.core.cluster.ClusterDecoder;
+import org.flmelody.netcell.core.cluster.ClusterEncoder;
+import org.flmelody.netcell.core.cluster.ClusterFrame;
+import org.flmelody.netcell.core.cluster.ClusterNode;
+import org.flmelody.netcell.core.provider.session.LocalSessionProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class ClusterMessageDeliveryProviderTest {
+  private final EventLoopGroup group = new NioEventLoopGroup(1);
+  private final List<Node> nodes = new ArrayList<>();
+  private final List<Client> clients = new ArrayList<>();
+  private final List<Channel> peerChannels = new ArrayList<>();
+
+  @AfterEach
+  public void tearDown() throws InterruptedException {
+    for (Client client : clients) {
+      client.channel.close().syncUninterruptibly();
+      client.received.forEach(ReferenceCountUtil::release);
+    }
+    for (Node node : nodes) {
+      node.stop();
+    }
+    for (Channel channel : peerChannels) {
+      channel.close().syncUninterruptibly();
+    }
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+  }
+
+  /** Netcell on localhost, one node of a cluster */
+  private final class Node {
+    private final int port;
+    private final int clusterPort;
+    private final ClusterMessageDeliveryProvider delivery;
+    private final Netcell netcell;
+    private Thread thread;
+
+    private Node(String nodeId, int clusterPort, int... peerPorts) throws IOException {
+      List<InetSocketAddress> peers = new ArrayList<>();
+      for (int peerPort : peerPorts) {
+        peers.add(new InetSocketAddress("127.0.0.1", peerPort));
+      }
+      this.port = freePort();
+      this.clusterPort = clusterPort;
+      this.delivery = new ClusterMessageDeliveryProvider(nodeId, clusterPort, peers);
+      this.netcell =
+          Netcell.setup(NetcellConfig.builder().port(port).sysIntervalSeconds(0).build())
+              .use(new LocalSessionProvider(), delivery);
+      nodes.add(this);
+    }
+
+    private Node start() throws InterruptedException {
+      thread = new Thread(netcell::run, "netcell-" + port);
+      thread.start();
+      await(() -> accepting(port));
+      return this;
+    }
+
+    private void stop() throws InterruptedException {
+      if (thread != null) {
+        netcell.stop();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+      }
+    }
+
+    private ClusterNode clusterNode() {
+      return delivery.clusterNode();
+    }
+  }
+
+  /** Client connected to a node over TCP */
+  private final class Client {
+    private final BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<>();
+    private final Channel channel;
+
+    private Client(Node node, String clientId) throws InterruptedException {
+      channel =
+          new Bootstrap()
+              .group(group)
+              .channel(NioSocketChannel.class)
+              .handler(
+                  new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                      channel
+                          .pipeline()
+                          .addLast(
+                              new MqttDecoder(),
+                              MqttEncoder.INSTANCE,
+                              new ChannelInboundHandlerAdapter() {
+                                @Override
+                                public void channelRead(ChannelHandlerContext context, Object msg) {
+                                  received.add((MqttMessage) msg);
+                                }
+                              });
+                    }
+                  })
+              .connect("127.0.0.1", node.port)
+              .sync()
+              .channel();
+      clients.add(this);
+      send(
+          MqttMessageBuilders.connect()
+              .clientId(clientId)
+              .protocolVersion(MqttVersion.MQTT_3_1_1)
+              .cleanSession(true)
+              .build());
+      expect(MqttMessageType.CONNACK);
+    }
+
+    private void send(MqttMessage message) {
+      channel.writeAndFlush(message).syncUninterruptibly();
+    }
+
+    private MqttMessage expect(MqttMessageType messageType) throws InterruptedException {
+      MqttMessage message = received.poll(5, TimeUnit.SECONDS);
+      assertNotNull(message);
+      assertEquals(messageType, message.fixedHeader().messageType());
+      return message;
+    }
+
+    private void subscribe(String topicFilter) throws InterruptedException {
+      send(
+          MqttMessageBuilders.subscribe()
+              .messageId(1)
+              .addSubscription(MqttQoS.AT_MOST_ONCE, topicFilter)
+              .build());
+      expect(MqttMessageType.SUBACK);
+    }
+
+    private void unsubscribe(String topicFilter) throws InterruptedException {
+      send(MqttMessageBuilders.unsubscribe().messageId(2).addTopicFilter(topicFilter).build());
+      // Not acknowledged, handled once a ping sent after it is answered
+      send(MqttMessage.PINGREQ);
+      expect(MqttMessageType.PINGRESP);
+    }
+
+    private void publish(String topicName, String payload) {
+      send(
+          new MqttPublishMessage(
+              new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+              new MqttPublishVariableHeader(topicName, 0),
+              Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8)));
+    }
+
+    private MqttPublishMessage delivered() throws InterruptedException {
+      return (MqttPublishMessage) expect(MqttMessageType.PUBLISH);
+    }
+  }
+
+  /** Peer speaking the cluster protocol, recording the batches forwarded to it */
+  private final class RawPeer {
+    private final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<>();
+
+    private RawPeer(String nodeId, int clusterPort, int nodePort, String topicFilter)
+        throws InterruptedException {
+      peerChannels.add(
+          new ServerBootstrap()
+              .group(group)
+              .channel(NioServerSocketChannel.class)
+              .childHandler(
+                  new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                      channel
+                          .pipeline()
+                          .addLast(
+                              new ClusterDecoder(),
+                              ClusterEncoder.INSTANCE,
+                              new ChannelInboundHandlerAdapter() {
+                                @Override
+                                public void channelRead(ChannelHandlerContext context, Object msg) {
+                                  received(context, nodeId, msg);
+                                }
+                              });
+                    }
+                  })
+              .bind("127.0.0.1", clusterPort)
+              .sync()
+              .channel());
+      // Link of this peer to the node, carrying its summary
+      Channel link =
+          new Bootstrap()
+              .group(group)
+              .channel(NioSocketChannel.class)
+              .handler(
+                  new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                      channel.pipeline().addLast(new ClusterDecoder(), ClusterEncoder.INSTANCE);
+                    }
+                  })
+              .connect("127.0.0.1", nodePort)
+              .sync()
+              .channel();
+      peerChannels.add(link);
+      link.write(new ClusterFrame.Hello(nodeId));
+      link.writeAndFlush(new ClusterFrame.Filters(true, List.of(topicFilter))).sync();
+    }
+
+    private void received(ChannelHandlerContext context, String nodeId, Object msg) {
+      if (msg instanceof ClusterFrame.Hello) {
+        context.writeAndFlush(new ClusterFrame.Hello(nodeId));
+      } else if (msg instanceof ClusterFrame.Publishes publishes) {
+        List<String> payloads = new ArrayList<>();
+        for (MqttPublishMessage message : publishes.messages()) {
+          payloads.add(message.payload().toString(StandardCharsets.UTF_8));
+          message.release();
+        }
+        batches.add(payloads);
+      }
+    }
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static boolean accepting(int port) {
+    try {
+      new Socket("127.0.0.1", port).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        fail("Cluster did not converge");
+      }
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+  }
+
+  @Test
+  public void bindClusterPortWhileBrokerRuns() throws Exception {
+    Node node = new Node("a", freePort());
+    assertFalse(accepting(node.clusterPort));
+    node.start();
+    assertTrue(accepting(node.clusterPort));
+    node.stop();
+    await(() -> !accepting(node.clusterPort));
+  }
+
+  @Test
+  public void forwardOnlyToPeersWithSubscribers() throws Exception {
+    int portA = freePort();
+    int portB = freePort();
+    int portC = freePort();
+    Node a = new Node("a", portA, portB, portC).start();
+    Node b = new Node("b", portB, portA, portC).start();
+    Node c = new Node("c", portC, portA, portB).start();
+    Client subscriber = new Client(b, "subscriber");
+    subscriber.subscribe("sensors/+/temp");
+    await(() -> a.clusterNode().linkedPeers().equals(Set.of("b", "c")));
+    await(() -> a.clusterNode().peers("sensors/1/temp").equals(Set.of("b")));
+
+    Client publisher = new Client(a, "publisher");
+    publisher.publish("sensors/1/temp", "21.5");
+    MqttPublishMessage message = subscriber.delivered();
+    assertEquals("sensors/1/temp", message.variableHeader().topicName());
+    assertEquals("21.5", message.payload().toString(StandardCharsets.UTF_8));
+    message.release();
+
+    // No peer subscribes to it, nothing leaves the node
+    publisher.publish("sensors/1/humidity", "40");
+    publisher.publish("sensors/2/temp", "19.0");
+    message = subscriber.delivered();
+    assertEquals("sensors/2/temp", message.variableHeader().topicName());
+    message.release();
+    assertEquals(2, a.clusterNode().forwardedMessages());
+    assertEquals(2, b.clusterNode().receivedMessages());
+    assertEquals(0, c.clusterNode().receivedMessages());
+    // Each broker counts its own traffic only
+    assertEquals(3, a.netcell.metrics().messagesReceived().get(MqttMessageType.PUBLISH));
+    assertEquals(0, b.netcell.metrics().messagesReceived().get(MqttMessageType.PUBLISH));
+    assertEquals(0, c.netcell.metrics().totalMessagesReceived());
+  }
+
+  @Test
+  public void dropSummaryWhenSubscriptionsGo() throws Exception {
+    int portA = freePort();
+    int portB = freePort();
+    Node a = new Node("a", portA, portB).start();
+    Node b = new Node("b", portB, portA).start();
+    Client first = new Client(b, "first");
+    Client second = new Client(b, "second");
+    first.subscribe("alerts/#");
+    second.subscribe("alerts/#");
+    await(() -> a.clusterNode().linkedPeers().equals(Set.of("b")));
+    await(() -> a.clusterNode().peers("alerts/fire").equals(Set.of("b")));
+
+    // Filter still has a subscriber
+    first.unsubscribe("alerts/#");
+    Client publisher = new Client(a, "publisher");
+    publisher.publish("alerts/fire", "evacuate");
+    MqttPublishMessage message = second.delivered();
+    message.release();
+    assertNull(first.received.poll(100, TimeUnit.MILLISECONDS));
+
+    b.stop();
+    await(() -> a.clusterNode().peers("alerts/fire").isEmpty());
+  }
+
+  @Test
+  public void forwardBurstInBatches() throws Exception {
+    int portA = freePort();
+    int portB = freePort();
+    Node a = new Node("a", portA, portB).start();
+    RawPeer b = new RawPeer("b", portB, portA, "burst/#");
+    await(() -> a.clusterNode().linkedPeers().equals(Set.of("b")));
+    await(() -> a.clusterNode().peers("burst/1").equals(Set.of("b")));
+
+    // More than a batch holds, several frames
+    int count = 3 * 256 + 10;
+    Client publisher = new Client(a, "publisher");
+    for (int i = 0; i < count; i++) {
+      publisher.channel.write(
+          new MqttPublishMessage(
+              new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+              new MqttPublishVariableHeader("burst/" + i, 0),
+              Unpooled.copiedBuffer(String.valueOf(i), StandardCharsets.UTF_8)));
+    }
+    publisher.channel.flush();
+
+    List<String> payloads = new ArrayList<>();
+    int frames = 0;
+    while (payloads.size() < count) {
+      List<String> batch = b.batches.poll(5, TimeUnit.SECONDS);
+      assertNotNull(batch);
+      assertTrue(batch.size() <= 256);
+      payloads.addAll(batch);
+      frames++;
+    }
+    assertTrue(frames >= 4);
+    for (int i = 0; i < count; i++) {
+      assertEquals(String.valueOf(i), payloads.get(i));
+    }
+    assertEquals(count, a.clusterNode().forwardedMessages());
+  }
+}
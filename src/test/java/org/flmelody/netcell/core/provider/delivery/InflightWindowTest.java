@@ -0,0 +1,393 @@
+package org.flmelody.netcell.core.provider.delivery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.AttributeKey;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.core.codec.EncodedPublish;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author esotericman
+ */
+public class InflightWindowTest {
+  private static final AttributeKey<MqttVersion> MQTT_VERSION_KEY =
+      AttributeKey.valueOf("NETTY_CODEC_MQTT_VERSION");
+
+  private static ByteBuf frame(String payload) {
+    return frame(payload, MqttQoS.AT_LEAST_ONCE);
+  }
+
+  private static ByteBuf frame(String payload, MqttQoS qos) {
+    return frame(payload, qos, MqttVersion.MQTT_3_1_1);
+  }
+
+  private static ByteBuf frame(String payload, MqttQoS qos, MqttVersion version) {
+    MqttProperties properties = new MqttProperties();
+    properties.add(new MqttProperties.UserProperty("unit", "celsius"));
+    MqttPublishMessage message =
+        new MqttPublishMessage(
+            new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+            new MqttPublishVariableHeader("sensors/1/temp", 1, properties),
+            Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8));
+    EncodedPublish encodedPublish = new EncodedPublish(message, Unpooled.buffer().alloc());
+    try {
+      return encodedPublish.frame(version, qos, 1);
+    } finally {
+      encodedPublish.release();
+      message.release();
+    }
+  }
+
+  private static ChannelHandlerContext context(EmbeddedChannel channel) {
+    return channel.pipeline().firstContext();
+  }
+
+  // Connection of a client that negotiated protocol level on CONNECT
+  private static EmbeddedChannel channel(MqttVersion version) {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    channel.attr(MQTT_VERSION_KEY).set(version);
+    return channel;
+  }
+
+  // Decode what window wrote to the channel
+  private static MqttPublishMessage sent(EmbeddedChannel channel) {
+    ByteBuf frame = channel.readOutbound();
+    EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+    decoder.attr(MQTT_VERSION_KEY).set(EncodedPublish.version(channel));
+    decoder.writeInbound(frame);
+    MqttPublishMessage message = decoder.readInbound();
+    decoder.finishAndReleaseAll();
+    return message;
+  }
+
+  private static void assertReleaseSent(EmbeddedChannel channel, int packetId) {
+    MqttMessage message = channel.readOutbound();
+    assertEquals(MqttMessageType.PUBREL, message.fixedHeader().messageType());
+    assertEquals(packetId, ((MqttMessageIdVariableHeader) message.variableHeader()).messageId());
+  }
+
+  private static void assertSent(
+      EmbeddedChannel channel, int packetId, boolean duplicate, String payload) {
+    MqttPublishMessage message = sent(channel);
+    try {
+      assertEquals(packetId, message.variableHeader().packetId());
+      assertEquals(duplicate, message.fixedHeader().isDup());
+      assertEquals(payload, message.payload().toString(StandardCharsets.UTF_8));
+    } finally {
+      message.release();
+    }
+  }
+
+  @Test
+  public void queueWhenWindowIsFull() {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    InflightWindow window = new InflightWindow(2, 1, new ManualTimer(), 0);
+    window.attach(context(channel), 0, false);
+    assertTrue(window.offer(frame("a")));
+    assertTrue(window.offer(frame("b")));
+    assertTrue(window.offer(frame("c")));
+    assertFalse(window.offer(frame("d")));
+    assertEquals(2, window.inflightCount());
+    assertEquals(1, window.queuedCount());
+    assertEquals(1, window.droppedCount());
+    assertSent(channel, 1, false, "a");
+    assertSent(channel, 2, false, "b");
+    assertNull(channel.readOutbound());
+
+    assertFalse(window.acknowledge(5));
+    assertTrue(window.acknowledge(1));
+    assertSent(channel, 3, false, "c");
+    assertEquals(0, window.queuedCount());
+    window.release();
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void receiveMaximumLowersWindow() {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    InflightWindow window = new InflightWindow(10, 10, new ManualTimer(), 0);
+    window.attach(context(channel), 1, false);
+    window.offer(frame("a"));
+    window.offer(frame("b"));
+    assertEquals(1, window.inflightCount());
+    assertEquals(1, window.queuedCount());
+    window.release();
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void resendOnReconnect() {
+    EmbeddedChannel first = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    InflightWindow window = new InflightWindow(10, 10, new ManualTimer(), 0);
+    window.attach(context(first), 0, false);
+    window.offer(frame("a"));
+    window.offer(frame("b"));
+    first.finishAndReleaseAll();
+    // Offline, queued until reconnect
+    window.offer(frame("c"));
+    assertEquals(1, window.queuedCount());
+
+    EmbeddedChannel second = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    window.attach(context(second), 0, false);
+    assertSent(second, 1, true, "a");
+    assertSent(second, 2, true, "b");
+    assertSent(second, 3, false, "c");
+    window.release();
+    second.finishAndReleaseAll();
+  }
+
+  @Test
+  public void resendWhenTimerExpires() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    ManualTimer timer = new ManualTimer();
+    InflightWindow window = new InflightWindow(10, 10, timer, 1000);
+    window.attach(context(channel), 0, false);
+    window.offer(frame("a"));
+    window.offer(frame("b"));
+    assertSent(channel, 1, false, "a");
+    assertSent(channel, 2, false, "b");
+    window.acknowledge(2);
+
+    timer.expireAll();
+    channel.runPendingTasks();
+    assertSent(channel, 1, true, "a");
+    assertNull(channel.readOutbound());
+    window.release();
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void exactlyOnceHandshake() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    ManualTimer timer = new ManualTimer();
+    InflightWindow window = new InflightWindow(1, 10, timer, 1000);
+    window.attach(context(channel), 0, false);
+    window.offer(frame("a", MqttQoS.EXACTLY_ONCE));
+    window.offer(frame("b", MqttQoS.EXACTLY_ONCE));
+    assertSent(channel, 1, false, "a");
+    // PUBACK does not complete qos 2
+    assertFalse(window.acknowledge(1));
+    assertFalse(window.completed(1));
+
+    assertTrue(window.received(1));
+    assertReleaseSent(channel, 1);
+    timer.expireAll();
+    channel.runPendingTasks();
+    assertReleaseSent(channel, 1);
+    assertNull(channel.readOutbound());
+
+    assertTrue(window.completed(1));
+    assertSent(channel, 2, false, "b");
+    assertEquals(1, window.inflightCount());
+    window.release();
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void resendReleaseOnReconnect() {
+    EmbeddedChannel first = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    InflightWindow window = new InflightWindow(10, 10, new ManualTimer(), 0);
+    window.attach(context(first), 0, false);
+    window.offer(frame("a", MqttQoS.EXACTLY_ONCE));
+    window.offer(frame("b", MqttQoS.EXACTLY_ONCE));
+    window.received(1);
+    first.finishAndReleaseAll();
+
+    EmbeddedChannel second = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    window.attach(context(second), 0, false);
+    assertReleaseSent(second, 1);
+    assertSent(second, 2, true, "b");
+    window.release();
+    second.finishAndReleaseAll();
+  }
+
+  @Test
+  public void spillQueueWhileOffline(@TempDir Path directory) {
+    InflightWindow window = new InflightWindow(2, 10, 1, directory, new ManualTimer(), 0);
+    for (String payload : List.of("a", "b", "c", "d")) {
+      assertTrue(window.offer(frame(payload)));
+    }
+    assertEquals(4, window.queuedCount());
+    assertEquals(3, window.spilledCount());
+
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    window.attach(context(channel), 0, true);
+    assertSent(channel, 1, false, "a");
+    assertSent(channel, 2, false, "b");
+    assertNull(channel.readOutbound());
+    // Read back from disk only as slots free up
+    assertEquals(2, window.spilledCount());
+    window.acknowledge(1);
+    assertSent(channel, 3, false, "c");
+    window.acknowledge(2);
+    assertSent(channel, 4, false, "d");
+    assertEquals(0, window.queuedCount());
+    window.release();
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void convertFramesForOlderVersionOnReconnect(@TempDir Path directory) {
+    InflightWindow window = new InflightWindow(1, 10, 1, directory, new ManualTimer(), 0);
+    EmbeddedChannel first = channel(MqttVersion.MQTT_5);
+    window.attach(context(first), 0, true);
+    // In flight, queued in memory and spilled, all encoded for MQTT 5
+    for (String payload : List.of("a", "b", "c")) {
+      assertTrue(window.offer(frame(payload, MqttQoS.AT_LEAST_ONCE, window.version())));
+    }
+    assertEquals(1, window.spilledCount());
+    first.close();
+    first.releaseOutbound();
+
+    EmbeddedChannel second = channel(MqttVersion.MQTT_3_1_1);
+    window.attach(context(second), 0, true);
+    assertSent(second, 1, true, "a");
+    window.acknowledge(1);
+    assertSent(second, 2, false, "b");
+    window.acknowledge(2);
+    assertSent(second, 3, false, "c");
+    window.release();
+    second.finishAndReleaseAll();
+  }
+
+  @Test
+  public void convertFramesForNewerVersionOnReconnect() {
+    InflightWindow window = new InflightWindow(1, 10, new ManualTimer(), 0);
+    EmbeddedChannel first = channel(MqttVersion.MQTT_3_1_1);
+    window.attach(context(first), 0, true);
+    assertTrue(window.offer(frame("a")));
+    assertTrue(window.offer(frame("b")));
+    first.close();
+    first.releaseOutbound();
+
+    EmbeddedChannel second = channel(MqttVersion.MQTT_5);
+    window.attach(context(second), 0, true);
+    assertSent(second, 1, true, "a");
+    window.acknowledge(1);
+    MqttPublishMessage message = sent(second);
+    try {
+      assertEquals(2, message.variableHeader().packetId());
+      assertEquals("b", message.payload().toString(StandardCharsets.UTF_8));
+      assertTrue(message.variableHeader().properties().isEmpty());
+    } finally {
+      message.release();
+    }
+    window.release();
+    second.finishAndReleaseAll();
+  }
+
+  @Test
+  public void holdBackWhileUnwritable() {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    InflightWindow window = new InflightWindow(10, 1, new ManualTimer(), 0);
+    window.attach(context(channel), 0, false);
+    channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+    ByteBuf queued = frame("a");
+    int size = queued.readableBytes();
+    assertTrue(window.offer(queued));
+    assertFalse(window.offer(frame("b")));
+    assertNull(channel.readOutbound());
+    assertEquals(size, window.queuedBytes());
+    assertEquals(size, window.droppedBytes());
+
+    channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+    window.resume();
+    assertSent(channel, 1, false, "a");
+    assertEquals(0, window.queuedBytes());
+    window.release();
+    channel.finishAndReleaseAll();
+  }
+
+  /** Timer expiring timeouts on demand */
+  private static final class ManualTimer implements Timer {
+    private final List<ManualTimeout> timeouts = new ArrayList<>();
+
+    @Override
+    public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+      ManualTimeout timeout = new ManualTimeout(this, task);
+      timeouts.add(timeout);
+      return timeout;
+    }
+
+    @Override
+    public Set<Timeout> stop() {
+      return Set.of();
+    }
+
+    private void expireAll() throws Exception {
+      List<ManualTimeout> expiring = new ArrayList<>(timeouts);
+      timeouts.clear();
+      for (ManualTimeout timeout : expiring) {
+        if (!timeout.cancelled) {
+          timeout.task.run(timeout);
+        }
+      }
+    }
+  }
+
+  /** Timeout of {@link ManualTimer} */
+  private static final class ManualTimeout implements Timeout {
+    private final Timer timer;
+    private final TimerTask task;
+    private boolean cancelled;
+
+    private ManualTimeout(Timer timer, TimerTask task) {
+      this.timer = timer;
+      this.task = task;
+    }
+
+    @Override
+    public Timer timer() {
+      return timer;
+    }
+
+    @Override
+    public TimerTask task() {
+      return task;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean cancel() {
+      cancelled = true;
+      return true;
+    }
+  }
+}
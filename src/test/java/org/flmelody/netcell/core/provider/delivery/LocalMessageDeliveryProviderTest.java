@@ -0,0 +1,498 @@
+package org.flmelody.netcell.core.provider.delivery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.flmelody.netcell.ProviderInteractor;
+import org.flmelody.netcell.core.listener.MqttMessageListener;
+import org.flmelody.netcell.core.provider.persistence.DurabilityMode;
+import org.flmelody.netcell.core.provider.persistence.PersistentStoreProvider;
+import org.flmelody.netcell.core.provider.persistence.WalPersistentStoreProvider;
+import org.flmelody.netcell.core.provider.retained.LocalRetainedMessageProvider;
+import org.flmelody.netcell.core.provider.session.LocalSessionProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author esotericman
+ */
+public class LocalMessageDeliveryProviderTest {
+  @TempDir Path directory;
+
+  /** Providers of one broker run, in dispatch order */
+  private final class Broker {
+    private final PersistentStoreProvider store;
+    private final LocalMessageDeliveryProvider delivery;
+    private final List<MqttMessageListener> listeners;
+
+    private Broker() {
+      this(new LocalMessageDeliveryProvider());
+    }
+
+    private Broker(LocalMessageDeliveryProvider delivery) {
+      this(
+          new WalPersistentStoreProvider(directory, 1 << 16, DurabilityMode.NONE, 4, 1024),
+          delivery);
+    }
+
+    private Broker(PersistentStoreProvider store) {
+      this(store, new LocalMessageDeliveryProvider());
+    }
+
+    private Broker(PersistentStoreProvider store, LocalMessageDeliveryProvider delivery) {
+      this.store = store;
+      this.delivery = delivery;
+      ProviderInteractor interactor = new ProviderInteractor();
+      listeners =
+          List.of(
+              new LocalSessionProvider().withActor(interactor),
+              delivery.withActor(interactor),
+              store.withActor(interactor),
+              new LocalRetainedMessageProvider().withActor(interactor));
+    }
+
+    private void dispatch(EmbeddedChannel channel, MqttMessage message) {
+      ChannelHandlerContext context = channel.pipeline().firstContext();
+      for (MqttMessageListener listener : listeners) {
+        if (listener.interests(message.fixedHeader().messageType())) {
+          listener.handle(context, message);
+        }
+      }
+      ReferenceCountUtil.release(message);
+    }
+
+    private EmbeddedChannel connect(String clientId, boolean cleanSession) {
+      EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+      dispatch(
+          channel,
+          MqttMessageBuilders.connect()
+              .clientId(clientId)
+              .protocolVersion(MqttVersion.MQTT_3_1_1)
+              .cleanSession(cleanSession)
+              .build());
+      // CONNACK
+      channel.readOutbound();
+      return channel;
+    }
+  }
+
+  private static MqttPublishMessage delivered(EmbeddedChannel channel) {
+    EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+    decoder.writeInbound((ByteBuf) channel.readOutbound());
+    MqttPublishMessage message = decoder.readInbound();
+    decoder.finishAndReleaseAll();
+    return message;
+  }
+
+  @Test
+  public void deliverStoredMessageAfterRestart() {
+    Broker broker = new Broker();
+    EmbeddedChannel subscriber = broker.connect("persistent-subscriber", false);
+    broker.dispatch(
+        subscriber,
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_LEAST_ONCE, "alerts/#")
+            .build());
+    subscriber.finishAndReleaseAll();
+
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    broker.dispatch(
+        publisher,
+        new MqttPublishMessage(
+            new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+            new MqttPublishVariableHeader("alerts/fire", 7),
+            Unpooled.copiedBuffer("evacuate", StandardCharsets.UTF_8)));
+    assertEquals(1, broker.store.messages().size());
+    publisher.finishAndReleaseAll();
+    ((WalPersistentStoreProvider) broker.store).close();
+
+    Broker restarted = new Broker();
+    EmbeddedChannel reconnected = restarted.connect("persistent-subscriber", false);
+    MqttPublishMessage message = delivered(reconnected);
+    assertEquals("alerts/fire", message.variableHeader().topicName());
+    assertEquals("evacuate", message.payload().toString(StandardCharsets.UTF_8));
+    int packetId = message.variableHeader().packetId();
+    message.release();
+    restarted.dispatch(
+        reconnected,
+        new MqttMessage(
+            new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+            MqttMessageIdVariableHeader.from(packetId)));
+    assertEquals(0, restarted.store.messages().size());
+    reconnected.finishAndReleaseAll();
+    ((WalPersistentStoreProvider) restarted.store).close();
+  }
+
+  @Test
+  public void queueForOfflineSession() {
+    Broker broker = new Broker();
+    EmbeddedChannel subscriber = broker.connect("persistent-subscriber", false);
+    broker.dispatch(
+        subscriber,
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_LEAST_ONCE, "alerts/#")
+            .build());
+    broker.dispatch(subscriber, MqttMessage.DISCONNECT);
+    subscriber.finishAndReleaseAll();
+
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    broker.dispatch(publisher, publish("alerts/fire", 1));
+    broker.dispatch(publisher, publish("alerts/flood", 2));
+    publisher.finishAndReleaseAll();
+
+    EmbeddedChannel reconnected = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    broker.dispatch(
+        reconnected,
+        MqttMessageBuilders.connect()
+            .clientId("persistent-subscriber")
+            .protocolVersion(MqttVersion.MQTT_3_1_1)
+            .cleanSession(false)
+            .build());
+    MqttConnAckMessage connAck = reconnected.readOutbound();
+    assertTrue(connAck.variableHeader().isSessionPresent());
+    MqttPublishMessage first = delivered(reconnected);
+    MqttPublishMessage second = delivered(reconnected);
+    assertEquals("alerts/fire", first.variableHeader().topicName());
+    assertEquals("alerts/flood", second.variableHeader().topicName());
+    first.release();
+    second.release();
+    reconnected.finishAndReleaseAll();
+    ((WalPersistentStoreProvider) broker.store).close();
+  }
+
+  @Test
+  public void acknowledgeOnceDurable() {
+    CompletableFuture<Long> durable = new CompletableFuture<>();
+    Broker broker =
+        new Broker(
+            new WalPersistentStoreProvider(directory, 1 << 16, DurabilityMode.NONE, 4, 1024) {
+              @Override
+              public CompletableFuture<Long> storeMessage(MqttPublishMessage publishMessage) {
+                return durable;
+              }
+            });
+    EmbeddedChannel subscriber = broker.connect("persistent-subscriber", false);
+    broker.dispatch(
+        subscriber,
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_LEAST_ONCE, "alerts/#")
+            .build());
+
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    broker.dispatch(publisher, publish("alerts/fire", 7));
+    // Not stored, but acknowledged after the message before it
+    broker.dispatch(publisher, publish("news/today", 8));
+    publisher.runPendingTasks();
+    assertNull(publisher.readOutbound());
+
+    durable.complete(1L);
+    publisher.runPendingTasks();
+    assertEquals(7, packetId(publisher.readOutbound()));
+    assertEquals(8, packetId(publisher.readOutbound()));
+    publisher.finishAndReleaseAll();
+    subscriber.finishAndReleaseAll();
+    ((WalPersistentStoreProvider) broker.store).close();
+  }
+
+  @Test
+  public void shareAmongGroupMembers() {
+    Broker broker = new Broker();
+    EmbeddedChannel first = broker.connect("worker-1", true);
+    EmbeddedChannel second = broker.connect("worker-2", true);
+    EmbeddedChannel plain = broker.connect("auditor", true);
+    for (EmbeddedChannel worker : List.of(first, second)) {
+      broker.dispatch(
+          worker,
+          MqttMessageBuilders.subscribe()
+              .messageId(1)
+              .addSubscription(MqttQoS.AT_LEAST_ONCE, "$share/workers/jobs/+")
+              .build());
+      // SUBACK
+      worker.readOutbound();
+    }
+    broker.dispatch(
+        plain,
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_LEAST_ONCE, "jobs/+")
+            .build());
+    plain.readOutbound();
+
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    for (int i = 1; i <= 4; i++) {
+      broker.dispatch(publisher, publish("jobs/" + i, i));
+    }
+    // Each job reaches one worker, and every plain subscriber
+    assertEquals(2, first.outboundMessages().size());
+    assertEquals(2, second.outboundMessages().size());
+    assertEquals(4, plain.outboundMessages().size());
+
+    broker.dispatch(first, MqttMessage.DISCONNECT);
+    broker.dispatch(second, MqttMessage.DISCONNECT);
+    broker.dispatch(publisher, publish("jobs/5", 5));
+    // Group is gone with its last member
+    assertEquals(4, first.outboundMessages().size() + second.outboundMessages().size());
+    assertEquals(5, plain.outboundMessages().size());
+    for (EmbeddedChannel channel : List.of(first, second, plain, publisher)) {
+      channel.finishAndReleaseAll();
+    }
+    ((WalPersistentStoreProvider) broker.store).close();
+  }
+
+  @Test
+  public void invalidateRoutesOnSubscriptionChanges() {
+    Broker broker = new Broker();
+    RouteCache routeCache = broker.delivery.routeCache();
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    broker.dispatch(publisher, publish("sensors/1/temp", 1));
+    broker.dispatch(publisher, publish("sensors/1/temp", 2));
+    assertEquals(1, routeCache.hitCount());
+    assertEquals(1, routeCache.size());
+
+    EmbeddedChannel subscriber = broker.connect("subscriber", true);
+    MqttMessage subscribe =
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_MOST_ONCE, "sensors/+/temp")
+            .build();
+    broker.dispatch(subscriber, subscribe);
+    assertEquals(0, routeCache.size());
+    subscriber.readOutbound();
+    broker.dispatch(publisher, publish("sensors/1/temp", 3));
+    MqttPublishMessage message = delivered(subscriber);
+    assertEquals("sensors/1/temp", message.variableHeader().topicName());
+    message.release();
+
+    broker.dispatch(
+        subscriber,
+        MqttMessageBuilders.unsubscribe().messageId(2).addTopicFilter("sensors/+/temp").build());
+    assertEquals(0, routeCache.size());
+    subscriber.readOutbound();
+    broker.dispatch(publisher, publish("sensors/1/temp", 4));
+    assertNull(subscriber.readOutbound());
+
+    broker.dispatch(subscriber, subscribe);
+    subscriber.readOutbound();
+    broker.dispatch(publisher, publish("sensors/1/temp", 5));
+    assertEquals(1, routeCache.size());
+    broker.dispatch(subscriber, MqttMessage.DISCONNECT);
+    assertEquals(0, routeCache.size());
+    publisher.finishAndReleaseAll();
+    subscriber.finishAndReleaseAll();
+    ((WalPersistentStoreProvider) broker.store).close();
+  }
+
+  @Test
+  public void routeExactlyOnceAgainWhenNotStored() {
+    AtomicInteger attempts = new AtomicInteger();
+    Broker broker =
+        new Broker(
+            new WalPersistentStoreProvider(directory, 1 << 16, DurabilityMode.NONE, 4, 1024) {
+              @Override
+              public CompletableFuture<Long> storeMessage(MqttPublishMessage publishMessage) {
+                if (attempts.incrementAndGet() == 1) {
+                  return CompletableFuture.failedFuture(new IOException("Disk full"));
+                }
+                return super.storeMessage(publishMessage);
+              }
+            });
+    EmbeddedChannel subscriber = broker.connect("persistent-subscriber", false);
+    broker.dispatch(
+        subscriber,
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.EXACTLY_ONCE, "alerts/#")
+            .build());
+
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    broker.dispatch(publisher, publish("alerts/fire", 7, MqttQoS.EXACTLY_ONCE, false));
+    publisher.runPendingTasks();
+    assertNull(publisher.readOutbound());
+
+    // Not a duplicate, the first attempt never reached the store
+    broker.dispatch(publisher, publish("alerts/fire", 7, MqttQoS.EXACTLY_ONCE, true));
+    assertEquals(2, attempts.get());
+    MqttMessage pubRec = null;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (Objects.isNull(pubRec) && System.nanoTime() < deadline) {
+      publisher.runPendingTasks();
+      pubRec = publisher.readOutbound();
+    }
+    assertNotNull(pubRec);
+    assertEquals(MqttMessageType.PUBREC, pubRec.fixedHeader().messageType());
+    assertEquals(1, broker.store.messages().size());
+    publisher.finishAndReleaseAll();
+    subscriber.finishAndReleaseAll();
+    ((WalPersistentStoreProvider) broker.store).close();
+  }
+
+  @Test
+  public void dropRetainedForUnwritableSubscriber() {
+    Broker broker = new Broker();
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    for (int i = 1; i <= 3; i++) {
+      broker.dispatch(
+          publisher,
+          new MqttPublishMessage(
+              new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, true, 0),
+              new MqttPublishVariableHeader("sensors/" + i + "/temp", 0),
+              Unpooled.copiedBuffer("21.5", StandardCharsets.UTF_8)));
+    }
+    EmbeddedChannel reader = broker.connect("reader", true);
+    EmbeddedChannel stalled = broker.connect("stalled", true);
+    stalled.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+    for (EmbeddedChannel subscriber : List.of(reader, stalled)) {
+      broker.dispatch(
+          subscriber,
+          MqttMessageBuilders.subscribe()
+              .messageId(1)
+              .addSubscription(MqttQoS.AT_MOST_ONCE, "sensors/#")
+              .build());
+      // SUBACK
+      subscriber.readOutbound();
+    }
+    assertEquals(3, reader.outboundMessages().size());
+    assertEquals(0, stalled.outboundMessages().size());
+    assertTrue(broker.delivery.droppedBytes() > 0);
+    for (EmbeddedChannel channel : List.of(reader, stalled, publisher)) {
+      channel.finishAndReleaseAll();
+    }
+    ((WalPersistentStoreProvider) broker.store).close();
+  }
+
+  // Two messages queued per session, then the policy applies
+  private Broker slowConsumerBroker(SlowConsumerPolicy slowConsumerPolicy) {
+    return new Broker(
+        new LocalMessageDeliveryProvider(0, 64, 2, 0, 2, null, slowConsumerPolicy));
+  }
+
+  // Subscriber whose outbound buffer is above its high water mark
+  private static EmbeddedChannel stalledSubscriber(Broker broker, boolean cleanSession) {
+    EmbeddedChannel subscriber = broker.connect("slow", cleanSession);
+    broker.dispatch(
+        subscriber,
+        MqttMessageBuilders.subscribe()
+            .messageId(1)
+            .addSubscription(MqttQoS.AT_LEAST_ONCE, "sensors/#")
+            .build());
+    // SUBACK
+    ReferenceCountUtil.release(subscriber.readOutbound());
+    subscriber.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+    assertFalse(subscriber.isWritable());
+    return subscriber;
+  }
+
+  @Test
+  public void dropOverflowOfSlowConsumer() {
+    Broker broker = slowConsumerBroker(SlowConsumerPolicy.DROP);
+    EmbeddedChannel subscriber = stalledSubscriber(broker, true);
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    for (int i = 1; i <= 3; i++) {
+      broker.dispatch(publisher, publish("sensors/1/temp", i));
+    }
+    assertEquals(0, subscriber.outboundMessages().size());
+    InflightWindow window = broker.delivery.inflightWindow("slow");
+    assertEquals(2, window.queuedCount());
+    long size = broker.delivery.queuedBytes() / 2;
+    assertTrue(size > 0);
+    assertEquals(size, broker.delivery.droppedBytes());
+    assertEquals(1, window.droppedCount());
+    assertTrue(subscriber.isActive());
+    assertEquals(0, broker.delivery.slowConsumerDisconnects());
+
+    // Qos 0 is never queued
+    broker.dispatch(publisher, publish("sensors/1/temp", 0, MqttQoS.AT_MOST_ONCE, false));
+    assertEquals(2, window.queuedCount());
+    assertTrue(broker.delivery.droppedBytes() > size);
+
+    // Queued messages go out once the buffer drains
+    subscriber.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+    window.resume();
+    assertEquals(2, subscriber.outboundMessages().size());
+    assertEquals(0, broker.delivery.queuedBytes());
+    assertEquals(2, window.inflightCount());
+    for (EmbeddedChannel channel : List.of(subscriber, publisher)) {
+      channel.finishAndReleaseAll();
+    }
+    ((WalPersistentStoreProvider) broker.store).close();
+  }
+
+  @Test
+  public void disconnectSlowConsumerOnOverflow() {
+    Broker broker = slowConsumerBroker(SlowConsumerPolicy.DISCONNECT);
+    EmbeddedChannel subscriber = stalledSubscriber(broker, false);
+    EmbeddedChannel publisher = broker.connect("publisher", true);
+    for (int i = 1; i <= 2; i++) {
+      broker.dispatch(publisher, publish("sensors/1/temp", i));
+    }
+    // Queue full, not yet overflowing
+    assertTrue(subscriber.isActive());
+    long queuedBytes = broker.delivery.queuedBytes();
+    assertEquals(0, broker.delivery.droppedBytes());
+
+    broker.dispatch(publisher, publish("sensors/1/temp", 3));
+    assertFalse(subscriber.isActive());
+    assertEquals(1, broker.delivery.slowConsumerDisconnects());
+    assertEquals(queuedBytes / 2, broker.delivery.droppedBytes());
+    // Persistent session keeps its queue for the next connection
+    assertEquals(queuedBytes, broker.delivery.queuedBytes());
+    assertEquals(2, broker.delivery.inflightWindow("slow").queuedCount());
+
+    // A closed connection is not closed again
+    broker.dispatch(publisher, publish("sensors/1/temp", 4));
+    assertEquals(1, broker.delivery.slowConsumerDisconnects());
+    assertEquals(queuedBytes, broker.delivery.droppedBytes());
+    for (EmbeddedChannel channel : List.of(subscriber, publisher)) {
+      channel.finishAndReleaseAll();
+    }
+    ((WalPersistentStoreProvider) broker.store).close();
+  }
+
+  private static MqttPublishMessage publish(String topic, int packetId) {
+    return publish(topic, packetId, MqttQoS.AT_LEAST_ONCE, false);
+  }
+
+  private static MqttPublishMessage publish(
+      String topic, int packetId, MqttQoS qos, boolean duplicate) {
+    return new MqttPublishMessage(
+        new MqttFixedHeader(MqttMessageType.PUBLISH, duplicate, qos, false, 0),
+        new MqttPublishVariableHeader(topic, packetId),
+        Unpooled.copiedBuffer(topic, StandardCharsets.UTF_8));
+  }
+
+  private static int packetId(MqttMessage message) {
+    assertEquals(MqttMessageType.PUBACK, message.fixedHeader().messageType());
+    return ((MqttMessageIdVariableHeader) message.variableHeader()).messageId();
+  }
+}
@@ -0,0 +1,32 @@
+package org.flmelody.netcell.core.provider.delivery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class PacketIdSetTest {
+
+  @Test
+  public void addAndRemove() {
+    PacketIdSet packetIds = new PacketIdSet();
+    assertTrue(packetIds.add(1));
+    assertTrue(packetIds.add(1024));
+    assertTrue(packetIds.add(65535));
+    assertFalse(packetIds.add(1));
+    assertEquals(3, packetIds.size());
+    assertTrue(packetIds.contains(1024));
+    assertFalse(packetIds.contains(1025));
+
+    assertTrue(packetIds.remove(1024));
+    assertFalse(packetIds.remove(1024));
+    assertFalse(packetIds.contains(1024));
+    assertFalse(packetIds.remove(2048));
+    assertTrue(packetIds.add(1024));
+    assertEquals(3, packetIds.size());
+  }
+}
@@ -0,0 +1,113 @@
+package org.flmelody.netcell.core.provider.delivery;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class RouteCacheTest {
+  private static final Subscriber[] SUBSCRIBERS = {
+    new Subscriber("subscriber", MqttQoS.AT_LEAST_ONCE)
+  };
+
+  /** Resolver counting its calls */
+  private static final class CountingResolver implements Function<String, Subscriber[]> {
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public Subscriber[] apply(String topicName) {
+      calls.incrementAndGet();
+      return SUBSCRIBERS;
+    }
+  }
+
+  @Test
+  public void hitAfterResolve() {
+    RouteCache cache = new RouteCache(16);
+    CountingResolver resolver = new CountingResolver();
+    assertArrayEquals(SUBSCRIBERS, cache.get("sensors/1/temp", resolver));
+    assertArrayEquals(SUBSCRIBERS, cache.get("sensors/1/temp", resolver));
+    assertEquals(1, resolver.calls.get());
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+  }
+
+  @Test
+  public void invalidateMatchedTopics() {
+    RouteCache cache = new RouteCache(16);
+    CountingResolver resolver = new CountingResolver();
+    cache.get("sensors/1/temp", resolver);
+    cache.get("sensors/2/temp", resolver);
+    cache.get("sensors/1/humidity", resolver);
+    cache.get("alerts/fire", resolver);
+
+    cache.invalidate("sensors/+/temp");
+    assertEquals(2, cache.size());
+    cache.invalidate("alerts/fire");
+    assertEquals(1, cache.size());
+    cache.invalidate("#");
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void invalidateRoutesOfClient() {
+    RouteCache cache = new RouteCache(16);
+    cache.get("sensors/1/temp", new CountingResolver());
+    cache.get("alerts/fire", topicName -> new Subscriber[0]);
+    cache.invalidateClient("subscriber");
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void evictUnreferencedRoutesFirst() {
+    RouteCache cache = new RouteCache(2);
+    CountingResolver resolver = new CountingResolver();
+    cache.get("a", resolver);
+    cache.get("b", resolver);
+    // Referenced, gets a second chance
+    cache.get("a", resolver);
+    cache.get("c", resolver);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.evictionCount());
+
+    cache.get("a", resolver);
+    assertEquals(2, cache.hitCount());
+    assertEquals(3, resolver.calls.get());
+  }
+
+  @Test
+  public void skipRouteResolvedAcrossInvalidation() {
+    RouteCache cache = new RouteCache(16);
+    // A subscription arrives while the route is being resolved
+    Subscriber[] subscribers =
+        cache.get(
+            "sensors/1/temp",
+            topicName -> {
+              cache.invalidate("sensors/#");
+              return SUBSCRIBERS;
+            });
+    assertArrayEquals(SUBSCRIBERS, subscribers);
+    assertEquals(0, cache.size());
+
+    CountingResolver resolver = new CountingResolver();
+    cache.get("sensors/1/temp", resolver);
+    cache.get("sensors/1/temp", resolver);
+    assertEquals(1, resolver.calls.get());
+  }
+
+  @Test
+  public void cacheNothingWithoutCapacity() {
+    RouteCache cache = new RouteCache(0);
+    CountingResolver resolver = new CountingResolver();
+    cache.get("sensors/1/temp", resolver);
+    cache.get("sensors/1/temp", resolver);
+    assertEquals(2, resolver.calls.get());
+    assertEquals(0, cache.size());
+  }
+}
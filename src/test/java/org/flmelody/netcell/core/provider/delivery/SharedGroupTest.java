@@ -0,0 +1,120 @@
+package org.flmelody.netcell.core.provider.delivery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.HashSet;
+import java.util.Set;
+import org.flmelody.netcell.core.provider.session.ClientSession;
+import org.flmelody.netcell.core.topic.Topics;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class SharedGroupTest {
+
+  private static ClientSession online(String clientId) {
+    ClientSession session = new ClientSession(clientId);
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    session.attach(channel.pipeline().firstContext(), false, false);
+    return session;
+  }
+
+  private static SharedGroup group(SharedSubscriptionStrategy strategy, ClientSession... sessions) {
+    SharedGroup group = new SharedGroup("workers", "jobs/#", strategy);
+    for (ClientSession session : sessions) {
+      group.join(session, MqttQoS.AT_LEAST_ONCE);
+    }
+    return group;
+  }
+
+  @Test
+  public void parseSharedSubscription() {
+    assertTrue(Topics.isShared("$share/workers/jobs/#"));
+    assertTrue(Topics.isValidSharedSubscription("$share/workers/jobs/#"));
+    assertEquals("workers", Topics.shareName("$share/workers/jobs/#"));
+    assertEquals("jobs/#", Topics.sharedTopicFilter("$share/workers/jobs/#"));
+    assertFalse(Topics.isValidSharedSubscription("$share//jobs"));
+    assertFalse(Topics.isValidSharedSubscription("$share/workers"));
+    assertFalse(Topics.isValidSharedSubscription("$share/work+/jobs"));
+    assertFalse(Topics.isValidSharedSubscription("$share/workers/jobs/#/x"));
+  }
+
+  @Test
+  public void roundRobinAmongMembers() {
+    ClientSession first = online("w1");
+    ClientSession second = online("w2");
+    SharedGroup group = group(SharedSubscriptionStrategy.ROUND_ROBIN, first, second);
+    assertSame(first, group.select("p").session());
+    assertSame(second, group.select("p").session());
+    assertSame(first, group.select("p").session());
+  }
+
+  @Test
+  public void stickyByPublisher() {
+    SharedGroup group =
+        group(SharedSubscriptionStrategy.STICKY, online("w1"), online("w2"), online("w3"));
+    Set<ClientSession> chosen = new HashSet<>();
+    for (int i = 0; i < 10; i++) {
+      chosen.add(group.select("sensor-7").session());
+    }
+    assertEquals(1, chosen.size());
+  }
+
+  @Test
+  public void preferConnectedMembers() {
+    ClientSession offline = new ClientSession("w1");
+    offline.attach(null, true, true);
+    ClientSession connected = online("w2");
+    for (SharedSubscriptionStrategy strategy : SharedSubscriptionStrategy.values()) {
+      SharedGroup group = group(strategy, offline, connected);
+      for (int i = 0; i < 4; i++) {
+        assertSame(connected, group.select("p" + i).session());
+      }
+    }
+  }
+
+  @Test
+  public void skipDetachedMembers() {
+    ClientSession first = online("w1");
+    ClientSession second = online("w2");
+    ClientSession third = online("w3");
+    SharedGroup group = group(SharedSubscriptionStrategy.ROUND_ROBIN, first, second, third);
+    assertEquals(3, group.onlineSize());
+    second.detach(second.context());
+    group.refresh();
+    assertEquals(2, group.onlineSize());
+    for (int i = 0; i < 4; i++) {
+      assertSame(i % 2 == 0 ? first : third, group.select("p").session());
+    }
+
+    first.detach(first.context());
+    third.detach(third.context());
+    group.refresh();
+    // Nobody connected, an offline member queues the message
+    assertEquals(0, group.onlineSize());
+    assertNotNull(group.select("p"));
+  }
+
+  @Test
+  public void leaveOnlyOwnMembership() {
+    ClientSession first = online("w1");
+    SharedGroup group = group(SharedSubscriptionStrategy.RANDOM, first);
+    // Same client connects again with a new session
+    ClientSession replacement = online("w1");
+    group.join(replacement, MqttQoS.AT_MOST_ONCE);
+    assertEquals(1, group.size());
+    assertFalse(group.leave(first));
+    assertTrue(group.leave(replacement));
+    assertTrue(group.isEmpty());
+    assertNull(group.select("p"));
+  }
+}
@@ -0,0 +1,114 @@
+package org.flmelody.netcell.core.provider.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author esotericman
+ */
+public class WalPersistentStoreProviderTest {
+  @TempDir Path directory;
+
+  private WalPersistentStoreProvider open() {
+    return new WalPersistentStoreProvider(directory, 4096, DurabilityMode.BATCH, 2, 1024);
+  }
+
+  private static MqttPublishMessage publish(String topic, MqttQoS qos, String payload) {
+    return new MqttPublishMessage(
+        new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+        new MqttPublishVariableHeader(topic, 1),
+        Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void recoverAfterRestart() {
+    WalPersistentStoreProvider store = open();
+    store.storeSession("a");
+    store.storeSubscription("a", "sensors/+", MqttQoS.AT_LEAST_ONCE);
+    store.storeSubscription("a", "alerts/#", MqttQoS.EXACTLY_ONCE);
+    store.removeSubscription("a", "sensors/+");
+    store.storeSession("b");
+    store.removeSession("b");
+    assertEquals(
+        -1, store.storeMessage(publish("sensors/1", MqttQoS.AT_MOST_ONCE, "skip")).join());
+    long kept = store.storeMessage(publish("alerts/1", MqttQoS.AT_LEAST_ONCE, "kept")).join();
+    long removed =
+        store.storeMessage(publish("alerts/2", MqttQoS.EXACTLY_ONCE, "removed")).join();
+    store.removeMessage(removed);
+    store.close();
+
+    WalPersistentStoreProvider recovered = open();
+    assertEquals(
+        List.of(new StoredSession("a", Map.of("alerts/#", MqttQoS.EXACTLY_ONCE))),
+        List.copyOf(recovered.sessions()));
+    StoredMessage message = recovered.messages().iterator().next();
+    assertEquals(1, recovered.messages().size());
+    assertEquals(kept, message.id());
+    assertEquals("alerts/1", message.topic());
+    assertArrayEquals("kept".getBytes(StandardCharsets.UTF_8), message.payload());
+    // Ids keep growing after recovery
+    assertTrue(
+        recovered.storeMessage(publish("alerts/3", MqttQoS.AT_LEAST_ONCE, "")).join() > removed);
+    recovered.close();
+  }
+
+  @Test
+  public void compactKeepsLiveState() {
+    WalPersistentStoreProvider store = open();
+    store.storeSession("a");
+    for (int i = 0; i < 200; i++) {
+      store.removeMessage(store.storeMessage(publish("t", MqttQoS.AT_LEAST_ONCE, "x" + i)).join());
+    }
+    long kept = store.storeMessage(publish("t", MqttQoS.AT_LEAST_ONCE, "kept")).join();
+    assertTrue(store.log().segmentCount() <= 3);
+    store.close();
+
+    WalPersistentStoreProvider recovered = open();
+    assertEquals(1, recovered.sessions().size());
+    assertEquals(kept, recovered.messages().iterator().next().id());
+    recovered.close();
+  }
+
+  @Test
+  public void completeChangesRacingClose() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      WalPersistentStoreProvider store =
+          new WalPersistentStoreProvider(
+              directory.resolve(String.valueOf(round)), 1 << 16, DurabilityMode.NONE, 4, 1 << 16);
+      List<CompletableFuture<Void>> changes = new ArrayList<>();
+      AtomicBoolean closed = new AtomicBoolean();
+      Thread submitter =
+          new Thread(
+              () -> {
+                for (int i = 0; !closed.get(); i++) {
+                  changes.add(store.storeSession("client-" + i));
+                }
+              });
+      submitter.start();
+      TimeUnit.MILLISECONDS.sleep(2);
+      store.close();
+      closed.set(true);
+      submitter.join();
+      // Written before close, or failed, never left pending
+      assertTrue(changes.stream().allMatch(CompletableFuture::isDone));
+    }
+  }
+}
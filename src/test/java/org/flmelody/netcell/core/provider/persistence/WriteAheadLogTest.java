@@ -0,0 +1,127 @@
+package org.flmelody.netcell.core.provider.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author esotericman
+ */
+public class WriteAheadLogTest {
+  @TempDir Path directory;
+
+  private WriteAheadLog open(List<String> replayed) {
+    WriteAheadLog log = new WriteAheadLog(directory, 256, DurabilityMode.EVERY_WRITE);
+    log.replay(
+        (type, body) ->
+            replayed.add(type + ":" + StandardCharsets.UTF_8.decode(body).toString()));
+    return log;
+  }
+
+  private static void append(WriteAheadLog log, int type, String body) {
+    log.append((byte) type, Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().toList();
+    }
+  }
+
+  @Test
+  public void replayAcrossSegments() {
+    WriteAheadLog log = open(new ArrayList<>());
+    for (int i = 0; i < 20; i++) {
+      append(log, 1, "record-" + i);
+    }
+    assertTrue(log.segmentCount() > 1);
+    log.close();
+
+    List<String> replayed = new ArrayList<>();
+    WriteAheadLog reopened = open(replayed);
+    assertEquals(20, replayed.size());
+    assertEquals("1:record-0", replayed.get(0));
+    assertEquals("1:record-19", replayed.get(19));
+    reopened.close();
+  }
+
+  @Test
+  public void stopAtTornRecord() throws IOException {
+    WriteAheadLog log = open(new ArrayList<>());
+    append(log, 1, "first");
+    append(log, 1, "second");
+    log.close();
+    // Flip a byte in the body of the second record
+    Path segment = segments().get(0);
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {'X'}), 8 + 6 + 8 + 1);
+    }
+
+    List<String> replayed = new ArrayList<>();
+    WriteAheadLog reopened = open(replayed);
+    assertEquals(List.of("1:first"), replayed);
+    append(reopened, 2, "third");
+    reopened.close();
+
+    replayed.clear();
+    open(replayed).close();
+    assertEquals(List.of("1:first", "2:third"), replayed);
+  }
+
+  @Test
+  public void compactDropsOlderSegments() throws IOException {
+    WriteAheadLog log = open(new ArrayList<>());
+    for (int i = 0; i < 20; i++) {
+      append(log, 1, "record-" + i);
+    }
+    log.compact(() -> append(log, 3, "snapshot"));
+    assertEquals(1, log.segmentCount());
+    assertEquals(1, segments().size());
+    log.close();
+
+    List<String> replayed = new ArrayList<>();
+    open(replayed).close();
+    assertEquals(List.of("3:snapshot"), replayed);
+  }
+
+  @Test
+  public void compactDeletesAndUnmapsOlderSegments() throws IOException {
+    WriteAheadLog log = open(new ArrayList<>());
+    for (int i = 0; i < 20; i++) {
+      append(log, 1, "record-" + i);
+    }
+    List<Path> obsolete = new ArrayList<>();
+    for (Path segment : segments()) {
+      obsolete.add(segment.toRealPath());
+    }
+    assertTrue(obsolete.size() > 1);
+    log.compact(() -> append(log, 3, "snapshot"));
+    for (Path segment : obsolete) {
+      assertFalse(Files.exists(segment));
+    }
+    // Mappings of deleted segments are gone as well, where the JVM lists them
+    Path maps = Path.of("/proc/self/maps");
+    if (Files.isReadable(maps)) {
+      String mapped = Files.readString(maps);
+      for (Path segment : obsolete) {
+        assertFalse(mapped.contains(segment.toString()));
+      }
+      assertTrue(mapped.contains(segments().get(0).toRealPath().toString()));
+    }
+    log.close();
+  }
+}
@@ -0,0 +1,139 @@
+package org.flmelody.netcell.core.provider.retained;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class LocalRetainedMessageProviderTest {
+  private static final int EXPIRY =
+      MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value();
+
+  private static void publish(LocalRetainedMessageProvider provider, String topic, String payload) {
+    publish(provider, topic, payload, MqttProperties.NO_PROPERTIES);
+  }
+
+  private static void publish(
+      LocalRetainedMessageProvider provider,
+      String topic,
+      String payload,
+      MqttProperties properties) {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    MqttPublishMessage message =
+        new MqttPublishMessage(
+            new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, true, 0),
+            new MqttPublishVariableHeader(topic, 1, properties),
+            Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8));
+    provider.onMessage(channel.pipeline().firstContext(), message);
+    // Released by its channel, the provider keeps a copy
+    message.release();
+    channel.finishAndReleaseAll();
+  }
+
+  private static Map<String, String> retained(
+      LocalRetainedMessageProvider provider, String topicFilter) {
+    Map<String, String> found = new TreeMap<>();
+    provider.retainedMessages(
+        topicFilter,
+        message ->
+            found.put(
+                message.variableHeader().topicName(),
+                message.payload().toString(StandardCharsets.UTF_8)));
+    return found;
+  }
+
+  @Test
+  public void matchWildcardsAndDeleteOnEmptyPayload() {
+    LocalRetainedMessageProvider provider = new LocalRetainedMessageProvider();
+    publish(provider, "sensors/1/temp", "21");
+    publish(provider, "sensors/2/temp", "19");
+    publish(provider, "sensors/2/humidity", "40");
+    publish(provider, "sensors/1/temp", "22");
+
+    assertEquals(
+        Map.of("sensors/1/temp", "22", "sensors/2/temp", "19"),
+        retained(provider, "sensors/+/temp"));
+    assertEquals(3, retained(provider, "sensors/#").size());
+    assertEquals(3, provider.retainedCount());
+    assertEquals(6, provider.residentBytes());
+
+    publish(provider, "sensors/2/temp", "");
+    assertEquals(Map.of("sensors/1/temp", "22"), retained(provider, "sensors/+/temp"));
+    assertNull(provider.getRetainedMessage("sensors/2/temp"));
+    assertEquals(2, provider.retainedCount());
+    assertEquals(4, provider.residentBytes());
+  }
+
+  @Test
+  public void getRetainedMessageByTopicName() {
+    LocalRetainedMessageProvider provider = new LocalRetainedMessageProvider();
+    publish(provider, "sensors/1/temp", "21");
+    publish(provider, "sensors/2/temp", "19");
+
+    MqttPublishMessage message = (MqttPublishMessage) provider.getRetainedMessage("sensors/2/temp");
+    assertEquals("sensors/2/temp", message.variableHeader().topicName());
+    assertEquals("19", message.payload().toString(StandardCharsets.UTF_8));
+    message.release();
+    // A topic name has no wildcards, one given is not a filter
+    assertNull(provider.getRetainedMessage("sensors/+/temp"));
+    assertNull(provider.getRetainedMessage("sensors/#"));
+    assertNull(provider.getRetainedMessage("sensors/3/temp"));
+  }
+
+  @Test
+  public void evictMessagesNotReadFirst() {
+    LocalRetainedMessageProvider provider =
+        new LocalRetainedMessageProvider(10, 0, UnpooledByteBufAllocator.DEFAULT);
+    publish(provider, "a", "aaaa");
+    publish(provider, "b", "bbbb");
+    retained(provider, "a");
+    publish(provider, "c", "cccc");
+
+    assertEquals(Map.of("a", "aaaa", "c", "cccc"), retained(provider, "#"));
+    assertEquals(8, provider.residentBytes());
+    assertEquals(1, provider.evictedCount());
+    // Larger than the whole budget
+    publish(provider, "d", "ddddddddddd");
+    assertEquals(2, provider.retainedCount());
+  }
+
+  @Test
+  public void expireMessages() throws Exception {
+    LocalRetainedMessageProvider provider =
+        new LocalRetainedMessageProvider(1024, 1, UnpooledByteBufAllocator.DEFAULT);
+    MqttProperties properties = new MqttProperties();
+    properties.add(new MqttProperties.IntegerProperty(EXPIRY, 3600));
+    publish(provider, "kept", "1", properties);
+    publish(provider, "aged", "2");
+    Thread.sleep(10);
+
+    provider.retainedMessages(
+        "#",
+        message -> {
+          assertEquals("kept", message.variableHeader().topicName());
+          Integer remaining =
+              (Integer) message.variableHeader().properties().getProperty(EXPIRY).value();
+          assertTrue(remaining > 3500 && remaining <= 3600);
+        });
+    assertEquals(1, provider.expiredCount());
+    assertEquals(1, provider.retainedCount());
+    assertEquals(1, provider.residentBytes());
+  }
+}
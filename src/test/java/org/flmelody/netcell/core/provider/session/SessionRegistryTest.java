@@ -0,0 +1,111 @@
+package org.flmelody.netcell.core.provider.session;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class SessionRegistryTest {
+
+  private static ChannelHandlerContext context() {
+    return new EmbeddedChannel(new ChannelInboundHandlerAdapter()).pipeline().firstContext();
+  }
+
+  @Test
+  public void takeOverConnection() {
+    SessionRegistry registry = new SessionRegistry();
+    ChannelHandlerContext first = context();
+    ChannelHandlerContext second = context();
+    SessionRegistry.Takeover takeover = registry.connect("c1", first, false);
+    assertNull(takeover.previous());
+    assertFalse(takeover.present());
+
+    SessionRegistry.Takeover next = registry.connect("c1", second, false);
+    assertSame(first, next.previous());
+    assertSame(takeover.session(), next.session());
+    assertTrue(next.present());
+    assertSame(second, next.session().context());
+    assertEquals(1, registry.takeoverCount());
+  }
+
+  @Test
+  public void staleDisconnectKeepsNewConnection() {
+    SessionRegistry registry = new SessionRegistry();
+    ChannelHandlerContext first = context();
+    ChannelHandlerContext second = context();
+    registry.connect("c1", first, true);
+    registry.connect("c1", second, true);
+    // Old connection closes after it was taken over
+    assertFalse(registry.disconnect("c1", first));
+    assertSame(second, registry.get("c1").context());
+
+    assertTrue(registry.disconnect("c1", second));
+    assertNull(registry.get("c1"));
+  }
+
+  @Test
+  public void keepPersistentSessionOffline() {
+    SessionRegistry registry = new SessionRegistry();
+    ChannelHandlerContext context = context();
+    ClientSession session = registry.connect("c1", context, false).session();
+    assertTrue(registry.disconnect("c1", context));
+    assertSame(session, registry.get("c1"));
+    assertNull(session.context());
+    // A clean connect does not resume it
+    assertFalse(registry.connect("c1", context(), true).present());
+  }
+
+  @Test
+  public void concurrentConnectsOfOneClient() throws Exception {
+    SessionRegistry registry = new SessionRegistry();
+    int connections = 64;
+    List<ChannelHandlerContext> contexts = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      contexts.add(context());
+    }
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<SessionRegistry.Takeover>> results = new ArrayList<>();
+    try {
+      for (ChannelHandlerContext context : contexts) {
+        results.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  return registry.connect("c1", context, false);
+                }));
+      }
+      start.countDown();
+      // Every connection but the last one bound is taken over exactly once
+      List<ChannelHandlerContext> previous = new ArrayList<>();
+      for (Future<SessionRegistry.Takeover> result : results) {
+        SessionRegistry.Takeover takeover = result.get();
+        assertSame(registry.get("c1"), takeover.session());
+        if (takeover.previous() != null) {
+          previous.add(takeover.previous());
+        }
+      }
+      assertEquals(connections - 1, previous.size());
+      assertEquals(connections - 1, previous.stream().distinct().count());
+      assertFalse(previous.contains(registry.get("c1").context()));
+      assertEquals(connections - 1, registry.takeoverCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
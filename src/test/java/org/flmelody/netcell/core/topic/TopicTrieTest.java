@@ -0,0 +1,137 @@
+package org.flmelody.netcell.core.topic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author esotericman
+ */
+public class TopicTrieTest {
+
+  private static Set<String> match(TopicTrie<Integer> trie, String topicName) {
+    Set<String> keys = new TreeSet<>();
+    trie.match(topicName, (key, value) -> keys.add(key));
+    return keys;
+  }
+
+  @Test
+  public void matchWildcards() {
+    TopicTrie<Integer> trie = new TopicTrie<>();
+    trie.put("sport/tennis/player1", "exact", 0);
+    trie.put("sport/tennis/+", "single", 0);
+    trie.put("sport/#", "multi", 0);
+    trie.put("#", "all", 0);
+    trie.put("+/+", "twoLevels", 0);
+    trie.put("sport/+/player1/#", "mixed", 0);
+
+    assertEquals(
+        Set.of("exact", "single", "multi", "all", "mixed"), match(trie, "sport/tennis/player1"));
+    assertEquals(Set.of("multi", "all", "twoLevels"), match(trie, "sport/tennis"));
+    assertEquals(Set.of("multi", "all"), match(trie, "sport"));
+    assertEquals(Set.of("all", "twoLevels"), match(trie, "/finance"));
+    assertEquals(Set.of("all"), match(trie, "news"));
+  }
+
+  @Test
+  public void systemTopicsSkipLeadingWildcards() {
+    TopicTrie<Integer> trie = new TopicTrie<>();
+    trie.put("#", "all", 0);
+    trie.put("+/monitor/Clients", "single", 0);
+    trie.put("$SYS/#", "sys", 0);
+    trie.put("$SYS/monitor/+", "sysSingle", 0);
+
+    assertEquals(Set.of("sys", "sysSingle"), match(trie, "$SYS/monitor/Clients"));
+    assertEquals(Set.of("all", "single"), match(trie, "a/monitor/Clients"));
+  }
+
+  private static Set<String> scan(TopicTrie<Integer> trie, String topicFilter) {
+    Set<String> keys = new TreeSet<>();
+    trie.scan(topicFilter, (key, value) -> keys.add(key));
+    return keys;
+  }
+
+  @Test
+  public void scanTopicNames() {
+    TopicTrie<Integer> trie = new TopicTrie<>();
+    for (String topic :
+        List.of("sensors/1/temp", "sensors/2/temp", "sensors/2/humidity", "sensors", "$SYS/up")) {
+      trie.put(topic, topic, 0);
+    }
+
+    assertEquals(Set.of("sensors/1/temp", "sensors/2/temp"), scan(trie, "sensors/+/temp"));
+    assertEquals(Set.of("sensors/2/humidity"), scan(trie, "sensors/2/humidity"));
+    assertEquals(
+        Set.of("sensors", "sensors/1/temp", "sensors/2/temp", "sensors/2/humidity"),
+        scan(trie, "sensors/#"));
+    assertEquals(Set.of("sensors"), scan(trie, "+"));
+    assertEquals(4, scan(trie, "#").size());
+    assertEquals(Set.of("$SYS/up"), scan(trie, "$SYS/#"));
+    assertTrue(scan(trie, "sensors/+").isEmpty());
+  }
+
+  @Test
+  public void getExactTopic() {
+    TopicTrie<Integer> trie = new TopicTrie<>();
+    trie.put("a/b", "one", 1);
+    trie.put("a/+", "two", 2);
+    assertEquals(1, trie.get("a/b", "one"));
+    assertNull(trie.get("a/b", "two"));
+    // Wildcards are not expanded
+    assertEquals(2, trie.get("a/+", "two"));
+    assertNull(trie.get("a/+", "one"));
+    assertNull(trie.get("a/#", "one"));
+    assertNull(trie.get("a", "one"));
+    assertNull(trie.get("a/b/c", "one"));
+  }
+
+  @Test
+  public void removePrunesNodes() {
+    TopicTrie<Integer> trie = new TopicTrie<>();
+    trie.put("a/b/c", "one", 1);
+    trie.put("a/b/c", "two", 2);
+    trie.put("a/b", "three", 3);
+    assertEquals(3, trie.size());
+
+    assertEquals(1, trie.remove("a/b/c", "one"));
+    assertEquals(Set.of("two"), match(trie, "a/b/c"));
+    assertEquals(2, trie.remove("a/b/c", "two"));
+    assertEquals(3, trie.remove("a/b", "three"));
+    assertNull(trie.remove("a/b", "three"));
+    assertTrue(trie.isEmpty());
+    assertTrue(match(trie, "a/b/c").isEmpty());
+  }
+
+  @Test
+  public void removeOnlyIfConditionHolds() {
+    TopicTrie<Integer> trie = new TopicTrie<>();
+    trie.put("a/b", "one", 1);
+    assertNull(trie.remove("a/b", "one", value -> value == 2));
+    assertEquals(Set.of("one"), match(trie, "a/b"));
+    assertEquals(1, trie.remove("a/b", "one", value -> value == 1));
+    assertTrue(trie.isEmpty());
+  }
+
+  @Test
+  public void validateTopics() {
+    assertTrue(Topics.isValidTopicFilter("sport/+/player1/#"));
+    assertTrue(Topics.isValidTopicFilter("+"));
+    assertTrue(Topics.isValidTopicFilter("/"));
+    assertFalse(Topics.isValidTopicFilter("sport/tennis#"));
+    assertFalse(Topics.isValidTopicFilter("sport/#/ranking"));
+    assertFalse(Topics.isValidTopicFilter("sport+"));
+    assertFalse(Topics.isValidTopicFilter(""));
+    assertTrue(Topics.isValidTopicName("sport/tennis"));
+    assertFalse(Topics.isValidTopicName("sport/+"));
+    assertTrue(Topics.matches("sport/#", "sport"));
+    assertTrue(Topics.matches("+/+", "/finance"));
+    assertFalse(Topics.matches("#", "$SYS/uptime"));
+    assertFalse(Topics.matches("sport/+", "sport/tennis/player1"));
+  }
+}
@@ -0,0 +1,167 @@
+package org.flmelody.netcell.core.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.AttributeKey;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.flmelody.netcell.core.constants.NettyAttributeKeys;
+import org.flmelody.netcell.core.handler.MetricsHandler;
+import org.flmelody.netcell.core.metrics.BrokerMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author esotericman
+ */
+public class MessageTracerTest {
+  private static final AttributeKey<MqttVersion> MQTT_VERSION_KEY =
+      AttributeKey.valueOf("NETTY_CODEC_MQTT_VERSION");
+  private final Logger logger = (Logger) LoggerFactory.getLogger("org.flmelody.netcell.trace");
+  private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+
+  @BeforeEach
+  public void setUp() {
+    appender.start();
+    logger.addAppender(appender);
+    MessageTracer.trace("traced");
+  }
+
+  @AfterEach
+  public void tearDown() {
+    MessageTracer.untrace("traced");
+    logger.detachAppender(appender);
+    appender.stop();
+  }
+
+  private static MqttPublishMessage publish(MqttQoS qos, int packetId) {
+    MqttProperties properties = new MqttProperties();
+    properties.add(new MqttProperties.UserProperty("unit", "celsius"));
+    return new MqttPublishMessage(
+        new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+        new MqttPublishVariableHeader("sensors/1/temp", packetId, properties),
+        Unpooled.copiedBuffer("21.5", StandardCharsets.UTF_8));
+  }
+
+  private static ByteBuf encode(MqttMessage message, MqttVersion version) {
+    EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+    channel.attr(MQTT_VERSION_KEY).set(version);
+    channel.writeOutbound(message);
+    ByteBuf frame = channel.readOutbound();
+    channel.finishAndReleaseAll();
+    return frame;
+  }
+
+  // Key values of the events logged, in order
+  private List<Map<String, Object>> events(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (appender.list.size() < count) {
+      if (System.nanoTime() > deadline) {
+        fail("Expected " + count + " events, got " + appender.list.size());
+      }
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    return appender.list.stream()
+        .map(
+            event -> {
+              Map<String, Object> keyValues = new HashMap<>();
+              event.getKeyValuePairs().forEach(pair -> keyValues.put(pair.key, pair.value));
+              return keyValues;
+            })
+        .toList();
+  }
+
+  @Test
+  public void recordOnlyTracedClients() throws InterruptedException {
+    assertTrue(MessageTracer.enabled());
+    assertTrue(MessageTracer.traced("traced"));
+    assertFalse(MessageTracer.traced("other"));
+    assertFalse(MessageTracer.traced(null));
+
+    MqttPublishMessage message = publish(MqttQoS.AT_LEAST_ONCE, 7);
+    MessageTracer.record("other", "in", message);
+    MessageTracer.record("traced", "in", message);
+    message.release();
+    ByteBuf frame = encode(MqttMessage.PINGRESP, MqttVersion.MQTT_3_1_1);
+    MessageTracer.recordSent(null, frame, MqttVersion.MQTT_3_1_1);
+    MessageTracer.recordSent("traced", frame, MqttVersion.MQTT_3_1_1);
+    frame.release();
+
+    List<Map<String, Object>> events = events(2);
+    assertEquals(2, events.size());
+    assertEquals("in", events.get(0).get("dir"));
+    assertEquals("PUBLISH", events.get(0).get("type"));
+    assertEquals(1, events.get(0).get("qos"));
+    assertEquals(7, events.get(0).get("packetId"));
+    assertEquals("sensors/1/temp", events.get(0).get("topic"));
+    assertEquals(4, events.get(0).get("payloadSize"));
+    assertEquals("out", events.get(1).get("dir"));
+    assertEquals("PINGRESP", events.get(1).get("type"));
+  }
+
+  @Test
+  public void recordSentPackets() throws InterruptedException {
+    for (MqttVersion version : new MqttVersion[] {MqttVersion.MQTT_3_1_1, MqttVersion.MQTT_5}) {
+      ByteBuf frame = encode(publish(MqttQoS.EXACTLY_ONCE, 42), version);
+      MessageTracer.recordSent("traced", frame, version);
+      frame.release();
+    }
+    ByteBuf frame =
+        encode(MqttMessageBuilders.pubAck().packetId(9).build(), MqttVersion.MQTT_3_1_1);
+    MessageTracer.recordSent("traced", frame, MqttVersion.MQTT_3_1_1);
+    frame.release();
+
+    List<Map<String, Object>> events = events(3);
+    for (Map<String, Object> event : events.subList(0, 2)) {
+      assertEquals("out", event.get("dir"));
+      assertEquals("PUBLISH", event.get("type"));
+      assertEquals(2, event.get("qos"));
+      assertEquals(42, event.get("packetId"));
+      assertEquals("sensors/1/temp", event.get("topic"));
+      assertEquals(4, event.get("payloadSize"));
+    }
+    assertEquals("PUBACK", events.get(2).get("type"));
+    assertEquals(9, events.get(2).get("packetId"));
+  }
+
+  @Test
+  public void recordPacketsWrittenToTracedClient() throws InterruptedException {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(new MetricsHandler(new BrokerMetrics()), MqttEncoder.INSTANCE);
+    channel.attr(NettyAttributeKeys.MQTT_CLIENT_ID).set("traced");
+    channel.attr(MQTT_VERSION_KEY).set(MqttVersion.MQTT_5);
+    channel.writeOutbound(publish(MqttQoS.AT_MOST_ONCE, 0));
+
+    Map<String, Object> event = events(1).get(0);
+    assertEquals("traced", event.get("clientId"));
+    assertEquals("out", event.get("dir"));
+    assertEquals("PUBLISH", event.get("type"));
+    assertEquals(-1, event.get("packetId"));
+    assertEquals(4, event.get("payloadSize"));
+    channel.finishAndReleaseAll();
+  }
+}